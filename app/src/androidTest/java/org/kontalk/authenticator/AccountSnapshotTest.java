@@ -0,0 +1,85 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.authenticator;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import static org.junit.Assert.*;
+
+
+@RunWith(AndroidJUnit4.class)
+public class AccountSnapshotTest {
+
+    /** Roughly the account lookups done while processing one incoming message. */
+    private static final int LOOKUPS_PER_MESSAGE = 4;
+    private static final int MESSAGES = 250;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        AccountSnapshot.invalidate();
+    }
+
+    @Test
+    public void testCached() {
+        AccountSnapshot first = AccountSnapshot.get(mContext);
+        assertNotNull(first);
+        long loads = AccountSnapshot.getLoadCount();
+
+        assertSame(first, AccountSnapshot.get(mContext));
+        assertEquals(first.selfJid, Authenticator.getSelfJID(mContext));
+        assertEquals(first.getName(), Authenticator.getDefaultAccountName(mContext));
+        assertEquals(loads, AccountSnapshot.getLoadCount());
+
+        AccountSnapshot.invalidate();
+        assertNotSame(first, AccountSnapshot.get(mContext));
+        assertEquals(loads + 1, AccountSnapshot.getLoadCount());
+    }
+
+    /** Compares account lookups through AccountManager with the snapshot. */
+    @Test
+    public void testBenchmark() {
+        int lookups = LOOKUPS_PER_MESSAGE * MESSAGES;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++)
+            AccountSnapshot.load(mContext);
+        long direct = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++)
+            AccountSnapshot.get(mContext);
+        long cached = System.nanoTime() - start;
+
+        Log.i("AccountSnapshotTest", "account lookups for " + MESSAGES + " messages: " +
+            "AccountManager " + (direct / 1000) + " us (" + (direct / MESSAGES / 1000) + " us/message), " +
+            "snapshot " + (cached / 1000) + " us (" + (cached / MESSAGES / 1000) + " us/message)");
+        assertTrue(cached < direct);
+    }
+
+}
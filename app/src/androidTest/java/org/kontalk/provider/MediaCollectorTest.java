@@ -0,0 +1,170 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.kontalk.provider.MyMessages.Media;
+
+import static org.junit.Assert.*;
+
+
+@RunWith(AndroidJUnit4.class)
+public class MediaCollectorTest {
+
+    private static final long STALE = 2 * MediaCollector.MIN_AGE;
+
+    private Context mContext;
+    private SQLiteDatabase mDb;
+    private final List<File> mFiles = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        // only what the collector uses
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE " + MessagesProvider.TABLE_MESSAGES + " (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            "thread_id INTEGER NOT NULL, " +
+            "att_local_uri TEXT, " +
+            "att_length INTEGER NOT NULL DEFAULT 0, " +
+            "att_preview_path TEXT)");
+        mDb.execSQL("CREATE TABLE " + MessagesProvider.TABLE_MEDIA + " (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            "path TEXT NOT NULL, " +
+            "type INTEGER NOT NULL, " +
+            "message_id INTEGER, " +
+            "thread_id INTEGER, " +
+            "length INTEGER NOT NULL DEFAULT 0, " +
+            "unlinked INTEGER)");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDb.close();
+        for (File file : mFiles)
+            file.delete();
+    }
+
+    private File createFile(File dir, String name, long age) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[1024]);
+        }
+        finally {
+            out.close();
+        }
+        if (age > 0)
+            assertTrue(file.setLastModified(System.currentTimeMillis() - age));
+        mFiles.add(file);
+        return file;
+    }
+
+    private void insertUnlinked(File file) {
+        mDb.execSQL("INSERT INTO " + MessagesProvider.TABLE_MEDIA +
+            " (path, type, message_id, unlinked) VALUES (?, ?, NULL, ?)",
+            new Object[] { file.getAbsolutePath(), Media.TYPE_ATTACHMENT,
+                System.currentTimeMillis() - STALE });
+    }
+
+    private void insertMessage(File file) {
+        mDb.execSQL("INSERT INTO " + MessagesProvider.TABLE_MESSAGES +
+            " (thread_id, att_local_uri, att_length) VALUES (1, ?, ?)",
+            new Object[] { "file://" + file.getAbsolutePath(), file.length() });
+    }
+
+    private long countUnlinked() {
+        return DatabaseUtils.queryNumEntries(mDb, MessagesProvider.TABLE_MEDIA,
+            "message_id IS NULL");
+    }
+
+    private MediaCollector.Result collect() {
+        return new MediaCollector(mContext).collect(mDb);
+    }
+
+    @Test
+    public void testStaleOrphan() throws Exception {
+        File file = createFile(mContext.getCacheDir(), "collector-orphan", STALE);
+        insertUnlinked(file);
+
+        MediaCollector.Result result = collect();
+        assertFalse(file.exists());
+        assertEquals(1, result.unlinked);
+        assertEquals(0, countUnlinked());
+    }
+
+    @Test
+    public void testOutsideRoots() throws Exception {
+        File dir = mContext.getDir("collector", Context.MODE_PRIVATE);
+        File file = createFile(dir, "collector-outside", STALE);
+        insertUnlinked(file);
+
+        MediaCollector.Result result = collect();
+        // the row is gone, but the file is not ours
+        assertTrue(file.exists());
+        assertEquals(0, result.unlinked);
+        assertEquals(0, countUnlinked());
+    }
+
+    @Test
+    public void testRelinked() throws Exception {
+        File file = createFile(mContext.getCacheDir(), "collector-relinked", STALE);
+        insertUnlinked(file);
+        // e.g. a forward of the deleted message
+        insertMessage(file);
+
+        MediaCollector.Result result = collect();
+        assertTrue(file.exists());
+        assertEquals(0, result.unlinked);
+        assertEquals(0, countUnlinked());
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, MessagesProvider.TABLE_MEDIA,
+            "message_id IS NOT NULL"));
+    }
+
+    @Test
+    public void testLeftovers() throws Exception {
+        File recent = createFile(mContext.getCacheDir(), "media-collector-recent.tmp", 0);
+        File stale = createFile(mContext.getCacheDir(), "media-collector-stale.tmp", STALE);
+        // not a temporary file of ours
+        File other = createFile(mContext.getCacheDir(), "collector-other.tmp", STALE);
+
+        MediaCollector.Result result = collect();
+        assertTrue(recent.exists());
+        assertFalse(stale.exists());
+        assertTrue(other.exists());
+        assertTrue(result.leftovers >= 1);
+    }
+
+}
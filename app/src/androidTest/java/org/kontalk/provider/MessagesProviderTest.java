@@ -18,7 +18,9 @@
 
 package org.kontalk.provider;
 
+import java.io.File;
 import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
 
 import org.jivesoftware.smack.util.StringUtils;
 import org.junit.After;
@@ -29,6 +31,7 @@ import org.jxmpp.util.XmppStringUtils;
 
 import android.annotation.TargetApi;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
@@ -36,9 +39,12 @@ import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 import android.test.MoreAsserts;
 import android.test.ProviderTestCase2;
+import android.util.Log;
 
+import org.kontalk.data.SearchItem;
 import org.kontalk.provider.MyMessages.Groups;
 import org.kontalk.provider.MyMessages.Messages;
+import org.kontalk.provider.MyMessages.Messages.Fulltext;
 import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.SystemUtils;
@@ -109,6 +115,27 @@ public class MessagesProviderTest extends ProviderTestCase2<MessagesProvider> {
         assertQueryCount(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId), 0);
     }
 
+    @Test
+    public void testMediaIndex() {
+        Uri msg = MessagesProviderUtils.newOutgoingMessage(getMockContext(),
+            MessageUtils.messageId(), TEST_USERID, "image/jpeg",
+            Uri.fromFile(new File("/kontalk-test/media.jpg")), 1000, 0, null, false);
+        assertNotNull(msg);
+        long threadId = MessagesProviderUtils.getThreadByMessage(getMockContext(), msg);
+        long usage = MessagesProviderUtils.getMediaUsage(getMockContext(), threadId);
+        assertTrue(usage >= 1000);
+
+        // a file URI replacing the original one
+        ContentValues values = new ContentValues(2);
+        values.put(Messages.ATTACHMENT_LOCAL_URI, Uri.fromFile(new File("/kontalk-test/compressed.jpg")).toString());
+        values.put(Messages.ATTACHMENT_LENGTH, 500);
+        getMockContentResolver().update(msg, values, null, null);
+        assertEquals(usage - 500, MessagesProviderUtils.getMediaUsage(getMockContext(), threadId));
+
+        MessagesProviderUtils.deleteMessage(getMockContext(), ContentUris.parseId(msg));
+        assertEquals(usage - 1000, MessagesProviderUtils.getMediaUsage(getMockContext(), threadId));
+    }
+
     @Test
     public void testCreateGroup() {
         String groupId = StringUtils.randomString(20);
@@ -183,6 +210,73 @@ public class MessagesProviderTest extends ProviderTestCase2<MessagesProvider> {
         c.close();
     }
 
+    /** Measures query latency while another thread is writing messages. */
+    @Test
+    public void testReaderDuringWriter() throws Exception {
+        final int writes = 500;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                for (int i = 0; i < writes; i++) {
+                    MessagesProviderUtils.newOutgoingMessage(getMockContext(),
+                        MessageUtils.messageId(), TEST_USERID, "Write load " + i, true);
+                }
+                done.countDown();
+            }
+        });
+        writer.start();
+        started.await();
+
+        long[] latencies = new long[writes];
+        int reads = 0;
+        while (done.getCount() > 0 && reads < latencies.length) {
+            long start = System.nanoTime();
+            assertQuery(Threads.CONTENT_URI);
+            latencies[reads++] = System.nanoTime() - start;
+        }
+        writer.join();
+
+        assertTrue(reads > 0);
+        Arrays.sort(latencies, 0, reads);
+        Log.i("MessagesProviderTest", "reader during writer: " + reads + " reads, p50=" +
+            (latencies[reads / 2] / 1000) + "us, p99=" +
+            (latencies[(int) (reads * 0.99)] / 1000) + "us, max=" +
+            (latencies[reads - 1] / 1000) + "us");
+    }
+
+    /**
+     * Measures full text search latency. Corpus size can be changed with the
+     * fulltextCorpus instrumentation argument (e.g. 1000000).
+     */
+    @Test
+    public void testFulltextSearch() {
+        int corpus = Integer.parseInt(InstrumentationRegistry.getArguments()
+            .getString("fulltextCorpus", "2000"));
+        String[] words = { "alpha", "bravo", "charlie", "delta", "echo", "foxtrot" };
+        for (int i = 0; i < corpus; i++) {
+            MessagesProviderUtils.newOutgoingMessage(getMockContext(),
+                MessageUtils.messageId(), TEST_USERID, "message " + words[i % words.length] +
+                    " number " + i, true);
+        }
+
+        long start = System.nanoTime();
+        Cursor c = SearchItem.query(getMockContext(), "char", 0, 20);
+        long elapsed = System.nanoTime() - start;
+        assertNotNull(c);
+        assertTrue(c.getCount() > 0 && c.getCount() <= 20);
+        assertTrue(c.moveToFirst());
+        String snippet = c.getString(2);
+        assertTrue(snippet.indexOf(Fulltext.SNIPPET_START) >= 0);
+        assertTrue(snippet.indexOf(Fulltext.SNIPPET_END) > snippet.indexOf(Fulltext.SNIPPET_START));
+        c.close();
+
+        Log.i("MessagesProviderTest", "fulltext search on " + corpus + " messages: " +
+            (elapsed / 1000) + "us");
+    }
+
     private void assertQuery(Uri uri) {
         Cursor c = getMockContentResolver().query(uri, null, null, null, null);
         assertNotNull(c);
@@ -0,0 +1,100 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.ProviderTestCase2;
+
+import org.kontalk.provider.MyUsers.Users;
+
+
+@RunWith(AndroidJUnit4.class)
+public class UsersProviderTest extends ProviderTestCase2<UsersProvider> {
+
+    private static final String TEST_JID = "alice@prime.kontalk.net";
+
+    public UsersProviderTest() {
+        super(UsersProvider.class, UsersProvider.AUTHORITY);
+    }
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        setContext(InstrumentationRegistry.getTargetContext());
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private void insertUser(String jid, String name) {
+        ContentValues values = new ContentValues();
+        values.put(Users.JID, jid);
+        values.put(Users.NUMBER, jid);
+        values.put(Users.DISPLAY_NAME, name);
+        values.put(Users.REGISTERED, true);
+        assertNotNull(getMockContentResolver().insert(Users.CONTENT_URI, values));
+    }
+
+    /** Presence updates must not invalidate the fast scrolling index. */
+    @Test
+    public void testPresenceKeepsIndex() {
+        ContentResolver cr = getMockContentResolver();
+        insertUser(TEST_JID, "Alice");
+
+        long invalidations = UsersProvider.getIndexInvalidationCount();
+        // the same values written by the presence listener
+        ContentValues values = new ContentValues();
+        values.put(Users.STATUS, "Available");
+        values.put(Users.LAST_SEEN, System.currentTimeMillis());
+        assertEquals(1, cr.update(Users.CONTENT_URI, values, Users.JID + "=?",
+            new String[] { TEST_JID }));
+        assertEquals(invalidations, UsersProvider.getIndexInvalidationCount());
+
+        // a new name does change the list
+        values.clear();
+        values.put(Users.DISPLAY_NAME, "Alice Cooper");
+        assertEquals(1, cr.update(Users.CONTENT_URI, values, Users.JID + "=?",
+            new String[] { TEST_JID }));
+        assertTrue(UsersProvider.getIndexInvalidationCount() > invalidations);
+    }
+
+    /** A presence from a user we don't know yet adds it to the list. */
+    @Test
+    public void testPresenceNewUser() {
+        long invalidations = UsersProvider.getIndexInvalidationCount();
+        ContentValues values = new ContentValues();
+        values.putNull(Users.STATUS);
+        assertEquals(1, getMockContentResolver().update(Users.CONTENT_URI, values,
+            Users.JID + "=?", new String[] { "bob@prime.kontalk.net" }));
+        assertTrue(UsersProvider.getIndexInvalidationCount() > invalidations);
+    }
+
+}
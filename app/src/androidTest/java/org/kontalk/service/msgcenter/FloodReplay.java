@@ -0,0 +1,266 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.jivesoftware.smackx.receipts.DeliveryReceipt;
+import org.jivesoftware.smackx.receipts.DeliveryReceiptRequest;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Debug;
+import android.os.SystemClock;
+
+import org.kontalk.client.EndpointServer;
+import org.kontalk.client.KontalkConnection;
+import org.kontalk.provider.MessagesProvider;
+import org.kontalk.provider.MessagesProviderUtils;
+import org.kontalk.provider.MyMessages.Threads;
+import org.kontalk.provider.UsersProvider;
+import org.kontalk.ui.MessagingNotification;
+import org.kontalk.util.MessageUtils;
+
+
+/**
+ * Replays a stream of incoming stanzas through the message center
+ * listeners, like the flood of stanzas we get after being offline for a
+ * while. Nothing goes to the network: outgoing stanzas are taken by a stub
+ * server that acks them, everything else is stored by the real providers.
+ * @author Daniele Ricci
+ */
+class FloodReplay {
+
+    /** Domain of the fake users, used for cleaning up. */
+    static final String DOMAIN = "replay.kontalk.test";
+
+    private final Context mContext;
+    private final ReplayService mService;
+    private final MessageListener mMessageListener;
+    private final PresenceListener mPresenceListener;
+    private final MessageAckListener mAckListener;
+
+    FloodReplay(Context context) throws Exception {
+        mContext = context;
+        mService = new ReplayService(context);
+        mMessageListener = new MessageListener(mService);
+        mPresenceListener = new PresenceListener(mService);
+        mAckListener = new MessageAckListener(mService);
+    }
+
+    /** Parses a recorded stream, one stanza per string. */
+    static List<Stanza> parse(List<String> stanzas) throws Exception {
+        List<Stanza> list = new ArrayList<>(stanzas.size());
+        for (String xml : stanzas)
+            list.add(PacketParserUtils.parseStanza(xml));
+        return list;
+    }
+
+    /**
+     * Generates a deterministic stream of messages (with receipt requests),
+     * receipts for our own messages and presences from the given number of users.
+     */
+    static List<Stanza> synthetic(int users, int messages, int receipts, int presences, long seed) {
+        Random random = new Random(seed);
+        List<Stanza> stanzas = new ArrayList<>(messages + receipts + presences);
+
+        for (int i = 0; i < messages; i++) {
+            Message m = new Message("me@" + DOMAIN, Message.Type.chat);
+            m.setFrom(user(random.nextInt(users)) + "/replay");
+            m.setStanzaId(MessageUtils.messageId());
+            m.setBody("Message " + i + " of the offline flood");
+            m.addExtension(new DeliveryReceiptRequest());
+            stanzas.add(m);
+        }
+
+        for (int i = 0; i < receipts; i++) {
+            Message m = new Message("me@" + DOMAIN, Message.Type.chat);
+            m.setFrom(user(random.nextInt(users)) + "/replay");
+            m.setStanzaId(MessageUtils.messageId());
+            m.addExtension(new DeliveryReceipt(MessageUtils.messageId()));
+            stanzas.add(m);
+        }
+
+        for (int i = 0; i < presences; i++) {
+            Presence p = new Presence(random.nextBoolean() ?
+                Presence.Type.available : Presence.Type.unavailable);
+            p.setFrom(user(random.nextInt(users)) + "/replay");
+            p.setTo("me@" + DOMAIN);
+            stanzas.add(p);
+        }
+
+        // stanzas from different users come interleaved
+        Collections.shuffle(stanzas, random);
+        return stanzas;
+    }
+
+    private static String user(int index) {
+        return "user" + index + "@" + DOMAIN;
+    }
+
+    /** Replays the given stanzas and waits for all processing to finish. */
+    Result replay(List<Stanza> stanzas) throws Exception {
+        MessagingNotification.disable();
+        Result result = new Result();
+        long[] latencies = new long[stanzas.size()];
+
+        long writes = MessagesProvider.getWriteCount() + UsersProvider.getWriteCount();
+        Debug.startAllocCounting();
+        Debug.resetGlobalAllocSize();
+        long start = SystemClock.elapsedRealtime();
+
+        try {
+            for (int i = 0; i < stanzas.size(); i++) {
+                Stanza stanza = stanzas.get(i);
+                long stanzaStart = System.nanoTime();
+                if (stanza instanceof Message)
+                    mMessageListener.processPacket(stanza);
+                else if (stanza instanceof Presence)
+                    mPresenceListener.processPacket(stanza);
+                latencies[i] = System.nanoTime() - stanzaStart;
+
+                // the server acks what we sent (e.g. receipts)
+                result.acks += mService.processAcks(mAckListener);
+            }
+
+            // presences are processed in batches after a while
+            Thread.sleep(PresenceBuffer.WINDOW * 2);
+            mService.awaitTasks();
+
+            result.elapsed = SystemClock.elapsedRealtime() - start;
+            result.allocated = Debug.getGlobalAllocSize();
+        }
+        finally {
+            Debug.stopAllocCounting();
+            MessagingNotification.enable();
+        }
+
+        Arrays.sort(latencies);
+        result.stanzas = stanzas.size();
+        result.writes = MessagesProvider.getWriteCount() + UsersProvider.getWriteCount() - writes;
+        result.p50 = latencies.length > 0 ? latencies[latencies.length / 2] : 0;
+        result.p99 = latencies.length > 0 ? latencies[(int) (latencies.length * 0.99)] : 0;
+        return result;
+    }
+
+    /** Deletes all conversations with the fake users. */
+    void cleanup() {
+        Cursor c = mContext.getContentResolver().query(Threads.CONTENT_URI,
+            new String[] { Threads._ID }, Threads.PEER + " LIKE ?",
+            new String[] { "%@" + DOMAIN }, null);
+        if (c != null) {
+            while (c.moveToNext())
+                MessagesProviderUtils.deleteThread(mContext, c.getLong(0), false);
+            c.close();
+        }
+    }
+
+    static class Result {
+        int stanzas;
+        int acks;
+        long elapsed;
+        long writes;
+        long allocated;
+        /** Processing time of a single stanza, in nanoseconds. */
+        long p50;
+        long p99;
+
+        double getStanzasPerSecond() {
+            return elapsed > 0 ? stanzas * 1000.0 / elapsed : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d stanzas in %d ms (%.1f/s), p50 %d us, p99 %d us, " +
+                    "%d db writes, %d acks, %d KB allocated (%.1f KB/s)",
+                stanzas, elapsed, getStanzasPerSecond(), p50 / 1000, p99 / 1000,
+                writes, acks, allocated / 1024,
+                elapsed > 0 ? allocated / 1.024 / elapsed : 0);
+        }
+    }
+
+    /**
+     * A message center that was never started: tasks run on a single
+     * thread and outgoing stanzas are kept for the stub server.
+     */
+    static class ReplayService extends MessageCenterService {
+        private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+        private final Queue<Stanza> mSent = new LinkedList<>();
+
+        ReplayService(Context context) throws Exception {
+            attachBaseContext(context);
+            // never connected, used only by the listeners for lookups
+            mConnection = new KontalkConnection("replay",
+                new EndpointServer(DOMAIN), false, false, null, null);
+        }
+
+        @Override
+        boolean queueTask(Runnable task, int lane) {
+            mExecutor.execute(task);
+            return true;
+        }
+
+        @Override
+        void sendPacket(Stanza packet, boolean bumpIdle) {
+            synchronized (mSent) {
+                mSent.add(packet);
+            }
+        }
+
+        int processAcks(MessageAckListener listener) {
+            int count = 0;
+            while (true) {
+                Stanza packet;
+                synchronized (mSent) {
+                    packet = mSent.poll();
+                }
+                if (packet == null)
+                    break;
+                listener.processPacket(packet);
+                count++;
+            }
+            return count;
+        }
+
+        /** Waits for the tasks queued so far. */
+        void awaitTasks() throws Exception {
+            Future<?> last = mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            last.get(5, TimeUnit.MINUTES);
+        }
+    }
+
+}
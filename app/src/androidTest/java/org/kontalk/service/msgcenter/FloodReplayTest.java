@@ -0,0 +1,101 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.Stanza;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.kontalk.provider.MyMessages.Messages;
+
+import static org.junit.Assert.*;
+
+
+@RunWith(AndroidJUnit4.class)
+public class FloodReplayTest {
+    private static final String TAG = FloodReplayTest.class.getSimpleName();
+
+    private FloodReplay mReplay;
+
+    @Before
+    public void setUp() throws Exception {
+        mReplay = new FloodReplay(InstrumentationRegistry.getTargetContext());
+    }
+
+    @After
+    public void tearDown() {
+        mReplay.cleanup();
+    }
+
+    @Test
+    public void testRecorded() throws Exception {
+        List<Stanza> stanzas = FloodReplay.parse(Arrays.asList(
+            "<message xmlns='jabber:client' type='chat' id='replay-1' " +
+                "from='alice@" + FloodReplay.DOMAIN + "/phone' to='me@" + FloodReplay.DOMAIN + "'>" +
+                "<body>Hello</body><request xmlns='urn:xmpp:receipts'/></message>",
+            "<presence xmlns='jabber:client' from='alice@" + FloodReplay.DOMAIN + "/phone'/>"
+        ));
+
+        FloodReplay.Result result = mReplay.replay(stanzas);
+        Log.i(TAG, "recorded stream: " + result);
+
+        assertEquals(2, result.stanzas);
+        // the receipt was sent and acked
+        assertEquals(1, result.acks);
+        assertEquals(1, count());
+    }
+
+    /** Replays the backlog of a user offline for a while: the numbers are in the log. */
+    @Test
+    public void testSyntheticFlood() throws Exception {
+        final int messages = 500;
+        List<Stanza> stanzas = FloodReplay.synthetic(50, messages, 200, 300, 42);
+
+        FloodReplay.Result result = mReplay.replay(stanzas);
+        Log.i(TAG, "offline flood: " + result);
+
+        assertEquals(messages, count());
+        assertEquals(messages, result.acks);
+        assertTrue(result.writes >= messages);
+    }
+
+    private int count() {
+        Cursor c = InstrumentationRegistry.getTargetContext().getContentResolver()
+            .query(Messages.CONTENT_URI, new String[] { Messages._ID },
+                Messages.PEER + " LIKE ?", new String[] { "%@" + FloodReplay.DOMAIN }, null);
+        assertNotNull(c);
+        try {
+            return c.getCount();
+        }
+        finally {
+            c.close();
+        }
+    }
+
+}
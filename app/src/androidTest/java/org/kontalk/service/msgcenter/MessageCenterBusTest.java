@@ -0,0 +1,231 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.packet.Presence;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+import static org.junit.Assert.*;
+
+
+@RunWith(AndroidJUnit4.class)
+public class MessageCenterBusTest {
+    private static final String TAG = MessageCenterBusTest.class.getSimpleName();
+
+    private static final String DOMAIN = "bus.kontalk.test";
+
+    private final List<MessageCenterBus.Subscriber<?>> mSubscribers = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (MessageCenterBus.Subscriber<?> s : mSubscribers)
+            MessageCenterBus.unsubscribe(s);
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        final List<PresenceEvent> received = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(2);
+        subscribe("alice@" + DOMAIN, null, new MessageCenterBus.Subscriber<PresenceEvent>() {
+            @Override
+            public void onEvent(PresenceEvent event) {
+                received.add(event);
+                latch.countDown();
+            }
+        });
+
+        assertTrue(MessageCenterBus.post(presence("alice", 1)));
+        assertFalse(MessageCenterBus.post(presence("bob", 2)));
+        assertTrue(MessageCenterBus.post(presence("alice", 3)));
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, received.size());
+        assertEquals("1", received.get(0).getPacketId());
+        assertEquals("3", received.get(1).getPacketId());
+    }
+
+    @Test
+    public void testSlowSubscriber() throws Exception {
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        try {
+            Handler handler = new Handler(thread.getLooper());
+            final CountDownLatch blocked = new CountDownLatch(1);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        blocked.await();
+                    }
+                    catch (InterruptedException ignored) {
+                    }
+                }
+            });
+
+            final List<PresenceEvent> received = new ArrayList<>();
+            subscribe(null, handler, new MessageCenterBus.Subscriber<PresenceEvent>() {
+                @Override
+                public void onEvent(PresenceEvent event) {
+                    received.add(event);
+                }
+            });
+
+            // many more presences than the queue can hold, from a few users
+            long dropped = MessageCenterBus.getDroppedCount();
+            for (int i = 0; i < MessageCenterBus.MAX_QUEUED * 4; i++)
+                MessageCenterBus.post(presence("user" + (i % 8), i));
+            assertEquals(MessageCenterBus.MAX_QUEUED * 3, MessageCenterBus.getDroppedCount() - dropped);
+
+            blocked.countDown();
+            final CountDownLatch done = new CountDownLatch(1);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+
+            // the last presence of every user was kept
+            assertEquals(MessageCenterBus.MAX_QUEUED, received.size());
+            PresenceEvent last = received.get(received.size() - 1);
+            assertEquals(String.valueOf(MessageCenterBus.MAX_QUEUED * 4 - 1), last.getPacketId());
+        }
+        finally {
+            thread.quit();
+        }
+    }
+
+    /** Compares a presence round trip through the bus and as a broadcast: the numbers are in the log. */
+    @Test
+    public void testDispatch() throws Exception {
+        final int count = 2000;
+        final Semaphore delivered = new Semaphore(0);
+        Context context = InstrumentationRegistry.getTargetContext();
+        LocalBroadcastManager lbm = LocalBroadcastManager.getInstance(context);
+
+        // broadcast: intent extras are read back like receivers do
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                String from = intent.getStringExtra(MessageCenterService.EXTRA_FROM);
+                String type = intent.getStringExtra(MessageCenterService.EXTRA_TYPE);
+                String mode = intent.getStringExtra(MessageCenterService.EXTRA_SHOW);
+                String fingerprint = intent.getStringExtra(MessageCenterService.EXTRA_FINGERPRINT);
+                if (from != null && Presence.Type.fromString(type) != null &&
+                        Presence.Mode.fromString(mode) != null && fingerprint == null)
+                    delivered.release();
+            }
+        };
+        lbm.registerReceiver(receiver, new IntentFilter(MessageCenterService.ACTION_PRESENCE));
+        Result broadcast;
+        try {
+            Debug.startAllocCounting();
+            Debug.resetGlobalAllocSize();
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                lbm.sendBroadcast(presence("user" + (i % 50), i).toIntent());
+                assertTrue(delivered.tryAcquire(5, TimeUnit.SECONDS));
+            }
+            broadcast = new Result(count, System.nanoTime() - start, Debug.getGlobalAllocSize());
+        }
+        finally {
+            Debug.stopAllocCounting();
+            lbm.unregisterReceiver(receiver);
+        }
+
+        subscribe(null, new Handler(Looper.getMainLooper()), new MessageCenterBus.Subscriber<PresenceEvent>() {
+            @Override
+            public void onEvent(PresenceEvent event) {
+                if (event.getFrom() != null && event.getType() != null &&
+                        event.getMode() != null && event.getFingerprint() == null)
+                    delivered.release();
+            }
+        });
+        Result bus;
+        try {
+            Debug.startAllocCounting();
+            Debug.resetGlobalAllocSize();
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                MessageCenterBus.post(presence("user" + (i % 50), i));
+                assertTrue(delivered.tryAcquire(5, TimeUnit.SECONDS));
+            }
+            bus = new Result(count, System.nanoTime() - start, Debug.getGlobalAllocSize());
+        }
+        finally {
+            Debug.stopAllocCounting();
+        }
+
+        Log.i(TAG, "broadcast: " + broadcast);
+        Log.i(TAG, "bus: " + bus + ", average dispatch " +
+            MessageCenterBus.getAverageDispatchTime() + " us");
+    }
+
+    private void subscribe(String jid, Handler handler, MessageCenterBus.Subscriber<PresenceEvent> subscriber) {
+        MessageCenterBus.subscribe(PresenceEvent.class, jid, handler, subscriber);
+        mSubscribers.add(subscriber);
+    }
+
+    private static PresenceEvent presence(String user, int id) {
+        Presence p = new Presence(Presence.Type.available);
+        p.setFrom(user + "@" + DOMAIN + "/phone");
+        p.setMode(Presence.Mode.away);
+        return new PresenceEvent(p, null, System.currentTimeMillis(), null, String.valueOf(id));
+    }
+
+    private static class Result {
+        final int count;
+        final long elapsed;
+        final long allocated;
+
+        Result(int count, long elapsed, long allocated) {
+            this.count = count;
+            this.elapsed = elapsed;
+            this.allocated = allocated;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d presences, %d us each, %d bytes allocated each",
+                count, elapsed / count / 1000, allocated / count);
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.jivesoftware.smack.roster.packet.RosterPacket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import static org.junit.Assert.*;
+
+
+@RunWith(AndroidJUnit4.class)
+public class SQLiteRosterStoreTest {
+    private static final String TAG = SQLiteRosterStoreTest.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "roster-test.db";
+    private static final String DOMAIN = "roster.kontalk.test";
+
+    private Context mContext;
+    private SQLiteRosterStore mStore;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mStore = new SQLiteRosterStore(mContext, DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.onDestroy();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void testPushes() {
+        mStore.resetEntries(roster(10), "v1");
+        // a push for an existing entry replaces it
+        RosterPacket.Item item = item(3);
+        item.setName("Renamed");
+        mStore.addEntry(item, "v2");
+        mStore.removeEntry(item(5).getUser(), "v3");
+
+        assertEquals(9, mStore.getEntries().size());
+        assertEquals("v3", mStore.getRosterVersion());
+
+        mStore = reopen();
+        assertEquals("v3", mStore.getRosterVersion());
+        assertEquals(9, mStore.getEntries().size());
+        assertEquals("Renamed", mStore.getEntry(item.getUser()).getName());
+        assertNull(mStore.getEntry(item(5).getUser()));
+        assertTrue(mStore.getEntry(item(1).getUser()).getGroupNames().contains("Group 1"));
+    }
+
+    /** Loads a large roster as we would after login: the numbers are in the log. */
+    @Test
+    public void testLoadLargeRoster() {
+        final int count = 5000;
+
+        long start = SystemClock.elapsedRealtime();
+        mStore.resetEntries(roster(count), "big");
+        for (int i = 0; i < 100; i++)
+            mStore.addEntry(item(i), "big" + i);
+        mStore.flush();
+        long write = SystemClock.elapsedRealtime() - start;
+
+        mStore = reopen();
+        start = SystemClock.elapsedRealtime();
+        Collection<RosterPacket.Item> entries = mStore.getEntries();
+        long load = SystemClock.elapsedRealtime() - start;
+
+        // loaded entries are served from memory
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < count; i++)
+            assertNotNull(mStore.getEntry(item(i).getUser()));
+        long lookup = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, String.format("%d entries: written in %d ms, loaded in %d ms, looked up in %d ms",
+            count, write, load, lookup));
+
+        assertEquals(count, entries.size());
+        assertEquals("big99", mStore.getRosterVersion());
+        assertTrue("roster took " + load + " ms to load", load < 1000);
+    }
+
+    private SQLiteRosterStore reopen() {
+        mStore.onDestroy();
+        return new SQLiteRosterStore(mContext, DATABASE_NAME);
+    }
+
+    private static List<RosterPacket.Item> roster(int count) {
+        List<RosterPacket.Item> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            items.add(item(i));
+        return items;
+    }
+
+    private static RosterPacket.Item item(int index) {
+        RosterPacket.Item item = new RosterPacket.Item("user" + index + "@" + DOMAIN, "User " + index);
+        item.setItemType(RosterPacket.ItemType.both);
+        item.addGroupName("Group " + (index % 10));
+        return item;
+    }
+
+}
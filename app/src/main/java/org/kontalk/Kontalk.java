@@ -38,6 +38,7 @@ import android.content.pm.PackageManager;
 import android.os.Handler;
 import android.preference.PreferenceManager;
 
+import org.kontalk.authenticator.AccountSnapshot;
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PersonalKey;
@@ -125,6 +126,8 @@ public class Kontalk extends Application {
                 else if (Authenticator.getDefaultAccount(Kontalk.this) != null) {
                     // manual server address
                     if ("pref_network_uri".equals(key)) {
+                        // our JID depends on the server
+                        AccountSnapshot.invalidate();
                         // temporary measure for users coming from old betas
                         // this is triggered because manual server address is cleared
                         if (Authenticator.getDefaultServer(Kontalk.this) != null) {
@@ -155,6 +158,9 @@ public class Kontalk extends Application {
         // However this call will not be reported if it crashes
         Preferences.init(this);
 
+        // keep account data in memory
+        AccountSnapshot.init(this);
+
         // init logging system
         // done after preferences because we need to access debug log preference
         Log.init(this);
@@ -267,6 +273,7 @@ public class Kontalk extends Application {
     public void invalidatePersonalKey() {
         mDefaultKey = null;
         mKeyPassphrase = null;
+        AccountSnapshot.invalidate();
     }
 
     private void ensureCachedPassphrase() {
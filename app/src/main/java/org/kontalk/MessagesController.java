@@ -19,7 +19,10 @@
 package org.kontalk;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
@@ -180,38 +183,40 @@ public class MessagesController {
                 removed = group.getRemovedMembers();
             }
 
+            String groupJid = group.getContent().getJID();
+            // the whole command is applied in a single transaction
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+
             if (added != null) {
-                ContentValues membersValues = new ContentValues();
+                List<String> addedMembers = new ArrayList<>(added.length + 1);
                 for (String member : added) {
                     // do not add ourselves...
                     if (Authenticator.isSelfJID(mContext, member)) {
                         // ...but mark our membership
-                        MessagesProviderUtils.setGroupMembership(mContext,
-                            group.getContent().getJID(), MyMessages.Groups.MEMBERSHIP_MEMBER);
+                        MessagesProviderUtils.setGroupMembership(operations,
+                            groupJid, MyMessages.Groups.MEMBERSHIP_MEMBER);
                         continue;
                     }
 
                     // add member to group
-                    membersValues.put(MyMessages.Groups.PEER, member);
-                    mContext.getContentResolver().insert(MyMessages.Groups
-                        .getMembersUri(group.getContent().getJID()), membersValues);
+                    addedMembers.add(member);
                 }
 
                 // add owner as member (since the owner is adding us)
-                membersValues.put(MyMessages.Groups.PEER, group.getContent().getOwner());
-                mContext.getContentResolver().insert(MyMessages.Groups
-                    .getMembersUri(group.getContent().getJID()), membersValues);
+                addedMembers.add(group.getContent().getOwner());
+                MessagesProviderUtils.addGroupMembers(operations, groupJid,
+                    addedMembers.toArray(new String[addedMembers.size()]), false);
             }
 
             if (removed != null) {
                 // remove members from group
-                MessagesProviderUtils.removeGroupMembers(mContext, group.getContent().getJID(),
+                MessagesProviderUtils.removeGroupMembers(operations, groupJid,
                     removed, false);
                 // set our membership to parted if we were removed from the group
                 for (String removedJid : removed) {
                     if (Authenticator.isSelfJID(mContext, removedJid)) {
-                        MessagesProviderUtils.setGroupMembership(mContext,
-                            group.getContent().getJID(), MyMessages.Groups.MEMBERSHIP_KICKED);
+                        MessagesProviderUtils.setGroupMembership(operations,
+                            groupJid, MyMessages.Groups.MEMBERSHIP_KICKED);
                         break;
                     }
                 }
@@ -219,20 +224,19 @@ public class MessagesController {
 
             // set subject
             if (group.isSetSubjectCommand()) {
-                ContentValues groupValues = new ContentValues();
-                groupValues.put(MyMessages.Groups.SUBJECT, group.getContent().getSubject());
-                mContext.getContentResolver().update(MyMessages.Groups
-                    .getUri(group.getContent().getJID()), groupValues, null, null);
+                operations.add(ContentProviderOperation.newUpdate(MyMessages.Groups.getUri(groupJid))
+                    .withValue(MyMessages.Groups.SUBJECT, group.getContent().getSubject())
+                    .build());
             }
 
             // a user is leaving the group
             else if (group.isPartCommand()) {
-                String partMember = group.getFrom();
                 // remove member from group
-                mContext.getContentResolver().delete(MyMessages.Groups.getMembersUri(group.getContent().getJID())
-                        .buildUpon().appendEncodedPath(partMember).build(),
-                    null, null);
+                MessagesProviderUtils.removeGroupMembers(operations, groupJid,
+                    new String[] { group.getFrom() }, false);
             }
+
+            MessagesProviderUtils.applyGroupOperations(mContext, operations);
         }
 
         Uri msgUri = null;
@@ -245,17 +249,7 @@ public class MessagesController {
 
         if (groupInfo == null) {
             // mark sender as registered in the users database
-            final Context context = mContext.getApplicationContext();
-            new Thread(new Runnable() {
-                public void run() {
-                    try {
-                        UsersProvider.markRegistered(context, sender);
-                    }
-                    catch (SQLiteConstraintException e) {
-                        // this might happen during an online/offline switch
-                    }
-                }
-            }).start();
+            UsersProvider.markRegisteredAsync(mContext, sender);
         }
 
         // fire notification only if message was actually inserted to database
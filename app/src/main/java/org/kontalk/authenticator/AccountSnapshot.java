@@ -0,0 +1,166 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.authenticator;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jxmpp.util.XmppStringUtils;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.OnAccountsUpdateListener;
+import android.content.Context;
+import android.util.Base64;
+
+import org.kontalk.Log;
+import org.kontalk.client.EndpointServer;
+import org.kontalk.crypto.PGP;
+import org.kontalk.util.MessageUtils;
+import org.kontalk.util.Preferences;
+
+
+/**
+ * An immutable copy of the default account data.
+ * Reading account data from {@link AccountManager} is an IPC call to the
+ * system server, so we keep the data we use all the time (e.g. to check
+ * if a JID is our own for every incoming message) in memory and read it
+ * without locking. The snapshot is dropped whenever the account changes
+ * and loaded again on next use.
+ * @author Daniele Ricci
+ */
+public final class AccountSnapshot {
+    private static final String TAG = AccountSnapshot.class.getSimpleName();
+
+    private static final AccountSnapshot EMPTY = new AccountSnapshot(
+        null, null, null, null, null, null);
+
+    private static final AtomicReference<AccountSnapshot> sCurrent =
+        new AtomicReference<>();
+    /** Incremented on every invalidation, to discard snapshots loaded meanwhile. */
+    private static final AtomicInteger sGeneration = new AtomicInteger();
+    /** Number of times the snapshot was loaded from {@link AccountManager}. */
+    private static final AtomicLong sLoadCount = new AtomicLong();
+
+    private static OnAccountsUpdateListener sListener;
+
+    public final Account account;
+    public final String displayName;
+    /** Our own bare JID. */
+    public final String selfJid;
+    /** The server stored in the account. */
+    public final EndpointServer server;
+    /** The network we are currently connecting to (might be a custom server). */
+    public final String network;
+    /** Fingerprint of our public key. */
+    public final String fingerprint;
+
+    private AccountSnapshot(Account account, String displayName, String selfJid,
+            EndpointServer server, String network, String fingerprint) {
+        this.account = account;
+        this.displayName = displayName;
+        this.selfJid = selfJid;
+        this.server = server;
+        this.network = network;
+        this.fingerprint = fingerprint;
+    }
+
+    public String getName() {
+        return account != null ? account.name : null;
+    }
+
+    public boolean isSelfJID(String bareJid) {
+        return selfJid != null && selfJid.equalsIgnoreCase(bareJid);
+    }
+
+    /** Registers the listener for keeping the snapshot up to date. */
+    public static synchronized void init(Context context) {
+        if (sListener == null) {
+            sListener = new OnAccountsUpdateListener() {
+                @Override
+                public void onAccountsUpdated(Account[] accounts) {
+                    invalidate();
+                }
+            };
+            AccountManager.get(context)
+                .addOnAccountsUpdatedListener(sListener, null, false);
+        }
+    }
+
+    /** Returns the current snapshot, loading it if needed. Never returns null. */
+    public static AccountSnapshot get(Context context) {
+        AccountSnapshot snapshot = sCurrent.get();
+        if (snapshot == null) {
+            int generation = sGeneration.get();
+            snapshot = load(context);
+            // data might have changed while we were loading
+            if (sCurrent.compareAndSet(null, snapshot) && generation != sGeneration.get())
+                sCurrent.compareAndSet(snapshot, null);
+        }
+        return snapshot;
+    }
+
+    /** Drops the current snapshot. Call this after changing account data. */
+    public static void invalidate() {
+        sGeneration.incrementAndGet();
+        sCurrent.set(null);
+    }
+
+    /** Number of times account data was read from {@link AccountManager}. */
+    public static long getLoadCount() {
+        return sLoadCount.get();
+    }
+
+    /** Reads account data from {@link AccountManager}, bypassing the snapshot. */
+    static AccountSnapshot load(Context context) {
+        sLoadCount.incrementAndGet();
+
+        AccountManager am = AccountManager.get(context);
+        Account account = Authenticator.getDefaultAccount(am);
+        if (account == null)
+            return EMPTY;
+
+        EndpointServer server = Authenticator.getServer(am, account);
+
+        String network = null;
+        String selfJid = null;
+        EndpointServer endpoint = Preferences.getEndpointServer(server);
+        if (endpoint != null) {
+            network = endpoint.getNetwork();
+            selfJid = XmppStringUtils.completeJidFrom(MessageUtils.sha1(account.name), network);
+        }
+
+        String fingerprint = null;
+        String publicKeyData = am.getUserData(account, Authenticator.DATA_PUBLICKEY);
+        if (publicKeyData != null) {
+            try {
+                fingerprint = PGP.getFingerprint(Base64.decode(publicKeyData, Base64.DEFAULT));
+            }
+            catch (Exception e) {
+                Log.w(TAG, "unable to read public key", e);
+            }
+        }
+
+        return new AccountSnapshot(account,
+            Authenticator.getDisplayName(am, account),
+            selfJid, server, network, fingerprint);
+    }
+
+}
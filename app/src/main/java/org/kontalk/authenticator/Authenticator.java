@@ -68,8 +68,6 @@ import org.kontalk.crypto.PersonalKeyExporter;
 import org.kontalk.provider.Keyring;
 import org.kontalk.ui.MainActivity;
 import org.kontalk.ui.NumberValidation;
-import org.kontalk.util.MessageUtils;
-import org.kontalk.util.XMPPUtils;
 
 
 /**
@@ -103,7 +101,7 @@ public class Authenticator extends AbstractAccountAuthenticator {
     }
 
     public static Account getDefaultAccount(Context ctx) {
-        return getDefaultAccount(AccountManager.get(ctx));
+        return AccountSnapshot.get(ctx).account;
     }
 
     public static Account getDefaultAccount(AccountManager m) {
@@ -112,25 +110,24 @@ public class Authenticator extends AbstractAccountAuthenticator {
     }
 
     public static String getDefaultAccountName(Context ctx) {
-        Account acc = getDefaultAccount(ctx);
-        return (acc != null) ? acc.name : null;
+        return AccountSnapshot.get(ctx).getName();
     }
 
     public static String getSelfJID(Context ctx) {
-        String name = getDefaultAccountName(ctx);
-        return (name != null) ?
-            XMPPUtils.createLocalJID(ctx, MessageUtils.sha1(name)) : null;
+        return AccountSnapshot.get(ctx).selfJid;
     }
 
     public static boolean isSelfJID(Context ctx, String bareJid) {
-        String jid = getSelfJID(ctx);
-        return jid != null && jid.equalsIgnoreCase(bareJid);
+        return AccountSnapshot.get(ctx).isSelfJID(bareJid);
     }
 
     public static String getDefaultDisplayName(Context context) {
-        AccountManager am = AccountManager.get(context);
-        Account account = getDefaultAccount(am);
-        return getDisplayName(am, account);
+        return AccountSnapshot.get(context).displayName;
+    }
+
+    /** Returns the fingerprint of the default account public key. */
+    public static String getDefaultFingerprint(Context context) {
+        return AccountSnapshot.get(context).fingerprint;
     }
 
     public static String getDisplayName(AccountManager am, Account account) {
@@ -138,9 +135,7 @@ public class Authenticator extends AbstractAccountAuthenticator {
     }
 
     public static EndpointServer getDefaultServer(Context context) {
-        AccountManager am = AccountManager.get(context);
-        Account account = getDefaultAccount(am);
-        return getServer(am, account);
+        return AccountSnapshot.get(context).server;
     }
 
     public static EndpointServer getServer(AccountManager am, Account account) {
@@ -221,6 +216,8 @@ public class Authenticator extends AbstractAccountAuthenticator {
 
         am.setUserData(acc, Authenticator.DATA_PUBLICKEY, Base64.encodeToString(publicKeyData, Base64.NO_WRAP));
         am.setUserData(acc, Authenticator.DATA_BRIDGECERT, Base64.encodeToString(bridgeCertData, Base64.NO_WRAP));
+
+        AccountSnapshot.invalidate();
     }
 
     /**
@@ -284,6 +281,7 @@ public class Authenticator extends AbstractAccountAuthenticator {
         Account account = getDefaultAccount(am);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
             final boolean result = am.removeAccountExplicitly(account);
+            AccountSnapshot.invalidate();
             callback.run(new AccountManagerFuture<Boolean>() {
                 @Override
                 public boolean cancel(boolean mayInterruptIfRunning) {
@@ -0,0 +1,249 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Races connection attempts to a few servers, happy eyeballs style.
+ * Attempts are started in order, each one after a delay or as soon as the
+ * previous one fails, so a server that is down or far away doesn't hold up
+ * the others. The first attempt to connect wins and all the others are
+ * canceled.
+ * @author Daniele Ricci
+ */
+public class ConnectionRace<T> {
+
+    /** Default delay between the start of two attempts. */
+    public static final long DEFAULT_STAGGER = 2000;
+
+    /** A connection attempt to a single server. */
+    public interface Attempt<T> {
+        /** Connects to the server. Called in a dedicated thread. */
+        T connect() throws Exception;
+
+        /**
+         * Aborts the attempt, or closes the connection if it was made.
+         * Called from any thread, possibly more than once.
+         */
+        void cancel();
+    }
+
+    /** Creates connection attempts. */
+    public interface AttemptFactory<T> {
+        Attempt<T> create(EndpointServer server);
+    }
+
+    public enum Outcome {
+        /** The attempt connected first. */
+        WON,
+        FAILED,
+        /** Another attempt won or the race was canceled. */
+        CANCELED,
+    }
+
+    /** Report of an attempt. */
+    public static final class Report {
+        public final EndpointServer server;
+        /** When the attempt was started, since the start of the race. */
+        public final long start;
+        /** How long the attempt took to connect, fail or to be canceled. */
+        public long time;
+        public Outcome outcome;
+        public Exception error;
+
+        Report(EndpointServer server, long start) {
+            this.server = server;
+            this.start = start;
+        }
+
+        @Override
+        public String toString() {
+            return server + ": " + outcome + " after " + time + " ms (started at " + start + " ms)" +
+                (error != null ? ", " + error : "");
+        }
+    }
+
+    private final class Runner extends Thread {
+        final Attempt<T> attempt;
+        final Report report;
+        T result;
+
+        Runner(Attempt<T> attempt, Report report) {
+            super("ConnectionRace-" + report.server);
+            this.attempt = attempt;
+            this.report = report;
+        }
+
+        @Override
+        public void run() {
+            T result = null;
+            Exception error = null;
+            try {
+                result = attempt.connect();
+            }
+            catch (Exception e) {
+                error = e;
+            }
+
+            boolean lost = false;
+            synchronized (ConnectionRace.this) {
+                mRunning--;
+                if (report.outcome == null) {
+                    report.time = elapsed() - report.start;
+                    if (error != null) {
+                        report.outcome = Outcome.FAILED;
+                        report.error = error;
+                    }
+                    else if (mWinner == null && !mCanceled) {
+                        report.outcome = Outcome.WON;
+                        this.result = result;
+                        mWinner = this;
+                    }
+                    else {
+                        report.outcome = Outcome.CANCELED;
+                        lost = true;
+                    }
+                }
+                else {
+                    // already canceled
+                    lost = error == null;
+                }
+                ConnectionRace.this.notifyAll();
+            }
+
+            // close connections made too late
+            if (lost)
+                attempt.cancel();
+        }
+    }
+
+    private final List<EndpointServer> mServers;
+    private final AttemptFactory<T> mFactory;
+    private final long mStagger;
+
+    private final List<Runner> mRunners = new ArrayList<>();
+    private int mRunning;
+    private Runner mWinner;
+    private boolean mCanceled;
+    private long mStartTime;
+
+    /**
+     * @param servers servers to try, in order of preference
+     * @param stagger delay between the start of two attempts
+     */
+    public ConnectionRace(List<EndpointServer> servers, AttemptFactory<T> factory, long stagger) {
+        mServers = new ArrayList<>(servers);
+        mFactory = factory;
+        mStagger = stagger;
+    }
+
+    /**
+     * Runs the race and returns the winning connection.
+     * @throws Exception the error of the first server if all attempts failed
+     */
+    public T run() throws Exception {
+        int next = 0;
+        long nextStart = 0;
+        Runner winner;
+
+        synchronized (this) {
+            mStartTime = System.nanoTime();
+            try {
+                while (mWinner == null && !mCanceled) {
+                    long now = elapsed();
+                    if (next < mServers.size() && (mRunning == 0 || now >= nextStart)) {
+                        start(mServers.get(next++), now);
+                        nextStart = now + mStagger;
+                        continue;
+                    }
+
+                    if (mRunning == 0) {
+                        // all attempts failed
+                        break;
+                    }
+
+                    // wait for the next attempt to start or for someone to finish
+                    wait(next < mServers.size() ? Math.max(1, nextStart - now) : 0);
+                }
+            }
+            catch (InterruptedException e) {
+                mCanceled = true;
+            }
+
+            winner = mWinner;
+            cancelRunning();
+        }
+
+        if (winner != null)
+            return winner.result;
+
+        if (mCanceled)
+            throw new InterruptedIOException("connection race canceled");
+
+        for (Runner runner : mRunners) {
+            if (runner.report.error != null)
+                throw runner.report.error;
+        }
+        throw new IOException("no servers to connect to");
+    }
+
+    private void start(EndpointServer server, long now) {
+        Runner runner = new Runner(mFactory.create(server), new Report(server, now));
+        mRunners.add(runner);
+        mRunning++;
+        runner.start();
+    }
+
+    /** Cancels all attempts still running. Must be called with the lock held. */
+    private void cancelRunning() {
+        long now = elapsed();
+        for (Runner runner : mRunners) {
+            if (runner.report.outcome == null) {
+                runner.report.outcome = Outcome.CANCELED;
+                runner.report.time = now - runner.report.start;
+                runner.attempt.cancel();
+                runner.interrupt();
+            }
+        }
+    }
+
+    /** Cancels the race, {@link #run()} will throw an exception. */
+    public synchronized void cancel() {
+        mCanceled = true;
+        notifyAll();
+    }
+
+    /** Returns the reports of the attempts started so far. */
+    public synchronized List<Report> getReports() {
+        List<Report> reports = new ArrayList<>(mRunners.size());
+        for (Runner runner : mRunners)
+            reports.add(runner.report);
+        return reports;
+    }
+
+    private long elapsed() {
+        return (System.nanoTime() - mStartTime) / 1000000;
+    }
+
+}
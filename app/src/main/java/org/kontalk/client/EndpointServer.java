@@ -104,6 +104,8 @@ public class EndpointServer {
         public EndpointServer next();
         /** Resets the provider to its initial state. */
         public void reset();
+        /** Returns an independent provider with the same state. */
+        public EndpointServerProvider copy();
     }
 
     /** A basic server provider for a single server. */
@@ -136,6 +138,13 @@ public class EndpointServer {
         public void reset() {
             mCalled = false;
         }
+
+        @Override
+        public EndpointServerProvider copy() {
+            SingleServerProvider copy = new SingleServerProvider(mUri);
+            copy.mCalled = mCalled;
+            return copy;
+        }
     }
 
     /** Returns true if the input value is a valid endpoint address. */
@@ -0,0 +1,123 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+
+/**
+ * Connection history of a server, used for ranking servers before
+ * connecting. It keeps a moving average of the time it took to connect and
+ * the number of consecutive failures; failures are forgotten after a while
+ * so a server that was down gets another chance. The history is meant to be
+ * stored per server.
+ * All times are in milliseconds.
+ * @author Daniele Ricci
+ */
+public class EndpointStats {
+
+    /** Connection time assumed for servers we never connected to. */
+    static final long UNKNOWN_TIME = 3000;
+    /** Weight of a new connection time in the average. */
+    static final double WEIGHT = 0.3;
+    /** Failures older than this are not taken into account. */
+    static final long FAILURE_EXPIRY = 24 * 60 * 60 * 1000;
+    /** Maximum number of failures taken into account (the score doubles for each one). */
+    static final int MAX_FAILURES = 5;
+
+    /** Average connection time, 0 if unknown. */
+    private long mTime;
+    private int mSuccesses;
+    /** Consecutive failures. */
+    private int mFailures;
+    private long mLastFailure;
+
+    public EndpointStats() {
+    }
+
+    EndpointStats(long time, int successes, int failures, long lastFailure) {
+        mTime = time;
+        mSuccesses = successes;
+        mFailures = failures;
+        mLastFailure = lastFailure;
+    }
+
+    public long getTime() {
+        return mTime;
+    }
+
+    public int getSuccesses() {
+        return mSuccesses;
+    }
+
+    public int getFailures() {
+        return mFailures;
+    }
+
+    public long getLastFailure() {
+        return mLastFailure;
+    }
+
+    /** A connection was made in the given time. */
+    public void onSuccess(long time) {
+        mTime = mTime > 0 ? Math.round(mTime * (1 - WEIGHT) + time * WEIGHT) : Math.max(1, time);
+        mSuccesses++;
+        mFailures = 0;
+    }
+
+    /** A connection failed at the given time. */
+    public void onFailure(long now) {
+        mFailures++;
+        mLastFailure = now;
+    }
+
+    /**
+     * Returns the score of the server: the expected connection time,
+     * doubled for every recent failure. Lower is better.
+     */
+    public long getScore(long now) {
+        long score = mTime > 0 ? mTime : UNKNOWN_TIME;
+        if (mFailures > 0 && now - mLastFailure < FAILURE_EXPIRY)
+            score <<= Math.min(mFailures, MAX_FAILURES);
+        return score;
+    }
+
+    /** Parses a string created by {@link #toString()}. */
+    public static EndpointStats parse(String value) {
+        if (value != null) {
+            String[] parsed = value.split(",");
+            if (parsed.length == 4) {
+                try {
+                    return new EndpointStats(Long.parseLong(parsed[0]),
+                        Integer.parseInt(parsed[1]),
+                        Integer.parseInt(parsed[2]),
+                        Long.parseLong(parsed[3]));
+                }
+                catch (NumberFormatException e) {
+                    // start over
+                }
+            }
+        }
+        return new EndpointStats();
+    }
+
+    @Override
+    public String toString() {
+        return mTime + "," + mSuccesses + "," + mFailures + "," + mLastFailure;
+    }
+
+}
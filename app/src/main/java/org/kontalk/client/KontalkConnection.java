@@ -84,6 +84,10 @@ public class KontalkConnection extends XMPPTCPConnection {
         setPacketReplyTimeout(DEFAULT_PACKET_TIMEOUT);
     }
 
+    public EndpointServer getServer() {
+        return mServer;
+    }
+
     private static XMPPTCPConnectionConfiguration buildConfiguration(String resource,
         EndpointServer server, boolean secure, PrivateKey privateKey, X509Certificate bridgeCert,
         boolean acceptAnyCertificate, KeyStore trustStore, String legacyAuthToken) {
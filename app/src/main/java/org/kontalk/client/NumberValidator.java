@@ -525,6 +525,9 @@ public class NumberValidator implements Runnable, ConnectionHelperListener {
 
         if (!mConnector.isConnected() || mConnector.isServerDirty()) {
             mConnector.setListener(this);
+            // race connections to the next servers in list only while looking
+            // for a server, the next steps must stick to the same server
+            mConnector.setServerProvider(mStep == STEP_VALIDATION ? mServerProvider : null);
             PersonalKey key = null;
             if (mImportedPrivateKey != null && mImportedPublicKey != null) {
                 PGPKeyPairRing ring = PGPKeyPairRing.load(mImportedPrivateKey, mImportedPublicKey);
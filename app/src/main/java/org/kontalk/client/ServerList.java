@@ -20,9 +20,13 @@ package org.kontalk.client;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 
@@ -57,20 +61,64 @@ public class ServerList extends ArrayList<EndpointServer> {
             get(mSeed.nextInt(size())) : null;
     }
 
-    /** A simple server provider backed by a server list. */
+    /**
+     * Sorts the list by score, best first. The list is shuffled first so
+     * servers with the same score are picked at random.
+     */
+    public void rank(Ranking ranking) {
+        final Map<EndpointServer, Long> scores = new HashMap<>(size());
+        for (EndpointServer server : this)
+            scores.put(server, ranking.getScore(server));
+
+        Collections.shuffle(this, mSeed);
+        Collections.sort(this, new Comparator<EndpointServer>() {
+            @Override
+            public int compare(EndpointServer lhs, EndpointServer rhs) {
+                long l = scores.get(lhs);
+                long r = scores.get(rhs);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+    }
+
+    /** Scores servers for ranking. */
+    public interface Ranking {
+        /** Returns the score of a server, lower is better. */
+        public long getScore(EndpointServer server);
+    }
+
+    /**
+     * A simple server provider backed by a server list. Servers are picked at
+     * random, or in order of score if a ranking is given.
+     */
     public static class ServerListProvider implements EndpointServer.EndpointServerProvider {
         private ServerList mList;
         private List<EndpointServer> mUsed;
+        private Ranking mRanking;
 
         public ServerListProvider(ServerList list) {
+            this(list, null);
+        }
+
+        public ServerListProvider(ServerList list, Ranking ranking) {
             mList = new ServerList(list.getDate(), list);
             mUsed = new LinkedList<EndpointServer>();
+            mRanking = ranking;
+            if (ranking != null)
+                mList.rank(ranking);
+        }
+
+        private ServerListProvider(ServerListProvider other) {
+            mList = new ServerList(other.mList.getDate(), other.mList);
+            mUsed = new LinkedList<EndpointServer>(other.mUsed);
+            mRanking = other.mRanking;
         }
 
         @Override
         public EndpointServer next() {
             if (mList.size() > 0) {
-                EndpointServer s = mList.random();
+                EndpointServer s = mRanking != null ?
+                    mList.get(0) : mList.random();
                 mList.remove(s);
                 mUsed.add(s);
                 return s;
@@ -83,6 +131,14 @@ public class ServerList extends ArrayList<EndpointServer> {
         public void reset() {
             mList.addAll(mUsed);
             mUsed.clear();
+            // scores might have changed since last time
+            if (mRanking != null)
+                mList.rank(mRanking);
+        }
+
+        @Override
+        public EndpointServer.EndpointServerProvider copy() {
+            return new ServerListProvider(this);
         }
     }
 
@@ -60,6 +60,7 @@ import org.spongycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenera
 
 import org.kontalk.client.EndpointServer;
 import org.kontalk.message.TextComponent;
+import org.kontalk.util.BufferPool;
 import org.kontalk.util.CPIMMessage;
 import org.kontalk.util.XMPPUtils;
 
@@ -92,10 +93,10 @@ public class PGPCoder extends Coder {
 
     // either one of these two has a value
 
-    private final PGPPublicKeyRing[] mRecipients;
+    private final PGPKeyRingIdentity[] mRecipients;
     private final PGPPublicKeyRing mSender;
 
-    public PGPCoder(EndpointServer server, PersonalKey key, PGPPublicKeyRing[] recipients) {
+    public PGPCoder(EndpointServer server, PersonalKey key, PGPKeyRingIdentity[] recipients) {
         mServer = server;
         mKey = key;
         mRecipients = recipients;
@@ -152,7 +153,7 @@ public class PGPCoder extends Coder {
         String from = mKey.getUserId(mServer.getNetwork());
         String[] to = new String[mRecipients.length];
         for (int i = 0; i < to.length; i++)
-            to[i] = PGP.getUserId(PGP.getMasterKey(mRecipients[i]), mServer.getNetwork());
+            to[i] = mRecipients[i].getUserId(mServer.getNetwork());
 
         // secure the message against the most basic attacks using Message/CPIM
         CPIMMessage cpim = new CPIMMessage(from, to, new Date(), mime, data);
@@ -161,60 +162,8 @@ public class PGPCoder extends Coder {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         ByteArrayInputStream in = new ByteArrayInputStream(plainText);
 
-        // setup data encryptor & generator
-        BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
-        encryptor.setWithIntegrityPacket(true);
-        encryptor.setSecureRandom(new SecureRandom());
-
-        // add public key recipients
-        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-        for (PGPPublicKeyRing rcpt : mRecipients)
-            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
-
-        OutputStream encryptedOut = encGen.open(out, new byte[BUFFER_SIZE]);
-
-        // setup compressed data generator
-        PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-        OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
-
-        // setup signature generator
-        PGPSignatureGenerator sigGen = new PGPSignatureGenerator
-                (new BcPGPContentSignerBuilder(mKey.getSignKeyPair()
-                    .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256));
-        sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getSignKeyPair().getPrivateKey());
-
-        PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-        spGen.setSignerUserID(false, mKey.getUserId(mServer.getNetwork()));
-        sigGen.setUnhashedSubpackets(spGen.generate());
-
-        sigGen.generateOnePassVersion(false)
-            .encode(compressedOut);
-
-        // Initialize literal data generator
-        PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
-        OutputStream literalOut = literalGen.open(
-            compressedOut,
-            PGPLiteralData.BINARY,
-            "",
-            new Date(),
-            new byte[BUFFER_SIZE]);
-
-        // read the "in" stream, compress, encrypt and write to the "out" stream
-        // this must be done if clear data is bigger than the buffer size
-        // but there are other ways to optimize...
-        byte[] buf = new byte[BUFFER_SIZE];
-        int len;
-        while ((len = in.read(buf)) > 0) {
-            literalOut.write(buf, 0, len);
-            sigGen.update(buf, 0, len);
-        }
-
+        encrypt(in, out);
         in.close();
-        literalGen.close();
-        // Generate the signature, compress, encrypt and write to the "out" stream
-        sigGen.generate().encode(compressedOut);
-        compGen.close();
-        encGen.close();
 
         return out.toByteArray();
     }
@@ -308,14 +257,19 @@ public class PGPCoder extends Coder {
                     InputStream unc = ld.getInputStream();
                     ByteArrayOutputStream bout = new ByteArrayOutputStream();
 
-                    byte[] buf = new byte[4096];
-                    int num;
+                    byte[] buf = BufferPool.acquire(BufferPool.SIZE_MEDIUM);
+                    try {
+                        int num;
 
-                    while ((num = unc.read(buf)) >= 0) {
-                        bout.write(buf, 0, num);
+                        while ((num = unc.read(buf)) >= 0) {
+                            bout.write(buf, 0, num);
 
-                        if (ops != null)
-                            ops.update(buf, 0, num);
+                            if (ops != null)
+                                ops.update(buf, 0, num);
+                        }
+                    }
+                    finally {
+                        BufferPool.release(buf);
                     }
 
                     if (verify) {
@@ -494,24 +448,32 @@ public class PGPCoder extends Coder {
         return new DecryptOutput(out, mime, timestamp, errors);
     }
 
-    @Override
-    public void encryptFile(InputStream input, OutputStream output) throws GeneralSecurityException {
-        try {
-            // setup data encryptor & generator
-            BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
-            encryptor.setWithIntegrityPacket(true);
-            encryptor.setSecureRandom(new SecureRandom());
+    /** Signs, compresses and encrypts the input stream. */
+    private void encrypt(InputStream in, OutputStream out)
+            throws PGPException, IOException, SignatureException {
+
+        // setup data encryptor & generator
+        BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
+        encryptor.setWithIntegrityPacket(true);
+        encryptor.setSecureRandom(new SecureRandom());
+
+        // add public key recipients
+        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
+        for (PGPKeyRingIdentity rcpt : mRecipients)
+            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(rcpt.getEncryptionKey()));
 
-            // add public key recipients
-            PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-            for (PGPPublicKeyRing rcpt : mRecipients)
-                encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
+        // packet buffers are used by the streams until they are closed
+        byte[] encBuffer = BufferPool.acquire(BUFFER_SIZE);
+        byte[] compBuffer = BufferPool.acquire(BUFFER_SIZE);
+        byte[] literalBuffer = BufferPool.acquire(BUFFER_SIZE);
+        byte[] buf = BufferPool.acquire(BufferPool.SIZE_MEDIUM);
 
-            OutputStream encryptedOut = encGen.open(output, new byte[BUFFER_SIZE]);
+        try {
+            OutputStream encryptedOut = encGen.open(out, encBuffer);
 
             // setup compressed data generator
             PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-            OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
+            OutputStream compressedOut = compGen.open(encryptedOut, compBuffer);
 
             // setup signature generator
             PGPSignatureGenerator sigGen = new PGPSignatureGenerator
@@ -533,14 +495,11 @@ public class PGPCoder extends Coder {
                 PGPLiteralData.BINARY,
                 "",
                 new Date(),
-                new byte[BUFFER_SIZE]);
+                literalBuffer);
 
             // read the "in" stream, compress, encrypt and write to the "out" stream
-            // this must be done if clear data is bigger than the buffer size
-            // but there are other ways to optimize...
-            byte[] buf = new byte[BUFFER_SIZE];
             int len;
-            while ((len = input.read(buf)) > 0) {
+            while ((len = in.read(buf)) > 0) {
                 literalOut.write(buf, 0, len);
                 sigGen.update(buf, 0, len);
             }
@@ -551,6 +510,19 @@ public class PGPCoder extends Coder {
             compGen.close();
             encGen.close();
         }
+        finally {
+            BufferPool.release(encBuffer);
+            BufferPool.release(compBuffer);
+            BufferPool.release(literalBuffer);
+            BufferPool.release(buf);
+        }
+    }
+
+    @Override
+    public void encryptFile(InputStream input, OutputStream output) throws GeneralSecurityException {
+        try {
+            encrypt(input, output);
+        }
         catch (PGPException e) {
             throw new GeneralSecurityException(e);
         }
@@ -625,14 +597,19 @@ public class PGPCoder extends Coder {
                     PGPLiteralData ld = (PGPLiteralData) message;
 
                     InputStream unc = ld.getInputStream();
-                    byte[] buf = new byte[8192];
-                    int num;
+                    byte[] buf = BufferPool.acquire(BufferPool.SIZE_MEDIUM);
+                    try {
+                        int num;
 
-                    while ((num = unc.read(buf)) >= 0) {
-                        output.write(buf, 0, num);
+                        while ((num = unc.read(buf)) >= 0) {
+                            output.write(buf, 0, num);
 
-                        if (ops != null)
-                            ops.update(buf, 0, num);
+                            if (ops != null)
+                                ops.update(buf, 0, num);
+                        }
+                    }
+                    finally {
+                        BufferPool.release(buf);
                     }
 
                     if (verify) {
@@ -762,14 +739,19 @@ public class PGPCoder extends Coder {
                     InputStream unc = ld.getInputStream();
                     ByteArrayOutputStream bout = new ByteArrayOutputStream();
 
-                    byte[] buf = new byte[4096];
-                    int num;
+                    byte[] buf = BufferPool.acquire(BufferPool.SIZE_MEDIUM);
+                    try {
+                        int num;
 
-                    while ((num = unc.read(buf)) >= 0) {
-                        bout.write(buf, 0, num);
+                        while ((num = unc.read(buf)) >= 0) {
+                            bout.write(buf, 0, num);
 
-                        if (ops != null)
-                            ops.update(buf, 0, num);
+                            if (ops != null)
+                                ops.update(buf, 0, num);
+                        }
+                    }
+                    finally {
+                        BufferPool.release(buf);
                     }
 
                     if (verify) {
@@ -0,0 +1,79 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+
+/**
+ * A parsed public keyring together with the data we need from it for
+ * encrypting (master key, encryption subkey, fingerprint and user ID).
+ * Everything is looked up once, so instances are meant to be cached and
+ * reused for every message to the same recipient.
+ * @author Daniele Ricci
+ */
+public class PGPKeyRingIdentity {
+
+    private final PGPPublicKeyRing mKeyRing;
+    private final PGPPublicKey mMasterKey;
+    private final PGPPublicKey mEncryptionKey;
+    private final String mFingerprint;
+
+    /** Network of the cached user ID. */
+    private String mNetwork;
+    private String mUserId;
+
+    public PGPKeyRingIdentity(PGPPublicKeyRing keyRing) {
+        mKeyRing = keyRing;
+        mMasterKey = PGP.getMasterKey(keyRing);
+        mEncryptionKey = PGP.getEncryptionKey(keyRing);
+        mFingerprint = mMasterKey != null ? PGP.getFingerprint(mMasterKey) : null;
+    }
+
+    public PGPPublicKeyRing getKeyRing() {
+        return mKeyRing;
+    }
+
+    public PGPPublicKey getMasterKey() {
+        return mMasterKey;
+    }
+
+    public PGPPublicKey getEncryptionKey() {
+        return mEncryptionKey;
+    }
+
+    public String getFingerprint() {
+        return mFingerprint;
+    }
+
+    /** Returns the first user ID on the master key that matches the given network. */
+    public synchronized String getUserId(String network) {
+        if (mUserId == null || !equals(mNetwork, network)) {
+            mUserId = mMasterKey != null ? PGP.getUserId(mMasterKey, network) : null;
+            mNetwork = network;
+        }
+        return mUserId;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+}
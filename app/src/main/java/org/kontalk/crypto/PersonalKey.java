@@ -58,6 +58,7 @@ import android.util.Base64OutputStream;
 
 import org.kontalk.Kontalk;
 import org.kontalk.Log;
+import org.kontalk.authenticator.AccountSnapshot;
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.crypto.PGP.PGPDecryptedKeyPairRing;
 import org.kontalk.crypto.PGP.PGPKeyPairRing;
@@ -77,6 +78,10 @@ public class PersonalKey implements Parcelable {
     /** X.509 bridge certificate. */
     private final X509Certificate mBridgeCert;
 
+    /** Network of the cached user ID. */
+    private String mUserIdNetwork;
+    private String mUserId;
+
     private PersonalKey(PGPDecryptedKeyPairRing keyPair, X509Certificate bridgeCert) {
         mPair = keyPair;
         mBridgeCert = bridgeCert;
@@ -125,8 +130,12 @@ public class PersonalKey implements Parcelable {
     }
 
     /** Returns the first user ID on the key that matches the given network. */
-    public String getUserId(String network) {
-        return PGP.getUserId(mPair.authKey.getPublicKey(), network);
+    public synchronized String getUserId(String network) {
+        if (mUserId == null || (network != null ? !network.equals(mUserIdNetwork) : mUserIdNetwork != null)) {
+            mUserId = PGP.getUserId(mPair.authKey.getPublicKey(), network);
+            mUserIdNetwork = network;
+        }
+        return mUserId;
     }
 
     public String getFingerprint() {
@@ -437,6 +446,7 @@ public class PersonalKey implements Parcelable {
                 Base64.encodeToString(publicKeyData, Base64.NO_WRAP));
             am.setUserData(account, Authenticator.DATA_BRIDGECERT,
                     Base64.encodeToString(bridgeCertData, Base64.NO_WRAP));
+            AccountSnapshot.invalidate();
         }
     }
 
@@ -49,6 +49,7 @@ import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
 import android.support.annotation.NonNull;
 import android.support.v4.util.LruCache;
+import android.text.TextUtils;
 
 import org.kontalk.Log;
 import org.kontalk.R;
@@ -56,6 +57,7 @@ import org.kontalk.crypto.PGPLazyPublicKeyRingLoader;
 import org.kontalk.provider.Keyring;
 import org.kontalk.provider.MyUsers.Keys;
 import org.kontalk.provider.MyUsers.Users;
+import org.kontalk.util.BackgroundExecutor;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
 
@@ -395,8 +397,8 @@ public class Contact {
             callback.avatarLoaded(this, mAvatar);
         }
         else {
-            // start async load
-            new Thread(new Runnable() {
+            // start async load - dropped if busy, it will be requested again on next bind
+            BackgroundExecutor.getInstance().tryExecute(new Runnable() {
                 public void run() {
                     try {
                         Drawable avatar = getAvatar(context);
@@ -407,7 +409,7 @@ public class Contact {
                         Log.w(TAG, "error while loading avatar", e);
                     }
                 }
-            }).start();
+            }, BackgroundExecutor.PRIORITY_HIGH);
         }
     }
 
@@ -653,16 +655,26 @@ public class Contact {
     }
 
     public static Cursor queryContacts(Context context) {
-        String selection = Users.REGISTERED + " <> 0";
+        return queryContacts(context, null);
+    }
+
+    /** Queries contacts whose name or number match the given filter text. */
+    public static Cursor queryContacts(Context context, String filter) {
+        // equality lets the sort index be used
+        String selection = Users.REGISTERED + " = 1";
         if (!Preferences.getShowBlockedUsers(context)) {
             selection += " AND " + Users.BLOCKED + " = 0";
         }
 
-        return context.getContentResolver().query(Users.CONTENT_URI.buildUpon()
-                .appendQueryParameter(Users.EXTRA_INDEX, "true").build(),
+        Uri.Builder uri = Users.CONTENT_URI.buildUpon()
+            .appendQueryParameter(Users.EXTRA_INDEX, "true");
+        if (!TextUtils.isEmpty(filter))
+            uri.appendQueryParameter(Users.FILTER, filter);
+
+        return context.getContentResolver().query(uri.build(),
             ALL_CONTACTS_PROJECTION,
             selection, null,
-            Users.DISPLAY_NAME + " COLLATE NOCASE," + Users.NUMBER + " COLLATE NOCASE");
+            Users.SORT_KEY + " COLLATE NOCASE");
     }
 
 }
@@ -360,6 +360,7 @@ public class Conversation {
 
         // delete messages and thread
         MessagesProviderUtils.deleteThread(context, threadId, groupChat && !leaveGroup);
+        MessagingNotification.clearThreads(context, threadId);
 
         // send leave message only if the group was created in the first place
         if (groupChat && leaveGroup) {
@@ -502,7 +503,7 @@ public class Conversation {
                 @Override
                 public void run() {
                     MessagesProvider.markThreadAsRead(mContext, mThreadId);
-                    MessagingNotification.updateMessagesNotification(mContext.getApplicationContext(), false);
+                    MessagingNotification.clearThreads(mContext, mThreadId);
                 }
             }).start();
         }
@@ -23,6 +23,11 @@ import org.kontalk.provider.MyMessages.Messages.Fulltext;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.graphics.Typeface;
+import android.net.Uri;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
 
 
 /**
@@ -31,9 +36,9 @@ import android.database.Cursor;
  */
 public class SearchItem {
     public static final String[] SEARCH_PROJECTION = {
-        Fulltext._ID + " AS " + Messages._ID,
+        Messages._ID,
         Fulltext.THREAD_ID,
-        Fulltext.CONTENT
+        Fulltext.SNIPPET
     };
 
     protected final long mId;
@@ -65,10 +70,37 @@ public class SearchItem {
         return mUserId;
     }
 
+    /** Returns the matching text snippet, with matches marked by the provider. */
     public String getText() {
         return mText;
     }
 
+    /** Returns the matching text snippet, with matches in bold. */
+    public CharSequence getHighlightedText() {
+        if (mText == null)
+            return null;
+
+        SpannableStringBuilder buf = new SpannableStringBuilder();
+        int start = -1;
+        for (int i = 0; i < mText.length(); i++) {
+            char c = mText.charAt(i);
+            if (c == Fulltext.SNIPPET_START) {
+                start = buf.length();
+            }
+            else if (c == Fulltext.SNIPPET_END) {
+                if (start >= 0) {
+                    buf.setSpan(new StyleSpan(Typeface.BOLD), start, buf.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    start = -1;
+                }
+            }
+            else {
+                buf.append(c);
+            }
+        }
+        return buf;
+    }
+
     public Contact getContact() {
         return mContact;
     }
@@ -80,10 +112,48 @@ public class SearchItem {
         return new SearchItem(context, id, threadId, text);
     }
 
-    public static Cursor query(Context context, String query) {
-        // TODO enhanced queries?
-        return context.getContentResolver().query(Fulltext.CONTENT_URI
-                    .buildUpon().appendQueryParameter("pattern", query + "*").build(),
+    /** Queries a page of ranked results. */
+    public static Cursor query(Context context, String query, int offset, int count) {
+        return context.getContentResolver().query(getQueryUri(query, offset, count),
                 SEARCH_PROJECTION, null, null, null);
     }
+
+    /** Returns the URI for a page of ranked results. */
+    public static Uri getQueryUri(String query, int offset, int count) {
+        return Fulltext.CONTENT_URI
+                .buildUpon()
+                .appendQueryParameter(Fulltext.QUERY_PATTERN, buildPattern(query))
+                .appendQueryParameter(Fulltext.QUERY_OFFSET, String.valueOf(offset))
+                .appendQueryParameter(Fulltext.QUERY_COUNT, String.valueOf(count))
+                .build();
+    }
+
+    /**
+     * Builds a full text pattern matching all the words (as prefixes) in the
+     * given query. Full text syntax in user input is neutralized.
+     */
+    static String buildPattern(String query) {
+        StringBuilder pattern = new StringBuilder();
+        for (String word : query.split("\\s+")) {
+            StringBuilder term = new StringBuilder(word.length());
+            for (int i = 0; i < word.length(); i++) {
+                char c = word.charAt(i);
+                if (c != '"' && c != '*' && c != '(' && c != ')' && c != ':' && c != '^' &&
+                        !(c == '-' && term.length() == 0))
+                    term.append(c);
+            }
+            if (term.length() == 0)
+                continue;
+
+            String t = term.toString();
+            // avoid interpreting words as operators
+            if (t.equals("AND") || t.equals("OR") || t.equals("NOT") || t.startsWith("NEAR"))
+                t = t.toLowerCase();
+
+            if (pattern.length() > 0)
+                pattern.append(' ');
+            pattern.append(t).append('*');
+        }
+        return pattern.toString();
+    }
 }
@@ -53,4 +53,9 @@ public abstract class AttachmentComponent extends MessageComponent<Attachment> {
 
     protected abstract void populateFromCursor(Context context, Cursor cursor);
 
+    /** Reads a media metadata column: 0 if not known yet, -1 if not available. */
+    static int getMetadata(Cursor c, int column) {
+        return c.isNull(column) ? 0 : c.getInt(column);
+    }
+
 }
@@ -45,10 +45,17 @@ public class AudioComponent extends AttachmentComponent {
         MIME_TYPES.put("audio/flac", "flac");
     }
 
+    /** Duration in milliseconds: 0 if not known yet, -1 if not available. */
+    private int mDuration;
+
     public AudioComponent(String mime, Uri localUri, String fetchUrl, long length, boolean encrypted, int securityFlags) {
         super(mime, null, localUri, fetchUrl, length, encrypted, securityFlags);
     }
 
+    public int getDuration() {
+        return mDuration;
+    }
+
     public static boolean supportsMimeType(String mime) {
         return MIME_TYPES.containsKey(mime);
     }
@@ -70,7 +77,7 @@ public class AudioComponent extends AttachmentComponent {
 
     @Override
     protected void populateFromCursor(Context context, Cursor c) {
-        // Nothing to do here
+        mDuration = getMetadata(c, CompositeMessage.COLUMN_ATTACHMENT_DURATION);
     }
 
     public static String buildMediaFilename(String id, String mime) {
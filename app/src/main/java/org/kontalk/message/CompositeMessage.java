@@ -87,6 +87,7 @@ public class CompositeMessage {
         Groups.SUBJECT,
         Groups.GROUP_TYPE,
         Groups.MEMBERSHIP,
+        Messages.ATTACHMENT_DURATION,
     };
 
     // these indexes matches MESSAGE_LIST_PROJECTION
@@ -114,6 +115,7 @@ public class CompositeMessage {
     public static final int COLUMN_GROUP_SUBJECT = 21;
     public static final int COLUMN_GROUP_TYPE = 22;
     public static final int COLUMN_GROUP_MEMBERSHIP = 23;
+    public static final int COLUMN_ATTACHMENT_DURATION = 24;
 
     public static final String MSG_ID = "org.kontalk.message.id";
     public static final String MSG_SERVER_ID = "org.kontalk.message.serverId";
@@ -466,6 +468,23 @@ public class CompositeMessage {
                 MESSAGE_LIST_PROJECTION, null, null, Messages.DEFAULT_SORT_ORDER);
     }
 
+    /**
+     * Queries messages newer than the given message id.
+     * @param count maximum number of messages, 0 for all of them
+     */
+    public static void startQueryAfter(AsyncQueryHandler handler, int token, long threadId, long count, long firstId) {
+        Uri uri = ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId)
+            .buildUpon()
+            .appendQueryParameter("count", String.valueOf(count))
+            .appendQueryParameter("after", String.valueOf(firstId))
+            .build();
+
+        // cancel previous operations
+        handler.cancelOperation(token);
+        handler.startQuery(token, null, uri,
+                MESSAGE_LIST_PROJECTION, null, null, Messages.DEFAULT_SORT_ORDER);
+    }
+
     /** A sample text content from class name and mime type. */
     public static String getSampleTextContent(String mime) {
         Class<AttachmentComponent> klass = getSupportingComponent(mime);
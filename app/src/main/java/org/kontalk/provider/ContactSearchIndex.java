@@ -0,0 +1,288 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.kontalk.provider.MyUsers.Users;
+
+
+/**
+ * Type-ahead search index for the users table.
+ * Every user has a few lookup keys: the words of its name (without accents,
+ * and starting at every character for CJK names), the initials and the whole
+ * name without spaces. Phone numbers are stored reversed to match by suffix.
+ * Queries are prefix matches on the keys, so they are just index range scans.
+ * @author Daniele Ricci
+ */
+class ContactSearchIndex {
+
+    static final String TABLE_LOOKUP = "lookup";
+
+    static final int TYPE_NAME = 0;
+    static final int TYPE_NUMBER = 1;
+
+    static final String SCHEMA_LOOKUP =
+        "CREATE TABLE " + TABLE_LOOKUP + " (" +
+        "jid TEXT NOT NULL," +
+        "type INTEGER NOT NULL," +
+        "key TEXT NOT NULL" +
+        ")";
+
+    static final String[] SCHEMA_LOOKUP_INDEXES = {
+        "CREATE INDEX IF NOT EXISTS lookup_key ON " + TABLE_LOOKUP + " (type, key)",
+        "CREATE INDEX IF NOT EXISTS lookup_jid ON " + TABLE_LOOKUP + " (jid)",
+    };
+
+    /** Minimum number of digits for matching phone numbers. */
+    private static final int MIN_NUMBER_DIGITS = 3;
+
+    private ContactSearchIndex() {
+    }
+
+    /** Lower case, without accents and other combining marks. */
+    static String normalize(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder out = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK)
+                out.append(c);
+        }
+        return out.toString().toLowerCase(Locale.US);
+    }
+
+    /** Splits normalized text into words of letters and digits. */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        String normalized = normalize(text);
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            boolean wordChar = i < normalized.length() &&
+                Character.isLetterOrDigit(normalized.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            }
+            else if (!wordChar && start >= 0) {
+                tokens.add(normalized.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isIdeographic(int codePoint) {
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(codePoint);
+        return block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS ||
+            block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A ||
+            block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_B ||
+            block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS ||
+            block == Character.UnicodeBlock.HIRAGANA ||
+            block == Character.UnicodeBlock.KATAKANA ||
+            block == Character.UnicodeBlock.HANGUL_SYLLABLES;
+    }
+
+    /** Returns the lookup keys for a display name. */
+    static Set<String> getNameKeys(String displayName) {
+        Set<String> keys = new LinkedHashSet<>();
+        if (displayName == null)
+            return keys;
+
+        List<String> words = tokenize(displayName);
+        StringBuilder initials = new StringBuilder();
+        StringBuilder full = new StringBuilder();
+        for (String word : words) {
+            keys.add(word);
+            initials.appendCodePoint(word.codePointAt(0));
+            full.append(word);
+
+            // CJK names are not split by spaces: match from every character
+            for (int i = word.offsetByCodePoints(0, 1); i < word.length();
+                    i = word.offsetByCodePoints(i, 1)) {
+                if (isIdeographic(word.codePointAt(i)))
+                    keys.add(word.substring(i));
+            }
+        }
+
+        if (words.size() > 1) {
+            keys.add(initials.toString());
+            keys.add(full.toString());
+        }
+        return keys;
+    }
+
+    /** Returns the digits of a phone number, reversed. */
+    static String getNumberKey(String number) {
+        if (number == null)
+            return null;
+
+        StringBuilder digits = new StringBuilder(number.length());
+        for (int i = number.length() - 1; i >= 0; i--) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9')
+                digits.append(c);
+        }
+        return digits.length() > 0 ? digits.toString() : null;
+    }
+
+    private static boolean isNumber(String token) {
+        if (token.length() < MIN_NUMBER_DIGITS)
+            return false;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c < '0' || c > '9')
+                return false;
+        }
+        return true;
+    }
+
+    /** Smallest string greater than all strings starting with prefix. */
+    static String prefixUpperBound(String prefix) {
+        int last = prefix.length() - 1;
+        return prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+    }
+
+    /**
+     * Builds a selection on the users table for the given filter text.
+     * Every word of the filter must match the beginning of a name key;
+     * numbers can also match the end of the phone number.
+     * @param args selection arguments will be added here
+     * @return the selection or null if the filter is empty
+     */
+    static String getSelection(String filter, List<String> args) {
+        List<String> tokens = tokenize(filter);
+        if (tokens.isEmpty())
+            return null;
+
+        StringBuilder selection = new StringBuilder();
+        for (String token : tokens) {
+            if (selection.length() > 0)
+                selection.append(" AND ");
+
+            selection.append("(").append(Users.JID).append(" IN (SELECT jid FROM ")
+                .append(TABLE_LOOKUP).append(" WHERE type = ").append(TYPE_NAME)
+                .append(" AND key >= ? AND key < ?)");
+            args.add(token);
+            args.add(prefixUpperBound(token));
+
+            if (isNumber(token)) {
+                String reversed = new StringBuilder(token).reverse().toString();
+                selection.append(" OR ").append(Users.JID).append(" IN (SELECT jid FROM ")
+                    .append(TABLE_LOOKUP).append(" WHERE type = ").append(TYPE_NUMBER)
+                    .append(" AND key >= ? AND key < ?)");
+                args.add(reversed);
+                args.add(prefixUpperBound(reversed));
+            }
+            selection.append(")");
+        }
+        return selection.toString();
+    }
+
+    /** Compiles the statement for {@link #update(SQLiteDatabase, SQLiteStatement, String, String, String)}. */
+    static SQLiteStatement compileInsert(SQLiteDatabase db) {
+        return db.compileStatement("INSERT INTO " + TABLE_LOOKUP +
+            " (jid, type, key) VALUES (?, ?, ?)");
+    }
+
+    /** Replaces the lookup keys of a user. */
+    static void update(SQLiteDatabase db, String jid, String displayName, String number) {
+        SQLiteStatement stm = compileInsert(db);
+        try {
+            update(db, stm, jid, displayName, number);
+        }
+        finally {
+            stm.close();
+        }
+    }
+
+    /** Replaces the lookup keys of a user using a statement from {@link #compileInsert}. */
+    static void update(SQLiteDatabase db, SQLiteStatement insert, String jid, String displayName, String number) {
+        db.delete(TABLE_LOOKUP, "jid = ?", new String[] { jid });
+
+        for (String key : getNameKeys(displayName))
+            insertKey(insert, jid, TYPE_NAME, key);
+
+        String numberKey = getNumberKey(number);
+        if (numberKey != null)
+            insertKey(insert, jid, TYPE_NUMBER, numberKey);
+    }
+
+    private static void insertKey(SQLiteStatement stm, String jid, int type, String key) {
+        stm.clearBindings();
+        stm.bindString(1, jid);
+        stm.bindLong(2, type);
+        stm.bindString(3, key);
+        stm.executeInsert();
+    }
+
+    /** Updates the lookup keys of the users with the given JIDs from the users table. */
+    static void update(SQLiteDatabase db, String table, Iterable<String> jids) {
+        SQLiteStatement stm = compileInsert(db);
+        try {
+            for (String jid : jids) {
+                Cursor c = db.query(table, new String[] { Users.DISPLAY_NAME, Users.NUMBER },
+                    Users.JID + " = ?", new String[] { jid }, null, null, null);
+                try {
+                    if (c.moveToFirst())
+                        update(db, stm, jid, c.getString(0), c.getString(1));
+                    else
+                        db.delete(TABLE_LOOKUP, "jid = ?", new String[] { jid });
+                }
+                finally {
+                    c.close();
+                }
+            }
+        }
+        finally {
+            stm.close();
+        }
+    }
+
+    /** Removes keys of users not in the given table anymore. */
+    static void deleteOrphans(SQLiteDatabase db, String table) {
+        db.execSQL("DELETE FROM " + TABLE_LOOKUP + " WHERE jid NOT IN (SELECT " +
+            Users.JID + " FROM " + table + ")");
+    }
+
+    /** Builds the index from scratch. */
+    static void rebuild(SQLiteDatabase db, String table) {
+        db.delete(TABLE_LOOKUP, null, null);
+        SQLiteStatement stm = compileInsert(db);
+        Cursor c = db.query(table, new String[] { Users.JID, Users.DISPLAY_NAME, Users.NUMBER },
+            null, null, null, null, null);
+        try {
+            while (c.moveToNext())
+                update(db, stm, c.getString(0), c.getString(1), c.getString(2));
+        }
+        finally {
+            c.close();
+            stm.close();
+        }
+    }
+
+}
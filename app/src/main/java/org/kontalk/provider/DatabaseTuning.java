@@ -0,0 +1,248 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.concurrent.TimeUnit;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import org.kontalk.Log;
+import org.kontalk.util.Preferences;
+import org.kontalk.util.SystemUtils;
+
+
+/**
+ * Connection setup and idle-time maintenance for our SQLite databases.
+ * Enables write-ahead logging where available (API 11+) so that readers are
+ * not blocked by long writers, and runs checkpoints, incremental vacuum and
+ * ANALYZE on a background thread once writes have settled down.
+ * Incremental vacuum needs auto_vacuum, which can't be enabled on a database
+ * that already has tables (Android creates android_metadata before
+ * onCreate) without rebuilding it: a full VACUUM is run once for that,
+ * while the device is charging or not being used since it blocks writers.
+ * @author Daniele Ricci
+ */
+public final class DatabaseTuning {
+    private static final String TAG = DatabaseTuning.class.getSimpleName();
+
+    /** Page cache size for the writer connection (in pages). */
+    private static final int CACHE_SIZE = 1000;
+    /** How long to wait after the last write before running maintenance. */
+    private static final long IDLE_DELAY = TimeUnit.SECONDS.toMillis(15);
+    /** Minimum time between two ANALYZE runs on the same database. */
+    private static final long ANALYZE_INTERVAL = TimeUnit.DAYS.toMillis(3);
+    /** Maximum number of free pages to reclaim in a single maintenance run. */
+    private static final int VACUUM_PAGES = 256;
+
+    /** Shared maintenance thread for all databases. */
+    private static Handler sHandler;
+
+    private final Context mContext;
+    private final SQLiteOpenHelper mHelper;
+    private final String mName;
+    private volatile boolean mWriteAheadLogging;
+
+    private final Runnable mMaintenanceTask = new Runnable() {
+        @Override
+        public void run() {
+            maintenance();
+        }
+    };
+
+    /**
+     * Creates a tuning instance for the given helper. Must be called from the
+     * helper constructor since WAL has to be configured before opening on
+     * API 16+.
+     */
+    public DatabaseTuning(Context context, SQLiteOpenHelper helper, String name) {
+        mContext = context.getApplicationContext();
+        mHelper = helper;
+        mName = name;
+        enableWriteAheadLogging(helper);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static void enableWriteAheadLogging(SQLiteOpenHelper helper) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            helper.setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * Configures a newly opened connection. To be called from
+     * {@link SQLiteOpenHelper#onOpen(SQLiteDatabase)}.
+     * @return true if write-ahead logging is enabled
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public boolean onOpen(SQLiteDatabase db) {
+        boolean wal;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            wal = db.isWriteAheadLoggingEnabled();
+        }
+        else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // helper.setWriteAheadLoggingEnabled() is not available before API 16
+            wal = !db.isReadOnly() && db.enableWriteAheadLogging();
+        }
+        else {
+            // SQLite < 3.7.0 doesn't have WAL
+            wal = false;
+        }
+
+        try {
+            if (wal) {
+                // NORMAL is safe from corruption in WAL mode
+                db.execSQL("PRAGMA synchronous = NORMAL");
+            }
+            else if (!db.isReadOnly()) {
+                // avoid deleting and recreating the journal on every transaction
+                pragma(db, "journal_mode = PERSIST");
+            }
+            db.execSQL("PRAGMA cache_size = " + CACHE_SIZE);
+        }
+        catch (SQLException e) {
+            Log.w(TAG, "unable to configure database " + mName, e);
+        }
+
+        mWriteAheadLogging = wal;
+        return wal;
+    }
+
+    public boolean isWriteAheadLoggingEnabled() {
+        return mWriteAheadLogging;
+    }
+
+    /**
+     * Notifies that the database has been written to. Maintenance will be
+     * scheduled after a while without writes.
+     */
+    public void onWrite() {
+        Handler handler = getHandler();
+        handler.removeCallbacks(mMaintenanceTask);
+        handler.postDelayed(mMaintenanceTask, IDLE_DELAY);
+    }
+
+    /** Cancels any pending maintenance (e.g. when closing the database). */
+    public void cancel() {
+        if (sHandler != null)
+            sHandler.removeCallbacks(mMaintenanceTask);
+    }
+
+    /** Runs a background database task on the maintenance thread. */
+    public static void post(Runnable task, long delay) {
+        Handler handler = getHandler();
+        handler.removeCallbacks(task);
+        handler.postDelayed(task, delay);
+    }
+
+    /** Removes a background database task posted earlier. */
+    public static void remove(Runnable task) {
+        if (sHandler != null)
+            sHandler.removeCallbacks(task);
+    }
+
+    void maintenance() {
+        SQLiteDatabase db;
+        try {
+            db = mHelper.getWritableDatabase();
+        }
+        catch (SQLException e) {
+            Log.w(TAG, "unable to open database " + mName + " for maintenance", e);
+            return;
+        }
+
+        try {
+            if (mWriteAheadLogging) {
+                // passive checkpoint: copy what we can without blocking anyone
+                pragma(db, "wal_checkpoint");
+            }
+
+            // attempted only once, it rewrites the whole database holding
+            // the write lock: wait until the device is not being used
+            if (!Preferences.isDatabaseAutoVacuumSet(mName) &&
+                    (isAutoVacuumEnabled(db) || SystemUtils.isIdleOrCharging(mContext))) {
+                Preferences.setDatabaseAutoVacuumSet(mName);
+                enableAutoVacuum(db);
+            }
+
+            // no-op if auto_vacuum could not be enabled
+            pragma(db, "incremental_vacuum(" + VACUUM_PAGES + ")");
+
+            long now = System.currentTimeMillis();
+            if ((now - Preferences.getLastDatabaseAnalyze(mName)) > ANALYZE_INTERVAL) {
+                db.execSQL("ANALYZE");
+                Preferences.setLastDatabaseAnalyze(mName, now);
+            }
+        }
+        catch (Exception e) {
+            // database might have been closed in the meantime
+            Log.w(TAG, "maintenance failed on " + mName, e);
+        }
+    }
+
+    private static boolean isAutoVacuumEnabled(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("PRAGMA auto_vacuum", null);
+        try {
+            // 2 is INCREMENTAL
+            return c.moveToFirst() && c.getLong(0) == 2;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /** Enables incremental auto_vacuum, rebuilding the database if needed. */
+    private void enableAutoVacuum(SQLiteDatabase db) {
+        if (!isAutoVacuumEnabled(db)) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            // the new mode takes effect only after rebuilding
+            db.execSQL("VACUUM");
+            Log.d(TAG, "auto_vacuum enabled on " + mName);
+        }
+    }
+
+    /** Executes a pragma that might return rows. */
+    private static void pragma(SQLiteDatabase db, String pragma) {
+        Cursor c = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            // step through the whole statement
+            c.getCount();
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread("DatabaseTuning", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+
+}
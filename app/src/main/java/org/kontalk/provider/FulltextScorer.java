@@ -0,0 +1,115 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+
+/**
+ * Okapi BM25 ranking of full text matches, computed from the FTS4
+ * matchinfo() blob since Android SQLite doesn't have a ranking function.
+ * @author Daniele Ricci
+ */
+final class FulltextScorer {
+
+    /** The matchinfo() format expected by {@link #score(byte[])}. */
+    static final String MATCHINFO_FORMAT = "pcnalx";
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private FulltextScorer() {
+    }
+
+    /** Computes the BM25 score of a row from its matchinfo blob. */
+    static double score(byte[] matchinfo) {
+        IntBuffer buf = ByteBuffer.wrap(matchinfo)
+            .order(ByteOrder.nativeOrder()).asIntBuffer();
+        int[] info = new int[buf.remaining()];
+        buf.get(info);
+        return score(info);
+    }
+
+    /**
+     * Computes the BM25 score of a row from its matchinfo values
+     * (see {@link #MATCHINFO_FORMAT}).
+     */
+    static double score(int[] info) {
+        int phrases = info[0];
+        int columns = info[1];
+        long rows = info[2] & 0xffffffffL;
+        int avgLengthIndex = 3;
+        int lengthIndex = avgLengthIndex + columns;
+        int hitsIndex = lengthIndex + columns;
+
+        double score = 0;
+        for (int i = 0; i < phrases; i++) {
+            for (int j = 0; j < columns; j++) {
+                int base = hitsIndex + 3 * (i * columns + j);
+                double hits = info[base];
+                if (hits <= 0)
+                    continue;
+
+                double docsWithHits = info[base + 2];
+                double idf = Math.log((rows - docsWithHits + 0.5) / (docsWithHits + 0.5));
+                // very common terms must not lower the score
+                if (idf < 1e-6)
+                    idf = 1e-6;
+
+                double avgLength = Math.max(1, info[avgLengthIndex + j]);
+                double length = info[lengthIndex + j];
+                score += idf * (hits * (K1 + 1)) /
+                    (hits + K1 * (1 - B + B * length / avgLength));
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Sorts the given ids by descending score (most recent first for equal
+     * scores) and returns the requested page.
+     * @param ids document ids, in descending order
+     * @param count page size, 0 for all the remaining results
+     */
+    static long[] page(long[] ids, final double[] scores, int offset, int count) {
+        Integer[] order = new Integer[ids.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+
+        // stable sort: input order is kept for equal scores
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(scores[b], scores[a]);
+            }
+        });
+
+        int start = Math.min(Math.max(offset, 0), ids.length);
+        int end = count > 0 ? Math.min(start + count, ids.length) : ids.length;
+        long[] page = new long[end - start];
+        for (int i = start; i < end; i++)
+            page[i - start] = ids[order[i]];
+        return page;
+    }
+
+}
@@ -19,10 +19,15 @@
 package org.kontalk.provider;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPPublicKey;
@@ -31,12 +36,14 @@ import org.spongycastle.openpgp.PGPPublicKeyRing;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.support.v4.util.LruCache;
 import android.text.TextUtils;
 
 import org.kontalk.client.EndpointServer;
 import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PGPCoder;
+import org.kontalk.crypto.PGPKeyRingIdentity;
 import org.kontalk.crypto.PersonalKey;
 
 
@@ -46,19 +53,29 @@ import org.kontalk.crypto.PersonalKey;
  */
 public class Keyring {
 
+    /** Maximum number of JIDs in a single query (SQLite has a limit on bound variables). */
+    private static final int MAX_QUERY_JIDS = 500;
+
+    /** Maximum number of parsed public keys kept in memory. */
+    private static final int MAX_CACHED_KEYS = 200;
+
+    /** Parsed public keys by fingerprint. Keys never change for a fingerprint. */
+    private static final LruCache<String, PGPKeyRingIdentity> sIdentities =
+        new LruCache<>(MAX_CACHED_KEYS);
+
     private Keyring() {
     }
 
     /** Returns a {@link Coder} instance for encrypting data. */
     public static Coder getEncryptCoder(Context context, EndpointServer server, PersonalKey key, String[] recipients) {
         // get recipients public keys from users database
-        PGPPublicKeyRing keys[] = new PGPPublicKeyRing[recipients.length];
+        PGPKeyRingIdentity keys[] = new PGPKeyRingIdentity[recipients.length];
         for (int i = 0; i < recipients.length; i++) {
-            PGPPublicKeyRing ring = getPublicKey(context, recipients[i], MyUsers.Keys.TRUST_IGNORED);
-            if (ring == null)
+            PGPKeyRingIdentity identity = getPublicKeyIdentity(context, recipients[i], MyUsers.Keys.TRUST_IGNORED);
+            if (identity == null)
                 throw new IllegalArgumentException("public key not found for user " + recipients[i]);
 
-            keys[i] = ring;
+            keys[i] = identity;
         }
 
         return new PGPCoder(server, key, keys);
@@ -94,6 +111,8 @@ public class Keyring {
         if (trustLevel >= 0)
             values.put(MyUsers.Keys.TRUST_LEVEL, trustLevel);
         context.getContentResolver().insert(MyUsers.Keys.getUri(jid, fingerprint), values);
+        // key data might have changed (e.g. new signatures)
+        sIdentities.remove(fingerprint);
     }
 
     /** Updates the fingerprint and the date (for fingerprint in presence). */
@@ -134,6 +153,80 @@ public class Keyring {
         return fingerprint;
     }
 
+    /**
+     * Retrieves the latest fingerprint with the minimum given trust level
+     * for several users at once.
+     * @param trustLevel the minimum trust level to consider
+     * @return a JID-fingerprint map, users without keys are not included
+     */
+    public static Map<String, String> getFingerprints(Context context, Collection<String> jids, int trustLevel) {
+        Map<String, String> fingerprints = new HashMap<>(jids.size());
+
+        String[] jidArray = jids.toArray(new String[jids.size()]);
+        for (int start = 0; start < jidArray.length; start += MAX_QUERY_JIDS) {
+            String[] args = Arrays.copyOfRange(jidArray, start,
+                Math.min(start + MAX_QUERY_JIDS, jidArray.length));
+
+            Cursor c = context.getContentResolver().query(MyUsers.Keys.CONTENT_URI,
+                new String[] { MyUsers.Keys.JID, MyUsers.Keys.FINGERPRINT },
+                MyUsers.Keys.TRUST_LEVEL + " >= " + trustLevel + " AND " +
+                    MyUsers.Keys.JID + " IN (" + placeholders(args.length) + ")",
+                args, MyUsers.Keys.TIMESTAMP + " DESC");
+            while (c.moveToNext()) {
+                String jid = c.getString(0);
+                // latest key comes first
+                if (!fingerprints.containsKey(jid))
+                    fingerprints.put(jid, c.getString(1));
+            }
+            c.close();
+        }
+
+        return fingerprints;
+    }
+
+    /**
+     * Returns the fingerprints of the keys we have actual key data for,
+     * for several users at once.
+     * @return a JID-fingerprints map (fingerprints are upper case)
+     */
+    public static Map<String, Set<String>> getAvailableKeys(Context context, Collection<String> jids) {
+        Map<String, Set<String>> keys = new HashMap<>(jids.size());
+
+        String[] jidArray = jids.toArray(new String[jids.size()]);
+        for (int start = 0; start < jidArray.length; start += MAX_QUERY_JIDS) {
+            String[] args = Arrays.copyOfRange(jidArray, start,
+                Math.min(start + MAX_QUERY_JIDS, jidArray.length));
+
+            Cursor c = context.getContentResolver().query(MyUsers.Keys.CONTENT_URI,
+                new String[] { MyUsers.Keys.JID, MyUsers.Keys.FINGERPRINT },
+                MyUsers.Keys.PUBLIC_KEY + " IS NOT NULL AND " +
+                    MyUsers.Keys.JID + " IN (" + placeholders(args.length) + ")",
+                args, null);
+            while (c.moveToNext()) {
+                String jid = c.getString(0);
+                Set<String> fingerprints = keys.get(jid);
+                if (fingerprints == null) {
+                    fingerprints = new HashSet<>();
+                    keys.put(jid, fingerprints);
+                }
+                fingerprints.add(c.getString(1).toUpperCase(Locale.US));
+            }
+            c.close();
+        }
+
+        return keys;
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder b = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                b.append(',');
+            b.append('?');
+        }
+        return b.toString();
+    }
+
     /**
      * Retrieves the latest public key with the minimum given trust level.
      * @param trustLevel the minimum trust level to consider
@@ -151,6 +244,41 @@ public class Keyring {
         return null;
     }
 
+    /**
+     * Retrieves the latest public key with the minimum given trust level,
+     * parsing it only if it wasn't used recently.
+     * @param trustLevel the minimum trust level to consider
+     */
+    public static PGPKeyRingIdentity getPublicKeyIdentity(Context context, String jid, int trustLevel) {
+        PGPKeyRingIdentity identity = null;
+
+        Cursor c = queryLatestWithMinimumTrustLevel(context, jid, trustLevel,
+            MyUsers.Keys.FINGERPRINT, MyUsers.Keys.PUBLIC_KEY);
+        if (c.moveToFirst()) {
+            String fingerprint = c.getString(0);
+            identity = sIdentities.get(fingerprint);
+            if (identity == null) {
+                byte[] keydata = c.getBlob(1);
+                if (keydata != null) {
+                    try {
+                        PGPPublicKeyRing ring = PGP.readPublicKeyring(keydata);
+                        if (ring != null) {
+                            identity = new PGPKeyRingIdentity(ring);
+                            sIdentities.put(fingerprint, identity);
+                        }
+                    }
+                    catch (Exception e) {
+                        // ignored
+                    }
+                }
+            }
+        }
+
+        c.close();
+
+        return identity;
+    }
+
     /**
      * Retrieves the latest public key with the minimum given trust level.
      * @param trustLevel the minimum trust level to consider
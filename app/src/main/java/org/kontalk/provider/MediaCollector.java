@@ -0,0 +1,338 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+
+import org.kontalk.Log;
+import org.kontalk.provider.MyMessages.Media;
+import org.kontalk.util.MediaStorage;
+import org.kontalk.util.ThumbnailStore;
+
+
+/**
+ * Deletes media files that are not referenced by any message anymore,
+ * using the media index kept by {@link MessagesProvider}, and leftovers of
+ * failed transfers (temporary files of uploads and downloads).
+ * Files are deleted only from directories we create media in: media
+ * picked by the user (e.g. from the gallery or the camera) and received
+ * pictures, which are shown in the gallery, are never touched. Unlinked
+ * files are deleted only after a while, in case a new message references
+ * them again (e.g. a forward).
+ * @author Daniele Ricci
+ */
+class MediaCollector {
+    private static final String TAG = MediaCollector.class.getSimpleName();
+
+    /** Minimum time between two runs. */
+    static final long INTERVAL = TimeUnit.DAYS.toMillis(1);
+    /**
+     * Temporary and unreferenced files younger than this are left alone,
+     * they might belong to a message being sent or received.
+     */
+    static final long MIN_AGE = TimeUnit.DAYS.toMillis(1);
+
+    /** Current time in milliseconds, in SQL. */
+    static final String NOW = "CAST(strftime('%s', 'now') AS INTEGER) * 1000";
+
+    /** Links the messages not in the index yet. */
+    static final String LINK_ATTACHMENTS =
+        "INSERT INTO " + MessagesProvider.TABLE_MEDIA + " (path, type, message_id, thread_id, length) " +
+        "SELECT substr(att_local_uri, 8), " + Media.TYPE_ATTACHMENT + ", _id, thread_id, att_length " +
+        "FROM " + MessagesProvider.TABLE_MESSAGES + " m WHERE att_local_uri LIKE 'file://%' AND NOT EXISTS (SELECT 1 FROM " +
+        MessagesProvider.TABLE_MEDIA + " WHERE message_id = m._id AND type = " + Media.TYPE_ATTACHMENT + ")";
+    static final String LINK_PREVIEWS =
+        "INSERT INTO " + MessagesProvider.TABLE_MEDIA + " (path, type, message_id, thread_id) " +
+        "SELECT att_preview_path, " + Media.TYPE_PREVIEW + ", _id, thread_id " +
+        "FROM " + MessagesProvider.TABLE_MESSAGES + " m WHERE att_preview_path IS NOT NULL AND NOT EXISTS (SELECT 1 FROM " +
+        MessagesProvider.TABLE_MEDIA + " WHERE message_id = m._id AND type = " + Media.TYPE_PREVIEW + ")";
+
+    /** Unlinks index rows whose message is gone or references another file. */
+    private static final String UNLINK_STALE =
+        "UPDATE " + MessagesProvider.TABLE_MEDIA + " SET message_id = NULL, unlinked = " + NOW +
+        " WHERE message_id IS NOT NULL AND NOT EXISTS (SELECT 1 FROM " +
+        MessagesProvider.TABLE_MESSAGES + " m WHERE " +
+        "m._id = " + MessagesProvider.TABLE_MEDIA + ".message_id AND (" +
+        "(" + MessagesProvider.TABLE_MEDIA + ".type = " + Media.TYPE_ATTACHMENT + " AND " +
+            "m.att_local_uri LIKE 'file://%' AND substr(m.att_local_uri, 8) = " +
+            MessagesProvider.TABLE_MEDIA + ".path) OR " +
+        "(" + MessagesProvider.TABLE_MEDIA + ".type = " + Media.TYPE_PREVIEW + " AND " +
+            "m.att_preview_path = " + MessagesProvider.TABLE_MEDIA + ".path)))";
+
+    /** Unlinked rows for files still referenced by another message. */
+    private static final String DELETE_UNLINKED_SHARED =
+        "DELETE FROM " + MessagesProvider.TABLE_MEDIA + " WHERE message_id IS NULL AND path IN " +
+        "(SELECT path FROM " + MessagesProvider.TABLE_MEDIA + " WHERE message_id IS NOT NULL)";
+
+    static final class Result {
+        /** Files deleted because no message referenced them. */
+        int unlinked;
+        /** Temporary and unreferenced files deleted. */
+        int leftovers;
+        long bytes;
+        /** Index rows whose length was updated. */
+        int updated;
+
+        @Override
+        public String toString() {
+            return "unlinked=" + unlinked + ", leftovers=" + leftovers +
+                ", bytes=" + bytes + ", updated=" + updated;
+        }
+    }
+
+    private final Context mContext;
+    /** Directories we are allowed to delete files from. */
+    private final List<String> mRoots = new ArrayList<>();
+
+    MediaCollector(Context context) {
+        mContext = context;
+        addRoot(context.getCacheDir());
+        addRoot(context.getFilesDir());
+        for (File dir : MediaStorage.getCollectableDirectories())
+            addRoot(dir);
+    }
+
+    private void addRoot(File dir) {
+        if (dir != null) {
+            try {
+                mRoots.add(dir.getCanonicalPath() + File.separator);
+            }
+            catch (IOException e) {
+                Log.w(TAG, "unable to resolve " + dir, e);
+            }
+        }
+    }
+
+    /** Returns true if the file is in one of our directories. */
+    boolean isCollectable(File file) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        }
+        catch (IOException e) {
+            return false;
+        }
+
+        for (String root : mRoots) {
+            if (path.startsWith(root))
+                return true;
+        }
+        return false;
+    }
+
+    Result collect(SQLiteDatabase db) {
+        Result result = new Result();
+        reconcile(db);
+        deleteUnlinked(db, result);
+        updateLengths(db, result);
+        deleteLeftovers(db, result);
+        return result;
+    }
+
+    /** Brings the index up to date with the messages table. */
+    private void reconcile(SQLiteDatabase db) {
+        db.execSQL(UNLINK_STALE);
+        db.execSQL(LINK_ATTACHMENTS);
+        db.execSQL(LINK_PREVIEWS);
+        db.execSQL(DELETE_UNLINKED_SHARED);
+    }
+
+    private static File getFile(String path, int type) {
+        // attachment paths come from a file URI
+        return new File(type == Media.TYPE_ATTACHMENT ? Uri.decode(path) : path);
+    }
+
+    /**
+     * Deletes the files of rows unlinked for a while, and the rows
+     * themselves. Every file is checked again for references while deleting
+     * its row, so a message inserted in the meantime keeps its file; the
+     * file is deleted only after the row deletion has been committed.
+     */
+    private void deleteUnlinked(SQLiteDatabase db, Result result) {
+        List<String[]> rows = new ArrayList<>();
+        Cursor c = db.rawQuery("SELECT _id, path, type FROM " + MessagesProvider.TABLE_MEDIA +
+            " WHERE message_id IS NULL AND unlinked < ?",
+            new String[] { String.valueOf(System.currentTimeMillis() - MIN_AGE) });
+        try {
+            while (c.moveToNext())
+                rows.add(new String[] { c.getString(0), c.getString(1), c.getString(2) });
+        }
+        finally {
+            c.close();
+        }
+
+        if (rows.size() == 0)
+            return;
+
+        SQLiteStatement linked = db.compileStatement("SELECT COUNT(*) FROM " +
+            MessagesProvider.TABLE_MEDIA + " WHERE path = ? AND message_id IS NOT NULL");
+        SQLiteStatement remove = db.compileStatement("DELETE FROM " +
+            MessagesProvider.TABLE_MEDIA + " WHERE _id = ?");
+        try {
+            for (String[] row : rows) {
+                File file = null;
+                db.beginTransaction();
+                try {
+                    remove.bindString(1, row[0]);
+                    remove.execute();
+
+                    linked.bindString(1, row[1]);
+                    if (linked.simpleQueryForLong() == 0)
+                        file = getFile(row[1], Integer.parseInt(row[2]));
+                    db.setTransactionSuccessful();
+                }
+                finally {
+                    db.endTransaction();
+                }
+
+                if (file != null && isCollectable(file) && delete(file, result))
+                    result.unlinked++;
+            }
+        }
+        finally {
+            linked.close();
+            remove.close();
+        }
+    }
+
+    /** Fills in the length of the files it's not known for (e.g. previews). */
+    private void updateLengths(SQLiteDatabase db, Result result) {
+        List<long[]> lengths = new ArrayList<>();
+        Cursor c = db.rawQuery("SELECT _id, path, type FROM " + MessagesProvider.TABLE_MEDIA +
+            " WHERE message_id IS NOT NULL AND length = 0", null);
+        try {
+            while (c.moveToNext()) {
+                long length = getFile(c.getString(1), c.getInt(2)).length();
+                if (length > 0)
+                    lengths.add(new long[] { c.getLong(0), length });
+            }
+        }
+        finally {
+            c.close();
+        }
+
+        if (lengths.size() > 0) {
+            SQLiteStatement stm = db.compileStatement("UPDATE " +
+                MessagesProvider.TABLE_MEDIA + " SET length = ? WHERE _id = ?");
+            db.beginTransaction();
+            try {
+                for (long[] length : lengths) {
+                    stm.bindLong(1, length[1]);
+                    stm.bindLong(2, length[0]);
+                    stm.execute();
+                }
+                db.setTransactionSuccessful();
+            }
+            finally {
+                db.endTransaction();
+                stm.close();
+            }
+            result.updated = lengths.size();
+        }
+    }
+
+    /**
+     * Deletes temporary files of failed uploads, interrupted downloads and
+     * previews not referenced by any message.
+     */
+    private void deleteLeftovers(SQLiteDatabase db, Result result) {
+        long before = System.currentTimeMillis() - MIN_AGE;
+
+        // file names are compared, paths to the same file might be written differently
+        Set<String> previews = new HashSet<>();
+        Cursor c = db.rawQuery("SELECT path FROM " + MessagesProvider.TABLE_MEDIA +
+            " WHERE message_id IS NOT NULL AND type = " + Media.TYPE_PREVIEW, null);
+        try {
+            while (c.moveToNext())
+                previews.add(new File(c.getString(0)).getName());
+        }
+        finally {
+            c.close();
+        }
+
+        // encrypted uploads and image rotation
+        File[] files = mContext.getCacheDir().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                boolean leftover;
+                if (name.endsWith(".tmp"))
+                    leftover = name.startsWith("media") || name.startsWith("rotation");
+                else
+                    // previews stored before the thumbnail store
+                    leftover = (name.startsWith("image") || name.startsWith("vcard")) &&
+                        !previews.contains(name);
+
+                if (leftover && file.isFile() && file.lastModified() < before && delete(file, result))
+                    result.leftovers++;
+            }
+        }
+
+        files = ThumbnailStore.getInstance(mContext).getDirectory().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!previews.contains(name) && file.lastModified() < before &&
+                        delete(file, result))
+                    result.leftovers++;
+            }
+        }
+
+        // decrypted downloads being renamed
+        for (File dir : MediaStorage.getMediaDirectories()) {
+            deleteLeftovers(dir, ".new", before, result);
+        }
+    }
+
+    private void deleteLeftovers(File dir, String suffix, long before, Result result) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files) {
+            if (file.isDirectory())
+                deleteLeftovers(file, suffix, before, result);
+            else if (file.getName().endsWith(suffix) && file.lastModified() < before &&
+                    delete(file, result))
+                result.leftovers++;
+        }
+    }
+
+    private static boolean delete(File file, Result result) {
+        long length = file.length();
+        if (file.delete()) {
+            result.bytes += length;
+            return true;
+        }
+        return false;
+    }
+
+}
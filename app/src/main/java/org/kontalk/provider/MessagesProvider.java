@@ -19,19 +19,28 @@
 package org.kontalk.provider;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
@@ -39,6 +48,7 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 
 import org.kontalk.BuildConfig;
 import org.kontalk.Log;
@@ -50,11 +60,13 @@ import org.kontalk.message.GroupCommandComponent;
 import org.kontalk.message.TextComponent;
 import org.kontalk.provider.MyMessages.CommonColumns;
 import org.kontalk.provider.MyMessages.Groups;
+import org.kontalk.provider.MyMessages.Media;
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Messages.Fulltext;
 import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.provider.MyMessages.Threads.Conversations;
 import org.kontalk.service.ServerListUpdater;
+import org.kontalk.util.Preferences;
 import org.kontalk.util.SystemUtils;
 
 
@@ -67,12 +79,17 @@ public class MessagesProvider extends ContentProvider {
     private static final String TAG = MessagesProvider.class.getSimpleName();
     public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".messages";
 
-    private static final String TABLE_MESSAGES = "messages";
+    static final String TABLE_MESSAGES = "messages";
     private static final String TABLE_MESSAGES_GROUPS = "messages_groups";
     private static final String TABLE_FULLTEXT = "fulltext";
+    private static final String TABLE_FULLTEXT_BACKFILL = "fulltext_backfill";
     private static final String TABLE_THREADS = "threads";
     private static final String TABLE_GROUPS = "groups";
     private static final String TABLE_GROUP_MEMBERS = "group_members";
+    static final String TABLE_MEDIA = "media";
+
+    /** Number of write requests (insert, update, delete) to this provider. */
+    private static final AtomicLong sWriteCount = new AtomicLong();
 
     private static final String TABLE_THREADS_GROUPS = TABLE_THREADS +
         " LEFT OUTER JOIN " + TABLE_GROUPS + " ON " +
@@ -93,17 +110,41 @@ public class MessagesProvider extends ContentProvider {
     private static final int GROUPS_MEMBERS_ID = 12;
     private static final int FULLTEXT_ID = 13;
     private static final int REQUESTS = 14;
+    private static final int MEDIA_USAGE = 15;
+    private static final int MEDIA_UNIQUE_PREVIEWS = 16;
+
+    /** Maximum number of (most recent) full text matches to rank. */
+    private static final int FULLTEXT_MAX_RANKED = 5000;
+    /** Approximate number of tokens in a search snippet. */
+    private static final int FULLTEXT_SNIPPET_TOKENS = 12;
+    /** Number of message ids processed in a single full text backfill step. */
+    private static final int FULLTEXT_BACKFILL_CHUNK = 1000;
+    /** Delay before resuming the full text backfill on startup. */
+    private static final long FULLTEXT_BACKFILL_START_DELAY = 10000;
+    /** Delay between full text backfill steps. */
+    private static final long FULLTEXT_BACKFILL_DELAY = 200;
+    /** Delay before running the media collector on startup. */
+    private static final long MEDIA_COLLECTOR_START_DELAY = 60000;
+    /** The media collector waits for the database to be idle for this long. */
+    private static final long MEDIA_COLLECTOR_IDLE_DELAY = 30000;
 
     private DatabaseHelper dbHelper;
+    /** Thread running {@link #applyBatch}, if any. */
+    private Thread mBatchThread;
+    /** Notifications collected during a batch. */
+    private Set<Uri> mBatchNotifications;
+    /** An operation in the current batch has failed. */
+    private boolean mBatchFailed;
+    /** The media collector is waiting for the database to be idle. */
+    private volatile boolean mMediaCollectorPending;
     private static final UriMatcher sUriMatcher;
     private static HashMap<String, String> messagesProjectionMap;
     private static HashMap<String, String> threadsProjectionMap;
-    private static HashMap<String, String> fulltextProjectionMap;
     private static HashMap<String, String> groupsMembersProjectionMap;
     private static HashMap<String, String> groupsProjectionMap;
 
     private static class DatabaseHelper extends SQLiteOpenHelper {
-        private static final int DATABASE_VERSION = 11;
+        private static final int DATABASE_VERSION = 14;
         private static final String DATABASE_NAME = "messages.db";
 
         private static final String _SCHEMA_MESSAGES = "(" +
@@ -136,6 +177,8 @@ public class MessagesProvider extends ContentProvider {
             "att_compress INTEGER NOT NULL DEFAULT 0," +
             "att_encrypted INTEGER NOT NULL DEFAULT 0," +
             "att_security_flags INTEGER NOT NULL DEFAULT 0," +
+            // media metadata, extracted when the media is stored (-1 if not available)
+            "att_duration INTEGER," +
 
             // TODO geo_lat, geo_lon, ...
 
@@ -214,13 +257,63 @@ public class MessagesProvider extends ContentProvider {
             TABLE_THREADS + "." + Threads._ID + "=" +
             TABLE_GROUPS + "." + Groups.THREAD_ID;
 
-        /** This table will contain every text message to speed-up full text searches. */
+        /**
+         * Full text index of text messages. Content is not duplicated: it's
+         * read from the messages table when needed (e.g. for snippets).
+         */
         private static final String SCHEMA_FULLTEXT =
-            "CREATE VIRTUAL TABLE " + TABLE_FULLTEXT + " USING fts3 (" +
-            "thread_id INTEGER NOT NULL, " +
-            "content TEXT" +
+            "CREATE VIRTUAL TABLE " + TABLE_FULLTEXT + " USING fts4 (" +
+            "content=\"" + TABLE_MESSAGES + "\", " +
+            Messages.BODY_CONTENT +
             ")";
 
+        /**
+         * Backfill state for the full text index: messages with an id lower
+         * or equal than next_id are not indexed yet.
+         */
+        private static final String SCHEMA_FULLTEXT_BACKFILL =
+            "CREATE TABLE " + TABLE_FULLTEXT_BACKFILL + " (next_id INTEGER NOT NULL)";
+
+        /** Condition for a message row to contain indexable text. */
+        private static final String FULLTEXT_CONTENT =
+            "%1$s." + Messages.THREAD_ID + " <> " + Messages.NO_THREAD + " AND " +
+            "%1$s." + Messages.BODY_MIME + " = '" + TextComponent.MIME_TYPE + "' AND " +
+            "%1$s." + Messages.ENCRYPTED + " = 0 AND " +
+            "%1$s." + Messages.BODY_CONTENT + " IS NOT NULL";
+
+        /** Condition for a message row to be (or to be going to be) in the full text index. */
+        private static final String FULLTEXT_INDEXABLE = FULLTEXT_CONTENT + " AND " +
+            "%1$s." + Messages._ID + " > (SELECT next_id FROM " + TABLE_FULLTEXT_BACKFILL + ")";
+
+        private static final String FULLTEXT_INSERT_NEW =
+            "INSERT INTO " + TABLE_FULLTEXT + " (docid, " + Messages.BODY_CONTENT + ") " +
+            "VALUES (new." + Messages._ID + ", new." + Messages.BODY_CONTENT + ")";
+        private static final String FULLTEXT_DELETE_OLD =
+            "INSERT INTO " + TABLE_FULLTEXT + " (" + TABLE_FULLTEXT + ", docid, " + Messages.BODY_CONTENT + ") " +
+            "VALUES ('delete', old." + Messages._ID + ", old." + Messages.BODY_CONTENT + ")";
+
+        /** These triggers will keep the full text index in sync with the messages table. */
+        private static final String TRIGGER_FULLTEXT_INSERT =
+            "CREATE TRIGGER fulltext_on_insert AFTER INSERT ON " + TABLE_MESSAGES +
+            " WHEN " + String.format(FULLTEXT_INDEXABLE, "new") +
+            " BEGIN " + FULLTEXT_INSERT_NEW + "; END";
+        private static final String TRIGGER_FULLTEXT_BEFORE_UPDATE =
+            "CREATE TRIGGER fulltext_before_update BEFORE UPDATE OF " +
+            Messages.THREAD_ID + ", " + Messages.BODY_MIME + ", " + Messages.BODY_CONTENT + ", " +
+            Messages.ENCRYPTED + " ON " + TABLE_MESSAGES +
+            " WHEN " + String.format(FULLTEXT_INDEXABLE, "old") +
+            " BEGIN " + FULLTEXT_DELETE_OLD + "; END";
+        private static final String TRIGGER_FULLTEXT_AFTER_UPDATE =
+            "CREATE TRIGGER fulltext_after_update AFTER UPDATE OF " +
+            Messages.THREAD_ID + ", " + Messages.BODY_MIME + ", " + Messages.BODY_CONTENT + ", " +
+            Messages.ENCRYPTED + " ON " + TABLE_MESSAGES +
+            " WHEN " + String.format(FULLTEXT_INDEXABLE, "new") +
+            " BEGIN " + FULLTEXT_INSERT_NEW + "; END";
+        private static final String TRIGGER_FULLTEXT_DELETE =
+            "CREATE TRIGGER fulltext_on_delete BEFORE DELETE ON " + TABLE_MESSAGES +
+            " WHEN " + String.format(FULLTEXT_INDEXABLE, "old") +
+            " BEGIN " + FULLTEXT_DELETE_OLD + "; END";
+
         private static final String SCHEMA_MESSAGES_INDEX =
             "CREATE UNIQUE INDEX IF NOT EXISTS unique_message ON " + TABLE_MESSAGES +
             " (msg_id, direction)";
@@ -312,6 +405,79 @@ public class MessagesProvider extends ContentProvider {
             DELETE_GROUP_MEMBERS      + ";" +
             "END";
 
+        /**
+         * Index of the media files referenced by messages. Rows of deleted
+         * messages (or of files not referenced anymore) are unlinked, that
+         * is message_id is set to null, and left for the media collector.
+         */
+        private static final String SCHEMA_MEDIA =
+            "CREATE TABLE " + TABLE_MEDIA + " (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            "path TEXT NOT NULL, " +
+            "type INTEGER NOT NULL, " +
+            "message_id INTEGER, " +
+            "thread_id INTEGER, " +
+            "length INTEGER NOT NULL DEFAULT 0, " +
+            "unlinked INTEGER" +
+            ")";
+
+        private static final String SCHEMA_MEDIA_MESSAGE_IDX =
+            "CREATE INDEX IF NOT EXISTS media_message ON " + TABLE_MEDIA + " (message_id)";
+        private static final String SCHEMA_MEDIA_THREAD_IDX =
+            "CREATE INDEX IF NOT EXISTS media_thread ON " + TABLE_MEDIA + " (thread_id)";
+        private static final String SCHEMA_MEDIA_PATH_IDX =
+            "CREATE INDEX IF NOT EXISTS media_path ON " + TABLE_MEDIA + " (path)";
+
+        /** Only files are indexed for attachments (the path is what follows file://). */
+        private static final String MEDIA_INSERT_ATTACHMENT_NEW =
+            "INSERT INTO " + TABLE_MEDIA + " (path, type, message_id, thread_id, length) " +
+            "SELECT substr(new.att_local_uri, 8), " + Media.TYPE_ATTACHMENT + ", new._id, new.thread_id, new.att_length " +
+            "WHERE new.att_local_uri LIKE 'file://%' AND NOT EXISTS (SELECT 1 FROM " + TABLE_MEDIA +
+            " WHERE message_id = new._id AND type = " + Media.TYPE_ATTACHMENT + ")";
+        private static final String MEDIA_INSERT_PREVIEW_NEW =
+            "INSERT INTO " + TABLE_MEDIA + " (path, type, message_id, thread_id) " +
+            "SELECT new.att_preview_path, " + Media.TYPE_PREVIEW + ", new._id, new.thread_id " +
+            "WHERE new.att_preview_path IS NOT NULL AND NOT EXISTS (SELECT 1 FROM " + TABLE_MEDIA +
+            " WHERE message_id = new._id AND type = " + Media.TYPE_PREVIEW + ")";
+        private static final String MEDIA_UNLINK_CHANGED =
+            "UPDATE " + TABLE_MEDIA + " SET message_id = NULL, unlinked = " + MediaCollector.NOW +
+            " WHERE message_id = old._id AND (" +
+            "(type = " + Media.TYPE_ATTACHMENT + " AND (new.att_local_uri IS NULL OR " +
+                "new.att_local_uri NOT LIKE 'file://%' OR path <> substr(new.att_local_uri, 8))) OR " +
+            "(type = " + Media.TYPE_PREVIEW + " AND (new.att_preview_path IS NULL OR " +
+                "path <> new.att_preview_path)))";
+        private static final String MEDIA_UPDATE_LINKED =
+            "UPDATE " + TABLE_MEDIA + " SET thread_id = new.thread_id, length = CASE type " +
+            "WHEN " + Media.TYPE_ATTACHMENT + " THEN new.att_length ELSE length END " +
+            "WHERE message_id = new._id";
+        private static final String MEDIA_UNLINK_OLD =
+            "UPDATE " + TABLE_MEDIA + " SET message_id = NULL, unlinked = " + MediaCollector.NOW +
+            " WHERE message_id = old._id";
+
+        /** These triggers will keep the media index in sync with the messages table. */
+        private static final String TRIGGER_MEDIA_INSERT =
+            "CREATE TRIGGER media_on_insert AFTER INSERT ON " + TABLE_MESSAGES +
+            " BEGIN " +
+            MEDIA_INSERT_ATTACHMENT_NEW + ";" +
+            MEDIA_INSERT_PREVIEW_NEW    + ";" +
+            "END";
+        private static final String TRIGGER_MEDIA_UPDATE =
+            "CREATE TRIGGER media_on_update AFTER UPDATE OF " +
+            Messages.THREAD_ID + ", " + Messages.ATTACHMENT_LOCAL_URI + ", " +
+            Messages.ATTACHMENT_PREVIEW_PATH + ", " + Messages.ATTACHMENT_LENGTH +
+            " ON " + TABLE_MESSAGES +
+            " BEGIN " +
+            MEDIA_UNLINK_CHANGED        + ";" +
+            MEDIA_UPDATE_LINKED         + ";" +
+            MEDIA_INSERT_ATTACHMENT_NEW + ";" +
+            MEDIA_INSERT_PREVIEW_NEW    + ";" +
+            "END";
+        private static final String TRIGGER_MEDIA_DELETE =
+            "CREATE TRIGGER media_on_delete AFTER DELETE ON " + TABLE_MESSAGES +
+            " BEGIN " +
+            MEDIA_UNLINK_OLD            + ";" +
+            "END";
+
         private static final String[] SCHEMA_UPGRADE_V4 = {
             // create temporary messages tables without msg_id UNIQUE constraint
             "CREATE TABLE " + TABLE_MESSAGES + "_new " + _SCHEMA_MESSAGES,
@@ -322,7 +488,7 @@ public class MessagesProvider extends ContentProvider {
             "_id, thread_id, msg_id, SUBSTR(peer, 1, ?) || '@' || ?, direction, unread, 0, timestamp, status_changed, status, 'text/plain', " +
             "CASE WHEN mime <> 'text/plain' THEN NULL ELSE content END, "+
             "CASE WHEN mime <> 'text/plain' THEN 0 ELSE length(content) END, " +
-            "CASE WHEN mime <> 'text/plain' THEN mime ELSE NULL END, preview_path, fetch_url, local_uri, length, 0, 0, 0, encrypted, " +
+            "CASE WHEN mime <> 'text/plain' THEN mime ELSE NULL END, preview_path, fetch_url, local_uri, length, 0, 0, 0, NULL, NULL, NULL, encrypted, " +
             "CASE WHEN encrypt_key IS NOT NULL THEN " + Coder.SECURITY_LEGACY_ENCRYPTED + " ELSE " + Coder.SECURITY_CLEARTEXT + " END, "+
             "strftime('%s', server_timestamp)*1000" +
                 " FROM " + TABLE_MESSAGES + " WHERE encrypted = 0",
@@ -365,11 +531,45 @@ public class MessagesProvider extends ContentProvider {
             "ALTER TABLE threads ADD COLUMN sticky INTEGER NOT NULL DEFAULT 0",
         };
 
+        private static final String[] SCHEMA_UPGRADE_V11 = {
+            "DROP TABLE " + TABLE_FULLTEXT,
+            SCHEMA_FULLTEXT,
+            SCHEMA_FULLTEXT_BACKFILL,
+            // existing messages will be indexed by the backfill job
+            "INSERT INTO " + TABLE_FULLTEXT_BACKFILL + " SELECT IFNULL(MAX(" +
+                Messages._ID + "), 0) FROM " + TABLE_MESSAGES,
+            TRIGGER_FULLTEXT_INSERT,
+            TRIGGER_FULLTEXT_BEFORE_UPDATE,
+            TRIGGER_FULLTEXT_AFTER_UPDATE,
+            TRIGGER_FULLTEXT_DELETE,
+        };
+
+        private static final String[] SCHEMA_UPGRADE_V12 = {
+            "ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN att_duration INTEGER",
+            "DROP VIEW " + TABLE_MESSAGES_GROUPS,
+            SCHEMA_MESSAGES_GROUPS,
+        };
+
+        private static final String[] SCHEMA_UPGRADE_V13 = {
+            SCHEMA_MEDIA,
+            SCHEMA_MEDIA_MESSAGE_IDX,
+            SCHEMA_MEDIA_THREAD_IDX,
+            SCHEMA_MEDIA_PATH_IDX,
+            // index media of existing messages
+            MediaCollector.LINK_ATTACHMENTS,
+            MediaCollector.LINK_PREVIEWS,
+            TRIGGER_MEDIA_INSERT,
+            TRIGGER_MEDIA_UPDATE,
+            TRIGGER_MEDIA_DELETE,
+        };
+
         private Context mContext;
+        private final DatabaseTuning mTuning;
 
         protected DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
             mContext = context;
+            mTuning = new DatabaseTuning(context, this, DATABASE_NAME);
         }
 
         @Override
@@ -380,12 +580,25 @@ public class MessagesProvider extends ContentProvider {
             db.execSQL(SCHEMA_GROUPS_MEMBERS);
             db.execSQL(SCHEMA_MESSAGES_GROUPS);
             db.execSQL(SCHEMA_FULLTEXT);
+            db.execSQL(SCHEMA_FULLTEXT_BACKFILL);
+            db.execSQL("INSERT INTO " + TABLE_FULLTEXT_BACKFILL + " VALUES (0)");
             db.execSQL(SCHEMA_MESSAGES_INDEX);
             db.execSQL(SCHEMA_MESSAGES_TIMESTAMP_IDX);
             db.execSQL(TRIGGER_THREADS_INSERT_COUNT);
             db.execSQL(TRIGGER_THREADS_UPDATE_COUNT);
             db.execSQL(TRIGGER_THREADS_DELETE_COUNT);
             db.execSQL(TRIGGER_GROUPS_DELETE_MEMBERS);
+            db.execSQL(TRIGGER_FULLTEXT_INSERT);
+            db.execSQL(TRIGGER_FULLTEXT_BEFORE_UPDATE);
+            db.execSQL(TRIGGER_FULLTEXT_AFTER_UPDATE);
+            db.execSQL(TRIGGER_FULLTEXT_DELETE);
+            db.execSQL(SCHEMA_MEDIA);
+            db.execSQL(SCHEMA_MEDIA_MESSAGE_IDX);
+            db.execSQL(SCHEMA_MEDIA_THREAD_IDX);
+            db.execSQL(SCHEMA_MEDIA_PATH_IDX);
+            db.execSQL(TRIGGER_MEDIA_INSERT);
+            db.execSQL(TRIGGER_MEDIA_UPDATE);
+            db.execSQL(TRIGGER_MEDIA_DELETE);
         }
 
         @Override
@@ -395,7 +608,11 @@ public class MessagesProvider extends ContentProvider {
                 throw new SQLException("database can only be upgraded from version 4 or versions greather than 7");
             }
 
+            // the version 4 upgrade creates the messages table with all columns
+            boolean recreated = false;
+
             if (oldVersion == 4) {
+                recreated = true;
                 // take the first server from the builtin list
                 ServerList list = ServerListUpdater.getCurrentList(mContext);
                 EndpointServer server = list.get(0);
@@ -436,13 +653,59 @@ public class MessagesProvider extends ContentProvider {
                 for (String sql : SCHEMA_UPGRADE_V10) {
                     db.execSQL(sql);
                 }
+                // fallback to next upgrade
+                oldVersion = 11;
             }
+
+            if (oldVersion == 11) {
+                for (String sql : SCHEMA_UPGRADE_V11) {
+                    db.execSQL(sql);
+                }
+                // fallback to next upgrade
+                oldVersion = 12;
+            }
+
+            if (oldVersion == 12) {
+                if (!recreated) {
+                    for (String sql : SCHEMA_UPGRADE_V12) {
+                        db.execSQL(sql);
+                    }
+                }
+                // fallback to next upgrade
+                oldVersion = 13;
+            }
+
+            if (oldVersion == 13) {
+                for (String sql : SCHEMA_UPGRADE_V13) {
+                    db.execSQL(sql);
+                }
+            }
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            mTuning.onOpen(db);
+        }
+
+        public DatabaseTuning getTuning() {
+            return mTuning;
+        }
+
+        @Override
+        public synchronized void close() {
+            mTuning.cancel();
+            super.close();
         }
     }
 
     @Override
     public boolean onCreate() {
         dbHelper = new DatabaseHelper(getContext());
+        // resume any pending fulltext backfill when things have settled down
+        scheduleFulltextBackfill(FULLTEXT_BACKFILL_START_DELAY);
+        // collect unused media when the database is idle (if it's time to)
+        mMediaCollectorPending = true;
+        DatabaseTuning.post(mMediaCollector, MEDIA_COLLECTOR_START_DELAY);
         return true;
     }
 
@@ -455,6 +718,7 @@ public class MessagesProvider extends ContentProvider {
     public Cursor query(@NonNull Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
         SQLitePagedQueryBuilder qb = new SQLitePagedQueryBuilder();
+        String groupBy = null;
 
         switch (sUriMatcher.match(uri)) {
             case MESSAGES:
@@ -494,11 +758,18 @@ public class MessagesProvider extends ContentProvider {
             case CONVERSATIONS_ID:
                 // page row count
                 int count = 0;
-                // last ID (scrolling cursor)
-                int lastId = 0;
+                // last ID (scrolling cursor, older messages)
+                long lastId = 0;
+                // first ID (scrolling cursor, newer messages)
+                long firstId = -1;
 
                 try {
-                    lastId = Integer.parseInt(uri.getQueryParameter("last"));
+                    lastId = Long.parseLong(uri.getQueryParameter("last"));
+                }
+                catch (Exception ignored) {
+                }
+                try {
+                    firstId = Long.parseLong(uri.getQueryParameter("after"));
                 }
                 catch (Exception ignored) {
                 }
@@ -509,7 +780,10 @@ public class MessagesProvider extends ContentProvider {
                 }
 
                 // setup page if requested
-                if (count > 0) {
+                if (firstId >= 0) {
+                    qb.setPageAfter(count, Messages._ID, firstId);
+                }
+                else if (count > 0) {
                     qb.setPage(count, Messages._ID, lastId);
                 }
 
@@ -519,11 +793,8 @@ public class MessagesProvider extends ContentProvider {
                 break;
 
             case FULLTEXT_ID:
-                qb.setTables(TABLE_FULLTEXT);
-                qb.setProjectionMap(fulltextProjectionMap);
-                qb.appendWhere(Fulltext.CONTENT + " MATCH ?");
-                selectionArgs = new String[] { uri.getQueryParameter("pattern") };
-                break;
+                // projection, selection and sort order are not supported
+                return queryFulltext(uri);
 
             case GROUPS_ID:
                 qb.setTables(TABLE_GROUPS);
@@ -554,19 +825,132 @@ public class MessagesProvider extends ContentProvider {
                 }
                 break;
 
+            case MEDIA_USAGE:
+                // projection is not supported: usage is always grouped by thread
+                qb.setTables(TABLE_MEDIA);
+                qb.appendWhere(Media.MESSAGE_ID + " IS NOT NULL");
+                projection = new String[] {
+                    Media.THREAD_ID,
+                    "COUNT(*) AS " + Media.COUNT,
+                    "SUM(" + Media.LENGTH + ") AS " + Media.LENGTH,
+                };
+                groupBy = Media.THREAD_ID;
+                break;
+
+            case MEDIA_UNIQUE_PREVIEWS:
+                // projection is not supported: only paths are returned
+                qb.setTables(TABLE_MEDIA + " p");
+                qb.appendWhere("p." + Media.TYPE + " = " + Media.TYPE_PREVIEW + " AND p." +
+                    Media.MESSAGE_ID + " IS NOT NULL AND NOT EXISTS (SELECT 1 FROM " +
+                    TABLE_MEDIA + " a WHERE a." + Media.MESSAGE_ID + " = p." + Media.MESSAGE_ID +
+                    " AND a." + Media.TYPE + " = " + Media.TYPE_ATTACHMENT + ")");
+                projection = new String[] { "p." + Media.PATH + " AS " + Media.PATH };
+                break;
+
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
         SQLiteDatabase db = dbHelper.getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+        Cursor c = qb.query(db, projection, selection, selectionArgs, groupBy, null, sortOrder);
 
         c.setNotificationUri(getContext().getContentResolver(), uri);
         return c;
     }
 
+    /**
+     * Full text search. The most recent matches are ranked by relevance and
+     * the requested page is returned with highlighted snippets.
+     */
+    private Cursor queryFulltext(Uri uri) {
+        String pattern = uri.getQueryParameter(Fulltext.QUERY_PATTERN);
+        int offset = parseIntParameter(uri, Fulltext.QUERY_OFFSET, 0);
+        int count = parseIntParameter(uri, Fulltext.QUERY_COUNT, 0);
+
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+
+        long[] ids;
+        double[] scores;
+        if (TextUtils.isEmpty(pattern)) {
+            ids = new long[0];
+            scores = new double[0];
+        }
+        else {
+            Cursor c = db.rawQuery("SELECT docid, matchinfo(" + TABLE_FULLTEXT + ", '" +
+                FulltextScorer.MATCHINFO_FORMAT + "') FROM " + TABLE_FULLTEXT +
+                " WHERE " + TABLE_FULLTEXT + " MATCH ? ORDER BY docid DESC LIMIT " +
+                FULLTEXT_MAX_RANKED, new String[] { pattern });
+            try {
+                int num = c.getCount();
+                ids = new long[num];
+                scores = new double[num];
+                for (int i = 0; c.moveToNext(); i++) {
+                    ids[i] = c.getLong(0);
+                    scores[i] = FulltextScorer.score(c.getBlob(1));
+                }
+            }
+            finally {
+                c.close();
+            }
+        }
+
+        long[] page = FulltextScorer.page(ids, scores, offset, count);
+
+        MatrixCursor result = new MatrixCursor(new String[] {
+            Messages._ID, Messages.THREAD_ID, Fulltext.SNIPPET
+        }, page.length);
+
+        if (page.length > 0) {
+            StringBuilder in = new StringBuilder();
+            for (long id : page) {
+                if (in.length() > 0)
+                    in.append(',');
+                in.append(id);
+            }
+
+            Cursor rows = db.rawQuery("SELECT " + TABLE_MESSAGES + "." + Messages._ID + ", " +
+                TABLE_MESSAGES + "." + Messages.THREAD_ID + ", " +
+                "snippet(" + TABLE_FULLTEXT + ", '" + Fulltext.SNIPPET_START + "', '" +
+                Fulltext.SNIPPET_END + "', '\u2026', -1, " + FULLTEXT_SNIPPET_TOKENS + ")" +
+                " FROM " + TABLE_FULLTEXT + " JOIN " + TABLE_MESSAGES + " ON " +
+                TABLE_MESSAGES + "." + Messages._ID + " = " + TABLE_FULLTEXT + ".docid" +
+                " WHERE " + TABLE_FULLTEXT + " MATCH ? AND " + TABLE_FULLTEXT + ".docid IN (" +
+                in + ")", new String[] { pattern });
+
+            try {
+                // rows are returned in the ranking order
+                Map<Long, Object[]> found = new HashMap<>(page.length);
+                while (rows.moveToNext()) {
+                    long id = rows.getLong(0);
+                    found.put(id, new Object[] { id, rows.getLong(1), rows.getString(2) });
+                }
+                for (long id : page) {
+                    Object[] row = found.get(id);
+                    if (row != null)
+                        result.addRow(row);
+                }
+            }
+            finally {
+                rows.close();
+            }
+        }
+
+        result.setNotificationUri(getContext().getContentResolver(), uri);
+        return result;
+    }
+
+    private static int parseIntParameter(Uri uri, String name, int defaultValue) {
+        try {
+            return Integer.parseInt(uri.getQueryParameter(name));
+        }
+        catch (Exception e) {
+            return defaultValue;
+        }
+    }
+
     @Override
     public synchronized Uri insert(@NonNull Uri uri, ContentValues initialValues) {
+        sWriteCount.incrementAndGet();
         if (initialValues == null)
             throw new IllegalArgumentException("No data");
 
@@ -597,10 +981,13 @@ public class MessagesProvider extends ContentProvider {
                 case GROUPS_MEMBERS:
                     // insert members into group
                     String groupJid = uri.getPathSegments().get(1);
-                    insertGroupMembers(db, groupJid, values);
+                    if (insertGroupMembers(db, groupJid, values))
+                        notifications.add(uri);
                     success = setTransactionSuccessful(db);
-                    // no uri needed
-                    return null;
+                    // batch operations need a uri
+                    return uri.buildUpon()
+                        .appendPath(values.getAsString(Groups.PEER))
+                        .build();
             }
 
             // we need to know if there previously was a pending request
@@ -672,17 +1059,7 @@ public class MessagesProvider extends ContentProvider {
             */
 
             if (rowId > 0) {
-                if (threadId != Messages.NO_THREAD) {
-                    // update fulltext table
-                    byte[] content = values.getAsByteArray(Messages.BODY_CONTENT);
-                    String mime = values.getAsString(Messages.BODY_MIME);
-                    Boolean encrypted = values.getAsBoolean(Messages.ENCRYPTED);
-                    if (content != null && content.length > 0 && TextComponent.MIME_TYPE.equals(mime) &&
-                            (encrypted == null || !encrypted)) {
-                        updateFulltext(db, rowId, threadId, content);
-                    }
-                }
-
+                // fulltext index is updated by triggers
                 Uri msgUri = ContentUris.withAppendedId(uri, rowId);
                 notifications.add(msgUri);
 
@@ -701,9 +1078,7 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             endTransaction(db, success);
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            notifyChange(notifications);
         }
     }
 
@@ -719,15 +1094,15 @@ public class MessagesProvider extends ContentProvider {
         db.insertOrThrow(TABLE_GROUPS, null, values);
     }
 
-    private void insertGroupMembers(SQLiteDatabase db, String groupJid, ContentValues values) {
-        // TODO shouldn't we notify someone?
-
+    private boolean insertGroupMembers(SQLiteDatabase db, String groupJid, ContentValues values) {
         try {
             values.put(Groups.GROUP_JID, groupJid);
             db.insertOrThrow(TABLE_GROUP_MEMBERS, null, values);
+            return true;
         }
         catch (SQLiteConstraintException e) {
             // just ignore dups - it doesn't really matter
+            return false;
         }
     }
 
@@ -896,6 +1271,7 @@ public class MessagesProvider extends ContentProvider {
 
     @Override
     public synchronized int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        sWriteCount.incrementAndGet();
         String table;
         String where;
         String[] args;
@@ -996,6 +1372,13 @@ public class MessagesProvider extends ContentProvider {
                 break;
             }
 
+            case FULLTEXT_ID: {
+                // the only supported update is a complete rebuild
+                if (Boolean.parseBoolean(uri.getQueryParameter(Fulltext.REBUILD)))
+                    rebuildFulltext();
+                return 0;
+            }
+
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -1020,8 +1403,7 @@ public class MessagesProvider extends ContentProvider {
             // condition not working any more.
             String[] msgIdList = null;
             if (table.equals(TABLE_MESSAGES)) {
-                // preserve a list of the matching messages for notification and
-                // fulltext update later
+                // preserve a list of the matching messages for notification
                 Cursor old = db.query(TABLE_MESSAGES, new String[] { Messages._ID },
                         where, args, null, null, null);
                 msgIdList = new String[old.getCount()];
@@ -1045,21 +1427,8 @@ public class MessagesProvider extends ContentProvider {
                 notifications.add(uri);
 
                 if (table.equals(TABLE_MESSAGES)) {
-                    // update fulltext only if content actually changed
-                    boolean doUpdateFulltext;
-                    String[] projection;
-
-                    byte[] oldContent = values.getAsByteArray(Messages.BODY_CONTENT);
-                    if (oldContent != null) {
-                        doUpdateFulltext = true;
-                        projection = new String[] { Messages.THREAD_ID, Messages._ID,
-                                Messages.DIRECTION, Messages.ENCRYPTED,
-                                Messages.BODY_CONTENT };
-                    }
-                    else {
-                        doUpdateFulltext = false;
-                        projection = new String[] { Messages.THREAD_ID };
-                    }
+                    // fulltext index is updated by triggers
+                    String[] projection = new String[] { Messages.THREAD_ID };
 
                     // build new IN where condition
                     if (msgIdList.length > 0) {
@@ -1074,14 +1443,6 @@ public class MessagesProvider extends ContentProvider {
                         while (c.moveToNext()) {
                             long threadId = c.getLong(0);
                             updateThreadInfo(db, threadId, notifications);
-
-                            // update fulltext if necessary
-                            if (doUpdateFulltext) {
-                                int direction = c.getInt(2);
-                                int encrypted = c.getInt(3);
-                                if (direction != Messages.DIRECTION_IN || encrypted == 0)
-                                    updateFulltext(db, c.getLong(1), threadId, c.getBlob(4));
-                            }
                         }
 
                         c.close();
@@ -1107,12 +1468,107 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             endTransaction(db, success);
-            if (notifications != null) {
-                ContentResolver cr = getContext().getContentResolver();
-                for (Uri nuri : notifications)
-                    cr.notifyChange(nuri, null);
+            if (notifications != null)
+                notifyChange(notifications);
+        }
+    }
+
+    /**
+     * Drops and recreates the fulltext index. Messages with an id up to
+     * nextId will be indexed by the backfill job.
+     */
+    private void resetFulltext(SQLiteDatabase db, long nextId) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_FULLTEXT);
+        db.execSQL(DatabaseHelper.SCHEMA_FULLTEXT);
+        setFulltextBackfill(db, nextId);
+    }
+
+    private void setFulltextBackfill(SQLiteDatabase db, long nextId) {
+        db.execSQL("UPDATE " + TABLE_FULLTEXT_BACKFILL + " SET next_id = " + nextId);
+    }
+
+    /** Rebuilds the whole fulltext index in background. */
+    private void rebuildFulltext() {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean success = false;
+        try {
+            beginTransaction(db);
+            resetFulltext(db, Long.MAX_VALUE);
+            setFulltextBackfill(db, DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" +
+                Messages._ID + "), 0) FROM " + TABLE_MESSAGES, null));
+            success = setTransactionSuccessful(db);
+        }
+        finally {
+            endTransaction(db, success);
+        }
+        scheduleFulltextBackfill(0);
+    }
+
+    private final Runnable mFulltextBackfill = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                if (backfillFulltext())
+                    scheduleFulltextBackfill(FULLTEXT_BACKFILL_DELAY);
+            }
+            catch (SQLException e) {
+                Log.w(TAG, "fulltext backfill failed", e);
+            }
+        }
+    };
+
+    private final Runnable mMediaCollector = new Runnable() {
+        @Override
+        public void run() {
+            mMediaCollectorPending = false;
+            long now = System.currentTimeMillis();
+            if (now - Preferences.getLastMediaCollect() < MediaCollector.INTERVAL)
+                return;
+
+            try {
+                MediaCollector.Result result = new MediaCollector(getContext())
+                    .collect(dbHelper.getWritableDatabase());
+                Preferences.setLastMediaCollect(now);
+                Log.d(TAG, "media collector: " + result);
+            }
+            catch (Exception e) {
+                // database might have been closed in the meantime
+                Log.w(TAG, "media collector failed", e);
             }
         }
+    };
+
+    private void scheduleFulltextBackfill(long delay) {
+        DatabaseTuning.post(mFulltextBackfill, delay);
+    }
+
+    /**
+     * Indexes a chunk of the messages not indexed yet, most recent first.
+     * @return true if there is more work to do
+     */
+    boolean backfillFulltext() {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean success = false;
+        try {
+            beginTransaction(db);
+            long nextId = DatabaseUtils.longForQuery(db, "SELECT next_id FROM " +
+                TABLE_FULLTEXT_BACKFILL, null);
+            if (nextId <= 0)
+                return false;
+
+            long lowId = Math.max(0, nextId - FULLTEXT_BACKFILL_CHUNK);
+            db.execSQL("INSERT INTO " + TABLE_FULLTEXT + " (docid, " + Messages.BODY_CONTENT + ") " +
+                "SELECT " + Messages._ID + ", " + Messages.BODY_CONTENT + " FROM " + TABLE_MESSAGES +
+                " WHERE " + Messages._ID + " > " + lowId + " AND " + Messages._ID + " <= " + nextId +
+                " AND " + String.format(DatabaseHelper.FULLTEXT_CONTENT, TABLE_MESSAGES));
+            setFulltextBackfill(db, lowId);
+
+            success = setTransactionSuccessful(db);
+            return lowId > 0;
+        }
+        finally {
+            endTransaction(db, success);
+        }
     }
 
     /** Updates group status pending flags. */
@@ -1120,19 +1576,9 @@ public class MessagesProvider extends ContentProvider {
         db.execSQL("UPDATE " + TABLE_GROUP_MEMBERS + " SET pending = pending & ~("+flags+") WHERE " + where, args);
     }
 
-    private void updateFulltext(SQLiteDatabase db, long id, long threadId, byte[] content) {
-        // use the binary content converted to string
-        String text = new String(content);
-
-        ContentValues fulltext = new ContentValues();
-        fulltext.put(Fulltext._ID, id);
-        fulltext.put(Fulltext.THREAD_ID, threadId);
-        fulltext.put(Fulltext.CONTENT, text);
-        db.replace(TABLE_FULLTEXT, null, fulltext);
-    }
-
     @Override
     public synchronized int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+        sWriteCount.incrementAndGet();
         String table;
         String where;
         String[] args;
@@ -1247,9 +1693,10 @@ public class MessagesProvider extends ContentProvider {
                     beginTransaction(db);
                     // rows count will be conversations
                     num = db.delete(TABLE_THREADS, null, null);
+                    // recreate the fulltext index instead of deleting row by row
+                    resetFulltext(db, Long.MAX_VALUE);
                     db.delete(TABLE_MESSAGES, null, null);
-                    // update fulltext
-                    db.delete(TABLE_FULLTEXT, null, null);
+                    setFulltextBackfill(db, 0);
                     if (!keepGroup) {
                         // delete groups (members will cascade)
                         db.delete(TABLE_GROUPS, null, null);
@@ -1286,25 +1733,16 @@ public class MessagesProvider extends ContentProvider {
 
             long threadId = -1;
             if (table.equals(TABLE_MESSAGES)) {
-                // retrieve the thread id for later use by updateThreadInfo(), and
-                // also update fulltext table
+                // retrieve the thread id for later use by updateThreadInfo()
+                // fulltext index is updated by triggers
                 Cursor c = db.query(TABLE_MESSAGES, new String[] {
                         Messages.THREAD_ID,
-                        Messages._ID,
-                        Messages.DIRECTION,
-                        Messages.ENCRYPTED
                     },
                     where, args, null, null, null);
                 if (c != null) {
                     while (c.moveToNext()) {
                         // FIXME this way we'll only get one threadId...
                         threadId = c.getLong(0);
-
-                        // update fulltext
-                        int direction = c.getInt(2);
-                        int encrypted = c.getInt(3);
-                        if (direction != Messages.DIRECTION_IN || encrypted == 0)
-                            db.delete(TABLE_FULLTEXT, Fulltext._ID + " = " + c.getLong(1), null);
                     }
 
                     c.close();
@@ -1326,9 +1764,7 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             endTransaction(db, success);
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            notifyChange(notifications);
         }
 
         return rows;
@@ -1373,8 +1809,7 @@ public class MessagesProvider extends ContentProvider {
                     // delete group if requested
                     num += db.delete(TABLE_GROUPS, Groups.THREAD_ID + " = " + threadId, null);
 
-                // update fulltext
-                db.delete(TABLE_FULLTEXT, Messages.THREAD_ID + " = " + threadId, null);
+                // fulltext index is updated by triggers
 
                 // update thread information
                 updateThreadAfterDelete(db, threadId, null);
@@ -1469,10 +1904,68 @@ public class MessagesProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Applies a batch of operations in a single transaction. Notifications
+     * are merged and sent after the transaction ends.
+     */
+    @NonNull
+    @Override
+    public synchronized ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean success = false;
+        Set<Uri> notifications = new LinkedHashSet<>();
+
+        beginTransaction(db);
+        mBatchThread = Thread.currentThread();
+        mBatchNotifications = notifications;
+        mBatchFailed = false;
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            if (mBatchFailed)
+                throw new OperationApplicationException("batch operation failed");
+
+            mBatchThread = null;
+            success = setTransactionSuccessful(db);
+            return results;
+        }
+        finally {
+            mBatchThread = null;
+            mBatchNotifications = null;
+            endTransaction(db, success);
+            if (success)
+                notifyChange(notifications);
+        }
+    }
+
+    private boolean isBatching() {
+        return mBatchThread == Thread.currentThread();
+    }
+
+    private void notifyChange(Collection<Uri> uris) {
+        if (isBatching()) {
+            for (Uri uri : uris) {
+                // one notification for all changed members
+                if (sUriMatcher.match(uri) == GROUPS_MEMBERS_ID)
+                    uri = Groups.getMembersUri(uri.getPathSegments().get(1));
+                mBatchNotifications.add(uri);
+            }
+        }
+        else {
+            ContentResolver cr = getContext().getContentResolver();
+            for (Uri uri : uris)
+                cr.notifyChange(uri, null);
+        }
+    }
+
     /* Transactions compatibility layer */
 
     @TargetApi(android.os.Build.VERSION_CODES.HONEYCOMB)
     private void beginTransaction(SQLiteDatabase db) {
+        // already in a transaction
+        if (isBatching())
+            return;
+
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB)
             db.beginTransactionNonExclusive();
         else
@@ -1481,16 +1974,31 @@ public class MessagesProvider extends ContentProvider {
     }
 
     private boolean setTransactionSuccessful(SQLiteDatabase db) {
+        if (isBatching())
+            return true;
+
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB)
             db.setTransactionSuccessful();
         return true;
     }
 
     private void endTransaction(SQLiteDatabase db, boolean success) {
+        if (isBatching()) {
+            // the batch transaction will be rolled back
+            if (!success)
+                mBatchFailed = true;
+            return;
+        }
+
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB)
             db.endTransaction();
         else
             db.execSQL(success ? "COMMIT" : "ROLLBACK");
+        // schedule idle maintenance
+        dbHelper.getTuning().onWrite();
+        // the media collector is postponed as well
+        if (mMediaCollectorPending)
+            DatabaseTuning.post(mMediaCollector, MEDIA_COLLECTOR_IDLE_DELAY);
     }
 
     public static boolean deleteDatabase(Context ctx) {
@@ -1505,6 +2013,11 @@ public class MessagesProvider extends ContentProvider {
         }
     }
 
+    /** Number of write requests (insert, update, delete) since process start. */
+    public static long getWriteCount() {
+        return sWriteCount.get();
+    }
+
     /**
      * Marks all messages of the given thread as read.
      * @param context used to request a {@link ContentResolver}
@@ -1626,6 +2139,12 @@ public class MessagesProvider extends ContentProvider {
     }
     */
 
+    /** Drops the fulltext index and rebuilds it in background. */
+    public static void rebuildFulltext(Context context) {
+        context.getContentResolver().update(Fulltext.CONTENT_URI.buildUpon()
+            .appendQueryParameter(Fulltext.REBUILD, "true").build(), null, null, null);
+    }
+
     /** Set the fetch URL of a media message, marking it as uploaded. */
     public static void uploaded(Context context, long msgId, String fetchUrl) {
         ContentValues values = new ContentValues(1);
@@ -1650,6 +2169,8 @@ public class MessagesProvider extends ContentProvider {
         sUriMatcher.addURI(AUTHORITY, TABLE_GROUPS + "/*/members/*", GROUPS_MEMBERS_ID);
         sUriMatcher.addURI(AUTHORITY, TABLE_FULLTEXT, FULLTEXT_ID);
         sUriMatcher.addURI(AUTHORITY, "requests", REQUESTS);
+        sUriMatcher.addURI(AUTHORITY, TABLE_MEDIA + "/usage", MEDIA_USAGE);
+        sUriMatcher.addURI(AUTHORITY, TABLE_MEDIA + "/unique_previews", MEDIA_UNIQUE_PREVIEWS);
 
         messagesProjectionMap = new HashMap<>();
         messagesProjectionMap.put(Messages._ID, Messages._ID);
@@ -1669,6 +2190,7 @@ public class MessagesProvider extends ContentProvider {
         messagesProjectionMap.put(Messages.ATTACHMENT_COMPRESS, Messages.ATTACHMENT_COMPRESS);
         messagesProjectionMap.put(Messages.ATTACHMENT_ENCRYPTED, Messages.ATTACHMENT_ENCRYPTED);
         messagesProjectionMap.put(Messages.ATTACHMENT_SECURITY_FLAGS, Messages.ATTACHMENT_SECURITY_FLAGS);
+        messagesProjectionMap.put(Messages.ATTACHMENT_DURATION, Messages.ATTACHMENT_DURATION);
 
         messagesProjectionMap.put(Messages.UNREAD, Messages.UNREAD);
         messagesProjectionMap.put(Messages.NEW, Messages.NEW);
@@ -1706,10 +2228,6 @@ public class MessagesProvider extends ContentProvider {
         threadsProjectionMap.put(Groups.GROUP_TYPE, Groups.GROUP_TYPE);
         threadsProjectionMap.put(Groups.MEMBERSHIP, Groups.MEMBERSHIP);
 
-        fulltextProjectionMap = new HashMap<>();
-        fulltextProjectionMap.put(Fulltext.THREAD_ID, Fulltext.THREAD_ID);
-        fulltextProjectionMap.put(Fulltext.CONTENT, Fulltext.CONTENT);
-
         groupsProjectionMap = new HashMap<>();
         groupsProjectionMap.put(Groups.GROUP_JID, Groups.GROUP_JID);
         groupsProjectionMap.put(Groups.THREAD_ID, Groups.THREAD_ID);
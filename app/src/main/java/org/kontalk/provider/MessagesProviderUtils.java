@@ -19,21 +19,30 @@
 package org.kontalk.provider;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.net.Uri;
+import android.os.RemoteException;
 
 import org.kontalk.crypto.Coder;
+import org.kontalk.message.AudioComponent;
 import org.kontalk.message.TextComponent;
 import org.kontalk.provider.MyMessages.Groups;
+import org.kontalk.provider.MyMessages.Media;
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.service.msgcenter.group.KontalkGroupController;
+import org.kontalk.util.MediaStorage;
 import org.kontalk.util.Preferences;
 
 
@@ -129,6 +138,23 @@ public class MessagesProviderUtils {
         }
     }
 
+    /**
+     * Returns the storage used by media of the given thread, from the media
+     * index (files are not looked at).
+     * @return bytes used by attachments and previews
+     */
+    public static long getMediaUsage(Context context, long threadId) {
+        Cursor c = context.getContentResolver().query(Media.USAGE_URI,
+            new String[] { Media.LENGTH }, Media.THREAD_ID + "=" + threadId, null,
+            null);
+        try {
+            return c.moveToFirst() ? c.getLong(c.getColumnIndex(Media.LENGTH)) : 0;
+        }
+        finally {
+            c.close();
+        }
+    }
+
     public static int updateDraft(Context context, long threadId, String draft) {
         ContentValues values = new ContentValues(1);
         if (draft != null && draft.length() > 0)
@@ -141,11 +167,12 @@ public class MessagesProviderUtils {
     }
 
     /**
-     * Fills a media message with preview file and local uri, for use e.g.
-     * after compressing. Also updates the message status to SENDING.
+     * Fills a media message with preview file, local uri and media metadata,
+     * for use e.g. after compressing. Also updates the message status to SENDING.
      */
-    public static int updateMedia(Context context, long id, String previewFile, Uri localUri, long length) {
-        ContentValues values = new ContentValues(3);
+    public static int updateMedia(Context context, long id, String mime, String previewFile, Uri localUri, long length) {
+        ContentValues values = new ContentValues(5);
+        putMediaMetadata(context, values, mime, localUri);
         values.put(Messages.ATTACHMENT_PREVIEW_PATH, previewFile);
         values.put(Messages.ATTACHMENT_LOCAL_URI, localUri.toString());
         values.put(Messages.ATTACHMENT_LENGTH, length);
@@ -154,6 +181,30 @@ public class MessagesProviderUtils {
             .withAppendedId(Messages.CONTENT_URI, id), values, null, null);
     }
 
+    /**
+     * Reads metadata (e.g. duration) from a stored media file and
+     * puts it in the given values. This reads the file, so it must not be
+     * called on the UI thread.
+     */
+    public static void putMediaMetadata(Context context, ContentValues values, String mime, Uri localUri) {
+        if (AudioComponent.supportsMimeType(mime)) {
+            values.put(Messages.ATTACHMENT_DURATION, MediaStorage.getDuration(context, localUri));
+        }
+    }
+
+    /**
+     * Stores metadata for media that was stored before we kept it.
+     * This reads the file, so it must not be called on the UI thread.
+     */
+    public static int updateMediaMetadata(Context context, long id, String mime, Uri localUri) {
+        ContentValues values = new ContentValues(1);
+        putMediaMetadata(context, values, mime, localUri);
+        if (values.size() == 0)
+            return 0;
+        return context.getContentResolver().update(ContentUris
+            .withAppendedId(Messages.CONTENT_URI, id), values, null, null);
+    }
+
     public static int deleteMessage(Context context, long id) {
         return context.getContentResolver().delete(ContentUris
             .withAppendedId(Messages.CONTENT_URI, id), null, null);
@@ -237,56 +288,74 @@ public class MessagesProviderUtils {
         values.put(Groups.GROUP_TYPE, KontalkGroupController.GROUP_TYPE);
         context.getContentResolver().insert(Groups.CONTENT_URI, values);
 
-        // remove values not for members table
-        values.remove(Groups.GROUP_JID);
-        values.remove(Groups.THREAD_ID);
-        values.remove(Groups.SUBJECT);
-        values.remove(Groups.GROUP_TYPE);
-
         // insert group members
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(members.length);
         for (String member : members) {
-            // FIXME turn this into batch operations
-            values.put(Groups.PEER, member);
-            context.getContentResolver()
-                .insert(Groups.getMembersUri(groupJid), values);
+            operations.add(ContentProviderOperation.newInsert(Groups.getMembersUri(groupJid))
+                .withValue(Groups.PEER, member)
+                .build());
         }
+        applyGroupOperations(context, operations);
 
         return threadId;
     }
 
     public static void addGroupMembers(Context context, String groupJid, String[] members, boolean pending) {
-        ContentValues values = new ContentValues();
-        values.put(Groups.GROUP_JID, groupJid);
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(members.length);
+        addGroupMembers(operations, groupJid, members, pending);
+        applyGroupOperations(context, operations);
+    }
+
+    public static void addGroupMembers(List<ContentProviderOperation> operations, String groupJid, String[] members, boolean pending) {
         for (String member : members) {
-            // FIXME turn this into batch operations
-            values.put(Groups.PEER, member);
-            values.put(Groups.PENDING, pending ? Groups.MEMBER_PENDING_ADDED : 0);
-            context.getContentResolver()
-                .insert(Groups.getMembersUri(groupJid), values);
+            operations.add(ContentProviderOperation.newInsert(Groups.getMembersUri(groupJid))
+                .withValue(Groups.PEER, member)
+                .withValue(Groups.PENDING, pending ? Groups.MEMBER_PENDING_ADDED : 0)
+                .build());
         }
     }
 
     public static void removeGroupMembers(Context context, String groupJid, String[] members, boolean pending) {
-        if (pending) {
-            ContentValues values = new ContentValues(1);
-            values.put(Groups.PENDING, Groups.MEMBER_PENDING_REMOVED);
-            for (String member : members) {
-                // FIXME turn this into batch operations
-                context.getContentResolver()
-                    .update(Groups.getMembersUri(groupJid).buildUpon()
-                        .appendPath(member).build(), values, null, null);
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(members.length);
+        removeGroupMembers(operations, groupJid, members, pending);
+        applyGroupOperations(context, operations);
+    }
+
+    public static void removeGroupMembers(List<ContentProviderOperation> operations, String groupJid, String[] members, boolean pending) {
+        for (String member : members) {
+            Uri memberUri = Groups.getMembersUri(groupJid).buildUpon()
+                .appendPath(member).build();
+            if (pending) {
+                operations.add(ContentProviderOperation.newUpdate(memberUri)
+                    .withValue(Groups.PENDING, Groups.MEMBER_PENDING_REMOVED)
+                    .build());
             }
-        }
-        else {
-            for (String member : members) {
+            else {
                 // just beat it!
-                context.getContentResolver()
-                    .delete(Groups.getMembersUri(groupJid).buildUpon()
-                        .appendPath(member).build(), null, null);
+                operations.add(ContentProviderOperation.newDelete(memberUri).build());
             }
         }
     }
 
+    /**
+     * Applies a list of group operations in a single transaction.
+     * Observers will be notified only once.
+     */
+    public static void applyGroupOperations(Context context, ArrayList<ContentProviderOperation> operations) {
+        if (operations.isEmpty())
+            return;
+
+        try {
+            context.getContentResolver().applyBatch(MessagesProvider.AUTHORITY, operations);
+        }
+        catch (RemoteException e) {
+            throw new SQLException("unable to apply group changes: " + e);
+        }
+        catch (OperationApplicationException e) {
+            throw new SQLException("unable to apply group changes: " + e);
+        }
+    }
+
     public static int setGroupSubject(Context context, String groupJid, String subject) {
         ContentValues values = new ContentValues();
         if (subject != null)
@@ -342,6 +411,12 @@ public class MessagesProviderUtils {
             values, null, null);
     }
 
+    public static void setGroupMembership(List<ContentProviderOperation> operations, String groupJid, int membership) {
+        operations.add(ContentProviderOperation.newUpdate(Groups.getUri(groupJid))
+            .withValue(Groups.MEMBERSHIP, membership)
+            .build());
+    }
+
     /** Returns the current known membership of a user in a group. */
     public static boolean isGroupMember(Context context, String groupJid, String jid) {
         Cursor c = null;
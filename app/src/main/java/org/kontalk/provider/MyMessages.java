@@ -90,9 +90,21 @@ public final class MyMessages {
             public static final Uri CONTENT_URI = Uri.parse("content://"
                     + MessagesProvider.AUTHORITY + "/fulltext");
 
-            public static final String _ID = "rowid";
             public static final String THREAD_ID = "thread_id";
-            public static final String CONTENT = "content";
+            /** Matching text, with matches enclosed by {@link #SNIPPET_START} and {@link #SNIPPET_END}. */
+            public static final String SNIPPET = "snippet";
+
+            public static final char SNIPPET_START = '\u0002';
+            public static final char SNIPPET_END = '\u0003';
+
+            /** Query parameter: full text query pattern. */
+            public static final String QUERY_PATTERN = "pattern";
+            /** Query parameter: number of results to skip. */
+            public static final String QUERY_OFFSET = "offset";
+            /** Query parameter: maximum number of results. */
+            public static final String QUERY_COUNT = "count";
+            /** Update parameter: rebuild the whole index. */
+            public static final String REBUILD = "rebuild";
         }
 
         private static final String ITEM_TYPE = BuildConfig.APPLICATION_ID + ".message";
@@ -114,6 +126,8 @@ public final class MyMessages {
         public static final String ATTACHMENT_COMPRESS = "att_compress";
         public static final String ATTACHMENT_ENCRYPTED = "att_encrypted";
         public static final String ATTACHMENT_SECURITY_FLAGS = "att_security_flags";
+        /** Duration of audio/video attachments in milliseconds, null if not known yet. */
+        public static final String ATTACHMENT_DURATION = "att_duration";
 
         public static final String SECURITY_FLAGS = "security_flags";
 
@@ -129,6 +143,41 @@ public final class MyMessages {
         public static final long NO_THREAD = -1;
     }
 
+    /**
+     * Index of the media files referenced by messages (attachments and
+     * previews). It's kept in sync with the messages table by the database:
+     * when a message is deleted or stops referencing a file, the file is
+     * left unlinked and it will be deleted by the media collector.
+     */
+    public static final class Media implements BaseColumns {
+        private Media() {}
+
+        /** Storage usage by conversation: thread_id, count and length. */
+        public static final Uri USAGE_URI = Uri.parse("content://"
+                + MessagesProvider.AUTHORITY + "/media/usage");
+        /**
+         * Paths of previews whose message has no local media, which
+         * therefore can't be generated again.
+         */
+        public static final Uri UNIQUE_PREVIEWS_URI = Uri.parse("content://"
+                + MessagesProvider.AUTHORITY + "/media/unique_previews");
+
+        public static final int TYPE_ATTACHMENT = 0;
+        public static final int TYPE_PREVIEW = 1;
+
+        /** File path, from the message local URI or preview path. */
+        public static final String PATH = "path";
+        public static final String TYPE = "type";
+        /** Database id of the message, null if unlinked. */
+        public static final String MESSAGE_ID = "message_id";
+        public static final String THREAD_ID = "thread_id";
+        public static final String LENGTH = "length";
+        /** When the file was unlinked from its message. */
+        public static final String UNLINKED = "unlinked";
+
+        public static final String COUNT = "count";
+    }
+
     /** Threads are just for conversations metadata. */
     public static final class Threads implements CommonColumns {
         private Threads() {}
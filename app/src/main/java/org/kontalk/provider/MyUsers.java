@@ -51,9 +51,15 @@ public class MyUsers {
         public static final String STATUS = "status";
         public static final String LAST_SEEN = "last_seen";
         public static final String BLOCKED = "blocked";
+        /** Display name or phone number, used for sorting. */
+        public static final String SORT_KEY = "sort_key";
+        /** Fast scroll label, computed from {@link #SORT_KEY}. */
+        public static final String LABEL = "label";
 
-        // uri parameter for indexed cursor
+        // uri parameter for indexed cursor (results must be sorted by SORT_KEY)
         public static final String EXTRA_INDEX = "org.kontalk.provider.extra.INDEX";
+        // uri parameter for select: filter users by name or number (type-ahead search)
+        public static final String FILTER = "filter";
         // uri parameter for update: triggers a complete resync
         public static final String RESYNC = "resync";
         // uri parameter for update: used with resync, triggers a complete sync
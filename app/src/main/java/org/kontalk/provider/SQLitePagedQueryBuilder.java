@@ -22,29 +22,52 @@ import android.database.sqlite.SQLiteQueryBuilder;
 
 
 /**
- * A query builder for paged queries.
+ * A query builder for keyset-paged queries. Pages can be requested in both
+ * directions from an anchor value of the paging column.
  * @author Daniele Ricci
  */
 public class SQLitePagedQueryBuilder extends SQLiteQueryBuilder {
 
     private int mCount;
     private String mLastColumn;
-    private int mLastValue;
+    private long mLastValue;
+    private boolean mNewer;
 
-    public void setPage(int count, String lastColumn, int lastValue) {
+    /**
+     * Requests a page of rows older than the given value.
+     * @param count maximum number of rows
+     * @param lastColumn the column to page on
+     * @param lastValue rows with a value lower than this will be returned
+     *                  (0 for the most recent page)
+     */
+    public void setPage(int count, String lastColumn, long lastValue) {
         mCount = count;
         mLastColumn = lastColumn;
         mLastValue = lastValue;
+        mNewer = false;
+    }
+
+    /**
+     * Requests a page of rows newer than the given value.
+     * @param count maximum number of rows, 0 for all of them
+     * @param lastColumn the column to page on
+     * @param firstValue rows with a value greater than this will be returned
+     */
+    public void setPageAfter(int count, String lastColumn, long firstValue) {
+        mCount = count;
+        mLastColumn = lastColumn;
+        mLastValue = firstValue;
+        mNewer = true;
     }
 
     @Override
     public String buildQuery(String[] projectionIn, String selection, String groupBy, String having, String sortOrder, String limit) {
         if (mLastColumn != null) {
-            // build the inner query with reverse order and row count
+            // build the inner query with paging order and row count
             // NOTE: passed limit is ignored!!
 
             StringBuilder newSelection = new StringBuilder();
-            if (mLastValue > 0) {
+            if (mNewer || mLastValue > 0) {
                 if (selection != null && selection.length() > 0) {
                     newSelection
                         .append('(')
@@ -54,11 +77,21 @@ public class SQLitePagedQueryBuilder extends SQLiteQueryBuilder {
 
                 newSelection
                     .append(mLastColumn)
-                    .append(" < ")
+                    .append(mNewer ? " > " : " < ")
                     .append(String.valueOf(mLastValue));
             }
+            else if (selection != null) {
+                newSelection.append(selection);
+            }
+
+            String pageOrder = mLastColumn + (mNewer ? " ASC" : " DESC");
+            String pageLimit = mCount > 0 ? String.valueOf(mCount) : null;
+            String query = super.buildQuery(projectionIn, newSelection.toString(), groupBy, having, pageOrder, pageLimit);
+
+            // rows are already in the requested order
+            if (mNewer && (mLastColumn.equals(sortOrder) || pageOrder.equals(sortOrder)))
+                return query;
 
-            String query = super.buildQuery(projectionIn, newSelection.toString(), groupBy, having, mLastColumn + " DESC", String.valueOf(mCount));
             // wrap the query with the original sort order
             return "SELECT * FROM (" + query + ") ORDER BY " + sortOrder;
         }
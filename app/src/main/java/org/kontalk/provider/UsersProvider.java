@@ -18,10 +18,14 @@
 
 package org.kontalk.provider;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.android.providers.contacts.ContactLocaleUtils;
 import com.android.providers.contacts.FastScrollingIndexCache;
@@ -29,10 +33,13 @@ import com.android.providers.contacts.FastScrollingIndexCache;
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -60,6 +67,7 @@ import org.kontalk.data.Contact;
 import org.kontalk.provider.MyUsers.Keys;
 import org.kontalk.provider.MyUsers.Users;
 import org.kontalk.sync.SyncAdapter;
+import org.kontalk.util.BackgroundExecutor;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.XMPPUtils;
@@ -73,7 +81,7 @@ import org.kontalk.util.XMPPUtils;
 public class UsersProvider extends ContentProvider {
     public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".users";
 
-    private static final int DATABASE_VERSION = 10;
+    private static final int DATABASE_VERSION = 12;
     private static final String DATABASE_NAME = "users.db";
     private static final String TABLE_USERS = "users";
     private static final String TABLE_USERS_OFFLINE = "users_offline";
@@ -85,12 +93,18 @@ public class UsersProvider extends ContentProvider {
     private static final int KEYS_JID = 4;
     private static final int KEYS_JID_FINGERPRINT = 5;
 
+    /** Number of write requests (insert, update, delete) to this provider. */
+    private static final AtomicLong sWriteCount = new AtomicLong();
+    private static final AtomicLong sIndexInvalidations = new AtomicLong();
+
     private long mLastResync;
 
     private FastScrollingIndexCache mFastScrollingIndexCache;
     private ContactLocaleUtils mLocaleUtils;
 
     private DatabaseHelper dbHelper;
+    /** Thread running {@link #applyBatch}, if any. */
+    private volatile Thread mBatchThread;
     private static final UriMatcher sUriMatcher;
     private static HashMap<String, String> usersProjectionMap;
     private static HashMap<String, String> keysProjectionMap;
@@ -106,7 +120,9 @@ public class UsersProvider extends ContentProvider {
             "registered INTEGER NOT NULL DEFAULT 0," +
             "status TEXT," +
             "last_seen INTEGER," +
-            "blocked INTEGER NOT NULL DEFAULT 0" +
+            "blocked INTEGER NOT NULL DEFAULT 0," +
+            "sort_key TEXT," +
+            "label TEXT" +
             ")";
 
         /** This table will contain all the users in contact list .*/
@@ -116,6 +132,11 @@ public class UsersProvider extends ContentProvider {
         private static final String SCHEMA_USERS_OFFLINE =
             "CREATE TABLE " + TABLE_USERS_OFFLINE + CREATE_TABLE_USERS;
 
+        /** Index for the contacts list. */
+        private static final String SCHEMA_USERS_SORT_INDEX =
+            "CREATE INDEX IF NOT EXISTS users_sort ON " + TABLE_USERS +
+                " (registered, blocked, sort_key COLLATE NOCASE)";
+
         private static final String CREATE_TABLE_KEYS = "(" +
             "jid TEXT NOT NULL," +
             "fingerprint TEXT NOT NULL," +
@@ -150,12 +171,12 @@ public class UsersProvider extends ContentProvider {
         private static final String[] SCHEMA_UPGRADE_V9 = {
             // online table
             "CREATE TABLE users_backup " + CREATE_TABLE_USERS,
-            "INSERT INTO users_backup SELECT _id, jid, number, display_name, lookup_key, contact_id, registered, status, last_seen, blocked FROM " + TABLE_USERS,
+            "INSERT INTO users_backup (_id, jid, number, display_name, lookup_key, contact_id, registered, status, last_seen, blocked) SELECT _id, jid, number, display_name, lookup_key, contact_id, registered, status, last_seen, blocked FROM " + TABLE_USERS,
             "DROP TABLE " + TABLE_USERS,
             "ALTER TABLE users_backup RENAME TO " + TABLE_USERS,
             // offline table
             "CREATE TABLE users_backup " + CREATE_TABLE_USERS,
-            "INSERT INTO users_backup SELECT _id, jid, number, display_name, lookup_key, contact_id, registered, status, last_seen, blocked FROM " + TABLE_USERS_OFFLINE,
+            "INSERT INTO users_backup (_id, jid, number, display_name, lookup_key, contact_id, registered, status, last_seen, blocked) SELECT _id, jid, number, display_name, lookup_key, contact_id, registered, status, last_seen, blocked FROM " + TABLE_USERS_OFFLINE,
             "DROP TABLE " + TABLE_USERS_OFFLINE,
             "ALTER TABLE users_backup RENAME TO " + TABLE_USERS_OFFLINE,
             // keys table
@@ -165,36 +186,57 @@ public class UsersProvider extends ContentProvider {
             "ALTER TABLE keys_backup RENAME TO " + TABLE_KEYS,
         };
 
+        private static final String[] SCHEMA_UPGRADE_V10 = {
+            "ALTER TABLE " + TABLE_USERS + " ADD COLUMN sort_key TEXT",
+            "ALTER TABLE " + TABLE_USERS + " ADD COLUMN label TEXT",
+            "ALTER TABLE " + TABLE_USERS_OFFLINE + " ADD COLUMN sort_key TEXT",
+            "ALTER TABLE " + TABLE_USERS_OFFLINE + " ADD COLUMN label TEXT",
+            SCHEMA_USERS_SORT_INDEX,
+        };
+
         // any upgrade - just replace the table
         private static final String[] SCHEMA_UPGRADE = {
             "DROP TABLE IF EXISTS " + TABLE_USERS,
             SCHEMA_USERS,
             "DROP TABLE IF EXISTS " + TABLE_USERS_OFFLINE,
             SCHEMA_USERS_OFFLINE,
+            SCHEMA_USERS_SORT_INDEX,
+            "DROP TABLE IF EXISTS " + ContactSearchIndex.TABLE_LOOKUP,
+            ContactSearchIndex.SCHEMA_LOOKUP,
         };
 
         private Context mContext;
 
         /** This will be set to true when database is new. */
         private boolean mNew;
-        /** A read-only connection to the database. */
+        /** A read-only connection to the database (only without WAL). */
         private SQLiteDatabase dbReader;
 
+        private final DatabaseTuning mTuning;
+
         protected DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
             mContext = context;
+            mTuning = new DatabaseTuning(context, this, DATABASE_NAME);
         }
 
         @Override
         public void onCreate(SQLiteDatabase db) {
             db.execSQL(SCHEMA_USERS);
             db.execSQL(SCHEMA_USERS_OFFLINE);
+            db.execSQL(SCHEMA_USERS_SORT_INDEX);
+            db.execSQL(ContactSearchIndex.SCHEMA_LOOKUP);
+            for (String sql : ContactSearchIndex.SCHEMA_LOOKUP_INDEXES)
+                db.execSQL(sql);
             db.execSQL(SCHEMA_KEYS);
             mNew = true;
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // the version 9 upgrade recreates the users tables with all columns
+            boolean recreated = false;
+
             switch (oldVersion) {
                 case 7:
                     // create keys table and trust anyone
@@ -209,26 +251,79 @@ public class UsersProvider extends ContentProvider {
                     // new keys management
                     for (String sql : SCHEMA_UPGRADE_V9)
                         db.execSQL(sql);
+                    recreated = true;
+                    // go on with next version
+                case 10:
+                    // sort keys and fast scroll labels
+                    if (recreated) {
+                        db.execSQL(SCHEMA_USERS_SORT_INDEX);
+                    }
+                    else {
+                        for (String sql : SCHEMA_UPGRADE_V10)
+                            db.execSQL(sql);
+                    }
+                    fillSortKeys(db, TABLE_USERS);
+                    fillSortKeys(db, TABLE_USERS_OFFLINE);
+                    // go on with next version
+                case 11:
+                    // contacts search index
+                    db.execSQL(ContactSearchIndex.SCHEMA_LOOKUP);
+                    for (String sql : ContactSearchIndex.SCHEMA_LOOKUP_INDEXES)
+                        db.execSQL(sql);
+                    ContactSearchIndex.rebuild(db, TABLE_USERS);
                     break;
                 default:
                     for (String sql : SCHEMA_UPGRADE)
                         db.execSQL(sql);
+                    for (String sql : ContactSearchIndex.SCHEMA_LOOKUP_INDEXES)
+                        db.execSQL(sql);
                     mNew = true;
             }
         }
 
+        /** Computes sort keys and labels for all the rows in the given table. */
+        private void fillSortKeys(SQLiteDatabase db, String table) {
+            ContactLocaleUtils localeUtils = ContactLocaleUtils.getInstance();
+            SQLiteStatement stm = db.compileStatement("UPDATE " + table +
+                " SET sort_key = ?, label = ? WHERE _id = ?");
+            Cursor c = db.query(table, new String[] { Users._ID, Users.DISPLAY_NAME, Users.NUMBER },
+                null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    String sortKey = getSortKey(c.getString(1), c.getString(2));
+                    stm.clearBindings();
+                    stm.bindString(1, sortKey);
+                    stm.bindString(2, getLabel(localeUtils, sortKey));
+                    stm.bindLong(3, c.getLong(0));
+                    executeUpdateDelete(db, stm);
+                }
+            }
+            finally {
+                c.close();
+                stm.close();
+            }
+        }
+
         @Override
         public void onOpen(SQLiteDatabase db) {
-            String path = mContext.getDatabasePath(DATABASE_NAME).getPath();
-            dbReader = SQLiteDatabase.openDatabase(path, null, 0);
+            // WAL already allows concurrent readers through the connection pool
+            if (!mTuning.onOpen(db)) {
+                String path = mContext.getDatabasePath(DATABASE_NAME).getPath();
+                dbReader = SQLiteDatabase.openDatabase(path, null, 0);
+            }
         }
 
         public boolean isNew() {
             return mNew;
         }
 
+        public DatabaseTuning getTuning() {
+            return mTuning;
+        }
+
         @Override
         public synchronized void close() {
+            mTuning.cancel();
             try {
                 dbReader.close();
             }
@@ -267,61 +362,78 @@ public class UsersProvider extends ContentProvider {
     }
 
     private void invalidateFastScrollingIndexCache() {
+        sIndexInvalidations.incrementAndGet();
         mFastScrollingIndexCache.invalidate();
     }
 
-    private static final class Counter {
-        private int value;
+    /** Called after any write to schedule idle maintenance. */
+    private void onWrite() {
+        dbHelper.getTuning().onWrite();
+    }
 
-        public Counter(int start) {
-            this.value = start;
-        }
+    /** Sort key for a user: display name or phone number if not available. */
+    static String getSortKey(String displayName, String number) {
+        return displayName != null ? displayName : number;
+    }
 
-        public void inc() {
-            value++;
-        }
+    /** Fast scroll label for a sort key. */
+    static String getLabel(ContactLocaleUtils localeUtils, String sortKey) {
+        // the list is sorted case-insensitively
+        return localeUtils.getLabel(sortKey).toUpperCase(Locale.getDefault());
+    }
+
+    /**
+     * Returns a copy of the given values with sort key and label, if they
+     * can be computed from the values.
+     * @param insert true if the values will be used for a new row
+     */
+    private ContentValues withSortKey(ContentValues values, boolean insert) {
+        String displayName = values.getAsString(Users.DISPLAY_NAME);
+        String number = values.getAsString(Users.NUMBER);
+        // we can't compute the sort key if we are updating just the number
+        if (displayName == null && (number == null || (!insert && !values.containsKey(Users.DISPLAY_NAME))))
+            return values;
+
+        ContentValues sortValues = new ContentValues(values);
+        String sortKey = getSortKey(displayName, number);
+        sortValues.put(Users.SORT_KEY, sortKey);
+        sortValues.put(Users.LABEL, getLabel(mLocaleUtils, sortKey));
+        return sortValues;
+    }
+
+    /** Returns true if the given values can change the contacts list. */
+    private static boolean isListChange(ContentValues values) {
+        return values == null ||
+            values.containsKey(Users.DISPLAY_NAME) ||
+            values.containsKey(Users.NUMBER) ||
+            values.containsKey(Users.REGISTERED) ||
+            values.containsKey(Users.BLOCKED);
     }
 
     /**
      * Computes counts by the address book index labels and returns it as {@link Bundle} which
-     * will be appended to a {@link Cursor} as extras.
+     * will be appended to a {@link Cursor} as extras. Labels are stored with
+     * the users, so this is just a grouping query on the same selection.
+     * The cursor is expected to be sorted by {@link Users#SORT_KEY}.
      */
-    private Bundle getFastScrollingIndexExtras(Cursor cursor) {
+    private Bundle getFastScrollingIndexExtras(SQLiteDatabase db, SQLiteQueryBuilder qb,
+            String selection, String[] selectionArgs) {
+        Cursor c = qb.query(db, new String[] { Users.LABEL, "COUNT(*) AS " + BaseColumns._COUNT },
+            selection, selectionArgs, Users.LABEL, null,
+            "MIN(" + Users.SORT_KEY + " COLLATE NOCASE)");
         try {
-            LinkedHashMap<String, Counter> groups = new LinkedHashMap<>();
-            int count = cursor.getCount();
-
-            for (int i = 0; i < count; i++) {
-                cursor.moveToNext();
-                String source = cursor.getString(Contact.COLUMN_DISPLAY_NAME);
-                // use phone number if we don't have a display name
-                if (source == null)
-                    source = cursor.getString(Contact.COLUMN_NUMBER);
-                String label = mLocaleUtils.getLabel(source);
-                Counter counter = groups.get(label);
-                if (counter == null) {
-                    counter = new Counter(1);
-                    groups.put(label, counter);
-                }
-                else {
-                    counter.inc();
-                }
-            }
-
-            int numLabels = groups.size();
+            int numLabels = c.getCount();
             String labels[] = new String[numLabels];
             int counts[] = new int[numLabels];
-            int i = 0;
-            for (Map.Entry<String, Counter> entry : groups.entrySet()) {
-                labels[i] = entry.getKey();
-                counts[i] = entry.getValue().value;
-                i++;
+            for (int i = 0; c.moveToNext(); i++) {
+                labels[i] = c.getString(0);
+                counts[i] = c.getInt(1);
             }
 
             return FastScrollingIndexCache.buildExtraBundle(labels, counts);
-        } finally {
-            // reset the cursor
-            cursor.move(-1);
+        }
+        finally {
+            c.close();
         }
     }
 
@@ -357,7 +469,7 @@ public class UsersProvider extends ContentProvider {
 
             if (b == null) {
                 // Not in the cache.  Generate and put.
-                b = getFastScrollingIndexExtras(cursor);
+                b = getFastScrollingIndexExtras(db, qb, selection, selectionArgs);
 
                 mFastScrollingIndexCache.put(queryUri, selection, selectionArgs, sortOrder,
                     countExpression, b);
@@ -386,9 +498,19 @@ public class UsersProvider extends ContentProvider {
         }
 
         switch (match) {
-            case USERS:
-                // nothing to do
+            case USERS: {
+                String filter = uri.getQueryParameter(Users.FILTER);
+                if (filter != null) {
+                    List<String> filterArgs = new ArrayList<>();
+                    String filterSelection = ContactSearchIndex.getSelection(filter, filterArgs);
+                    if (filterSelection != null) {
+                        selection = DatabaseUtilsCompat.concatenateWhere(selection, filterSelection);
+                        selectionArgs = DatabaseUtilsCompat.appendSelectionArgs(selectionArgs,
+                            filterArgs.toArray(new String[filterArgs.size()]));
+                    }
+                }
                 break;
+            }
 
             case USERS_JID: {
                 // TODO append to selection
@@ -417,6 +539,7 @@ public class UsersProvider extends ContentProvider {
         SQLiteDatabase db = dbHelper.getReadableDatabase();
         Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
         if ((match == USERS || match == USERS_JID) && c.getCount() == 0 &&
+                uri.getQueryParameter(Users.FILTER) == null &&
                 (match != USERS_JID || !XMPPUtils.isDomainJID(uri.getPathSegments().get(1)))) {
             // empty result set and sync requested
             SyncAdapter.requestSync(getContext(), false);
@@ -490,12 +613,14 @@ public class UsersProvider extends ContentProvider {
 
     @Override
     public int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        sWriteCount.incrementAndGet();
         try {
             boolean isResync = Boolean.parseBoolean(uri.getQueryParameter(Users.RESYNC));
             boolean bootstrap = Boolean.parseBoolean(uri.getQueryParameter(Users.BOOTSTRAP));
             boolean commit = Boolean.parseBoolean(uri.getQueryParameter(Users.COMMIT));
 
             if (isResync) {
+                invalidateFastScrollingIndexCache();
                 // we keep this synchronized to allow for the initial resync by the
                 // registration activity
                 synchronized (this) {
@@ -520,8 +645,12 @@ public class UsersProvider extends ContentProvider {
             switch (match) {
                 case USERS:
                 case USERS_JID:
-                    return updateUser(values, Boolean.parseBoolean(uri
+                    int rows = updateUser(values, Boolean.parseBoolean(uri
                         .getQueryParameter(Users.OFFLINE)), selection, selectionArgs);
+                    // presence updates don't change the contacts list
+                    if (rows > 0 && isListChange(values))
+                        invalidateFastScrollingIndexCache();
+                    return rows;
 
                 case KEYS:
                 case KEYS_JID:
@@ -533,14 +662,23 @@ public class UsersProvider extends ContentProvider {
             }
         }
         finally {
-            invalidateFastScrollingIndexCache();
+            onWrite();
         }
     }
 
     private int updateUser(ContentValues values, boolean offline, String selection, String[] selectionArgs) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
-        int rc = db.update(offline ? TABLE_USERS_OFFLINE : TABLE_USERS, values, selection, selectionArgs);
+        // users whose search keys will change
+        List<String> lookupJids = null;
+        if (!offline && (values.containsKey(Users.DISPLAY_NAME) || values.containsKey(Users.NUMBER)))
+            lookupJids = queryJids(db, selection, selectionArgs);
+
+        int rc = db.update(offline ? TABLE_USERS_OFFLINE : TABLE_USERS,
+            withSortKey(values, false), selection, selectionArgs);
+        if (rc > 0 && lookupJids != null)
+            ContactSearchIndex.update(db, TABLE_USERS, lookupJids);
+
         if (rc == 0) {
             ContentValues insertValues = new ContentValues(values);
             // insert new record
@@ -553,7 +691,14 @@ public class UsersProvider extends ContentProvider {
             insertValues.put(Users.REGISTERED, true);
 
             try {
-                db.insert(offline ? TABLE_USERS_OFFLINE : TABLE_USERS, null, insertValues);
+                db.insert(offline ? TABLE_USERS_OFFLINE : TABLE_USERS, null,
+                    withSortKey(insertValues, true));
+                if (!offline) {
+                    ContactSearchIndex.update(db, selectionArgs[0],
+                        insertValues.getAsString(Users.DISPLAY_NAME), selectionArgs[0]);
+                    // a new user in the list
+                    invalidateFastScrollingIndexCache();
+                }
                 return 1;
             }
             catch (SQLiteConstraintException e) {
@@ -565,6 +710,20 @@ public class UsersProvider extends ContentProvider {
         return rc;
     }
 
+    private List<String> queryJids(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor c = db.query(TABLE_USERS, new String[] { Users.JID }, selection, selectionArgs,
+            null, null, null);
+        try {
+            List<String> jids = new ArrayList<>(c.getCount());
+            while (c.moveToNext())
+                jids.add(c.getString(0));
+            return jids;
+        }
+        finally {
+            c.close();
+        }
+    }
+
     /** Commits the offline table to the online table. */
     private void commit() {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
@@ -577,6 +736,8 @@ public class UsersProvider extends ContentProvider {
             // copy contents from offline
             db.execSQL("DELETE FROM " + TABLE_USERS);
             db.execSQL("INSERT INTO " + TABLE_USERS + " SELECT * FROM " + TABLE_USERS_OFFLINE);
+            // search keys were already updated during resync
+            ContactSearchIndex.deleteOrphans(db, TABLE_USERS);
             success = setTransactionSuccessful(db);
         }
         catch (SQLException e) {
@@ -613,16 +774,17 @@ public class UsersProvider extends ContentProvider {
 
         // we are trying to be fast here
         SQLiteStatement stm = db.compileStatement("INSERT INTO " + TABLE_USERS_OFFLINE +
-            " (number, jid, display_name, lookup_key, contact_id, registered)" +
-            " VALUES(?, ?, ?, ?, ?, ?)");
+            " (number, jid, display_name, lookup_key, contact_id, registered, sort_key, label)" +
+            " VALUES(?, ?, ?, ?, ?, ?, ?, ?)");
 
         // these two statements are used to immediately update data in the online table
         // even if the data is dummy, it will be soon replaced by sync or by manual request
         SQLiteStatement onlineUpd = db.compileStatement("UPDATE " + TABLE_USERS +
-            " SET number = ?, display_name = ?, lookup_key = ?, contact_id = ? WHERE jid = ?");
+            " SET number = ?, display_name = ?, lookup_key = ?, contact_id = ?, sort_key = ?, label = ? WHERE jid = ?");
         SQLiteStatement onlineIns = db.compileStatement("INSERT INTO " + TABLE_USERS +
-            " (number, jid, display_name, lookup_key, contact_id, registered)" +
-            " VALUES(?, ?, ?, ?, ?, ?)");
+            " (number, jid, display_name, lookup_key, contact_id, registered, sort_key, label)" +
+            " VALUES(?, ?, ?, ?, ?, ?, ?, ?)");
+        SQLiteStatement lookupIns = ContactSearchIndex.compileInsert(db);
 
         Cursor phones = null;
         String dialPrefix = Preferences.getDialPrefix();
@@ -678,7 +840,7 @@ public class UsersProvider extends ContentProvider {
                         long contactId = phones.getLong(3);
                         String jid = XMPPUtils.createLocalJID(getContext(), hash);
 
-                        addResyncContact(db, stm, onlineUpd, onlineIns,
+                        addResyncContact(db, stm, onlineUpd, onlineIns, lookupIns,
                             number, jid, name,
                             lookupKey, contactId, false);
                         count++;
@@ -752,7 +914,7 @@ public class UsersProvider extends ContentProvider {
                             String jid = XMPPUtils.createLocalJID(getContext(), hash);
                             long contactId = phones.getLong(phones.getColumnIndex(BaseColumns._ID));
 
-                            addResyncContact(db, stm, onlineUpd, onlineIns,
+                            addResyncContact(db, stm, onlineUpd, onlineIns, lookupIns,
                                 number, jid, name,
                                 null, contactId,
                                 false);
@@ -788,7 +950,7 @@ public class UsersProvider extends ContentProvider {
                     String hash = MessageUtils.sha1(ownNumber);
                     String jid = XMPPUtils.createLocalJID(getContext(), hash);
 
-                    addResyncContact(db, stm, onlineUpd, onlineIns,
+                    addResyncContact(db, stm, onlineUpd, onlineIns, lookupIns,
                         ownNumber, jid, ownName,
                         null, null,
                         true);
@@ -810,6 +972,7 @@ public class UsersProvider extends ContentProvider {
             if (phones != null)
                 phones.close();
             stm.close();
+            lookupIns.close();
 
             // time to invalidate contacts cache (because of updates to online)
             Contact.invalidate();
@@ -817,10 +980,13 @@ public class UsersProvider extends ContentProvider {
         return count;
     }
 
-    private void addResyncContact(SQLiteDatabase db, SQLiteStatement stm, SQLiteStatement onlineUpd, SQLiteStatement onlineIns,
+    private void addResyncContact(SQLiteDatabase db, SQLiteStatement stm, SQLiteStatement onlineUpd,
+        SQLiteStatement onlineIns, SQLiteStatement lookupIns,
         String number, String jid, String displayName, String lookupKey,
         Long contactId, boolean registered) {
 
+        String sortKey = getSortKey(displayName, number);
+        String label = getLabel(mLocaleUtils, sortKey);
         int i = 0;
 
         stm.clearBindings();
@@ -839,6 +1005,8 @@ public class UsersProvider extends ContentProvider {
         else
             stm.bindNull(++i);
         stm.bindLong(++i, registered ? 1 : 0);
+        stm.bindString(++i, sortKey);
+        stm.bindString(++i, label);
         stm.executeInsert();
 
         // update online entry
@@ -857,6 +1025,8 @@ public class UsersProvider extends ContentProvider {
             onlineUpd.bindLong(++i, contactId);
         else
             onlineUpd.bindNull(++i);
+        onlineUpd.bindString(++i, sortKey);
+        onlineUpd.bindString(++i, label);
         onlineUpd.bindString(++i, jid);
         int rows = executeUpdateDelete(db, onlineUpd);
 
@@ -879,17 +1049,23 @@ public class UsersProvider extends ContentProvider {
             else
                 onlineIns.bindNull(++i);
             onlineIns.bindLong(++i, registered ? 1 : 0);
+            onlineIns.bindString(++i, sortKey);
+            onlineIns.bindString(++i, label);
             onlineIns.executeInsert();
         }
+
+        ContactSearchIndex.update(db, lookupIns, jid, displayName, number);
     }
 
     @Override
     public Uri insert(@NonNull Uri uri, ContentValues values) {
+        sWriteCount.incrementAndGet();
         try {
             int match = sUriMatcher.match(uri);
             switch (match) {
                 case USERS:
                 case USERS_JID:
+                    invalidateFastScrollingIndexCache();
                     return insertUser(values, Boolean.parseBoolean(uri
                         .getQueryParameter(Users.OFFLINE)), Boolean.parseBoolean(uri
                         .getQueryParameter(Users.DISCARD_NAME)));
@@ -918,7 +1094,7 @@ public class UsersProvider extends ContentProvider {
             }
         }
         finally {
-            invalidateFastScrollingIndexCache();
+            onWrite();
         }
     }
 
@@ -928,11 +1104,14 @@ public class UsersProvider extends ContentProvider {
         String table = offline ? TABLE_USERS_OFFLINE : TABLE_USERS;
         long id = 0;
 
+        String jid = values.getAsString(Users.JID);
         try {
-            id = db.insertOrThrow(table, null, values);
+            id = db.insertOrThrow(table, null, withSortKey(values, true));
+            if (!offline && jid != null)
+                ContactSearchIndex.update(db, jid, values.getAsString(Users.DISPLAY_NAME),
+                    values.getAsString(Users.NUMBER));
         }
         catch (SQLException e) {
-            String jid = values.getAsString(Users.JID);
             if (jid != null) {
                 // discard display_name if requested
                 if (discardName) {
@@ -940,7 +1119,9 @@ public class UsersProvider extends ContentProvider {
                     values.remove(Users.NUMBER);
                 }
 
-                db.update(table, values, Users.JID + "=?", new String[] { jid });
+                int rows = db.update(table, withSortKey(values, false), Users.JID + "=?", new String[] { jid });
+                if (rows > 0 && !offline && (values.containsKey(Users.DISPLAY_NAME) || values.containsKey(Users.NUMBER)))
+                    ContactSearchIndex.update(db, TABLE_USERS, Collections.singletonList(jid));
             }
         }
 
@@ -1016,12 +1197,55 @@ public class UsersProvider extends ContentProvider {
         return rows;
     }
 
+    /** Updates (or creates) several users in a single transaction. */
+    private int updateUsers(ContentValues[] values) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        int rows = 0;
+        beginTransaction(db);
+        boolean success = false;
+        try {
+            for (ContentValues v : values) {
+                ContentValues userValues = new ContentValues(v);
+                String jid = userValues.getAsString(Users.JID);
+                userValues.remove(Users.JID);
+                rows += updateUser(userValues, false, Users.JID + "=?", new String[] { jid });
+            }
+            success = setTransactionSuccessful(db);
+        }
+        finally {
+            endTransaction(db, success);
+        }
+
+        return rows;
+    }
+
     @Override
     public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        sWriteCount.incrementAndGet();
         int match = sUriMatcher.match(uri);
         switch (match) {
+            case USERS:
+                try {
+                    for (ContentValues v : values) {
+                        if (isListChange(v)) {
+                            invalidateFastScrollingIndexCache();
+                            break;
+                        }
+                    }
+                    return updateUsers(values);
+                }
+                finally {
+                    onWrite();
+                }
+
             case KEYS:
-                return insertKeys(values);
+                try {
+                    return insertKeys(values);
+                }
+                finally {
+                    onWrite();
+                }
 
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -1047,6 +1271,63 @@ public class UsersProvider extends ContentProvider {
             registeredValues, Users.JID+"=?", new String[] { jid });
     }
 
+    /** Users waiting to be marked as registered. */
+    private static final Set<String> sPendingRegistered = new LinkedHashSet<>();
+
+    /**
+     * Marks a user as registered in the background. Requests for the same
+     * user are merged and all pending users are written in a single batch.
+     */
+    public static void markRegisteredAsync(Context context, String jid) {
+        synchronized (sPendingRegistered) {
+            // already scheduled or duplicated
+            if (!sPendingRegistered.add(jid) || sPendingRegistered.size() > 1)
+                return;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        BackgroundExecutor.getInstance().execute(new Runnable() {
+            @Override
+            public void run() {
+                flushRegistered(appContext);
+            }
+        }, BackgroundExecutor.PRIORITY_LOW);
+    }
+
+    static void flushRegistered(Context context) {
+        ContentValues[] values;
+        synchronized (sPendingRegistered) {
+            values = new ContentValues[sPendingRegistered.size()];
+            int i = 0;
+            for (String jid : sPendingRegistered) {
+                ContentValues v = new ContentValues(2);
+                v.put(Users.JID, jid);
+                v.put(Users.REGISTERED, 1);
+                values[i++] = v;
+            }
+            sPendingRegistered.clear();
+        }
+
+        if (values.length > 0) {
+            try {
+                context.getContentResolver().bulkInsert(Users.CONTENT_URI, values);
+            }
+            catch (SQLiteConstraintException e) {
+                // this might happen during an online/offline switch
+            }
+        }
+    }
+
+    /** Number of write requests (insert, update, delete) since process start. */
+    public static long getWriteCount() {
+        return sWriteCount.get();
+    }
+
+    /** Number of times the fast scrolling index cache was invalidated since process start. */
+    public static long getIndexInvalidationCount() {
+        return sIndexInvalidations.get();
+    }
+
     /** Retrieves the last seen timestamp for a user. */
     public static long getLastSeen(Context context, String jid) {
         long timestamp = -1;
@@ -1105,10 +1386,40 @@ public class UsersProvider extends ContentProvider {
         return context.getContentResolver().update(uri, new ContentValues(), null, null);
     }
 
+    /** Applies a batch of operations in a single transaction. */
+    @NonNull
+    @Override
+    public synchronized ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean success = false;
+
+        beginTransaction(db);
+        mBatchThread = Thread.currentThread();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            mBatchThread = null;
+            success = setTransactionSuccessful(db);
+            return results;
+        }
+        finally {
+            mBatchThread = null;
+            endTransaction(db, success);
+        }
+    }
+
+    private boolean isBatching() {
+        return mBatchThread == Thread.currentThread();
+    }
+
     /* Transactions compatibility layer */
 
     @TargetApi(android.os.Build.VERSION_CODES.HONEYCOMB)
     private void beginTransaction(SQLiteDatabase db) {
+        // already in a transaction
+        if (isBatching())
+            return;
+
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB)
             db.beginTransactionNonExclusive();
         else
@@ -1117,19 +1428,25 @@ public class UsersProvider extends ContentProvider {
     }
 
     private boolean setTransactionSuccessful(SQLiteDatabase db) {
+        if (isBatching())
+            return true;
+
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB)
             db.setTransactionSuccessful();
         return true;
     }
 
     private void endTransaction(SQLiteDatabase db, boolean success) {
+        if (isBatching())
+            return;
+
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB)
             db.endTransaction();
         else
             db.execSQL(success ? "COMMIT" : "ROLLBACK");
     }
 
-    private int executeUpdateDelete(SQLiteDatabase db, SQLiteStatement stm) {
+    static int executeUpdateDelete(SQLiteDatabase db, SQLiteStatement stm) {
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB) {
             return stm.executeUpdateDelete();
         }
@@ -1164,6 +1481,8 @@ public class UsersProvider extends ContentProvider {
         usersProjectionMap.put(Users.STATUS, Users.STATUS);
         usersProjectionMap.put(Users.LAST_SEEN, Users.LAST_SEEN);
         usersProjectionMap.put(Users.BLOCKED, Users.BLOCKED);
+        usersProjectionMap.put(Users.SORT_KEY, Users.SORT_KEY);
+        usersProjectionMap.put(Users.LABEL, Users.LABEL);
 
         // only for direct access to the keys table (for optimization)
         keysProjectionMap = new HashMap<>();
@@ -57,6 +57,7 @@ import org.kontalk.crypto.DecryptException;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.provider.Keyring;
+import org.kontalk.provider.MessagesProviderUtils;
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.reporting.ReportingManager;
 import org.kontalk.service.msgcenter.MessageCenterService;
@@ -315,8 +316,11 @@ public class DownloadService extends IntentService implements DownloadListener {
 
         // update messages.localUri
         if (values == null)
-            values = new ContentValues(1);
+            values = new ContentValues(3);
         values.put(Messages.ATTACHMENT_LOCAL_URI, uri.toString());
+        // media metadata, so the UI doesn't have to read the file
+        MessagesProviderUtils.putMediaMetadata(this, values,
+            mime != null ? mime : MediaStorage.getType(this, uri), uri);
         getContentResolver().update(ContentUris
             .withAppendedId(Messages.CONTENT_URI, mMessageId), values, null, null);
 
@@ -26,14 +26,17 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
 
+import org.kontalk.Log;
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.message.ImageComponent;
 import org.kontalk.provider.MessagesProvider;
 import org.kontalk.provider.MessagesProviderUtils;
 import org.kontalk.provider.MyMessages;
 import org.kontalk.service.msgcenter.MessageCenterService;
+import org.kontalk.util.ImageEncoder;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.Preferences;
+import org.kontalk.util.SystemUtils;
 
 
 /**
@@ -84,10 +87,15 @@ public class MediaService extends IntentService {
             }
 
             if (compress > 0) {
-                File compressed = MediaStorage.resizeImage(this, uri, compress);
-                length = compressed.length();
+                String network = SystemUtils.getCurrentNetworkIdentity(this);
+                long budget = ImageEncoder.getBudget(network != null ?
+                    Preferences.getUplinkThroughput(network) : 0);
+                ImageEncoder.Result result = ImageEncoder.encode(this, uri, compress, budget);
+                Log.d(TAG, "image encoded: " + result);
+                length = result.length;
                 // use the compressed image from now on
-                uri = Uri.fromFile(compressed);
+                uri = Uri.fromFile(result.file);
+                mime = ImageEncoder.MIME;
             }
             else if (media) {
                 File copy = MediaStorage.copyOutgoingMedia(this, uri);
@@ -98,7 +106,7 @@ public class MediaService extends IntentService {
                 length = MediaStorage.getLength(this, uri);
             }
 
-            MessagesProviderUtils.updateMedia(this, databaseId,
+            MessagesProviderUtils.updateMedia(this, databaseId, mime,
                 previewFile != null ? previewFile.toString() : null,
                 uri, length);
 
@@ -108,6 +116,10 @@ public class MediaService extends IntentService {
             MessagesProvider.changeMessageStatus(this, databaseId, MyMessages.Messages.STATUS_ERROR);
             // TODO notify error in some way?
         }
+        catch (OutOfMemoryError e) {
+            Log.e(TAG, "out of memory preparing media", e);
+            MessagesProvider.changeMessageStatus(this, databaseId, MyMessages.Messages.STATUS_ERROR);
+        }
     }
 
     public static void prepareMessage(Context context, String msgId, long databaseId, Uri uri, String mime, boolean media, int compress) {
@@ -42,14 +42,18 @@ public class NotificationActionReceiver extends BroadcastReceiver {
         if (MessagingNotification.ACTION_NOTIFICATION_DELETED.equals(action)) {
             // mark threads as old
             Parcelable[] threads = intent.getParcelableArrayExtra("org.kontalk.datalist");
-            for (Parcelable uri : threads)
-                MessagesProvider.markThreadAsOld(context, ContentUris.parseId((Uri) uri));
-            MessagingNotification.delayedUpdateMessagesNotification(context, false);
+            long[] threadIds = new long[threads.length];
+            for (int i = 0; i < threads.length; i++) {
+                threadIds[i] = ContentUris.parseId((Uri) threads[i]);
+                MessagesProvider.markThreadAsOld(context, threadIds[i]);
+            }
+            MessagingNotification.clearThreads(context, threadIds);
         }
         else if (MessagingNotification.ACTION_NOTIFICATION_MARK_READ.equals(action)) {
             // mark threads as read
-            MessagesProvider.markThreadAsRead(context, ContentUris.parseId(intent.getData()));
-            MessagingNotification.delayedUpdateMessagesNotification(context, false);
+            long threadId = ContentUris.parseId(intent.getData());
+            MessagesProvider.markThreadAsRead(context, threadId);
+            MessagingNotification.clearThreads(context, threadId);
         }
     }
 
@@ -34,6 +34,7 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 
 import org.kontalk.Log;
@@ -47,6 +48,9 @@ import org.kontalk.ui.ProgressNotificationBuilder;
 import org.kontalk.upload.HTPPFileUploadConnection;
 import org.kontalk.upload.UploadConnection;
 import org.kontalk.util.MediaStorage;
+import org.kontalk.util.Preferences;
+import org.kontalk.util.SystemUtils;
+import org.kontalk.util.ThroughputEstimator;
 
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_UPLOADING;
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_UPLOAD_ERROR;
@@ -190,7 +194,9 @@ public class UploadService extends IntentService implements ProgressListener {
             queue.put(filename, mMessageId);
 
             // upload content
+            long start = SystemClock.elapsedRealtime();
             String mediaUrl = mConn.upload(file, length, mime, encrypt, to, this);
+            recordThroughput(length, SystemClock.elapsedRealtime() - start);
             if (mediaUrl == null)
                 mediaUrl = fetchUrl;
             Log.d(TAG, "uploaded with media URL: " + mediaUrl);
@@ -224,6 +230,21 @@ public class UploadService extends IntentService implements ProgressListener {
         }
     }
 
+    /** Updates the uplink throughput estimate of the current network. */
+    private void recordThroughput(long length, long millis) {
+        String network = SystemUtils.getCurrentNetworkIdentity(this);
+        if (network == null)
+            return;
+
+        ThroughputEstimator estimator = new ThroughputEstimator(
+            Preferences.getUplinkThroughput(network));
+        if (estimator.addSample(length, millis)) {
+            Log.v(TAG, "uplink throughput for " + network + ": " +
+                estimator.getThroughput() + " bytes/s");
+            Preferences.setUplinkThroughput(network, estimator.getThroughput());
+        }
+    }
+
     public void startForeground(long totalBytes) {
         Log.d(TAG, "starting foreground progress notification");
 
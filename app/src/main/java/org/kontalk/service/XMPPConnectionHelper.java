@@ -23,8 +23,11 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import com.segment.backo.Backo;
@@ -40,12 +43,15 @@ import org.jivesoftware.smack.sasl.SASLErrorException;
 import org.spongycastle.openpgp.PGPException;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.provider.Settings;
 
 import org.kontalk.Kontalk;
 import org.kontalk.Log;
 import org.kontalk.authenticator.LegacyAuthentication;
+import org.kontalk.client.ConnectionRace;
 import org.kontalk.client.EndpointServer;
+import org.kontalk.client.EndpointStats;
 import org.kontalk.client.KontalkConnection;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PersonalKey;
@@ -72,9 +78,16 @@ public class XMPPConnectionHelper extends Thread {
     /** Max retries after for authentication error. */
     private static final int MAX_AUTH_ERRORS = 3;
 
+    /** Max number of servers to race connections to. */
+    private static final int MAX_RACE_CANDIDATES = 3;
+
     private final Context mContext;
     private EndpointServer mServer;
     private boolean mServerDirty;
+    /** Alternative servers to race connections to. */
+    private EndpointServer.EndpointServerProvider mServerProvider;
+    /** The connection race in progress. */
+    private volatile ConnectionRace<KontalkConnection> mRace;
 
     /** Connection retry count for exponential backoff. */
     private int mRetryCount;
@@ -128,6 +141,16 @@ public class XMPPConnectionHelper extends Thread {
         mRetryEnabled = enabled;
     }
 
+    /**
+     * Sets a provider for alternative servers. Connections will be raced
+     * between the current server and the next servers from the provider.
+     * A copy of the provider is used, so servers picked (or canceled) by
+     * the race are still available to the caller.
+     */
+    public void setServerProvider(EndpointServer.EndpointServerProvider provider) {
+        mServerProvider = provider != null ? provider.copy() : null;
+    }
+
     @Override
     public synchronized void start() {
         mConnecting = true;
@@ -162,38 +185,20 @@ public class XMPPConnectionHelper extends Thread {
             }
         }
 
+        long start = SystemClock.elapsedRealtime();
+
         // recreate connection if closed
         if (mConn == null || !mConn.isConnected()) {
-
-            KeyStore trustStore = null;
-            boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
-            if (!acceptAnyCertificate)
-                trustStore = InternalTrustStore.getTrustStore(mContext);
-
-            String resource = getResource(mContext);
-
-            if (key == null) {
-                mConn = new KontalkConnection(resource, mServer, !USE_STARTTLS,
-                    acceptAnyCertificate, trustStore, token);
-            }
-
-            else {
-                mConn = new KontalkConnection(resource, mServer, !USE_STARTTLS,
-                    key.getBridgePrivateKey(),
-                    key.getBridgeCertificate(),
-                    acceptAnyCertificate,
-                    trustStore, token);
-            }
-
-            // apply packet timeout based on retry count
-            mConn.setPacketReplyTimeout((mRetryCount + 1) * KontalkConnection.DEFAULT_PACKET_TIMEOUT);
+            // connect
+            mConn = race(key, token);
 
             if (mListener != null)
                 mListener.created(mConn);
         }
-
-        // connect
-        mConn.connect();
+        else {
+            // connect
+            mConn.connect();
+        }
 
         if (mListener != null) {
             mConn.addConnectionListener(mListener);
@@ -201,9 +206,130 @@ public class XMPPConnectionHelper extends Thread {
         }
 
         // login
-        if ((!mLimited || forceLogin) && (key != null || token != null))
+        if ((!mLimited || forceLogin) && (key != null || token != null)) {
             mConn.login();
+            Log.d(TAG, "authenticated to " + mServer + " in " +
+                (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+
+    }
+
+    /**
+     * Races connections to the current server and to the next servers from
+     * the provider. Only the connection is raced: login is done on the
+     * winning connection only, since our listener can manage just one.
+     * The winner becomes the current server.
+     */
+    private KontalkConnection race(PersonalKey key, final String token) throws XMPPException,
+            SmackException, PGPException, IOException, KeyStoreException,
+            NoSuchProviderException, NoSuchAlgorithmException, CertificateException {
 
+        final KeyStore trustStore;
+        final boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
+        if (!acceptAnyCertificate)
+            trustStore = InternalTrustStore.getTrustStore(mContext);
+        else
+            trustStore = null;
+
+        final String resource = getResource(mContext);
+        final PrivateKey privateKey = key != null ? key.getBridgePrivateKey() : null;
+        final X509Certificate bridgeCert = key != null ? key.getBridgeCertificate() : null;
+        // apply packet timeout based on retry count
+        final int packetTimeout = (mRetryCount + 1) * KontalkConnection.DEFAULT_PACKET_TIMEOUT;
+
+        ConnectionRace<KontalkConnection> race = new ConnectionRace<>(getRaceCandidates(),
+            new ConnectionRace.AttemptFactory<KontalkConnection>() {
+                @Override
+                public ConnectionRace.Attempt<KontalkConnection> create(final EndpointServer server) {
+                    return new ConnectionRace.Attempt<KontalkConnection>() {
+                        private KontalkConnection mConnection;
+                        private boolean mCanceled;
+
+                        @Override
+                        public KontalkConnection connect() throws Exception {
+                            KontalkConnection conn = new KontalkConnection(resource, server,
+                                !USE_STARTTLS, privateKey, bridgeCert,
+                                acceptAnyCertificate, trustStore, token);
+                            conn.setPacketReplyTimeout(packetTimeout);
+
+                            synchronized (this) {
+                                if (mCanceled)
+                                    throw new IOException("connection canceled");
+                                mConnection = conn;
+                            }
+
+                            conn.connect();
+                            return conn;
+                        }
+
+                        @Override
+                        public synchronized void cancel() {
+                            mCanceled = true;
+                            if (mConnection != null)
+                                mConnection.instantShutdown();
+                        }
+                    };
+                }
+            }, ConnectionRace.DEFAULT_STAGGER);
+
+        mRace = race;
+        try {
+            KontalkConnection conn = race.run();
+            mServer = conn.getServer();
+            return conn;
+        }
+        catch (XMPPException e) {
+            throw e;
+        }
+        catch (SmackException e) {
+            throw e;
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            // not thrown by our attempts
+            throw new IOException(e);
+        }
+        finally {
+            mRace = null;
+            recordRace(race.getReports());
+        }
+    }
+
+    private List<EndpointServer> getRaceCandidates() {
+        List<EndpointServer> candidates = new ArrayList<>(MAX_RACE_CANDIDATES);
+        candidates.add(mServer);
+        if (mServerProvider != null) {
+            while (candidates.size() < MAX_RACE_CANDIDATES) {
+                EndpointServer server = mServerProvider.next();
+                if (server == null)
+                    break;
+                if (!candidates.contains(server))
+                    candidates.add(server);
+            }
+        }
+        return candidates;
+    }
+
+    /** Updates the connection history of the raced servers. */
+    private void recordRace(List<ConnectionRace.Report> reports) {
+        long now = System.currentTimeMillis();
+        for (ConnectionRace.Report report : reports) {
+            Log.d(TAG, "connection attempt to " + report);
+
+            EndpointStats stats = Preferences.getEndpointStats(report.server);
+            if (report.outcome == ConnectionRace.Outcome.WON)
+                stats.onSuccess(report.time);
+            else if (report.outcome == ConnectionRace.Outcome.FAILED)
+                stats.onFailure(now);
+            else
+                continue;
+            Preferences.setEndpointStats(report.server, stats);
+        }
     }
 
     public void connect() {
@@ -252,6 +378,10 @@ public class XMPPConnectionHelper extends Thread {
 
         while (mConnecting) {
             try {
+                // all alternative servers are available again
+                if (mServerProvider != null)
+                    mServerProvider.reset();
+
                 connectOnce(key, token, false);
 
                 // this should be the right moment
@@ -380,6 +510,10 @@ public class XMPPConnectionHelper extends Thread {
         mConnecting = false;
         interrupt();
 
+        ConnectionRace<KontalkConnection> race = mRace;
+        if (race != null)
+            race.cancel();
+
         if (mConn != null)
             mConn.instantShutdown();
     }
@@ -41,22 +41,9 @@ public abstract class AbstractAdaptiveServerPingManager extends Manager {
      */
     protected long mInterval;
     /**
-     * Timestamp of last ping success.
+     * Interval search for the current network.
      */
-    protected long mLastSuccess;
-    /**
-     * Last successful ping interval.
-     */
-    protected long mLastSuccessInterval;
-    /**
-     * Interval for the next increase.
-     */
-    protected long mNextIncrease;
-    /**
-     * Successful ping streak. Used for computing when the next increase attempt
-     * will be made.
-     */
-    protected long mPingStreak;
+    protected AdaptivePingInterval mSearch;
 
     protected AbstractAdaptiveServerPingManager(XMPPConnection connection) {
         super(connection);
@@ -76,73 +63,42 @@ public abstract class AbstractAdaptiveServerPingManager extends Manager {
 
     /**
      * Called by the ping failed listener.
-     * It will half the interval for the next alarm.
+     * The interval becomes the new upper bound and we go back to the
+     * longest interval known to work.
      */
     public void pingFailed() {
-        long interval;
-
-        // ping has failed, reset ping streak
-        mPingStreak = 0;
-
-        if (mLastSuccessInterval > 0) {
-            // we were trying an increase, go back to previous value
-            interval = mLastSuccessInterval;
-            // better use the previous value for a longer time :)
-            setNextIncreaseInterval((long) (mNextIncrease * 1.5));
+        if (mSearch != null) {
+            long interval = mSearch.onFailure();
+            LOGGER.fine("Ping failed, interval bounds " + mSearch.getLower() + "-" + mSearch.getUpper());
+            saveState(mSearch);
+            setupPing(interval);
         }
         else {
             // half interval
-            interval = mInterval / 2;
+            setupPing(mInterval / 2);
         }
-        setupPing(interval);
     }
 
     /**
      * Called when a ping has succeeded.
-     * In order to avoid a too much optimistic approach, we wait for at least
-     * the supposed ping interval to pass before incrementing back the interval
-     * for the next ping.
+     * The interval becomes the new lower bound and we try the next probe.
      */
     public void pingSuccess() {
-        long nextAlarm = mInterval;
-        long now = getElapsedRealtime();
-
-        // we got a successful ping, increase ping streak
-        mPingStreak += mInterval;
-
-        if (mLastSuccessInterval > 0) {
-            // interval increase was successful, reset backoff
-            setNextIncreaseInterval(mInterval);
-
-            // interval increase was successful
+        if (mSearch != null) {
+            long interval = mSearch.onSuccess();
+            saveState(mSearch);
+            setupPing(interval);
         }
-        // try an increase only if we previously had a successful ping
-        else if (mLastSuccess > 0) {
-            if (mPingStreak >= mNextIncrease) {
-                // we are trying an increase, store the last successful interval
-                mLastSuccessInterval = mInterval;
-
-                nextAlarm = (long) (mInterval * 1.5);
-            }
-
-            // do not increase interval for now
+        else {
+            setupPing(mInterval);
         }
-
-        // remember last success
-        mLastSuccess = now;
-
-        setupPing(nextAlarm);
     }
 
     protected abstract void setupPing(long intervalMillis);
 
     protected abstract long getElapsedRealtime();
 
-    protected void setNextIncreaseInterval(long interval) {
-        // reset last successful interval
-        mLastSuccessInterval = 0;
-        // set and save next increase
-        mNextIncrease = interval;
-    }
+    /** Stores the interval bounds for the current network. */
+    protected abstract void saveState(AdaptivePingInterval search);
 
 }
@@ -0,0 +1,132 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+
+/**
+ * Searches for the longest ping interval a network can keep a connection
+ * idle for (usually it's the NAT timeout of some router along the way).
+ * The interval is bracketed between the longest interval known to work and
+ * the shortest interval known to fail, and the next probe is taken in the
+ * middle, so a network converges in a few pings instead of growing by small
+ * steps. The bounds are meant to be stored per network.
+ * All values are in milliseconds.
+ * @author Daniele Ricci
+ */
+public class AdaptivePingInterval {
+
+    /** The search stops when the bounds are this close. */
+    public static final long PRECISION = 30 * 1000;
+    /** Probe again after being stable for this long, in case the network got better. */
+    public static final long REPROBE_AFTER = 12 * 60 * 60 * 1000;
+
+    private final long mMin;
+    private final long mMax;
+
+    /** Longest interval known to work. */
+    private long mLower;
+    /** Shortest interval known to fail, 0 if unknown. */
+    private long mUpper;
+    /** The interval being used. */
+    private long mInterval;
+    /** Idle time spent at the converged interval. */
+    private long mStableTime;
+
+    /**
+     * @param lower longest interval known to work, 0 if unknown
+     * @param upper shortest interval known to fail, 0 if unknown
+     */
+    public AdaptivePingInterval(long min, long max, long lower, long upper) {
+        mMin = min;
+        mMax = max;
+        mLower = Math.max(min, Math.min(max, lower));
+        mUpper = (upper > mLower && upper <= max) ? upper : 0;
+        // start from the safe value, the first success will start probing
+        mInterval = mLower;
+    }
+
+    public long getInterval() {
+        return mInterval;
+    }
+
+    public long getLower() {
+        return mLower;
+    }
+
+    public long getUpper() {
+        return mUpper;
+    }
+
+    public boolean isConverged() {
+        return mLower >= mMax || (mUpper > 0 && mUpper - mLower <= PRECISION);
+    }
+
+    /**
+     * The connection survived the current interval.
+     * @return the next interval
+     */
+    public long onSuccess() {
+        if (mInterval > mLower)
+            mLower = mInterval;
+
+        if (isConverged()) {
+            mStableTime += mInterval;
+            if (mStableTime >= REPROBE_AFTER && mLower < mMax) {
+                // widen the search again, it will cost one failure at most
+                mStableTime = 0;
+                mUpper = mUpper * 2 <= mMax ? mUpper * 2 : 0;
+            }
+        }
+
+        mInterval = nextProbe();
+        return mInterval;
+    }
+
+    /**
+     * The connection didn't survive the current interval.
+     * @return the next interval
+     */
+    public long onFailure() {
+        long failed = mInterval;
+        mStableTime = 0;
+
+        if (failed <= mLower) {
+            // a known good interval failed: the network changed, search again below
+            mLower = Math.max(mMin, failed / 2);
+            mUpper = failed > mLower ? failed : 0;
+        }
+        else {
+            mUpper = failed;
+        }
+
+        // go back to the safe value, next success will probe again
+        mInterval = mLower;
+        return mInterval;
+    }
+
+    private long nextProbe() {
+        if (isConverged())
+            return mLower;
+        else if (mUpper == 0)
+            return Math.min(mLower * 2, mMax);
+        else
+            return (mLower + mUpper) / 2;
+    }
+
+}
@@ -93,23 +93,23 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
 
     private Context mContext;
     private PendingIntent mPendingIntent;
+    /** Identity of the network the interval bounds belong to. */
+    private String mNetwork;
 
     private void setupOnConnectionCompleted() {
         if (mContext != null) {
-            // setup first alarm using last value from preference
-            setupPing(Preferences.getPingAlarmInterval(mContext, AlarmManager.INTERVAL_HALF_HOUR));
-            // next increase can happen at least at next interval
-            mNextIncrease = Preferences.getPingAlarmBackoff(mContext, mInterval);
-            // reset internal variables
-            mLastSuccess = 0;
-            mLastSuccessInterval = 0;
+            // resume the interval search from the bounds learned on this network
+            mNetwork = SystemUtils.getCurrentNetworkIdentity(mContext);
+            mSearch = new AdaptivePingInterval(MIN_ALARM_INTERVAL, AlarmManager.INTERVAL_HALF_HOUR,
+                mNetwork != null ? Preferences.getPingAlarmInterval(mNetwork, 0) : 0,
+                mNetwork != null ? Preferences.getPingAlarmUpperBound(mNetwork, 0) : 0);
+            setupPing(mSearch.getInterval());
         }
     }
 
     @Override
     public void onConnectionCompleted() {
         setupOnConnectionCompleted();
-        mPingStreak = 0;
     }
 
     @Override
@@ -178,9 +178,6 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
                 mInterval = MIN_ALARM_INTERVAL;
             }
 
-            // save value to preference for later retrieval
-            Preferences.setPingAlarmInterval(mContext, mInterval);
-
             // remove difference from last received stanza
             long interval = mInterval;
             XMPPConnection connection = connection();
@@ -215,9 +212,9 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
     }
 
     @Override
-    protected void setNextIncreaseInterval(long interval) {
-        super.setNextIncreaseInterval(interval);
-        Preferences.setPingAlarmBackoff(mContext, mNextIncrease);
+    protected void saveState(AdaptivePingInterval search) {
+        if (mNetwork != null)
+            Preferences.setPingAlarmBounds(mNetwork, search.getLower(), search.getUpper());
     }
 
     public static void onConnected() {
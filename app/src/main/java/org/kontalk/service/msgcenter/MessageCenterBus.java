@@ -0,0 +1,248 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.service.msgcenter;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import org.kontalk.util.XMPPUtils;
+
+
+/**
+ * In-process bus for commands to and events from the message center.
+ * Objects are passed as they are, without going through intents, and are
+ * delivered to every subscriber registered for their class (or a superclass)
+ * on the subscriber's handler, or on the bus thread if it didn't give one.
+ * Every subscriber has a small queue: when it can't keep up, events about the
+ * same JID replace older ones and the oldest event is dropped otherwise.
+ * @author Daniele Ricci
+ */
+public final class MessageCenterBus {
+
+    /** Maximum number of events waiting for a subscriber. */
+    static final int MAX_QUEUED = 64;
+
+    /** An event or command about a single user. */
+    public interface JidEvent {
+        /** The bare JID the event is about. */
+        String getJid();
+    }
+
+    public interface Subscriber<E> {
+        void onEvent(E event);
+    }
+
+    private static final CopyOnWriteArrayList<Subscription<?>> sSubscriptions =
+        new CopyOnWriteArrayList<>();
+
+    private static Handler sHandler;
+
+    private static final AtomicLong sPosted = new AtomicLong();
+    private static final AtomicLong sDelivered = new AtomicLong();
+    private static final AtomicLong sDropped = new AtomicLong();
+    private static final AtomicLong sDispatchTime = new AtomicLong();
+
+    private MessageCenterBus() {
+    }
+
+    /**
+     * Registers a subscriber for events of the given class.
+     * @param jid deliver only events about this JID, null for all events
+     * @param handler deliver events on this handler, null for the bus thread
+     */
+    public static <E> void subscribe(Class<E> type, String jid, Handler handler, Subscriber<? super E> subscriber) {
+        sSubscriptions.add(new Subscription<>(type, jid,
+            handler != null ? handler : getHandler(), subscriber));
+    }
+
+    /** Unregisters a subscriber from all events. Pending events are discarded. */
+    public static void unsubscribe(Subscriber<?> subscriber) {
+        for (Subscription<?> s : sSubscriptions) {
+            if (s.subscriber == subscriber) {
+                s.cancel();
+                sSubscriptions.remove(s);
+            }
+        }
+    }
+
+    /** Returns true if someone is listening for events of the given class. */
+    public static boolean hasSubscribers(Class<?> type) {
+        for (Subscription<?> s : sSubscriptions) {
+            if (s.type.isAssignableFrom(type))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Posts an event or command to its subscribers. Can be called from any thread.
+     * @return true if the event was queued for at least one subscriber
+     */
+    public static boolean post(Object event) {
+        sPosted.incrementAndGet();
+        String jid = event instanceof JidEvent ? ((JidEvent) event).getJid() : null;
+
+        boolean queued = false;
+        for (Subscription<?> s : sSubscriptions) {
+            if (s.matches(event, jid)) {
+                s.enqueue(event, jid);
+                queued = true;
+            }
+        }
+        return queued;
+    }
+
+    /** Number of events posted. */
+    public static long getPostedCount() {
+        return sPosted.get();
+    }
+
+    /** Number of deliveries to subscribers. */
+    public static long getDeliveredCount() {
+        return sDelivered.get();
+    }
+
+    /** Number of events replaced or dropped because a subscriber was too slow. */
+    public static long getDroppedCount() {
+        return sDropped.get();
+    }
+
+    /** Average time between posting and delivery, in microseconds. */
+    public static long getAverageDispatchTime() {
+        long delivered = sDelivered.get();
+        return delivered > 0 ? sDispatchTime.get() / delivered / 1000 : 0;
+    }
+
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread("MessageCenterBus", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+
+    private static final class Subscription<E> implements Runnable {
+        final Class<E> type;
+        final String jid;
+        final Handler handler;
+        final Subscriber<? super E> subscriber;
+
+        /** Queued events with their JID and posting time, as a ring buffer. */
+        private final Object[] mEvents = new Object[MAX_QUEUED];
+        private final String[] mJids = new String[MAX_QUEUED];
+        private final long[] mTimes = new long[MAX_QUEUED];
+        private int mHead;
+        private int mCount;
+
+        private boolean mScheduled;
+        private boolean mCancelled;
+
+        Subscription(Class<E> type, String jid, Handler handler, Subscriber<? super E> subscriber) {
+            this.type = type;
+            this.jid = jid;
+            this.handler = handler;
+            this.subscriber = subscriber;
+        }
+
+        boolean matches(Object event, String eventJid) {
+            return type.isInstance(event) && (jid == null ||
+                (eventJid != null && XMPPUtils.equalsBareJID(eventJid, jid)));
+        }
+
+        synchronized void enqueue(Object event, String eventJid) {
+            if (mCancelled)
+                return;
+
+            if (mCount == MAX_QUEUED) {
+                sDropped.incrementAndGet();
+                // drop an older event about the same user or the oldest one
+                remove(eventJid != null ? find(event, eventJid) : 0);
+            }
+
+            int tail = (mHead + mCount) % MAX_QUEUED;
+            mEvents[tail] = event;
+            mJids[tail] = eventJid;
+            mTimes[tail] = System.nanoTime();
+            mCount++;
+
+            if (!mScheduled) {
+                mScheduled = true;
+                handler.post(this);
+            }
+        }
+
+        /** Returns the position of a queued event of the same class about the same JID. */
+        private int find(Object event, String eventJid) {
+            for (int i = 0; i < mCount; i++) {
+                int index = (mHead + i) % MAX_QUEUED;
+                if (mEvents[index].getClass() == event.getClass() && eventJid.equals(mJids[index]))
+                    return i;
+            }
+            return 0;
+        }
+
+        /** Removes the event at the given position from the queue. */
+        private void remove(int position) {
+            for (int i = position; i > 0; i--) {
+                int to = (mHead + i) % MAX_QUEUED;
+                int from = (mHead + i - 1) % MAX_QUEUED;
+                mEvents[to] = mEvents[from];
+                mJids[to] = mJids[from];
+                mTimes[to] = mTimes[from];
+            }
+            mEvents[mHead] = null;
+            mJids[mHead] = null;
+            mHead = (mHead + 1) % MAX_QUEUED;
+            mCount--;
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            while (mCount > 0)
+                remove(0);
+            handler.removeCallbacks(this);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Object event;
+                long time;
+                synchronized (this) {
+                    if (mCount == 0 || mCancelled) {
+                        mScheduled = false;
+                        return;
+                    }
+                    event = mEvents[mHead];
+                    time = mTimes[mHead];
+                    remove(0);
+                }
+
+                sDispatchTime.addAndGet(System.nanoTime() - time);
+                sDelivered.incrementAndGet();
+                subscriber.onEvent(type.cast(event));
+            }
+        }
+    }
+
+}
@@ -84,10 +84,9 @@ abstract class MessageCenterPacketListener implements StanzaListener {
         return (instance != null) ? instance.getRosterEntry(jid) : null;
     }
 
-    protected void queueTask(Runnable task) {
+    protected boolean queueTask(Runnable task, int lane) {
         MessageCenterService instance = mInstance.get();
-        if (instance != null)
-            instance.queueTask(task);
+        return instance != null && instance.queueTask(task, lane);
     }
 
     protected void sendBroadcast(Intent intent) {
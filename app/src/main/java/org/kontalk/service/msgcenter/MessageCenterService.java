@@ -37,8 +37,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.zip.ZipInputStream;
 
 import org.jivesoftware.smack.AbstractXMPPConnection;
@@ -135,6 +133,7 @@ import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.provider.MyMessages.Threads.Requests;
 import org.kontalk.provider.MyUsers;
+import org.kontalk.provider.MyUsers.Users;
 import org.kontalk.provider.UsersProvider;
 import org.kontalk.service.KeyPairGeneratorService;
 import org.kontalk.service.UploadService;
@@ -149,6 +148,8 @@ import org.kontalk.service.msgcenter.group.KontalkGroupController;
 import org.kontalk.service.msgcenter.group.PartCommand;
 import org.kontalk.service.msgcenter.group.SetSubjectCommand;
 import org.kontalk.ui.MessagingNotification;
+import org.kontalk.util.BackgroundExecutor;
+import org.kontalk.util.LaneExecutor;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
@@ -164,6 +165,20 @@ import org.kontalk.util.SystemUtils;
 public class MessageCenterService extends Service implements ConnectionHelperListener {
     public static final String TAG = MessageCenterService.class.getSimpleName();
 
+    /** Task lane for messages the user is waiting for. */
+    static final int TASK_SEND = 0;
+    /** Task lane for receipts. */
+    static final int TASK_RECEIPT = 1;
+    /** Task lane for replies someone is waiting for by packet id (e.g. presence probes). */
+    static final int TASK_REQUEST = 2;
+    /** Task lane for incoming presence processing. */
+    static final int TASK_PRESENCE = 3;
+    /** Task lane for roster-wide requests and other background sync. */
+    static final int TASK_SYNC = 4;
+
+    /** Threads for executing tasks. */
+    private static final int TASK_THREADS = 2;
+
     static {
         SmackConfiguration.DEBUG = BuildConfig.DEBUG;
         // we need our own debugger factory because of our internal logging system
@@ -195,7 +210,12 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     /** Request the roster. */
     public static final String ACTION_ROSTER = "org.kontalk.action.ROSTER";
 
-    /** Request roster match. */
+    /**
+     * Request roster match. Without a JID list, all users from the offline
+     * users table are matched in as many requests as needed: replies have
+     * the request id followed by a dash and the part number, and the number
+     * of parts is broadcasted with the request id once all requests are sent.
+     */
     public static final String ACTION_ROSTER_MATCH = "org.kontalk.action.ROSTER_MATCH";
 
     /**
@@ -302,6 +322,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     // use with org.kontalk.action.ROSTER(_MATCH)
     public static final String EXTRA_JIDLIST = "org.kontalk.roster.JIDList";
+    public static final String EXTRA_ROSTER_PARTS = "org.kontalk.roster.parts";
     public static final String EXTRA_ROSTER_NAME = "org.kontalk.roster.name";
 
     // use with org.kontalk.action.LAST_ACTIVITY
@@ -373,6 +394,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     private AlarmManager mAlarmManager;
 
     private PingFailedListener mPingFailedListener;
+    /** Presence listener of the current connection. */
+    private volatile PresenceListener mPresenceListener;
 
     /** Cached last used server. */
     EndpointServer mServer;
@@ -389,10 +412,20 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     /** Roster store. */
     private SQLiteRosterStore mRosterStore;
 
+    /** Presence requests coming through the bus. */
+    private final MessageCenterBus.Subscriber<PresenceRequest> mPresenceRequestSubscriber =
+        new MessageCenterBus.Subscriber<PresenceRequest>() {
+            @Override
+            public void onEvent(PresenceRequest request) {
+                if (isConnected())
+                    probePresence(request.getJid(), request.getPacketId());
+            }
+        };
+
     /** Service handler. */
     Handler mHandler;
     /** Task execution pool. Generally used by packet listeners. */
-    private ExecutorService mThreadPool;
+    private LaneExecutor mThreadPool;
 
     /** Idle handler. */
     IdleConnectionHandler mIdleHandler;
@@ -638,6 +671,14 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
         // create the roster store
         mRosterStore = new SQLiteRosterStore(this);
+        // load the roster while we connect; if the queue is full it will be
+        // loaded on first use by the connection thread instead
+        BackgroundExecutor.getInstance().tryExecute(new Runnable() {
+            @Override
+            public void run() {
+                mRosterStore.load();
+            }
+        }, BackgroundExecutor.PRIORITY_HIGH);
 
         // create the global wake lock
         PowerManager pwr = (PowerManager) getSystemService(Context.POWER_SERVICE);
@@ -659,14 +700,39 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         // create main thread handler
         mHandler = new Handler();
 
+        // typed commands from the bus, handled in the main thread like intents
+        MessageCenterBus.subscribe(PresenceRequest.class, null, mHandler, mPresenceRequestSubscriber);
+
         // register screen off listener for manual inactivation
         registerInactivity();
     }
 
-    void queueTask(Runnable task) {
-        if (mThreadPool != null) {
-            mThreadPool.execute(task);
+    /**
+     * Queues a task for execution in the given lane.
+     * @param lane one of the TASK_* lanes
+     * @return false if the task was dropped
+     */
+    boolean queueTask(Runnable task, int lane) {
+        LaneExecutor pool = mThreadPool;
+        if (pool != null) {
+            if (pool.execute(task, lane))
+                return true;
+            Log.d(TAG, "task dropped: " + pool.getLane(lane));
         }
+        return false;
+    }
+
+    private static LaneExecutor createTaskExecutor() {
+        return new LaneExecutor("MessageCenterTask", TASK_THREADS,
+            // never drop messages, slow down the sender instead
+            new LaneExecutor.Lane("send", 64, LaneExecutor.POLICY_CALLER_RUNS),
+            new LaneExecutor.Lane("receipt", 128, LaneExecutor.POLICY_CALLER_RUNS),
+            // replies can't be dropped, someone is waiting for them
+            new LaneExecutor.Lane("request", 32, LaneExecutor.POLICY_CALLER_RUNS),
+            // a newer presence flush supersedes the older ones
+            new LaneExecutor.Lane("presence", 32, LaneExecutor.POLICY_DISCARD_OLDEST),
+            // a sync is already waiting
+            new LaneExecutor.Lane("sync", 4, LaneExecutor.POLICY_DISCARD));
     }
 
     private void createIdleHandler() {
@@ -732,6 +798,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         quit(false);
         // deactivate ping manager
         AndroidAdaptiveServerPingManager.onDestroy();
+        // stop receiving commands from the bus
+        MessageCenterBus.unsubscribe(mPresenceRequestSubscriber);
         // destroy roster store
         mRosterStore.onDestroy();
         // unregister screen off listener for manual inactivation
@@ -772,6 +840,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
         // stop all running tasks
         if (mThreadPool != null) {
+            Log.d(TAG, "task statistics: " + mThreadPool);
             mThreadPool.shutdownNow();
             mThreadPool = null;
         }
@@ -1141,8 +1210,13 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             Stanza iq;
 
             if (ACTION_ROSTER_MATCH.equals(intent.getAction())) {
-                iq = new RosterMatch();
                 String[] list = intent.getStringArrayExtra(EXTRA_JIDLIST);
+                if (list == null) {
+                    sendRosterMatch(intent.getStringExtra(EXTRA_PACKET_ID));
+                    return false;
+                }
+
+                iq = new RosterMatch();
 
                 for (String item : list) {
                     ((RosterMatch) iq).addItem(item);
@@ -1164,6 +1238,54 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         return false;
     }
 
+    /** Matches the whole offline users table, reading it a row at a time. */
+    private void sendRosterMatch(final String id) {
+        final String to = XmppStringUtils.completeJidFrom("probe", mServer.getNetwork());
+        boolean queued = queueTask(new Runnable() {
+            @Override
+            public void run() {
+                RosterMatchBuilder builder = new RosterMatchBuilder(to, id,
+                    RosterMatchBuilder.MAX_REQUEST_SIZE);
+
+                Cursor c = getContentResolver().query(Users.CONTENT_URI_OFFLINE,
+                    new String[] { Users.JID }, null, null, null);
+                if (c != null) {
+                    try {
+                        while (c.moveToNext()) {
+                            RosterMatch iq = builder.add(c.getString(0));
+                            if (iq != null)
+                                sendPacket(iq);
+                        }
+                    }
+                    finally {
+                        c.close();
+                    }
+                }
+
+                RosterMatch iq = builder.finish();
+                if (iq != null)
+                    sendPacket(iq);
+
+                // tell the requester how many replies to wait for
+                final LocalBroadcastManager lbm = mLocalBroadcastManager;
+                if (lbm != null) {
+                    Intent i = new Intent(ACTION_ROSTER_MATCH);
+                    i.putExtra(EXTRA_PACKET_ID, id);
+                    i.putExtra(EXTRA_ROSTER_PARTS, builder.getParts());
+                    lbm.sendBroadcast(i);
+                }
+            }
+        }, TASK_SYNC);
+
+        if (!queued) {
+            // don't leave the requester waiting for replies that won't come
+            Intent i = new Intent(ACTION_ROSTER_MATCH);
+            i.putExtra(EXTRA_PACKET_ID, id);
+            i.putExtra(EXTRA_TYPE, IQ.Type.error.toString());
+            mLocalBroadcastManager.sendBroadcast(i);
+        }
+    }
+
     @CommandHandler(name = ACTION_ROSTER_LOADED)
     private boolean handleRosterLoaded() {
         if (isConnected() && isRosterLoaded())
@@ -1179,30 +1301,18 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             final String to = intent.getStringExtra(EXTRA_TO);
 
             if ("probe".equals(type)) {
-                // probing is actually looking into the roster
-                final Roster roster = getRoster();
-
-                if (to == null) {
-                    for (RosterEntry entry : roster.getEntries()) {
-                        broadcastPresence(roster, entry, id);
-                    }
-
-                    // broadcast our own presence
-                    broadcastMyPresence(id);
-                }
-                else {
-                    queueTask(new Runnable() {
-                        @Override
-                        public void run() {
-                            broadcastPresence(roster, to, id);
-                        }
-                    });
-                }
+                probePresence(to, id);
             }
             else {
                 // FIXME isn't this somewhat the same as createPresence?
                 String show = intent.getStringExtra(EXTRA_SHOW);
                 Presence p = new Presence(type != null ? Presence.Type.valueOf(type) : Presence.Type.available);
+                if (id != null) {
+                    // keep the reply apart from other presences
+                    PresenceListener listener = mPresenceListener;
+                    if (listener != null)
+                        listener.expectReply(id);
+                }
                 p.setStanzaId(id);
                 p.setTo(to);
                 if (intent.hasExtra(EXTRA_PRIORITY))
@@ -1220,6 +1330,38 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         return false;
     }
 
+    private void probePresence(final String to, final String id) {
+        // probing is actually looking into the roster
+        final Roster roster = getRoster();
+
+        if (to == null) {
+            // our own presence needs the connection
+            final Presence myPresence = createMyPresence();
+            final String myFingerprint = getMyFingerprint();
+
+            queueTask(new Runnable() {
+                @Override
+                public void run() {
+                    for (RosterEntry entry : roster.getEntries()) {
+                        broadcastPresence(roster, entry, id);
+                    }
+
+                    // broadcast our own presence
+                    broadcastMyPresence(myPresence, myFingerprint, id);
+                }
+                // someone is waiting for the replies if the probe has an id
+            }, id != null ? TASK_REQUEST : TASK_SYNC);
+        }
+        else {
+            queueTask(new Runnable() {
+                @Override
+                public void run() {
+                    broadcastPresence(roster, to, id);
+                }
+            }, TASK_REQUEST);
+        }
+    }
+
     @CommandHandler(name = ACTION_LAST_ACTIVITY)
     private boolean handleLastActivity(Intent intent, boolean canConnect) {
         if (canConnect && isConnected()) {
@@ -1258,22 +1400,30 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             }
             else {
                 // request public keys for the whole roster
-                Collection<RosterEntry> buddies = getRoster().getEntries();
-                for (RosterEntry buddy : buddies) {
-                    if (isRosterEntrySubscribed(buddy)) {
-                        PublicKeyPublish p = new PublicKeyPublish();
-                        p.setStanzaId(intent.getStringExtra(EXTRA_PACKET_ID));
-                        p.setTo(buddy.getUser());
+                final Roster roster = getRoster();
+                final String id = intent.getStringExtra(EXTRA_PACKET_ID);
+                final String myJid = XmppStringUtils.parseBareJid(mConnection.getUser());
+                queueTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        Collection<RosterEntry> buddies = roster.getEntries();
+                        for (RosterEntry buddy : buddies) {
+                            if (isRosterEntrySubscribed(buddy)) {
+                                PublicKeyPublish p = new PublicKeyPublish();
+                                p.setStanzaId(id);
+                                p.setTo(buddy.getUser());
+
+                                sendPacket(p);
+                            }
+                        }
 
+                        // request our own public key (odd eh?)
+                        PublicKeyPublish p = new PublicKeyPublish();
+                        p.setStanzaId(id);
+                        p.setTo(myJid);
                         sendPacket(p);
                     }
-                }
-
-                // request our own public key (odd eh?)
-                PublicKeyPublish p = new PublicKeyPublish();
-                p.setStanzaId(intent.getStringExtra(EXTRA_PACKET_ID));
-                p.setTo(XmppStringUtils.parseBareJid(mConnection.getUser()));
-                sendPacket(p);
+                }, TASK_SYNC);
             }
         }
         return false;
@@ -1367,7 +1517,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             mWaitingReceipt.clear();
 
             // setup task execution pool
-            mThreadPool = Executors.newCachedThreadPool();
+            mThreadPool = createTaskExecutor();
 
             mInactive = false;
 
@@ -1379,6 +1529,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             mServer = Preferences.getEndpointServer(this);
 
             mHelper = new XMPPConnectionHelper(this, mServer, false);
+            // race connections to other servers of our network
+            mHelper.setServerProvider(Preferences.getEndpointServerProvider(this, mServer));
             mHelper.setListener(this);
             mHelper.start();
         }
@@ -1482,7 +1634,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         StanzaFilter filter;
 
         filter = new StanzaTypeFilter(Presence.class);
-        connection.addAsyncStanzaListener(new PresenceListener(this), filter);
+        mPresenceListener = new PresenceListener(this);
+        connection.addAsyncStanzaListener(mPresenceListener, filter);
 
         filter = new StanzaTypeFilter(RosterMatch.class);
         connection.addAsyncStanzaListener(new RosterMatchListener(this), filter);
@@ -2049,42 +2202,44 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     }
 
     private void broadcastPresence(Roster roster, RosterEntry entry, String jid, String id) {
-        // this method might be called async
-        final LocalBroadcastManager lbm = mLocalBroadcastManager;
-        if (lbm == null)
-            return;
-
-        Intent i;
+        PresenceEvent event;
         // entry present and not pending subscription
         if (isRosterEntrySubscribed(entry) || Authenticator.isSelfJID(this, jid)) {
             // roster entry found, look for presence
             Presence presence = roster.getPresence(jid);
-            i = PresenceListener.createIntent(this, presence, entry);
+            // to keep track of request-reply
+            event = PresenceListener.createEvent(this, presence, entry, id);
         }
         else {
             // null type indicates no roster entry found or not authorized
-            i = new Intent(ACTION_PRESENCE);
-            i.putExtra(EXTRA_FROM, jid);
+            event = new PresenceEvent(jid, id);
         }
 
-        // to keep track of request-reply
-        i.putExtra(EXTRA_PACKET_ID, id);
-        lbm.sendBroadcast(i);
+        broadcastPresence(event);
     }
 
-    /** A special method to broadcast our own presence. */
-    private void broadcastMyPresence(String id) {
+    private Presence createMyPresence() {
         Presence presence = createPresence(null);
         presence.setFrom(mConnection.getUser());
+        return presence;
+    }
 
-        Intent i = PresenceListener.createIntent(this, presence, null);
-        i.putExtra(EXTRA_FINGERPRINT, getMyFingerprint());
-        i.putExtra(EXTRA_SUBSCRIBED_FROM, true);
-        i.putExtra(EXTRA_SUBSCRIBED_TO, true);
+    /** A special method to broadcast our own presence. */
+    private void broadcastMyPresence(Presence presence, String fingerprint, String id) {
+        PresenceEvent event = PresenceListener.createEvent(this, presence, null, id);
+        event.setSelf(fingerprint);
+        broadcastPresence(event);
+    }
 
-        // to keep track of request-reply
-        i.putExtra(EXTRA_PACKET_ID, id);
-        mLocalBroadcastManager.sendBroadcast(i);
+    private void broadcastPresence(PresenceEvent event) {
+        MessageCenterBus.post(event);
+
+        // this method might be called async
+        final LocalBroadcastManager lbm = mLocalBroadcastManager;
+        if (lbm != null) {
+            // compatibility with broadcast receivers
+            lbm.sendBroadcast(event.toIntent());
+        }
     }
 
     private String getMyFingerprint() {
@@ -3027,6 +3182,10 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     }
 
     public static void requestPresence(final Context context, String to) {
+        // fast path if the message center is running
+        if (MessageCenterBus.post(new PresenceRequest(to, null)))
+            return;
+
         Intent i = new Intent(context, MessageCenterService.class);
         i.setAction(MessageCenterService.ACTION_PRESENCE);
         i.putExtra(MessageCenterService.EXTRA_TO, to);
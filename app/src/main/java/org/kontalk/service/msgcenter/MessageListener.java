@@ -338,9 +338,12 @@ class MessageListener extends MessageCenterPacketListener {
                                 previewMime = MediaStorage.THUMBNAIL_MIME_NETWORK;
 
                             String filename = null;
+                            // image thumbnails go to the thumbnail store
+                            boolean thumbnail = false;
 
                             if (ImageComponent.supportsMimeType(mime)) {
                                 filename = ImageComponent.buildMediaFilename(msgId, previewMime);
+                                thumbnail = true;
                             }
 
                             else if (VCardComponent.supportsMimeType(mime)) {
@@ -348,14 +351,18 @@ class MessageListener extends MessageCenterPacketListener {
                             }
 
                             try {
-                                if (filename != null) previewFile =
+                                if (filename != null) previewFile = thumbnail ?
+                                    MediaStorage.writeThumbnail(getContext(),
+                                        filename, preview.getContents()) :
                                     MediaStorage.writeInternalMedia(getContext(),
                                         filename, preview.getContents());
                             }
                             catch (IOException e) {
                                 Log.w(MessageCenterService.TAG, "error storing thumbnail", e);
                                 // we are going to need a filename anyway
-                                previewFile = MediaStorage.getInternalMediaFile(getContext(), filename);
+                                previewFile = thumbnail ?
+                                    MediaStorage.getThumbnailFile(getContext(), filename) :
+                                    MediaStorage.getInternalMediaFile(getContext(), filename);
                             }
                         }
 
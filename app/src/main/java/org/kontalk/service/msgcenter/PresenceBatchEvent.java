@@ -0,0 +1,42 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.List;
+
+
+/**
+ * Presences processed together after a presence storm (e.g. right after
+ * login), posted once on the {@link MessageCenterBus} for every batch.
+ * @author Daniele Ricci
+ */
+public class PresenceBatchEvent {
+
+    private final List<PresenceEvent> mPresences;
+
+    PresenceBatchEvent(List<PresenceEvent> presences) {
+        mPresences = presences;
+    }
+
+    /** Presences in the batch, the latest one for every resource. */
+    public List<PresenceEvent> getPresences() {
+        return mPresences;
+    }
+
+}
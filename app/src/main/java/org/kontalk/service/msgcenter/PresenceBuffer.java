@@ -0,0 +1,107 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jivesoftware.smack.packet.Presence;
+
+
+/**
+ * Collects presence stanzas received in a short time window, keeping only
+ * the latest presence for every resource. Every presence has a stanza ID,
+ * so IDs are not used for merging: only replies to requests we are waiting
+ * for (see {@link #expect(String)}) are kept apart.
+ * @author Daniele Ricci
+ */
+class PresenceBuffer {
+
+    /** How long to wait for more presences before processing them. */
+    static final long WINDOW = 250;
+    /** Maximum number of outstanding request IDs remembered. */
+    static final int MAX_EXPECTED = 64;
+
+    private final Map<String, Presence> mPending = new LinkedHashMap<>();
+    /** IDs of requests waiting for a presence reply, oldest first. */
+    private final Set<String> mExpected = new LinkedHashSet<>();
+
+    private long mReceivedCount;
+    private long mProcessedCount;
+
+    /**
+     * Adds a presence to the current batch.
+     * @return true if this is the first presence of a new batch
+     */
+    synchronized boolean add(Presence p) {
+        boolean first = mPending.isEmpty();
+        mPending.put(getKey(p), p);
+        mReceivedCount++;
+        return first;
+    }
+
+    /** Returns the current batch and starts a new one. */
+    synchronized List<Presence> drain() {
+        List<Presence> batch = new ArrayList<>(mPending.values());
+        mPending.clear();
+        mProcessedCount += batch.size();
+        return batch;
+    }
+
+    /** A presence reply with the given ID is expected and must not be merged. */
+    synchronized void expect(String id) {
+        mExpected.remove(id);
+        mExpected.add(id);
+        if (mExpected.size() > MAX_EXPECTED) {
+            Iterator<String> oldest = mExpected.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /** Returns true if the given ID is of a request waiting for a reply. */
+    synchronized boolean isExpected(String id) {
+        return id != null && mExpected.contains(id);
+    }
+
+    synchronized int size() {
+        return mPending.size();
+    }
+
+    /** Number of presences added so far. */
+    synchronized long getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    /** Number of presences actually processed (after merging). */
+    synchronized long getProcessedCount() {
+        return mProcessedCount;
+    }
+
+    private String getKey(Presence p) {
+        String id = p.getStanzaId();
+        return isExpected(id) ? p.getFrom() + ' ' + id : p.getFrom();
+    }
+
+}
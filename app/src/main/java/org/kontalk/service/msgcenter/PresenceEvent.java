@@ -0,0 +1,183 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.service.msgcenter;
+
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.roster.RosterEntry;
+import org.jivesoftware.smack.roster.packet.RosterPacket;
+import org.jxmpp.util.XmppStringUtils;
+
+import android.content.Intent;
+
+import static org.kontalk.service.msgcenter.MessageCenterService.ACTION_PRESENCE;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_FINGERPRINT;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_FROM;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PACKET_ID;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PRIORITY;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_ROSTER_NAME;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_SHOW;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_STAMP;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_STATUS;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_SUBSCRIBED_FROM;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_SUBSCRIBED_TO;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TO;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TYPE;
+
+
+/**
+ * Presence of a user, as posted on the {@link MessageCenterBus}.
+ * A null type means that the user is not in our roster or we are not
+ * authorized to see their presence.
+ * @author Daniele Ricci
+ */
+public class PresenceEvent implements MessageCenterBus.JidEvent {
+
+    private final String mJid;
+    private final String mFrom;
+    private final String mPacketId;
+
+    private String mTo;
+    private Presence.Type mType;
+    private Presence.Mode mMode;
+    private String mStatus;
+    private int mPriority;
+    private long mStamp;
+    private String mFingerprint;
+
+    private String mRosterName;
+    private boolean mSubscribedFrom;
+    private boolean mSubscribedTo;
+
+    /** Presence of a user not in our roster. */
+    PresenceEvent(String from, String packetId) {
+        mFrom = from;
+        mJid = XmppStringUtils.parseBareJid(from);
+        mPacketId = packetId;
+    }
+
+    PresenceEvent(Presence p, RosterEntry entry, long timestamp, String fingerprint, String packetId) {
+        this(p.getFrom(), packetId);
+        mTo = p.getTo();
+        Presence.Type type = p.getType();
+        mType = type != null ? type : Presence.Type.available;
+        Presence.Mode mode = p.getMode();
+        mMode = mode != null ? mode : Presence.Mode.available;
+        mStatus = p.getStatus();
+        mPriority = p.getPriority();
+        mStamp = timestamp;
+        mFingerprint = fingerprint;
+
+        if (entry != null) {
+            mRosterName = entry.getName();
+
+            RosterPacket.ItemType subscriptionType = entry.getType();
+            mSubscribedFrom = subscriptionType == RosterPacket.ItemType.both ||
+                subscriptionType == RosterPacket.ItemType.from;
+            mSubscribedTo = subscriptionType == RosterPacket.ItemType.both ||
+                subscriptionType == RosterPacket.ItemType.to;
+        }
+    }
+
+    @Override
+    public String getJid() {
+        return mJid;
+    }
+
+    /** The full JID the presence came from. */
+    public String getFrom() {
+        return mFrom;
+    }
+
+    public String getTo() {
+        return mTo;
+    }
+
+    /** The id of the presence or of the request this is replying to. */
+    public String getPacketId() {
+        return mPacketId;
+    }
+
+    public Presence.Type getType() {
+        return mType;
+    }
+
+    public Presence.Mode getMode() {
+        return mMode;
+    }
+
+    public String getStatus() {
+        return mStatus;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public long getStamp() {
+        return mStamp;
+    }
+
+    public String getFingerprint() {
+        return mFingerprint;
+    }
+
+    public String getRosterName() {
+        return mRosterName;
+    }
+
+    public boolean isSubscribedFrom() {
+        return mSubscribedFrom;
+    }
+
+    public boolean isSubscribedTo() {
+        return mSubscribedTo;
+    }
+
+    /** Used for our own presence, which doesn't come from the roster. */
+    void setSelf(String fingerprint) {
+        mFingerprint = fingerprint;
+        mSubscribedFrom = true;
+        mSubscribedTo = true;
+    }
+
+    /** Converts this event to the {@link MessageCenterService#ACTION_PRESENCE} broadcast. */
+    public Intent toIntent() {
+        Intent i = new Intent(ACTION_PRESENCE);
+        i.putExtra(EXTRA_FROM, mFrom);
+        i.putExtra(EXTRA_PACKET_ID, mPacketId);
+
+        if (mType != null) {
+            i.putExtra(EXTRA_TYPE, mType.name());
+            i.putExtra(EXTRA_TO, mTo);
+            i.putExtra(EXTRA_STATUS, mStatus);
+            i.putExtra(EXTRA_SHOW, mMode.name());
+            i.putExtra(EXTRA_PRIORITY, mPriority);
+            i.putExtra(EXTRA_STAMP, mStamp);
+            i.putExtra(EXTRA_FINGERPRINT, mFingerprint);
+
+            if (mRosterName != null || mSubscribedFrom || mSubscribedTo) {
+                i.putExtra(EXTRA_ROSTER_NAME, mRosterName);
+                i.putExtra(EXTRA_SUBSCRIBED_FROM, mSubscribedFrom);
+                i.putExtra(EXTRA_SUBSCRIBED_TO, mSubscribedTo);
+            }
+        }
+
+        return i;
+    }
+
+}
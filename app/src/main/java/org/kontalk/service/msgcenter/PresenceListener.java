@@ -19,7 +19,15 @@
 package org.kontalk.service.msgcenter;
 
 import java.io.IOException;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import org.jivesoftware.smack.SmackException.NotConnectedException;
 import org.jivesoftware.smack.packet.ExtensionElement;
@@ -33,10 +41,13 @@ import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
 
 import org.kontalk.Log;
 import org.kontalk.client.PublicKeyPresence;
@@ -53,18 +64,9 @@ import org.kontalk.provider.UsersProvider;
 import org.kontalk.ui.MessagingNotification;
 import org.kontalk.util.Preferences;
 
-import static org.kontalk.service.msgcenter.MessageCenterService.ACTION_PRESENCE;
 import static org.kontalk.service.msgcenter.MessageCenterService.ACTION_SUBSCRIBED;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_FINGERPRINT;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_FROM;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PACKET_ID;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PRIORITY;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_ROSTER_NAME;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_SHOW;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_STAMP;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_STATUS;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_SUBSCRIBED_FROM;
-import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_SUBSCRIBED_TO;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TO;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TYPE;
 
@@ -75,6 +77,22 @@ import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TYPE;
  */
 class PresenceListener extends MessageCenterPacketListener {
 
+    /** Presences waiting to be processed. */
+    private final PresenceBuffer mBuffer = new PresenceBuffer();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            queueTask(new Runnable() {
+                @Override
+                public void run() {
+                    processPresences(mBuffer.drain());
+                }
+            }, MessageCenterService.TASK_PRESENCE);
+        }
+    };
+
     public PresenceListener(MessageCenterService instance) {
         super(instance);
     }
@@ -272,53 +290,110 @@ class PresenceListener extends MessageCenterPacketListener {
     }
 
     private void handlePresence(final Presence p) {
-        queueTask(new Runnable() {
-            @Override
-            public void run() {
-                updateUsersDatabase(p);
-
-                // request the new key if fingerprint changed
-                String newFingerprint = PublicKeyPresence.getFingerprint(p);
-                if (newFingerprint != null) {
-                    boolean requestKey = false;
-                    String jid = XmppStringUtils.parseBareJid(p.getFrom());
-                    PGPPublicKeyRing pubRing = Keyring.getPublicKey(getContext(),
-                        jid, MyUsers.Keys.TRUST_UNKNOWN);
-                    if (pubRing != null) {
-                        String oldFingerprint = PGP.getFingerprint(PGP.getMasterKey(pubRing));
-                        if (!newFingerprint.equalsIgnoreCase(oldFingerprint)) {
-                            // key has changed, request new one
-                            requestKey = true;
-                        }
-                    }
-                    else {
-                        // no key available, request one
-                        requestKey = true;
-                    }
+        // wait a little for more presences (e.g. right after login)
+        if (mBuffer.add(p))
+            mHandler.postDelayed(mFlushTask, PresenceBuffer.WINDOW);
+    }
 
-                    if (requestKey)
-                        MessageCenterService.requestPublicKey(getContext(), jid);
-                }
+    /** A presence reply with the given ID is expected and must not be merged. */
+    void expectReply(String id) {
+        mBuffer.expect(id);
+    }
+
+    /**
+     * Processes a batch of presences: users and keys are updated in a
+     * single transaction, then a single {@link PresenceBatchEvent} is
+     * posted. Single presence events are posted only to subscribers
+     * watching a user and, as broadcasts, for replies to our requests.
+     */
+    @SuppressWarnings("WeakerAccess")
+    void processPresences(List<Presence> presences) {
+        if (presences.isEmpty())
+            return;
+
+        Context context = getContext();
+        long now = System.currentTimeMillis();
+
+        // last values for every user
+        Map<String, ContentValues> users = new LinkedHashMap<>();
+        Map<String, String> newFingerprints = new HashMap<>();
+        long[] timestamps = new long[presences.size()];
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+
+        for (int i = 0; i < timestamps.length; i++) {
+            Presence p = presences.get(i);
+            String jid = XmppStringUtils.parseBareJid(p.getFrom());
+
+            timestamps[i] = getTimestamp(p, now);
+            users.put(jid, createUserValues(p, timestamps[i]));
 
-                Intent i = createIntent(getContext(), p, getRosterEntry(p.getFrom()));
-                sendBroadcast(i);
+            String fingerprint = PublicKeyPresence.getFingerprint(p);
+            if (fingerprint != null) {
+                newFingerprints.put(jid, fingerprint);
+                // insert new key with empty key data
+                operations.add(ContentProviderOperation.newInsert(MyUsers.Keys.getUri(jid, fingerprint)
+                        // since we are handling data from a presence, insert only if it doesn't exist
+                        .buildUpon().appendQueryParameter(MyUsers.Keys.INSERT_ONLY, "true").build())
+                    .withValue(MyUsers.Keys.TIMESTAMP, now)
+                    .build());
             }
-        });
-    }
+        }
 
-    public static Intent createIntent(Context ctx, Presence p, RosterEntry entry) {
-        Intent i = new Intent(ACTION_PRESENCE);
-        Presence.Type type = p.getType();
-        i.putExtra(EXTRA_TYPE, type != null ? type.name() : Presence.Type.available.name());
-        i.putExtra(EXTRA_PACKET_ID, p.getStanzaId());
+        for (Map.Entry<String, ContentValues> user : users.entrySet()) {
+            operations.add(ContentProviderOperation.newUpdate(Users.CONTENT_URI)
+                .withValues(user.getValue())
+                .withSelection(Users.JID + "=?", new String[] { user.getKey() })
+                .build());
+        }
 
-        i.putExtra(EXTRA_FROM, p.getFrom());
-        i.putExtra(EXTRA_TO, p.getTo());
-        i.putExtra(EXTRA_STATUS, p.getStatus());
-        Presence.Mode mode = p.getMode();
-        i.putExtra(EXTRA_SHOW, mode != null ? mode.name() : Presence.Mode.available.name());
-        i.putExtra(EXTRA_PRIORITY, p.getPriority());
+        try {
+            context.getContentResolver().applyBatch(UsersProvider.AUTHORITY, operations);
+        }
+        catch (Exception e) {
+            Log.w(MessageCenterService.TAG, "unable to update users database", e);
+        }
+
+        // request the new key if we don't have it
+        if (newFingerprints.size() > 0) {
+            Map<String, Set<String>> availableKeys = Keyring
+                .getAvailableKeys(context, newFingerprints.keySet());
+            for (Map.Entry<String, String> e : newFingerprints.entrySet()) {
+                Set<String> fingerprints = availableKeys.get(e.getKey());
+                if (fingerprints == null || !fingerprints.contains(e.getValue().toUpperCase(Locale.US)))
+                    MessageCenterService.requestPublicKey(context, e.getKey());
+            }
+        }
+
+        // fingerprints of users that didn't send one
+        Set<String> missingFingerprints = new HashSet<>(users.keySet());
+        missingFingerprints.removeAll(newFingerprints.keySet());
+        Map<String, String> storedFingerprints = missingFingerprints.isEmpty() ?
+            Collections.<String, String>emptyMap() :
+            Keyring.getFingerprints(context, missingFingerprints, MyUsers.Keys.TRUST_UNKNOWN);
+
+        boolean single = MessageCenterBus.hasSubscribers(PresenceEvent.class);
+        List<PresenceEvent> events = new ArrayList<>(timestamps.length);
+        for (int i = 0; i < timestamps.length; i++) {
+            Presence p = presences.get(i);
+            String jid = XmppStringUtils.parseBareJid(p.getFrom());
+            String fingerprint = newFingerprints.containsKey(jid) ?
+                newFingerprints.get(jid) : storedFingerprints.get(jid);
+
+            PresenceEvent event = new PresenceEvent(p, getRosterEntry(p.getFrom()),
+                timestamps[i], fingerprint, p.getStanzaId());
+            events.add(event);
+
+            if (single)
+                MessageCenterBus.post(event);
+            // someone is waiting for this reply
+            if (mBuffer.isExpected(p.getStanzaId()))
+                sendBroadcast(event.toIntent());
+        }
 
+        MessageCenterBus.post(new PresenceBatchEvent(events));
+    }
+
+    static PresenceEvent createEvent(Context ctx, Presence p, RosterEntry entry, String packetId) {
         String jid = XmppStringUtils.parseBareJid(p.getFrom());
 
         long timestamp;
@@ -333,36 +408,29 @@ class PresenceListener extends MessageCenterPacketListener {
                 timestamp = System.currentTimeMillis();
         }
 
-        i.putExtra(EXTRA_STAMP, timestamp);
-
         // public key fingerprint
         String fingerprint = PublicKeyPresence.getFingerprint(p);
         if (fingerprint == null) {
             // try untrusted fingerprint from database
             fingerprint = Keyring.getFingerprint(ctx, jid, MyUsers.Keys.TRUST_UNKNOWN);
         }
-        i.putExtra(EXTRA_FINGERPRINT, fingerprint);
 
-        // subscription information
-        if (entry != null) {
-            i.putExtra(EXTRA_ROSTER_NAME, entry.getName());
-
-            RosterPacket.ItemType subscriptionType = entry.getType();
-            i.putExtra(EXTRA_SUBSCRIBED_FROM, subscriptionType == RosterPacket.ItemType.both ||
-                subscriptionType == RosterPacket.ItemType.from);
-            i.putExtra(EXTRA_SUBSCRIBED_TO, subscriptionType == RosterPacket.ItemType.both ||
-                subscriptionType == RosterPacket.ItemType.to);
-        }
-
-        return i;
+        return new PresenceEvent(p, entry, timestamp, fingerprint, packetId);
     }
 
-    @SuppressWarnings("WeakerAccess")
-    int updateUsersDatabase(Presence p) {
-        String jid = XmppStringUtils.parseBareJid(p.getFrom());
+    private static long getTimestamp(Presence p, long now) {
+        DelayInformation delay = p.getExtension(DelayInformation.ELEMENT, DelayInformation.NAMESPACE);
+        // delay from presence (rare), otherwise logged in/out now
+        return delay != null ? delay.getStamp().getTime() : now;
+    }
 
-        ContentValues values = new ContentValues(4);
-        values.put(Users.REGISTERED, 1);
+    /**
+     * Values updated by a presence. Registered is not written here: it would
+     * change the contacts list (and its index) at every presence. Users not
+     * in the database yet are inserted as registered anyway.
+     */
+    private static ContentValues createUserValues(Presence p, long timestamp) {
+        ContentValues values = new ContentValues(2);
 
         // status
         String status = p.getStatus();
@@ -371,33 +439,10 @@ class PresenceListener extends MessageCenterPacketListener {
         else
             values.putNull(Users.STATUS);
 
-        // delay
-        long timestamp;
-        DelayInformation delay = p.getExtension(DelayInformation.ELEMENT, DelayInformation.NAMESPACE);
-        if (delay != null) {
-            // delay from presence (rare)
-            timestamp = delay.getStamp().getTime();
-        }
-        else {
-            // logged in/out now
-            timestamp = System.currentTimeMillis();
-        }
-
         if (timestamp > 0)
             values.put(Users.LAST_SEEN, timestamp);
 
-        // public key extension (for fingerprint)
-        PublicKeyPresence pkey = p.getExtension(PublicKeyPresence.ELEMENT_NAME, PublicKeyPresence.NAMESPACE);
-        if (pkey != null) {
-            String fingerprint = pkey.getFingerprint();
-            if (fingerprint != null) {
-                // insert new key with empty key data
-                Keyring.setKey(getContext(), jid, fingerprint, new Date());
-            }
-        }
-
-        return getContext().getContentResolver().update(Users.CONTENT_URI,
-            values, Users.JID + "=?", new String[] { jid });
+        return values;
     }
 
 }
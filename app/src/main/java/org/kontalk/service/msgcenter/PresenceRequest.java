@@ -0,0 +1,49 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.service.msgcenter;
+
+
+/**
+ * Command for the {@link MessageCenterBus}: asks the message center to post
+ * the presence of a user (or of the whole roster) from the roster.
+ * @author Daniele Ricci
+ */
+public class PresenceRequest implements MessageCenterBus.JidEvent {
+
+    private final String mJid;
+    private final String mPacketId;
+
+    /**
+     * @param jid the user, null for the whole roster
+     * @param packetId will be set on the replies
+     */
+    public PresenceRequest(String jid, String packetId) {
+        mJid = jid;
+        mPacketId = packetId;
+    }
+
+    @Override
+    public String getJid() {
+        return mJid;
+    }
+
+    public String getPacketId() {
+        return mPacketId;
+    }
+
+}
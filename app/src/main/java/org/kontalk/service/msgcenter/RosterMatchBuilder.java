@@ -0,0 +1,96 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.service.msgcenter;
+
+import org.kontalk.client.RosterMatch;
+
+
+/**
+ * Splits a stream of JIDs into roster match requests of limited size.
+ * Requests are sized by their estimated length on the wire rather than by
+ * number of items, and get ids derived from a common prefix so replies can
+ * be matched to the whole request.
+ * @author Daniele Ricci
+ */
+class RosterMatchBuilder {
+
+    /** Maximum estimated size of a single request, in bytes. */
+    static final int MAX_REQUEST_SIZE = 32 * 1024;
+
+    /** Estimated size of the iq element and query wrapper. */
+    private static final int REQUEST_OVERHEAD = 256;
+    /** Estimated size of an item element without the JID. */
+    private static final int ITEM_OVERHEAD = 16;
+
+    private final String mTo;
+    private final String mId;
+    private final int mMaxSize;
+
+    private RosterMatch mCurrent;
+    private int mCurrentSize;
+    private int mParts;
+
+    RosterMatchBuilder(String to, String id, int maxSize) {
+        mTo = to;
+        mId = id;
+        mMaxSize = maxSize;
+    }
+
+    /** Returns the id of the given part of a request. */
+    static String getPartId(String id, int part) {
+        return id + "-" + part;
+    }
+
+    /**
+     * Adds a JID to the current request.
+     * @return a complete request if the JID didn't fit in it, null otherwise
+     */
+    RosterMatch add(String jid) {
+        int size = ITEM_OVERHEAD + jid.length();
+        RosterMatch complete = null;
+
+        if (mCurrent != null && mCurrentSize + size > mMaxSize) {
+            complete = mCurrent;
+            mCurrent = null;
+        }
+
+        if (mCurrent == null) {
+            mCurrent = new RosterMatch();
+            mCurrent.setTo(mTo);
+            mCurrent.setStanzaId(getPartId(mId, mParts++));
+            mCurrentSize = REQUEST_OVERHEAD;
+        }
+
+        mCurrent.addItem(jid);
+        mCurrentSize += size;
+        return complete;
+    }
+
+    /** Returns the last request, if any. */
+    RosterMatch finish() {
+        RosterMatch last = mCurrent;
+        mCurrent = null;
+        return last;
+    }
+
+    /** Number of requests created so far. */
+    int getParts() {
+        return mParts;
+    }
+
+}
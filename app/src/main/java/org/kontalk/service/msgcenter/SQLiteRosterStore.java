@@ -15,12 +15,12 @@
  * You should have received a copy of the GNU General Public License
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
-
 package org.kontalk.service.msgcenter;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 
@@ -36,18 +36,27 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.text.TextUtils;
 
+import org.kontalk.Log;
+import org.kontalk.provider.DatabaseTuning;
 import org.kontalk.util.Preferences;
 
 
 /**
  * A roster store backed by a SQLite database.
+ * The roster is kept in memory once loaded and changes are written back to
+ * the database in batches, together with the roster version in the same
+ * transaction, so that the version never gets ahead of the stored entries.
  * @author Daniele Ricci
  */
 public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
+    private static final String TAG = MessageCenterService.TAG;
 
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
     private static final String DATABASE_NAME = "roster.db";
 
+    /** How long to wait for more changes before writing them. */
+    static final long FLUSH_DELAY = 1000;
+
     private static final String TABLE_ROSTER = "roster";
     private static final String CREATE_TABLE_ROSTER = "(" +
         "jid TEXT NOT NULL PRIMARY KEY," +
@@ -60,89 +69,119 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
     private static final String SCHEMA_ROSTER =
         "CREATE TABLE " + TABLE_ROSTER + " " + CREATE_TABLE_ROSTER;
 
+    private static final String TABLE_VERSION = "version";
+    private static final String SCHEMA_VERSION =
+        "CREATE TABLE " + TABLE_VERSION + " (version TEXT NOT NULL)";
+
     private final Context mContext;
+    private final DatabaseTuning mTuning;
+
+    /** The roster, by bare JID. Null until loaded. */
+    private Map<String, RosterPacket.Item> mEntries;
+    private String mVersion;
+
+    /** Changes waiting to be written: a null item means the entry was removed. */
+    private Map<String, RosterPacket.Item> mPending = new HashMap<>();
+    private String mPendingVersion;
+    /** True if the whole roster must be written again. */
+    private boolean mPendingReset;
+    private boolean mFlushScheduled;
+    /** Keeps flushes in order. */
+    private final Object mWriteLock = new Object();
 
     private SQLiteStatement mInsertStatement;
-    private final Object mInsertLock = new Object();
+    private SQLiteStatement mDeleteStatement;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
 
     public SQLiteRosterStore(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    SQLiteRosterStore(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
         mContext = context;
+        mTuning = new DatabaseTuning(context, this, name);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SCHEMA_ROSTER);
+        db.execSQL(SCHEMA_VERSION);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        mTuning.onOpen(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // this is the first version
+        if (oldVersion < 2) {
+            // roster version was kept in preferences
+            db.execSQL(SCHEMA_VERSION);
+            storeVersion(db, Preferences.getRosterVersion());
+        }
     }
 
+    /** Writes any pending change and closes the database. */
     public void onDestroy() {
+        DatabaseTuning.remove(mFlushTask);
+        flush();
+        mTuning.cancel();
         close();
     }
 
-    private SQLiteStatement prepareInsert(SQLiteDatabase db, RosterPacket.Item item) {
-        if (mInsertStatement == null) {
-            mInsertStatement = db.compileStatement("INSERT INTO " + TABLE_ROSTER +
-                " VALUES(?, ?, ?, ?, ?)");
-        }
-        else {
-            mInsertStatement.clearBindings();
-        }
-
-        int i = 0;
-        mInsertStatement.bindString(++i, item.getUser());
-        mInsertStatement.bindString(++i, item.getName());
-        mInsertStatement.bindString(++i, item.getItemType() != null ?
-            item.getItemType().toString() : RosterPacket.ItemType.none.toString());
-
-        RosterPacket.ItemStatus status = item.getItemStatus();
-        if (status != null) {
-            mInsertStatement.bindString(++i, status.toString());
-        }
-        else {
-            mInsertStatement.bindNull(++i);
-        }
-
-        Set<String> groups = item.getGroupNames();
-        if (groups != null) {
-            mInsertStatement.bindString(++i, TextUtils.join(",", groups));
+    /**
+     * Loads the roster in memory. Called automatically when needed, but it
+     * can be called in advance from a background thread.
+     */
+    public void load() {
+        synchronized (this) {
+            ensureLoaded();
         }
-        else {
-            mInsertStatement.bindNull(++i);
-        }
-
-        return mInsertStatement;
     }
 
-    @Override
-    public Collection<RosterPacket.Item> getEntries() {
-        SQLiteDatabase db = getReadableDatabase();
+    /** Must be called with the lock held. */
+    private void ensureLoaded() {
+        if (mEntries != null)
+            return;
+
+        Map<String, RosterPacket.Item> entries = new HashMap<>();
+        String version = "";
         Cursor c = null;
         try {
+            SQLiteDatabase db = getReadableDatabase();
             c = db.query(TABLE_ROSTER, null, null, null, null, null, null);
-            if (c != null) {
-                List<RosterPacket.Item> items = new ArrayList<>(c.getCount());
-                while (c.moveToNext()) {
-                    items.add(fromCursor(c));
-                }
-
-                return items;
+            while (c.moveToNext()) {
+                RosterPacket.Item item = fromCursor(c);
+                entries.put(item.getUser(), item);
             }
+            c.close();
 
-            return null;
+            c = db.query(TABLE_VERSION, null, null, null, null, null, null);
+            if (c.moveToFirst())
+                version = c.getString(0);
         }
         catch (SQLiteException e) {
-            return null;
+            // start from scratch, the roster will be requested again
+            Log.w(TAG, "unable to load roster", e);
+            entries.clear();
+            version = "";
         }
         finally {
             if (c != null) {
                 c.close();
             }
         }
+
+        mEntries = entries;
+        mVersion = version;
     }
 
     private RosterPacket.Item fromCursor(Cursor c) {
@@ -170,96 +209,211 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
     }
 
     @Override
-    public RosterPacket.Item getEntry(String bareJid) {
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor c = null;
-        try {
-            c = db.query(TABLE_ROSTER, null,
-                "user = ?", new String[] { bareJid },
-                null, null, null);
-            if (c != null && c.moveToFirst()) {
-                return fromCursor(c);
-            }
-        }
-        catch (SQLiteException e) {
-            return null;
-        }
-        finally {
-            if (c != null) {
-                c.close();
-            }
-        }
-        return null;
+    public synchronized Collection<RosterPacket.Item> getEntries() {
+        ensureLoaded();
+        return new ArrayList<>(mEntries.values());
     }
 
     @Override
-    public String getRosterVersion() {
-        return Preferences.getRosterVersion();
+    public synchronized RosterPacket.Item getEntry(String bareJid) {
+        ensureLoaded();
+        return mEntries.get(bareJid);
     }
 
-    private boolean addEntry(SQLiteDatabase db, RosterPacket.Item item) {
-        synchronized (mInsertLock) {
-            try {
-                SQLiteStatement stm = prepareInsert(db, item);
-                stm.executeInsert();
-            }
-            catch (SQLiteException e) {
-                return false;
-            }
+    @Override
+    public synchronized String getRosterVersion() {
+        ensureLoaded();
+        return mVersion;
+    }
 
-            // insert was successful
-            return true;
-        }
+    @Override
+    public synchronized boolean addEntry(RosterPacket.Item item, String version) {
+        ensureLoaded();
+        mEntries.put(item.getUser(), item);
+        mPending.put(item.getUser(), item);
+        setRosterVersion(version);
+        return true;
     }
 
     @Override
-    public boolean addEntry(RosterPacket.Item item, String version) {
-        SQLiteDatabase db = getWritableDatabase();
-        return addEntry(db, item) && setRosterVersion(version);
+    public synchronized boolean resetEntries(Collection<RosterPacket.Item> items, String version) {
+        ensureLoaded();
+        mEntries.clear();
+        for (RosterPacket.Item item : items) {
+            mEntries.put(item.getUser(), item);
+        }
+        mPending.clear();
+        mPendingReset = true;
+        setRosterVersion(version);
+        return true;
     }
 
     @Override
-    public boolean resetEntries(Collection<RosterPacket.Item> items, String version) {
-        SQLiteDatabase db = getWritableDatabase();
+    public synchronized boolean removeEntry(String bareJid, String version) {
+        ensureLoaded();
+        mEntries.remove(bareJid);
+        mPending.put(bareJid, null);
+        setRosterVersion(version);
+        return true;
+    }
+
+    /** Must be called with the lock held. */
+    private void setRosterVersion(String version) {
+        mVersion = version;
+        mPendingVersion = version;
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            DatabaseTuning.post(mFlushTask, FLUSH_DELAY);
+        }
+    }
+
+    /** Writes pending changes to the database in a single transaction. */
+    void flush() {
+        synchronized (mWriteLock) {
+            Collection<RosterPacket.Item> upserts;
+            Collection<String> deletes;
+            String version;
+            boolean reset;
+
+            synchronized (this) {
+                mFlushScheduled = false;
+                if (mPendingVersion == null)
+                    return;
+
+                version = mPendingVersion;
+                reset = mPendingReset;
+                if (reset) {
+                    upserts = new ArrayList<>(mEntries.values());
+                    deletes = null;
+                }
+                else {
+                    upserts = new ArrayList<>(mPending.size());
+                    deletes = new ArrayList<>();
+                    for (Map.Entry<String, RosterPacket.Item> e : mPending.entrySet()) {
+                        if (e.getValue() != null)
+                            upserts.add(e.getValue());
+                        else
+                            deletes.add(e.getKey());
+                    }
+                }
+
+                mPending = new HashMap<>();
+                mPendingVersion = null;
+                mPendingReset = false;
+            }
+
+            if (!write(upserts, deletes, version, reset)) {
+                synchronized (this) {
+                    // write everything again next time
+                    mPendingReset = true;
+                    if (mPendingVersion == null)
+                        mPendingVersion = version;
+                    if (!mFlushScheduled) {
+                        mFlushScheduled = true;
+                        DatabaseTuning.post(mFlushTask, FLUSH_DELAY);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Must be called with the write lock held. */
+    private boolean write(Collection<RosterPacket.Item> upserts, Collection<String> deletes,
+            String version, boolean reset) {
+        SQLiteDatabase db;
+        try {
+            db = getWritableDatabase();
+        }
+        catch (SQLiteException e) {
+            Log.w(TAG, "unable to open roster database", e);
+            return false;
+        }
 
         beginTransaction(db);
         boolean success = false;
 
         try {
-            db.execSQL("DELETE FROM " + TABLE_ROSTER);
-            for (RosterPacket.Item item : items) {
-                addEntry(db, item);
+            if (reset) {
+                db.execSQL("DELETE FROM " + TABLE_ROSTER);
+            }
+            else {
+                for (String jid : deletes) {
+                    SQLiteStatement stm = prepareDelete(db, jid);
+                    stm.execute();
+                }
             }
 
-            success = setTransactionSuccessful(db);
-            if (success) {
-                setRosterVersion(version);
+            for (RosterPacket.Item item : upserts) {
+                SQLiteStatement stm = prepareInsert(db, item);
+                stm.executeInsert();
             }
+
+            storeVersion(db, version);
+            success = setTransactionSuccessful(db);
         }
         catch (SQLiteException e) {
-            return false;
+            Log.w(TAG, "unable to write roster", e);
         }
         finally {
             endTransaction(db, success);
+            mTuning.onWrite();
         }
 
-        return false;
+        return success;
     }
 
-    @Override
-    public boolean removeEntry(String bareJid, String version) {
-        SQLiteDatabase db = getWritableDatabase();
-        try {
-            db.delete(TABLE_ROSTER, "user = ?", new String[]{bareJid});
-            return setRosterVersion(version);
+    private SQLiteStatement prepareInsert(SQLiteDatabase db, RosterPacket.Item item) {
+        if (mInsertStatement == null) {
+            // roster pushes update existing entries
+            mInsertStatement = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_ROSTER +
+                " VALUES(?, ?, ?, ?, ?)");
         }
-        catch (SQLiteException e) {
-            return false;
+        else {
+            mInsertStatement.clearBindings();
+        }
+
+        int i = 0;
+        mInsertStatement.bindString(++i, item.getUser());
+        mInsertStatement.bindString(++i, item.getName() != null ? item.getName() : "");
+        mInsertStatement.bindString(++i, item.getItemType() != null ?
+            item.getItemType().toString() : RosterPacket.ItemType.none.toString());
+
+        RosterPacket.ItemStatus status = item.getItemStatus();
+        if (status != null) {
+            mInsertStatement.bindString(++i, status.toString());
+        }
+        else {
+            mInsertStatement.bindNull(++i);
+        }
+
+        Set<String> groups = item.getGroupNames();
+        if (groups != null && groups.size() > 0) {
+            mInsertStatement.bindString(++i, TextUtils.join(",", groups));
+        }
+        else {
+            mInsertStatement.bindNull(++i);
         }
+
+        return mInsertStatement;
+    }
+
+    private SQLiteStatement prepareDelete(SQLiteDatabase db, String jid) {
+        if (mDeleteStatement == null) {
+            mDeleteStatement = db.compileStatement("DELETE FROM " + TABLE_ROSTER +
+                " WHERE jid = ?");
+        }
+        else {
+            mDeleteStatement.clearBindings();
+        }
+
+        mDeleteStatement.bindString(1, jid);
+        return mDeleteStatement;
     }
 
-    private boolean setRosterVersion(String version) {
-        return Preferences.setRosterVersion(version);
+    private static void storeVersion(SQLiteDatabase db, String version) {
+        db.execSQL("DELETE FROM " + TABLE_VERSION);
+        db.execSQL("INSERT INTO " + TABLE_VERSION + " VALUES(?)",
+            new Object[] { version != null ? version : "" });
     }
 
     /* Transactions compatibility layer */
@@ -116,15 +116,14 @@ public class Syncer {
 
     // FIXME this class should handle most recent/available presence stanzas
     private static final class PresenceBroadcastReceiver extends BroadcastReceiver {
-        /** Max number of items in a roster match request. */
-        private static final int MAX_ROSTER_MATCH_SIZE = 500;
-
         private List<PresenceItem> response;
         private final WeakReference<Syncer> notifyTo;
 
-        private final List<String> jidList;
+        /** Roster match request id. */
+        private String matchId;
+        /** Number of roster match replies to wait for, -1 if not known yet. */
         private int rosterParts = -1;
-        private String[] iq;
+        private int receivedParts;
         private String presenceId;
 
         private int presenceCount;
@@ -134,9 +133,8 @@ public class Syncer {
         private Set<String> notMatched = new HashSet<>();
         private boolean blocklistReceived;
 
-        public PresenceBroadcastReceiver(List<String> jidList, Syncer notifyTo) {
+        public PresenceBroadcastReceiver(Syncer notifyTo) {
             this.notifyTo = new WeakReference<>(notifyTo);
-            this.jidList = jidList;
         }
 
         @Override
@@ -178,49 +176,62 @@ public class Syncer {
             // roster match result received
             else if (MessageCenterService.ACTION_ROSTER_MATCH.equals(action)) {
                 String id = intent.getStringExtra(MessageCenterService.EXTRA_PACKET_ID);
-                for (String iqId : iq) {
-                    if (iqId.equals(id)) {
-                        // decrease roster parts counter
-                        rosterParts--;
-
-                        String[] list = intent.getStringArrayExtra(MessageCenterService.EXTRA_JIDLIST);
-                        if (list != null) {
-                            rosterCount += list.length;
-                            if (response == null) {
-                                // prepare list to be filled in with presence data
-                                response = new ArrayList<>(rosterCount);
-                            }
-                            for (String jid : list) {
-                                PresenceItem p = new PresenceItem();
-                                p.from = jid;
-                                p.matched = true;
-                                response.add(p);
-                            }
-                        }
+                if (matchId == null || id == null)
+                    return;
 
-                        if (rosterParts <= 0) {
-                            // all roster parts received
+                if (id.equals(matchId)) {
+                    if (IQ.Type.error.toString().equals(intent
+                            .getStringExtra(MessageCenterService.EXTRA_TYPE))) {
+                        // request could not be sent - abort
+                        rosterCount = -1;
+                        finish();
+                        return;
+                    }
 
-                            if (rosterCount == 0 && blocklistReceived) {
-                                // no roster elements
-                                finish();
-                            }
-                            else {
-                                Syncer w = notifyTo.get();
-                                if (w != null) {
-                                    // request presence data for the whole roster
-                                    presenceId = StringUtils.randomString(6);
-                                    w.requestPresenceData(presenceId);
-                                    // request public keys for the whole roster
-                                    w.requestPublicKeys();
-                                    // request block list
-                                    w.requestBlocklist();
-                                }
-                            }
+                    // all requests have been sent
+                    rosterParts = intent.getIntExtra(MessageCenterService.EXTRA_ROSTER_PARTS, 0);
+                }
+                else if (id.startsWith(matchId + "-")) {
+                    // replies are processed as they come
+                    receivedParts++;
+
+                    String[] list = intent.getStringArrayExtra(MessageCenterService.EXTRA_JIDLIST);
+                    if (list != null) {
+                        rosterCount += list.length;
+                        if (response == null) {
+                            // prepare list to be filled in with presence data
+                            response = new ArrayList<>(rosterCount);
+                        }
+                        for (String jid : list) {
+                            PresenceItem p = new PresenceItem();
+                            p.from = jid;
+                            p.matched = true;
+                            response.add(p);
                         }
+                    }
+                }
+                else {
+                    return;
+                }
+
+                if (rosterParts >= 0 && receivedParts == rosterParts) {
+                    // all roster parts received
 
-                        // no need to continue
-                        break;
+                    if (rosterCount == 0 && blocklistReceived) {
+                        // no roster elements
+                        finish();
+                    }
+                    else {
+                        Syncer w = notifyTo.get();
+                        if (w != null) {
+                            // request presence data for the whole roster
+                            presenceId = StringUtils.randomString(6);
+                            w.requestPresenceData(presenceId);
+                            // request public keys for the whole roster
+                            w.requestPublicKeys();
+                            // request block list
+                            w.requestBlocklist();
+                        }
                     }
                 }
             }
@@ -298,21 +309,12 @@ public class Syncer {
             }
 
             // connected! Retry...
-            else if (MessageCenterService.ACTION_CONNECTED.equals(action) && rosterParts < 0) {
+            else if (MessageCenterService.ACTION_CONNECTED.equals(action) && matchId == null) {
                 Syncer w = notifyTo.get();
                 if (w != null) {
-                    // request a roster match
-                    rosterParts = getRosterParts(jidList);
-                    iq = new String[rosterParts];
-                    for (int i = 0; i < rosterParts; i++) {
-                        int end = (i+1)*MAX_ROSTER_MATCH_SIZE;
-                        if (end >= jidList.size())
-                            end = jidList.size();
-                        List<String> slice = jidList.subList(i*MAX_ROSTER_MATCH_SIZE, end);
-
-                        iq[i] = StringUtils.randomString(6);
-                        w.requestRosterMatch(iq[i], slice);
-                    }
+                    // request a roster match (users are read by the message center)
+                    matchId = StringUtils.randomString(6);
+                    w.requestRosterMatch(matchId);
                 }
             }
         }
@@ -347,10 +349,6 @@ public class Syncer {
             context.startService(i);
         }
 
-        private int getRosterParts(List<String> jidList) {
-            return (int) Math.ceil((double) jidList.size() / MAX_ROSTER_MATCH_SIZE);
-        }
-
         public List<PresenceItem> getResponse() {
             return (rosterCount >= 0) ? response : null;
         }
@@ -402,7 +400,6 @@ public class Syncer {
             throws OperationCanceledException {
 
         final Map<String, RawPhoneNumberEntry> lookupNumbers = new HashMap<>();
-        final List<String> jidList = new ArrayList<>();
 
         // resync users database
         Log.v(TAG, "resyncing users database");
@@ -445,17 +442,15 @@ public class Syncer {
             String number = cursor.getString(1);
             String lookupKey = cursor.getString(2);
 
-            // avoid to send duplicates to the server
-            if (lookupNumbers.put(XmppStringUtils.parseLocalpart(jid),
-                    new RawPhoneNumberEntry(lookupKey, number, jid)) == null)
-                jidList.add(jid);
+            lookupNumbers.put(XmppStringUtils.parseLocalpart(jid),
+                new RawPhoneNumberEntry(lookupKey, number, jid));
         }
         cursor.close();
 
         if (mCanceled) throw new OperationCanceledException();
 
         // empty contacts :-|
-        if (jidList.size() == 0) {
+        if (lookupNumbers.isEmpty()) {
             // delete all Kontalk raw contacts
             try {
                 syncResult.stats.numDeletes += deleteAll(account, provider);
@@ -482,7 +477,7 @@ public class Syncer {
                 .getInstance(mContext);
 
             // register presence broadcast receiver
-            PresenceBroadcastReceiver receiver = new PresenceBroadcastReceiver(jidList, this);
+            PresenceBroadcastReceiver receiver = new PresenceBroadcastReceiver(this);
             IntentFilter f = new IntentFilter();
             f.addAction(MessageCenterService.ACTION_PRESENCE);
             f.addAction(MessageCenterService.ACTION_ROSTER_MATCH);
@@ -686,11 +681,10 @@ public class Syncer {
         }
     }
 
-    private void requestRosterMatch(String id, List<String> list) {
+    private void requestRosterMatch(String id) {
         Intent i = new Intent(mContext, MessageCenterService.class);
         i.setAction(MessageCenterService.ACTION_ROSTER_MATCH);
         i.putExtra(MessageCenterService.EXTRA_PACKET_ID, id);
-        i.putExtra(MessageCenterService.EXTRA_JIDLIST, list.toArray(new String[list.size()]));
         mContext.startService(i);
     }
 
@@ -38,7 +38,6 @@ import com.nispok.snackbar.listeners.ActionClickListener;
 
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smackx.chatstates.ChatState;
-import org.jxmpp.util.XmppStringUtils;
 
 import android.annotation.TargetApi;
 import android.app.Activity;
@@ -55,10 +54,8 @@ import android.content.pm.ResolveInfo;
 import android.content.res.Configuration;
 import android.database.ContentObserver;
 import android.database.Cursor;
-import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDiskIOException;
 import android.graphics.drawable.Drawable;
-import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Build;
@@ -74,6 +71,7 @@ import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.view.ActionMode;
 import android.text.ClipboardManager;
 import android.text.TextUtils;
+import android.util.DisplayMetrics;
 import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -81,6 +79,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
@@ -107,7 +106,9 @@ import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.provider.MyMessages.Threads.Conversations;
 import org.kontalk.reporting.ReportingManager;
 import org.kontalk.service.DownloadService;
+import org.kontalk.service.msgcenter.MessageCenterBus;
 import org.kontalk.service.msgcenter.MessageCenterService;
+import org.kontalk.service.msgcenter.PresenceEvent;
 import org.kontalk.ui.adapter.MessageListAdapter;
 import org.kontalk.ui.view.AttachmentRevealFrameLayout;
 import org.kontalk.ui.view.AudioContentView;
@@ -118,6 +119,7 @@ import org.kontalk.ui.view.ComposerListener;
 import org.kontalk.ui.view.MessageListItem;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
+import org.kontalk.util.PagesCursor;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.SystemUtils;
 
@@ -139,9 +141,20 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
     private static final int MESSAGE_LIST_QUERY_TOKEN = 8720;
     private static final int CONVERSATION_QUERY_TOKEN = 8721;
     private static final int MESSAGE_PAGE_QUERY_TOKEN = 8723;
+    private static final int MESSAGE_NEWER_PAGE_QUERY_TOKEN = 8724;
+    private static final int MESSAGE_APPEND_QUERY_TOKEN = 8725;
 
-    /** How many messages to load per page. */
-    private static final int MESSAGE_PAGE_SIZE = 1000;
+    /** Minimum number of messages to load per page. */
+    private static final int MESSAGE_PAGE_MIN_SIZE = 30;
+    /** Maximum number of messages to load per page. */
+    private static final int MESSAGE_PAGE_MAX_SIZE = 1000;
+    /** How many screens of messages to load per page. */
+    private static final int MESSAGE_PAGE_SCREENS = 3;
+    /** Estimated minimum height of a message list item (dp). */
+    private static final int MESSAGE_ITEM_MIN_HEIGHT = 48;
+
+    /** Playback time between audio position updates (ms). */
+    private static final int POSITION_UPDATE_INTERVAL = 100;
 
     private static final int SELECT_ATTACHMENT_OPENABLE = 1;
     private static final int SELECT_ATTACHMENT_CONTACT = 2;
@@ -178,6 +191,8 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
     /** Header view for the list view: "previous messages" button. */
     private View mHeaderView;
     private View mNextPageButton;
+    /** How many messages to load per page (depends on screen size). */
+    int mPageSize = MESSAGE_PAGE_MIN_SIZE;
     private TextView mStatusText;
     private MenuItem mDeleteThreadMenu;
 
@@ -191,8 +206,6 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
 
     /** Media player stuff. */
     private int mMediaPlayerStatus = AudioContentView.STATUS_IDLE;
-    private Handler mHandler;
-    private Runnable mMediaPlayerUpdater;
     private AudioContentViewControl mAudioControl;
 
     /** Audio recording dialog. */
@@ -203,6 +216,7 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
 
     protected LocalBroadcastManager mLocalBroadcastManager;
     private BroadcastReceiver mPresenceReceiver;
+    private MessageCenterBus.Subscriber<PresenceEvent> mPresenceSubscriber;
 
     private boolean mOfflineModeWarned;
     protected CharSequence mCurrentStatus;
@@ -270,6 +284,22 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
         });
         list.addHeaderView(mHeaderView, null, false);
 
+        // load newer messages when reaching the bottom of the list
+        // (when the conversation was opened from a search result)
+        list.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (visibleItemCount > 0 && firstVisibleItem + visibleItemCount >= totalItemCount)
+                    startNewerMessagesQuery();
+            }
+        });
+
+        mPageSize = computePageSize();
+
         // set custom background (if any)
         ImageView background = (ImageView) getView().findViewById(R.id.background);
         Drawable bg = Preferences.getConversationBackground(getActivity());
@@ -327,7 +357,7 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
     private final MessageListAdapter.OnContentChangedListener mContentChangedListener = new MessageListAdapter.OnContentChangedListener() {
         public void onContentChanged(MessageListAdapter adapter) {
             if (isVisible())
-                startQuery(false);
+                startUpdateQuery();
         }
     };
 
@@ -337,7 +367,6 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
 
         setHasOptionsMenu(true);
         mQueryHandler = new MessageListQueryHandler(this);
-        mHandler = new Handler();
 
         // list adapter creation is post-poned
     }
@@ -1095,9 +1124,19 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
         getListView().setSelection(position);
     }
 
-    private boolean isSearching() {
+    /** Returns the message to open the conversation at, if not done already. */
+    long getAnchorMessage() {
         Bundle args = getArguments();
-        return args != null && args.getLong(ComposeMessage.EXTRA_MESSAGE, -1) >= 0;
+        return (args != null && !args.getBoolean(ComposeMessage.EXTRA_RELOADING)) ?
+            args.getLong(ComposeMessage.EXTRA_MESSAGE, -1) : -1;
+    }
+
+    /** Enough messages to fill the screen a few times. */
+    private int computePageSize() {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        int rows = (int) (metrics.heightPixels / (MESSAGE_ITEM_MIN_HEIGHT * metrics.density));
+        return Math.max(MESSAGE_PAGE_MIN_SIZE,
+            Math.min(rows * MESSAGE_PAGE_SCREENS, MESSAGE_PAGE_MAX_SIZE));
     }
 
     protected synchronized void startQuery(boolean progress) {
@@ -1109,20 +1148,60 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
         // message list query will be started by query handler
     }
 
-    private void startMessagesQuery() {
-        CompositeMessage.startQuery(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
-            threadId, isSearching() ? 0 : MESSAGE_PAGE_SIZE, 0);
+    void startMessagesQuery() {
+        mListAdapter.setNotificationUri(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+
+        long anchorId = getAnchorMessage();
+        long lastId = mQueryHandler.getLastId();
+        if (anchorId > 0) {
+            // a page of messages ending with the anchor, newer ones will be loaded while scrolling
+            CompositeMessage.startQuery(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
+                threadId, mPageSize, anchorId + 1);
+        }
+        else if (lastId > 0 && mListAdapter.getCursor() != null) {
+            // reload the messages we already have (and any new message if we are at the bottom)
+            CompositeMessage.startQueryAfter(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN, threadId,
+                mQueryHandler.hasNewer() ? mListAdapter.getCursor().getCount() : 0, lastId - 1);
+        }
+        else {
+            CompositeMessage.startQuery(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
+                threadId, mPageSize, 0);
+        }
     }
 
     void startMessagesQuery(long lastId) {
         CompositeMessage.startQuery(mQueryHandler, MESSAGE_PAGE_QUERY_TOKEN,
-            threadId, isSearching() ? 0 : MESSAGE_PAGE_SIZE, lastId);
+            threadId, mPageSize, lastId);
+    }
+
+    void startNewerMessagesQuery() {
+        if (mQueryHandler != null && mQueryHandler.startLoadingNewer()) {
+            CompositeMessage.startQueryAfter(mQueryHandler, MESSAGE_NEWER_PAGE_QUERY_TOKEN,
+                threadId, mPageSize, mQueryHandler.getNewestId());
+        }
+    }
+
+    /**
+     * Updates the message list after a change. New messages are appended to
+     * the current list if possible, otherwise loaded messages are reloaded.
+     */
+    void startUpdateQuery() {
+        if (mQueryHandler.getNewestId() <= 0 || mListAdapter.getCursor() == null || mQueryHandler.hasNewer()) {
+            // new messages are not in our window anyway
+            startQuery(false);
+        }
+        else if (mQueryHandler.startAppending()) {
+            CompositeMessage.startQueryAfter(mQueryHandler, MESSAGE_APPEND_QUERY_TOKEN,
+                threadId, 0, mQueryHandler.getNewestId());
+        }
     }
 
     private void stopQuery() {
         hideHeaderView();
-        if (mListAdapter != null)
+        if (mListAdapter != null) {
+            mListAdapter.setNotificationUri(null);
             mListAdapter.changeCursor(null);
+        }
 
         if (mQueryHandler != null) {
             // be sure to cancel all queries
@@ -1517,6 +1596,11 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
     /** Should return true if the contact is a user ID in the current context. */
     protected abstract boolean isUserId(String jid);
 
+    /** The only user presence is needed for, null for all users. */
+    protected String getPresenceJid() {
+        return null;
+    }
+
     private void subscribePresence() {
         // TODO this needs serious refactoring
         if (mPresenceReceiver == null) {
@@ -1528,35 +1612,7 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
 
                     String action = intent.getAction();
 
-                    if (MessageCenterService.ACTION_PRESENCE.equals(action)) {
-                        String from = intent.getStringExtra(MessageCenterService.EXTRA_FROM);
-                        String bareFrom = from != null ? XmppStringUtils.parseBareJid(from) : null;
-
-                        // we are receiving a presence from our peer
-                        if (from != null && isUserId(bareFrom)) {
-
-                            // we handle only (un)available presence stanzas
-                            String type = intent.getStringExtra(MessageCenterService.EXTRA_TYPE);
-                            Presence.Type presenceType = (type != null) ? Presence.Type.fromString(type) : null;
-
-                            String mode = intent.getStringExtra(MessageCenterService.EXTRA_SHOW);
-                            Presence.Mode presenceMode = (mode != null) ? Presence.Mode.fromString(mode) : null;
-
-                            String fingerprint = intent.getStringExtra(MessageCenterService.EXTRA_FINGERPRINT);
-
-                            boolean removed = false;
-                            if (presenceType == Presence.Type.available) {
-                                mAvailableResources.add(from);
-                            }
-                            else if (presenceType == Presence.Type.unavailable) {
-                                removed = mAvailableResources.remove(from);
-                            }
-
-                            onPresence(from, presenceType, removed, presenceMode, fingerprint);
-                        }
-                    }
-
-                    else if (MessageCenterService.ACTION_CONNECTED.equals(action)) {
+                    if (MessageCenterService.ACTION_CONNECTED.equals(action)) {
                         // reset compose sent flag
                         mComposer.resetCompose();
                         // reset available resources list
@@ -1587,15 +1643,44 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
                 }
             };
 
-            // listen for user presence, connection and incoming messages
+            // listen for connection and incoming messages
             IntentFilter filter = new IntentFilter();
-            filter.addAction(MessageCenterService.ACTION_PRESENCE);
             filter.addAction(MessageCenterService.ACTION_CONNECTED);
             filter.addAction(MessageCenterService.ACTION_ROSTER_LOADED);
             filter.addAction(MessageCenterService.ACTION_MESSAGE);
 
             mLocalBroadcastManager.registerReceiver(mPresenceReceiver, filter);
 
+            // user presence comes directly from the message center
+            mPresenceSubscriber = new MessageCenterBus.Subscriber<PresenceEvent>() {
+                @Override
+                public void onEvent(PresenceEvent event) {
+                    // activity is terminating
+                    if (getContext() == null)
+                        return;
+
+                    String from = event.getFrom();
+
+                    // we are receiving a presence from our peer
+                    if (from != null && isUserId(event.getJid())) {
+                        // we handle only (un)available presence stanzas
+                        Presence.Type presenceType = event.getType();
+
+                        boolean removed = false;
+                        if (presenceType == Presence.Type.available) {
+                            mAvailableResources.add(from);
+                        }
+                        else if (presenceType == Presence.Type.unavailable) {
+                            removed = mAvailableResources.remove(from);
+                        }
+
+                        onPresence(from, presenceType, removed, event.getMode(), event.getFingerprint());
+                    }
+                }
+            };
+            MessageCenterBus.subscribe(PresenceEvent.class, getPresenceJid(),
+                new Handler(), mPresenceSubscriber);
+
             // request connection and roster load status
             Context ctx = getActivity();
             if (ctx != null) {
@@ -1610,6 +1695,10 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
             mLocalBroadcastManager.unregisterReceiver(mPresenceReceiver);
             mPresenceReceiver = null;
         }
+        if (mPresenceSubscriber != null) {
+            MessageCenterBus.unsubscribe(mPresenceSubscriber);
+            mPresenceSubscriber = null;
+        }
     }
 
     protected boolean isWarningVisible(WarningType type) {
@@ -2026,72 +2115,82 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
         }
         else {
             switch (mMediaPlayerStatus) {
-                case AudioContentView.STATUS_IDLE:
-                    if (prepareAudio(audioFile, view, messageId))
-                        playAudio(view, messageId);
-                    break;
                 case AudioContentView.STATUS_ENDED:
                 case AudioContentView.STATUS_PLAYING:
                 case AudioContentView.STATUS_PAUSED:
                     resetAudio(mAudioControl);
-                    if (prepareAudio(audioFile, view, messageId))
-                        playAudio(view, messageId);
+                    // fall through
+                case AudioContentView.STATUS_IDLE:
+                    prepareAudio(audioFile, view, messageId);
                     break;
             }
         }
     }
 
-    private boolean prepareAudio(File audioFile, final AudioContentViewControl view, final long messageId) {
+    /** Prepares the player in the background and starts playing when ready. */
+    private void prepareAudio(File audioFile, AudioContentViewControl view, final long messageId) {
         stopMediaPlayerUpdater();
-        try {
-            AudioFragment audio = getAudioFragment();
-            final MediaPlayer player = audio.getPlayer();
-            player.setAudioStreamType(AudioManager.STREAM_MUSIC);
-            player.setDataSource(audioFile.getAbsolutePath());
-            player.prepare();
-
-            // prepare was successful
-            audio.setMessageId(messageId);
-            mAudioControl = view;
+        final AudioFragment audio = getAudioFragment();
+        // the view might be recycled while preparing, see onBind/onUnbind
+        audio.setMessageId(messageId);
+        mAudioControl = view;
+        final int startPosition = view.getPosition();
 
-            view.prepare(player.getDuration());
-            player.seekTo(view.getPosition());
-            view.setProgressChangeListener(true);
-            player.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
-                @Override
-                public void onCompletion(MediaPlayer mp) {
-                    stopMediaPlayerUpdater();
-                    view.end();
-                    AudioFragment audio = findAudioFragment();
-                    if (audio != null)
-                        audio.seekPlayerTo(0);
-                    setAudioStatus(AudioContentView.STATUS_ENDED);
+        audio.preparePlayer(audioFile.getAbsolutePath(), new AudioFragment.OnPreparedListener() {
+            @Override
+            public void onPrepared(AudioFragment audio, int duration) {
+                if (audio.getMessageId() != messageId)
+                    return;
+
+                audio.getPlayer().setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
+                    @Override
+                    public void onCompletion(MediaPlayer mp) {
+                        stopMediaPlayerUpdater();
+                        if (mAudioControl != null)
+                            mAudioControl.end();
+                        AudioFragment audio = findAudioFragment();
+                        if (audio != null)
+                            audio.completed();
+                        setAudioStatus(AudioContentView.STATUS_ENDED);
+                    }
+                });
+                audio.seekPlayerTo(startPosition);
+
+                AudioContentViewControl view = mAudioControl;
+                if (view != null) {
+                    view.prepare(duration);
+                    view.setProgressChangeListener(true);
                 }
-            });
-            return true;
-        }
-        catch (IOException e) {
-            Toast.makeText(getActivity(), R.string.err_file_not_found, Toast.LENGTH_SHORT).show();
-            return false;
-        }
+                playAudio(view, messageId);
+            }
+
+            @Override
+            public void onError(AudioFragment audio) {
+                audio.setMessageId(-1);
+                if (mAudioControl != null)
+                    mAudioControl.end();
+                mAudioControl = null;
+                Activity activity = getActivity();
+                if (activity != null)
+                    Toast.makeText(activity, R.string.err_file_not_found, Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
     @Override
     public void playAudio(AudioContentViewControl view, long messageId) {
-        view.play();
-        findAudioFragment().getPlayer().start();
+        findAudioFragment().startPlaying();
         setAudioStatus(AudioContentView.STATUS_PLAYING);
-        startMediaPlayerUpdater(view);
-    }
-
-    private void updatePosition(AudioContentViewControl view) {
-        view.updatePosition(findAudioFragment().getPlayer().getCurrentPosition());
+        if (view != null) {
+            view.play();
+            startMediaPlayerUpdater(view);
+        }
     }
 
     @Override
     public void pauseAudio(AudioContentViewControl view) {
         view.pause();
-        findAudioFragment().getPlayer().pause();
+        findAudioFragment().pausePlaying();
         stopMediaPlayerUpdater();
         setAudioStatus(AudioContentView.STATUS_PAUSED);
     }
@@ -2106,6 +2205,7 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
             audio.resetPlayer();
             audio.setMessageId(-1);
         }
+        setAudioStatus(AudioContentView.STATUS_IDLE);
     }
 
     private void setAudioStatus(int audioStatus) {
@@ -2122,18 +2222,23 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
         final AudioFragment audio = findAudioFragment();
         if (audio != null && audio.getMessageId() == messageId) {
             mAudioControl = view;
+            // still preparing, the view will be set up when ready
+            if (audio.getDuration() <= 0)
+                return;
+
             audio.getPlayer().setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
                 @Override
                 public void onCompletion(MediaPlayer mp) {
                     stopMediaPlayerUpdater();
                     view.end();
-                    audio.seekPlayerTo(0);
+                    audio.completed();
                     setAudioStatus(AudioContentView.STATUS_ENDED);
                 }
             });
 
             view.setProgressChangeListener(true);
-            view.prepare(audio.getPlayer().getDuration());
+            view.prepare(audio.getDuration());
+            view.updatePosition(audio.getPosition());
             if (audio.isPlaying()) {
                 startMediaPlayerUpdater(view);
                 view.play();
@@ -2153,7 +2258,7 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
             player.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
                 @Override
                 public void onCompletion(MediaPlayer mp) {
-                    getAudioFragment().seekPlayerTo(0);
+                    getAudioFragment().completed();
                     setAudioStatus(AudioContentView.STATUS_ENDED);
                 }
             });
@@ -2183,29 +2288,38 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
     }
 
     private void startMediaPlayerUpdater(final AudioContentViewControl view) {
-        updatePosition(view);
-        mMediaPlayerUpdater = new Runnable() {
+        AudioFragment audio = findAudioFragment();
+        view.updatePosition(audio.getPosition());
+        audio.setOnPositionListener(new AudioFragment.OnPositionListener() {
             @Override
-            public void run() {
-                updatePosition(view);
-                mHandler.postDelayed(this, 100);
+            public void onPosition(int position) {
+                view.updatePosition(position);
             }
-        };
-        mHandler.postDelayed(mMediaPlayerUpdater, 100);
+        }, POSITION_UPDATE_INTERVAL);
     }
 
     private void stopMediaPlayerUpdater() {
-        if (mMediaPlayerUpdater != null) {
-            mHandler.removeCallbacks(mMediaPlayerUpdater);
-            mMediaPlayerUpdater = null;
-        }
+        AudioFragment audio = findAudioFragment();
+        if (audio != null)
+            audio.setOnPositionListener(null, 0);
     }
 
     /** The conversation list query handler. */
     private static final class MessageListQueryHandler extends AsyncQueryHandler {
         private WeakReference<AbstractComposeFragment> mParent;
         private boolean mCancel;
+        /** Oldest loaded message. */
         private long mLastId;
+        /** Newest loaded message. */
+        private long mNewestId;
+        /** True if there are messages newer than {@link #mNewestId} to load. */
+        private boolean mHasNewer;
+        private boolean mLoadingNewer;
+        private boolean mAppending;
+        /** Content changed again while appending. */
+        private boolean mChangedWhileAppending;
+        /** Cursors making up the loaded window, oldest first. Owned by us. */
+        private final List<Cursor> mPages = new ArrayList<>();
 
         public MessageListQueryHandler(AbstractComposeFragment parent) {
             super(parent.getActivity().getApplicationContext().getContentResolver());
@@ -2230,6 +2344,7 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
                 if (parent != null) {
                     parent.unregisterPeerObserver();
                     parent.mListAdapter.changeCursor(null);
+                    closePages();
                 }
                 return;
             }
@@ -2256,11 +2371,20 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
 
                     }
                     else {
+                        // reloading an existing window
+                        boolean reload = mLastId > 0;
+
                         // first query - use last id of this new cursor
                         if (cursor.getCount() > 0) {
                             cursor.moveToFirst();
                             mLastId = Conversation.getMessageId(cursor);
+                            cursor.moveToLast();
+                            mNewestId = Conversation.getMessageId(cursor);
                         }
+                        // pending appends are obsolete now
+                        mAppending = false;
+                        mChangedWhileAppending = false;
+                        mLoadingNewer = false;
 
                         // save reloading status for next time
                         Bundle args = parent.getArguments();
@@ -2271,6 +2395,8 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
                         if (args != null && !args.getBoolean(ComposeMessage.EXTRA_RELOADING)) {
                             long msgId = args.getLong(ComposeMessage.EXTRA_MESSAGE, -1);
                             if (msgId > 0) {
+                                // the page ends with the anchor, there might be more
+                                mHasNewer = true;
                                 cursor.moveToPosition(-1);
                                 while (cursor.moveToNext()) {
                                     long curId = cursor.getLong(CompositeMessage.COLUMN_ID);
@@ -2285,6 +2411,8 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
                         }
 
                         parent.mListAdapter.changeCursor(cursor);
+                        closePages();
+                        mPages.add(cursor);
                         if (newSelectionPos >= 0) {
                             // +1 is for the header view
                             final int pos = newSelectionPos + 1;
@@ -2296,7 +2424,7 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
                             });
                         }
 
-                        if (newSelectionPos < 0 && cursor.getCount() >= MESSAGE_PAGE_SIZE)
+                        if (!reload && cursor.getCount() >= parent.mPageSize)
                             parent.showHeaderView();
 
                         parent.getActivity().setProgressBarIndeterminateVisibility(false);
@@ -2310,7 +2438,7 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
                         int newSelectionPos = -1;
 
                         // there is no more data after this page
-                        if (cursor.getCount() < MESSAGE_PAGE_SIZE)
+                        if (cursor.getCount() < parent.mPageSize)
                             parent.hideHeaderView();
 
                         // save last id of this new cursor
@@ -2318,14 +2446,16 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
                         mLastId = Conversation.getMessageId(cursor);
 
                         // join with the old cursor (if any)
-                        Cursor oldCursor = parent.mListAdapter.getCursor();
-                        if (oldCursor != null) {
+                        if (parent.mListAdapter.getCursor() != null) {
                             // the new selection will be the next item after this new cursor
                             newSelectionPos = cursor.getCount();
-                            cursor = new MergeCursor(new Cursor[]{cursor, oldCursor});
                         }
+                        else {
+                            closePages();
+                        }
+                        mPages.add(0, cursor);
 
-                        parent.mListAdapter.swapCursor(cursor);
+                        showWindow(parent);
                         if (newSelectionPos >= 0)
                             parent.getListView().setSelection(newSelectionPos);
 
@@ -2340,6 +2470,45 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
                     parent.enableHeaderView(true);
                     break;
 
+                case MESSAGE_NEWER_PAGE_QUERY_TOKEN:
+                    if (!mLoadingNewer) {
+                        // list was reloaded in the meantime
+                        cursor.close();
+                        break;
+                    }
+                    mLoadingNewer = false;
+                    // there is no more data after this page
+                    if (cursor.getCount() < parent.mPageSize)
+                        mHasNewer = false;
+
+                    if (cursor.getCount() > 0) {
+                        appendCursor(parent, cursor);
+                    }
+                    else {
+                        cursor.close();
+                    }
+                    break;
+
+                case MESSAGE_APPEND_QUERY_TOKEN:
+                    if (!mAppending) {
+                        // list was reloaded in the meantime
+                        cursor.close();
+                        break;
+                    }
+                    boolean changed = mChangedWhileAppending;
+                    mAppending = false;
+                    mChangedWhileAppending = false;
+
+                    if (cursor.getCount() > 0 && !changed) {
+                        appendCursor(parent, cursor);
+                    }
+                    else {
+                        // no new messages: something else has changed (e.g. message status)
+                        cursor.close();
+                        parent.startQuery(false);
+                    }
+                    break;
+
                 case CONVERSATION_QUERY_TOKEN:
                     if (cursor.moveToFirst()) {
                         parent.mConversation = Conversation.createFromCursor(
@@ -2358,18 +2527,91 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
 
         }
 
+        /** Adds newer messages to the bottom of the list. */
+        private void appendCursor(AbstractComposeFragment parent, Cursor cursor) {
+            cursor.moveToLast();
+            mNewestId = Conversation.getMessageId(cursor);
+
+            // join with the old cursor (if any)
+            if (parent.mListAdapter.getCursor() == null)
+                closePages();
+            mPages.add(cursor);
+
+            showWindow(parent);
+            parent.updateUI();
+        }
+
+        /**
+         * Returns a single cursor for all the loaded pages. Views are never
+         * nested, so moving around doesn't get slower with pages. The old
+         * view can be dropped without closing the pages it shares.
+         */
+        private Cursor getWindow() {
+            return mPages.size() == 1 ? mPages.get(0) : new PagesCursor(mPages);
+        }
+
+        /** Shows all the loaded pages, dropping the previous view. */
+        private void showWindow(AbstractComposeFragment parent) {
+            Cursor old = parent.mListAdapter.swapCursor(getWindow());
+            // pages are shared with the new view
+            if (old instanceof PagesCursor)
+                old.close();
+        }
+
+        /** Closes the pages of a window that is not shown anymore. */
+        private void closePages() {
+            for (Cursor c : mPages)
+                c.close();
+            mPages.clear();
+        }
+
         public synchronized void abort() {
             mCancel = true;
             mLastId = 0;
+            mNewestId = 0;
+            mHasNewer = false;
+            mLoadingNewer = false;
+            mAppending = false;
+            mChangedWhileAppending = false;
+            closePages();
             cancelOperation(MESSAGE_LIST_QUERY_TOKEN);
             cancelOperation(CONVERSATION_QUERY_TOKEN);
             cancelOperation(MESSAGE_PAGE_QUERY_TOKEN);
+            cancelOperation(MESSAGE_NEWER_PAGE_QUERY_TOKEN);
+            cancelOperation(MESSAGE_APPEND_QUERY_TOKEN);
         }
 
         public long getLastId() {
             return mLastId;
         }
 
+        public long getNewestId() {
+            return mNewestId;
+        }
+
+        public boolean hasNewer() {
+            return mHasNewer;
+        }
+
+        /** Returns true if a newer page should be requested. */
+        public synchronized boolean startLoadingNewer() {
+            if (!mHasNewer || mLoadingNewer || mNewestId <= 0)
+                return false;
+            mLoadingNewer = true;
+            return true;
+        }
+
+        /** Returns true if an append query should be started. */
+        public synchronized boolean startAppending() {
+            if (mAppending) {
+                // we'll reload everything when the current query completes
+                mChangedWhileAppending = true;
+                return false;
+            }
+            mAppending = true;
+            return true;
+        }
+
     }
 
 }
@@ -33,7 +33,6 @@ import android.app.Dialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.pm.PackageManager;
-import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.MediaRecorder;
 import android.os.Bundle;
@@ -168,6 +167,7 @@ public class AudioDialog extends AlertDialog {
         mData.getPlayer().setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
             @Override
             public void onCompletion(MediaPlayer mp) {
+                mData.completed();
                 mImageButton.setImageResource(R.drawable.play);
                 mProgressBarAnimator.end();
                 mStatus = STATUS_ENDED;
@@ -236,14 +236,14 @@ public class AudioDialog extends AlertDialog {
             case STATUS_PAUSED:
             case STATUS_ENDED:
                 // restart
-                animate(mProgressBar, null, 0, MAX_PROGRESS, mData.getPlayer().getDuration());
+                animate(mProgressBar, null, 0, MAX_PROGRESS, mData.getDuration());
                 setupViewForPlaying(0, mStatus);
-                mData.getPlayer().seekTo(0);
+                mData.seekPlayerTo(0);
                 break;
             case STATUS_PLAYING:
                 // restore animator
                 float progress = calculatePlayingProgress();
-                animate(mProgressBar, null, progress, MAX_PROGRESS, mData.getPlayer().getDuration());
+                animate(mProgressBar, null, progress, MAX_PROGRESS, mData.getDuration());
                 setupViewForPlaying(progress);
                 setupForPlaying();
                 resumeAudio();
@@ -266,7 +266,6 @@ public class AudioDialog extends AlertDialog {
         }
         else if (mStatus == STATUS_PLAYING || mStatus == STATUS_SEND) {
             pauseAudio(mStatus == STATUS_SEND);
-            mData.getPlayer().release();
         }
 
         if (mStatus != STATUS_SEND && mFile != null) {
@@ -283,7 +282,7 @@ public class AudioDialog extends AlertDialog {
 
     private float calculatePlayingProgress() {
         long time = mData.getElapsedTime();
-        return (float) (time * 100) / mData.getPlayer().getDuration();
+        return (float) (time * 100) / mData.getDuration();
     }
 
     @SuppressLint("ResourceAsColor")
@@ -386,25 +385,27 @@ public class AudioDialog extends AlertDialog {
 
     void playAudio() {
         mProgressBar.setClickable(true);
-        try {
-            MediaPlayer player = mData.getPlayer();
-            player.setAudioStreamType(AudioManager.STREAM_MUSIC);
-            player.setDataSource(mFile.getAbsolutePath());
-            player.prepare();
-        }
-        catch (IOException e) {
-            Log.e (TAG, "error reading from external storage", e);
-            new MaterialDialog.Builder(getContext())
-                .content(R.string.err_playing_sdcard)
-                .positiveText(android.R.string.ok)
-                .show();
-        }
-        catch (Exception e) {
-            Log.e(TAG, "error playing audio", e);
-        }
-        setupForPlaying();
-        animate(mProgressBar, null, 0, MAX_PROGRESS, mData.getPlayer().getDuration());
-        resumeAudio();
+        mData.preparePlayer(mFile.getAbsolutePath(), new AudioFragment.OnPreparedListener() {
+            @Override
+            public void onPrepared(AudioFragment audio, int duration) {
+                // dialog might have been closed in the meantime
+                if (!isShowing())
+                    return;
+                setupForPlaying();
+                animate(mProgressBar, null, 0, MAX_PROGRESS, duration);
+                resumeAudio();
+            }
+
+            @Override
+            public void onError(AudioFragment audio) {
+                if (!isShowing())
+                    return;
+                new MaterialDialog.Builder(getContext())
+                    .content(R.string.err_playing_sdcard)
+                    .positiveText(android.R.string.ok)
+                    .show();
+            }
+        });
     }
 
     private void setupForPlaying() {
@@ -412,7 +413,7 @@ public class AudioDialog extends AlertDialog {
         mTimeTxt.setVisibility(View.VISIBLE);
         int color = ContextCompat.getColor(getContext(), R.color.audio_pbar_play);
         mTimeTxt.setTextColor(color);
-        mTimeCircle = MAX_PROGRESS / (float) mData.getPlayer().getDuration();
+        mTimeCircle = MAX_PROGRESS / (float) mData.getDuration();
     }
 
     void pauseAudio() {
@@ -433,7 +434,7 @@ public class AudioDialog extends AlertDialog {
             mProgressBarAnimator.start();
         // STATUS_PLAYING is used when restoring dialog
         if (mStatus == STATUS_PAUSED || mStatus == STATUS_PLAYING)
-            mProgressBarAnimator.setCurrentPlayTime(mData.getPlayer().getCurrentPosition());
+            mProgressBarAnimator.setCurrentPlayTime(mData.getPosition());
         mData.startPlaying();
         mStatus = STATUS_PLAYING;
     }
@@ -477,7 +478,7 @@ public class AudioDialog extends AlertDialog {
                         else if (event.getAction() == android.view.MotionEvent.ACTION_UP) {
                             progressBar.setPointerAlpha(0);
                             progressBar.setPointerAlphaOnTouch(0);
-                            mData.getPlayer().seekTo(mPlayerSeekTo);
+                            mData.seekPlayerTo(mPlayerSeekTo);
                             if (mCheckSeek == STATUS_PLAYING)
                                 resumeAudio();
                         }
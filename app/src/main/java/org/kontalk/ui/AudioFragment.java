@@ -21,21 +21,45 @@ package org.kontalk.ui;
 import java.io.IOException;
 
 import android.app.Activity;
+import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.MediaRecorder;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
 import android.os.SystemClock;
 import android.support.v4.app.Fragment;
 
+import org.kontalk.Log;
 import org.kontalk.util.SystemUtils;
 
 
 /**
  * A fragment that handles media recorder and player instances, independently
  * of its parent activity.
+ * The player is prepared asynchronously and kept around (reset, not released)
+ * for the next media. The playback position is tracked from the time
+ * playback started, so it can be reported without querying the player; it
+ * is synchronized with the player at every position update, so it doesn't
+ * drift when playback stalls.
  * @author Daniele Ricci
  */
-public class AudioFragment extends Fragment {
+public class AudioFragment extends Fragment implements Handler.Callback {
+    private static final String TAG = ComposeMessage.TAG;
+
+    private static final int MSG_POSITION = 1;
+
+    /** Listener for player preparation. Called on the main thread. */
+    public interface OnPreparedListener {
+        void onPrepared(AudioFragment audio, int duration);
+
+        void onError(AudioFragment audio);
+    }
+
+    /** Listener for playback position. Called on the main thread. */
+    public interface OnPositionListener {
+        void onPosition(int position);
+    }
 
     private MediaRecorder mRecorder;
     private MediaPlayer mPlayer;
@@ -45,6 +69,17 @@ public class AudioFragment extends Fragment {
     /** Message id of the media currently being played. */
     private long mMessageId = -1;
 
+    /** Duration of the prepared media, 0 if not prepared. */
+    private int mDuration;
+    /** Playback position when playback was started or paused. */
+    private int mPositionAnchor;
+    /** Uptime when playback was started, 0 if not playing. */
+    private long mTimeAnchor;
+
+    private final Handler mHandler = new Handler(this);
+    private OnPositionListener mPositionListener;
+    private int mPositionInterval;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -59,6 +94,96 @@ public class AudioFragment extends Fragment {
         return mPlayer;
     }
 
+    /**
+     * Prepares the player for the given file in the background.
+     * Any media previously loaded is stopped.
+     */
+    public void preparePlayer(String path, final OnPreparedListener listener) {
+        resetPlayer();
+        MediaPlayer player = getPlayer();
+        try {
+            player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            player.setDataSource(path);
+            player.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+                @Override
+                public void onPrepared(MediaPlayer mp) {
+                    mDuration = mp.getDuration();
+                    listener.onPrepared(AudioFragment.this, mDuration);
+                }
+            });
+            player.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+                @Override
+                public boolean onError(MediaPlayer mp, int what, int extra) {
+                    Log.w(TAG, "player error " + what + "/" + extra);
+                    resetPlayer();
+                    listener.onError(AudioFragment.this);
+                    return true;
+                }
+            });
+            player.prepareAsync();
+        }
+        catch (Exception e) {
+            Log.w(TAG, "unable to prepare player", e);
+            resetPlayer();
+            listener.onError(this);
+        }
+    }
+
+    /** Duration of the prepared media, 0 if no media is prepared. */
+    public int getDuration() {
+        return mDuration;
+    }
+
+    /** Current playback position, extrapolated from the last synchronization. */
+    public int getPosition() {
+        if (mTimeAnchor > 0) {
+            long position = mPositionAnchor + SystemClock.uptimeMillis() - mTimeAnchor;
+            return (int) (mDuration > 0 ? Math.min(position, mDuration) : position);
+        }
+        return mPositionAnchor;
+    }
+
+    /**
+     * Reports the playback position while playing.
+     * @param interval playback time between updates, in milliseconds
+     */
+    public void setOnPositionListener(OnPositionListener listener, int interval) {
+        mPositionListener = listener;
+        mPositionInterval = interval;
+        schedulePosition();
+    }
+
+    private void schedulePosition() {
+        mHandler.removeMessages(MSG_POSITION);
+        if (mPositionListener != null && mTimeAnchor > 0) {
+            // next time the reported position changes
+            int position = getPosition();
+            int delay = mPositionInterval - (position % mPositionInterval);
+            mHandler.sendEmptyMessageDelayed(MSG_POSITION, delay);
+        }
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        if (msg.what == MSG_POSITION) {
+            if (mPositionListener != null && mTimeAnchor > 0) {
+                syncPosition();
+                mPositionListener.onPosition(getPosition());
+                schedulePosition();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /** Moves the position anchor to the actual player position. */
+    private void syncPosition() {
+        if (mPlayer != null && mPlayer.isPlaying()) {
+            mPositionAnchor = mPlayer.getCurrentPosition();
+            mTimeAnchor = SystemClock.uptimeMillis();
+        }
+    }
+
     public MediaRecorder getRecorder() {
         if (mRecorder == null) {
             mRecorder = new MediaRecorder();
@@ -94,6 +219,9 @@ public class AudioFragment extends Fragment {
         if (mPlayer != null) {
             mStartTime = SystemClock.uptimeMillis();
             mPlayer.start();
+            // the position will be computed from here
+            mTimeAnchor = mStartTime;
+            schedulePosition();
             // started, acquire lock
             acquireLock();
         }
@@ -102,19 +230,40 @@ public class AudioFragment extends Fragment {
     public void pausePlaying() {
         if (mPlayer != null) {
             mPlayer.pause();
+            mPositionAnchor = getPosition();
+            mTimeAnchor = 0;
+            schedulePosition();
             // paused, release lock
             releaseLock();
         }
     }
 
-    public void seekPlayerTo(int msec) {
+    /** Playback reached the end. The player will be ready to start over. */
+    public void completed() {
+        mPositionAnchor = 0;
+        mTimeAnchor = 0;
+        schedulePosition();
         if (mPlayer != null)
+            mPlayer.seekTo(0);
+    }
+
+    public void seekPlayerTo(int msec) {
+        if (mPlayer != null) {
             mPlayer.seekTo(msec);
+            mPositionAnchor = msec;
+            if (mTimeAnchor > 0)
+                mTimeAnchor = SystemClock.uptimeMillis();
+            schedulePosition();
+        }
     }
 
     public void resetPlayer() {
         if (mPlayer != null)
             mPlayer.reset();
+        mDuration = 0;
+        mPositionAnchor = 0;
+        mTimeAnchor = 0;
+        schedulePosition();
     }
 
     public boolean isPlaying() {
@@ -130,13 +279,17 @@ public class AudioFragment extends Fragment {
     }
 
     public void finish(boolean release) {
-        if (mPlayer != null && release)
+        if (mPlayer != null && release) {
             mPlayer.release();
+            mPlayer = null;
+        }
         finish();
     }
 
+    /** Stops everything. The player is kept for later use. */
     public void finish() {
-        mPlayer = null;
+        resetPlayer();
+        mPositionListener = null;
         mRecorder = null;
         mStartTime = 0;
         releaseLock();
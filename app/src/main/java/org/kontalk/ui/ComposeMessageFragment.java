@@ -362,6 +362,11 @@ public class ComposeMessageFragment extends AbstractComposeFragment {
         return XMPPUtils.equalsBareJID(jid, mUserJID);
     }
 
+    @Override
+    protected String getPresenceJid() {
+        return mUserJID;
+    }
+
     @Override
     protected void onConnected() {
         // reset any pending request
@@ -37,7 +37,9 @@ import android.os.Handler;
 import android.os.Parcelable;
 import android.support.v4.app.ListFragment;
 import android.support.v4.content.LocalBroadcastManager;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v4.widget.SwipeRefreshLayout;
+import android.support.v7.widget.SearchView;
 import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -78,6 +80,8 @@ public class ContactsListFragment extends ListFragment implements
     private MenuItem mSyncButton;
 
     private boolean mMultiselect;
+    /** Current search filter. */
+    private String mFilter;
 
     private final RunnableBroadcastReceiver.ActionRunnable mPostSyncAction =
             new RunnableBroadcastReceiver.ActionRunnable() {
@@ -198,6 +202,25 @@ public class ContactsListFragment extends ListFragment implements
         inflater.inflate(R.menu.contacts_list_menu, menu);
         mSyncButton = menu.findItem(R.id.menu_refresh);
 
+        MenuItem searchMenu = menu.findItem(R.id.menu_search);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchMenu);
+        // LayoutParams.MATCH_PARENT does not work, use a big value instead
+        searchView.setMaxWidth(1000000);
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                mFilter = newText;
+                // filtering is done on a background thread
+                mListAdapter.getFilter().filter(newText);
+                return true;
+            }
+        });
+
         Context ctx = getActivity();
         if (ctx != null)
             mSyncButton.setVisible(!SyncAdapter.isActive(getActivity()) && !mMultiselect);
@@ -288,7 +311,7 @@ public class ContactsListFragment extends ListFragment implements
     public void startQuery() {
         final Context context = getContext();
         if (context != null) {
-            mCursor = Contact.queryContacts(context);
+            mCursor = Contact.queryContacts(context, mFilter);
             mListAdapter.changeCursor(mCursor);
         }
     }
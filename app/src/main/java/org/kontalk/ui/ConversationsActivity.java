@@ -209,7 +209,7 @@ public class ConversationsActivity extends MainActivity
                 // mark all messages as old
                 MessagesProvider.markAllThreadsAsOld(context);
                 // update notification
-                MessagingNotification.updateMessagesNotification(context, false);
+                MessagingNotification.clearAll(context);
             }
         }).start();
 
@@ -19,16 +19,16 @@
 package org.kontalk.ui;
 
 import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.jxmpp.util.XmppStringUtils;
 
 import android.accounts.Account;
 import android.app.Notification;
 import android.app.PendingIntent;
-import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
@@ -38,6 +38,11 @@ import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.media.AudioManager;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationCompat.BigTextStyle;
 import android.support.v4.app.NotificationCompat.InboxStyle;
@@ -83,6 +88,7 @@ public class MessagingNotification {
 
     private static final String[] MESSAGES_UNREAD_PROJECTION =
     {
+        Messages._ID,
         Messages.THREAD_ID,
         CommonColumns.PEER,
         Messages.BODY_MIME,
@@ -109,9 +115,23 @@ public class MessagingNotification {
         CommonColumns.NEW + " <> 0 AND " +
         CommonColumns.DIRECTION + " = " + Messages.DIRECTION_IN;
 
-    /** Pending delayed notification update flag. */
-    @SuppressWarnings("WeakerAccess")
-    static volatile boolean sPending;
+    /** Delay for coalescing notification updates. */
+    private static final long RENDER_DELAY = 500;
+
+    private static final int MSG_RELOAD = 1;
+    private static final int MSG_FETCH = 2;
+    private static final int MSG_CLEAR_THREADS = 3;
+    private static final int MSG_CLEAR_ALL = 4;
+    private static final int MSG_RENDER = 5;
+
+    /** Notification thread. */
+    private static Handler sHandler;
+
+    /** Unread messages, used only by the notification thread. */
+    private static final UnreadConversations sUnread = new UnreadConversations();
+
+    /** A new message has come since the last update (starts notification alerts). */
+    private static final AtomicBoolean sAlert = new AtomicBoolean();
 
     /** Temporary disable all notifications flag */
     private static volatile boolean sDisabled;
@@ -130,6 +150,55 @@ public class MessagingNotification {
     private MessagingNotification() {}
 
     public static void init(Context context) {
+        getHandler(context);
+    }
+
+    private static synchronized Handler getHandler(Context context) {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread("MessagingNotification", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new NotificationHandler(context.getApplicationContext(), thread.getLooper());
+        }
+        return sHandler;
+    }
+
+    /** All notification work is done here, one update at a time. */
+    private static final class NotificationHandler extends Handler {
+        private final Context mContext;
+
+        NotificationHandler(Context context, Looper looper) {
+            super(looper);
+            mContext = context;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_RELOAD:
+                    sUnread.reset();
+                    break;
+                case MSG_FETCH:
+                    // new messages will be fetched below
+                    break;
+                case MSG_CLEAR_THREADS:
+                    for (long threadId : (long[]) msg.obj)
+                        sUnread.removeThread(threadId);
+                    break;
+                case MSG_CLEAR_ALL:
+                    sUnread.clear();
+                    break;
+                case MSG_RENDER:
+                    render(mContext, sAlert.getAndSet(false));
+                    return;
+            }
+
+            if (msg.what == MSG_RELOAD || msg.what == MSG_FETCH || !sUnread.isLoaded())
+                fetchUnread(mContext);
+
+            // coalesce updates coming in a short time
+            if (!hasMessages(MSG_RENDER))
+                sendEmptyMessageDelayed(MSG_RENDER, RENDER_DELAY);
+        }
     }
 
     public static void setPaused(String jid) {
@@ -154,118 +223,137 @@ public class MessagingNotification {
         return android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN;
     }
 
-    /** Starts messages notification updates in another thread. */
-    public static void delayedUpdateMessagesNotification(final Context context, final boolean isNew) {
-        if (!sPending) {
-            sPending = true;
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    updateMessagesNotification(context, isNew);
-                    sPending = false;
-                }
-            }).start();
-        }
+    /**
+     * Updates the notification with messages stored since the last update.
+     * @param isNew if true a new message has come (starts notification alerts)
+     */
+    public static void delayedUpdateMessagesNotification(Context context, boolean isNew) {
+        if (isNew)
+            sAlert.set(true);
+        Handler handler = getHandler(context);
+        if (!handler.hasMessages(MSG_FETCH))
+            handler.sendEmptyMessage(MSG_FETCH);
     }
 
     /**
-     * Updates system notification for unread messages.
-     * @param context
+     * Reloads all unread messages and updates the notification.
+     * Use this after messages were deleted or changed in bulk.
      * @param isNew if true a new message has come (starts notification alerts)
      */
     public static void updateMessagesNotification(Context context, boolean isNew) {
-        // no default account. WTF?!?
-        Account account = Authenticator.getDefaultAccount(context);
-        if (account == null)
+        if (isNew)
+            sAlert.set(true);
+        getHandler(context).sendEmptyMessage(MSG_RELOAD);
+    }
+
+    /** Removes threads marked as read or old from the notification. */
+    public static void clearThreads(Context context, long... threadIds) {
+        getHandler(context).obtainMessage(MSG_CLEAR_THREADS, threadIds).sendToTarget();
+    }
+
+    /** Removes all messages from the notification (e.g. all marked as old). */
+    public static void clearAll(Context context) {
+        getHandler(context).sendEmptyMessage(MSG_CLEAR_ALL);
+    }
+
+    /** Adds unread messages stored after the last one we know of to the model. */
+    static void fetchUnread(Context context) {
+        // the legacy notification uses the threads table directly
+        if (!supportsBigNotifications())
             return;
 
-        // if notifying new messages, wait a little bit
-        // to let all incoming messages come through
-        /*
-        FIXME this is useless because message are slow to arrive anyway
-        (time to receive packs, store messages in db, etc. wastes too much time
-        if (isNew) {
-            try {
-                Thread.sleep(500);
-            }
-            catch (InterruptedException e) {
-                // ignored
+        Cursor c = context.getContentResolver().query(Messages.CONTENT_URI,
+            MESSAGES_UNREAD_PROJECTION,
+            Messages._ID + " > ? AND " + MESSAGES_UNREAD_SELECTION,
+            new String[] { String.valueOf(sUnread.getMaxId()) },
+            Messages.DEFAULT_SORT_ORDER);
+        if (c == null)
+            return;
+
+        try {
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                long threadId = c.getLong(1);
+                String peer = c.getString(2);
+                String mime = c.getString(3);
+                byte[] content = c.getBlob(4);
+                String attMime = c.getString(5);
+                boolean encrypted = c.getInt(6) != 0;
+                String groupJid = c.getString(7);
+                String groupSubject = c.getString(8);
+
+                // text is decoded only once, when the message is added
+                sUnread.add(id, threadId, peer, groupJid, groupSubject,
+                    getTextContent(context, mime, content, attMime, encrypted));
             }
+            sUnread.setLoaded();
         }
-        */
+        finally {
+            c.close();
+        }
+    }
 
-        ContentResolver res = context.getContentResolver();
-        NotificationManagerCompat nm = NotificationManagerCompat.from(context);
+    private static String getTextContent(Context context, String mime, byte[] content, String attMime, boolean encrypted) {
+        String textContent;
 
-        String query = MESSAGES_UNREAD_SELECTION;
-        String[] args = null;
-        String[] proj;
-        String order;
-        Uri uri;
-        if (supportsBigNotifications()) {
-            uri = Messages.CONTENT_URI;
-            proj = MESSAGES_UNREAD_PROJECTION;
-            order = Messages.DEFAULT_SORT_ORDER;
+        if (encrypted) {
+            textContent = context.getString(R.string.text_encrypted);
         }
-        else {
-            uri = Threads.CONTENT_URI;
-            proj = THREADS_UNREAD_PROJECTION;
-            order = Threads.INVERTED_SORT_ORDER;
+        else if (content == null && attMime != null) {
+            textContent = CompositeMessage.getSampleTextContent(attMime);
         }
-
-        // is there a peer to not notify for?
-        final String paused = sPaused;
-        if (paused != null) {
-            query += " AND " + CommonColumns.PEER + " <> ? AND " +
-                "(" + Groups.GROUP_JID + " IS NULL OR " + Groups.GROUP_JID + " <> ?)";
-            args = new String[] { paused, paused };
-        }
-
-        Cursor c = res.query(uri, proj, query, args, order);
-
-        // this shouldn't happen, but who knows...
-        if (c == null) {
-            nm.cancel(NOTIFICATION_ID_MESSAGES);
-            return;
+        else {
+            textContent = content != null ? new String(content) : "";
+            if (GroupCommandComponent.supportsMimeType(mime)) {
+                try {
+                    textContent = GroupCommandComponent.getTextContent(context, textContent, true);
+                }
+                catch (UnsupportedOperationException e) {
+                    // TODO using another string
+                    textContent = context.getString(R.string.peer_unknown);
+                }
+            }
         }
 
-        // no unread messages - delete notification
-        int unread = c.getCount();
-        if (unread == 0) {
-            c.close();
-            nm.cancel(NOTIFICATION_ID_MESSAGES);
-            return;
-        }
+        return textContent;
+    }
 
-        // notifications are disabled
-        if (!Preferences.getNotificationsEnabled(context) || sDisabled)
+    /**
+     * Updates system notification for unread messages.
+     * Called only by the notification thread.
+     * @param isNew if true a new message has come (starts notification alerts)
+     */
+    static void render(Context context, boolean isNew) {
+        // no default account. WTF?!?
+        Account account = Authenticator.getDefaultAccount(context);
+        if (account == null)
             return;
 
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(context.getApplicationContext());
-        Set<Uri> conversationIds = new HashSet<>(unread);
+        NotificationManagerCompat nm = NotificationManagerCompat.from(context);
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context);
+        Set<Uri> conversationIds;
 
         if (supportsBigNotifications()) {
-            NotificationGenerator ngen = new NotificationGenerator(context, builder);
+            List<UnreadConversations.Entry> entries = sUnread.getEntries(sPaused);
 
-            long id = 0;
-            while (c.moveToNext()) {
-                // thread_id for PendingIntent
-                id = c.getLong(0);
-                String peer = c.getString(1);
-                String mime = c.getString(2);
-                byte[] content = c.getBlob(3);
-                String attMime = c.getString(4);
-                boolean encrypted = c.getInt(5) != 0;
-                String groupJid = c.getString(6);
-                String groupSubject = c.getString(7);
+            // no unread messages - delete notification
+            int unread = UnreadConversations.getUnreadCount(entries);
+            if (unread == 0) {
+                nm.cancel(NOTIFICATION_ID_MESSAGES);
+                return;
+            }
 
-                // store conversation id for intents
-                conversationIds.add(ContentUris.withAppendedId(Threads.CONTENT_URI, id));
+            // notifications are disabled
+            if (!Preferences.getNotificationsEnabled(context) || sDisabled)
+                return;
 
-                ngen.addMessage(peer, mime, content, attMime, encrypted, groupJid, groupSubject);
+            conversationIds = new LinkedHashSet<>(entries.size());
+            for (UnreadConversations.Entry entry : entries) {
+                // store conversation id for intents
+                conversationIds.add(ContentUris.withAppendedId(Threads.CONTENT_URI, entry.threadId));
             }
-            c.close();
 
+            NotificationGenerator ngen = new NotificationGenerator(context, builder, entries);
             int convCount = ngen.build(account, unread, conversationIds.iterator().next());
 
             builder.setSmallIcon(R.drawable.ic_stat_notify);
@@ -281,7 +369,8 @@ public class MessagingNotification {
             }
             // one unread conversation - open compose message on that thread
             else {
-                ni = ComposeMessage.fromConversation(context, id);
+                ni = ComposeMessage.fromConversation(context,
+                    entries.get(entries.size() - 1).threadId);
             }
             PendingIntent pi = PendingIntent.getActivity(context, NOTIFICATION_ID_MESSAGES,
                     ni, 0);
@@ -290,6 +379,42 @@ public class MessagingNotification {
         }
 
         else {
+            String query = MESSAGES_UNREAD_SELECTION;
+            String[] args = null;
+
+            // is there a peer to not notify for?
+            final String paused = sPaused;
+            if (paused != null) {
+                query += " AND " + CommonColumns.PEER + " <> ? AND " +
+                    "(" + Groups.GROUP_JID + " IS NULL OR " + Groups.GROUP_JID + " <> ?)";
+                args = new String[] { paused, paused };
+            }
+
+            Cursor c = context.getContentResolver().query(Threads.CONTENT_URI,
+                THREADS_UNREAD_PROJECTION, query, args, Threads.INVERTED_SORT_ORDER);
+
+            // this shouldn't happen, but who knows...
+            if (c == null) {
+                nm.cancel(NOTIFICATION_ID_MESSAGES);
+                return;
+            }
+
+            // no unread messages - delete notification
+            int unread = c.getCount();
+            if (unread == 0) {
+                c.close();
+                nm.cancel(NOTIFICATION_ID_MESSAGES);
+                return;
+            }
+
+            // notifications are disabled
+            if (!Preferences.getNotificationsEnabled(context) || sDisabled) {
+                c.close();
+                return;
+            }
+
+            conversationIds = new HashSet<>(unread);
+
             // loop all threads and accumulate them
             MessageAccumulator accumulator = new MessageAccumulator(context);
             while (c.moveToNext()) {
@@ -405,23 +530,6 @@ public class MessagingNotification {
         builder.setColor(ContextCompat.getColor(context, R.color.app_accent));
     }
 
-    private static final class NotificationConversation {
-        final String peer;
-        final CharSequence allContent;
-        final String groupJid;
-        final String groupSubject;
-
-        CharSequence lastContent;
-
-        NotificationConversation(String peer, CharSequence allContent, CharSequence lastContent, String groupJid, String groupSubject) {
-            this.peer = peer;
-            this.allContent = allContent;
-            this.lastContent = lastContent;
-            this.groupJid = groupJid;
-            this.groupSubject = groupSubject;
-        }
-    }
-
     /** Triggers a notification for a chat invitation. */
     public static void chatInvitation(Context context, String jid) {
         // open conversation, do not send notification
@@ -516,52 +624,12 @@ public class MessagingNotification {
     private static final class NotificationGenerator {
         private final Context mContext;
         private final NotificationCompat.Builder mBuilder;
-        private final Map<String, NotificationConversation> mConversations;
+        private final List<UnreadConversations.Entry> mConversations;
 
-        NotificationGenerator(Context context, NotificationCompat.Builder builder) {
+        NotificationGenerator(Context context, NotificationCompat.Builder builder, List<UnreadConversations.Entry> conversations) {
             mContext = context;
             mBuilder = builder;
-            mConversations = new LinkedHashMap<>();
-        }
-
-        void addMessage(String peer, String mime, byte[] content, String attMime, boolean encrypted, String groupJid, String groupSubject) {
-            String key = conversationKey(peer, groupJid);
-            NotificationConversation conv = mConversations.get(key);
-            if (conv == null) {
-                conv = new NotificationConversation(peer, new StringBuilder(), null, groupJid, groupSubject);
-                mConversations.put(key, conv);
-            }
-            else {
-                ((StringBuilder) conv.allContent).append('\n');
-            }
-
-            String textContent;
-
-            if (encrypted) {
-                textContent = mContext.getString(R.string.text_encrypted);
-            }
-            else if (content == null && attMime != null) {
-                textContent = CompositeMessage.getSampleTextContent(attMime);
-            }
-            else {
-                textContent = content != null ? new String(content) : "";
-                if (GroupCommandComponent.supportsMimeType(mime)) {
-                    try {
-                        textContent = GroupCommandComponent.getTextContent(mContext, textContent, true);
-                    }
-                    catch (UnsupportedOperationException e) {
-                        // TODO using another string
-                        textContent = mContext.getString(R.string.peer_unknown);
-                    }
-                }
-            }
-
-            ((StringBuilder) conv.allContent).append(textContent);
-            conv.lastContent = textContent;
-        }
-
-        private String conversationKey(String peer, String groupJid) {
-            return groupJid != null ? (peer + ":" + groupJid) : peer;
+            mConversations = conversations;
         }
 
         private int size() {
@@ -570,9 +638,8 @@ public class MessagingNotification {
 
             // manual count is needed because we need to group chat groups (ehm)
             Set<String> keys = new HashSet<>();
-            for (String key : mConversations.keySet()) {
-                String[] parsed = key.split(":", 2);
-                keys.add(parsed.length > 1 ? parsed[1] : parsed[0]);
+            for (UnreadConversations.Entry conv : mConversations) {
+                keys.add(conv.groupJid != null ? conv.groupJid : conv.peer);
             }
             return keys.size();
         }
@@ -599,7 +666,7 @@ public class MessagingNotification {
                 }
                 else {
                     // ticker: "X messages @ group"
-                    NotificationConversation conv = mConversations.values().iterator().next();
+                    UnreadConversations.Entry conv = mConversations.get(0);
                     String groupSubject = conv.groupSubject;
                     ticker = mContext.getResources().getQuantityString(R.plurals.unread_messages_group, unread, unread, groupSubject);
                 }
@@ -610,8 +677,7 @@ public class MessagingNotification {
                 // text: comma separated names (TODO RTL?)
                 StringBuilder btext = new StringBuilder();
                 int count = 0;
-                for (String convId : mConversations.keySet()) {
-                    NotificationConversation conv = mConversations.get(convId);
+                for (UnreadConversations.Entry conv : mConversations) {
                     count++;
 
                     Contact contact = Contact.findByUserId(mContext, conv.peer);
@@ -650,7 +716,7 @@ public class MessagingNotification {
                             .getColor(mContext, R.color.notification_name_color)),
                             0, buf.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
                         // take just the last message
-                        buf.append(conv.lastContent);
+                        buf.append(conv.getLastContent());
 
                         ((InboxStyle) style).addLine(buf);
                     }
@@ -676,9 +742,9 @@ public class MessagingNotification {
             }
             // one conversation, use BigTextStyle
             else {
-                NotificationConversation conv = mConversations.values().iterator().next();
-                String content = conv.allContent.toString();
-                CharSequence last = conv.lastContent;
+                UnreadConversations.Entry conv = mConversations.get(0);
+                String content = conv.getAllContent();
+                CharSequence last = conv.getLastContent();
 
                 // big text content
                 style = new BigTextStyle();
@@ -85,6 +85,7 @@ import org.kontalk.BuildConfig;
 import org.kontalk.Kontalk;
 import org.kontalk.Log;
 import org.kontalk.R;
+import org.kontalk.authenticator.AccountSnapshot;
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.NumberValidator;
@@ -1223,6 +1224,7 @@ public class NumberValidation extends AccountAuthenticatorActionBarActivity
                 am.setUserData(account, Authenticator.DATA_BRIDGECERT, data.getString(Authenticator.DATA_BRIDGECERT));
                 am.setUserData(account, Authenticator.DATA_NAME, data.getString(Authenticator.DATA_NAME));
                 am.setUserData(account, Authenticator.DATA_SERVER_URI, serverUri);
+                AccountSnapshot.invalidate();
 
                 // Set contacts sync for this account.
                 ContentResolver.setSyncAutomatically(account, ContactsContract.AUTHORITY, true);
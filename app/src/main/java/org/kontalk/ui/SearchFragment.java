@@ -18,12 +18,18 @@
 
 package org.kontalk.ui;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.kontalk.R;
 import org.kontalk.data.SearchItem;
 import org.kontalk.ui.adapter.SearchListAdapter;
 import org.kontalk.ui.view.SearchListItem;
+import org.kontalk.util.PagesCursor;
 
 import android.app.Activity;
+import android.content.AsyncQueryHandler;
 import android.content.Intent;
 import android.database.Cursor;
 import android.os.Bundle;
@@ -31,6 +37,7 @@ import android.support.v4.app.ListFragment;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ListView;
 
 
@@ -38,11 +45,24 @@ import android.widget.ListView;
  * A basic search fragment for the entire database.
  * @author Daniele Ricci
  */
-public class SearchFragment extends ListFragment {
+public class SearchFragment extends ListFragment implements AbsListView.OnScrollListener {
+
+    /** Number of results loaded each time we reach the end of the list. */
+    private static final int PAGE_SIZE = 50;
 
-    private Cursor mCursor;
     private String mQuery;
     private SearchListAdapter mListAdapter;
+    private SearchQueryHandler mQueryHandler;
+
+    /** Result pages loaded so far, in order. */
+    private final List<Cursor> mPages = new ArrayList<>();
+    /** Number of results loaded so far. */
+    private int mLoadCount;
+    /** Incremented on every new query to discard late pages. */
+    private int mGeneration;
+    private boolean mLoading;
+    /** False when the last page was not full. */
+    private boolean mHasMore;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -54,6 +74,22 @@ public class SearchFragment extends ListFragment {
         return view;
     }
 
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        getListView().setOnScrollListener(this);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mQueryHandler != null)
+            mQueryHandler.cancelOperation(mGeneration);
+        if (mListAdapter != null)
+            mListAdapter.changeCursor(null);
+        closePages();
+    }
+
     @Override
     public void onListItemClick(ListView l, View v, int position, long id) {
         SearchListItem item = (SearchListItem) v;
@@ -70,12 +106,106 @@ public class SearchFragment extends ListFragment {
 
         Activity parent = getActivity();
         if (parent != null) {
-            mCursor = SearchItem.query(parent, mQuery);
-            getActivity().startManagingCursor(mCursor);
-
-            mListAdapter = new SearchListAdapter(parent, mCursor);
+            // results of the previous query are not needed anymore
+            if (mQueryHandler != null)
+                mQueryHandler.cancelOperation(mGeneration);
+            mGeneration++;
+            if (mListAdapter != null)
+                mListAdapter.changeCursor(null);
+            closePages();
+
+            mListAdapter = new SearchListAdapter(parent, null);
             // TODO mListAdapter.setOnContentChangedListener(mContentChangedListener);
             setListAdapter(mListAdapter);
+
+            mLoadCount = 0;
+            mLoading = false;
+            mHasMore = true;
+            loadMore();
+        }
+    }
+
+    /** Loads the next page of results in the background. */
+    private void loadMore() {
+        if (mListAdapter == null || mLoading || !mHasMore)
+            return;
+
+        if (mQueryHandler == null)
+            mQueryHandler = new SearchQueryHandler(this);
+        mLoading = true;
+        mQueryHandler.startQuery(mGeneration, null,
+            SearchItem.getQueryUri(mQuery, mLoadCount, PAGE_SIZE),
+            SearchItem.SEARCH_PROJECTION, null, null, null);
+    }
+
+    void onPageLoaded(int generation, Cursor cursor) {
+        if (generation != mGeneration || mListAdapter == null) {
+            // late page from an old query
+            if (cursor != null)
+                cursor.close();
+            return;
+        }
+
+        mLoading = false;
+        if (cursor == null) {
+            mHasMore = false;
+            return;
+        }
+
+        int count = cursor.getCount();
+        mHasMore = count >= PAGE_SIZE;
+        if (count == 0 && mPages.size() > 0) {
+            cursor.close();
+            return;
+        }
+
+        mPages.add(cursor);
+        mLoadCount += count;
+        // pages are merged flat, the old view shares them with the new one
+        Cursor old = mListAdapter.swapCursor(mPages.size() == 1 ? cursor :
+            new PagesCursor(mPages));
+        if (old instanceof PagesCursor)
+            old.close();
+    }
+
+    private void closePages() {
+        for (Cursor c : mPages)
+            c.close();
+        mPages.clear();
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        // load more results when reaching the end of the list
+        if (mHasMore && !mLoading && totalItemCount > 0 &&
+                firstVisibleItem + visibleItemCount >= totalItemCount) {
+            loadMore();
+        }
+    }
+
+    /** Delivers result pages to the fragment. */
+    private static final class SearchQueryHandler extends AsyncQueryHandler {
+        private final WeakReference<SearchFragment> mParent;
+
+        SearchQueryHandler(SearchFragment parent) {
+            super(parent.getActivity().getApplicationContext().getContentResolver());
+            mParent = new WeakReference<>(parent);
+        }
+
+        @Override
+        protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+            SearchFragment parent = mParent.get();
+            if (parent == null || parent.isRemoving() || parent.getActivity() == null) {
+                if (cursor != null)
+                    cursor.close();
+                return;
+            }
+
+            parent.onPageLoaded(token, cursor);
         }
     }
 
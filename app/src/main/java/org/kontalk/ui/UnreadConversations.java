@@ -0,0 +1,176 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * In-memory model of the unread messages shown in the notification.
+ * Messages are added as they are stored and threads are dropped when they
+ * are read, so the notification can be rebuilt without querying all unread
+ * messages again. Only the last few lines of every conversation are kept.
+ * Not thread safe: it's used only by the notification thread.
+ * @author Daniele Ricci
+ */
+class UnreadConversations {
+
+    /** Lines kept for every conversation (more won't fit in a notification anyway). */
+    static final int MAX_LINES = 10;
+
+    static final class Entry {
+        final long threadId;
+        final String peer;
+        final String groupJid;
+        final String groupSubject;
+        /** Id of the first unread message, used for sorting. */
+        final long firstId;
+
+        final ArrayDeque<String> lines = new ArrayDeque<>(MAX_LINES);
+        int count;
+
+        Entry(long threadId, String peer, String groupJid, String groupSubject, long firstId) {
+            this.threadId = threadId;
+            this.peer = peer;
+            this.groupJid = groupJid;
+            this.groupSubject = groupSubject;
+            this.firstId = firstId;
+        }
+
+        String getLastContent() {
+            return lines.peekLast();
+        }
+
+        String getAllContent() {
+            StringBuilder out = new StringBuilder();
+            for (String line : lines) {
+                if (out.length() > 0)
+                    out.append('\n');
+                out.append(line);
+            }
+            return out.toString();
+        }
+
+        boolean matches(String jid) {
+            return jid != null && (jid.equalsIgnoreCase(peer) ||
+                (groupJid != null && jid.equalsIgnoreCase(groupJid)));
+        }
+    }
+
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.firstId < rhs.firstId ? -1 : (lhs.firstId == rhs.firstId ? 0 : 1);
+        }
+    };
+
+    /** Conversations by peer (and group JID for groups). */
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    /** Highest message id seen. */
+    private long mMaxId;
+    private boolean mLoaded;
+
+    private static String key(String peer, String groupJid) {
+        return groupJid != null ? (peer + ":" + groupJid) : peer;
+    }
+
+    /** True if the model contains all unread messages up to {@link #getMaxId()}. */
+    boolean isLoaded() {
+        return mLoaded;
+    }
+
+    void setLoaded() {
+        mLoaded = true;
+    }
+
+    long getMaxId() {
+        return mMaxId;
+    }
+
+    /** Adds an unread message. Messages must be added in id order. */
+    void add(long id, long threadId, String peer, String groupJid, String groupSubject, String text) {
+        String key = key(peer, groupJid);
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(threadId, peer, groupJid, groupSubject, id);
+            mEntries.put(key, entry);
+        }
+
+        if (entry.lines.size() == MAX_LINES)
+            entry.lines.removeFirst();
+        entry.lines.addLast(text);
+        entry.count++;
+
+        if (id > mMaxId)
+            mMaxId = id;
+    }
+
+    /** Drops all messages of a thread (e.g. when it's marked as read). */
+    boolean removeThread(long threadId) {
+        boolean removed = false;
+        for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+            if (it.next().threadId == threadId) {
+                it.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    /** Drops everything. The highest message id is kept. */
+    void clear() {
+        mEntries.clear();
+    }
+
+    /** Drops everything, the model will need to be loaded again. */
+    void reset() {
+        mEntries.clear();
+        mMaxId = 0;
+        mLoaded = false;
+    }
+
+    /**
+     * Returns the conversations to notify in order of first unread message.
+     * @param paused the conversation to leave out, if any
+     */
+    List<Entry> getEntries(String paused) {
+        List<Entry> list = new ArrayList<>(mEntries.size());
+        for (Entry entry : mEntries.values()) {
+            if (!entry.matches(paused))
+                list.add(entry);
+        }
+        Collections.sort(list, ORDER);
+        return list;
+    }
+
+    static int getUnreadCount(List<Entry> entries) {
+        int count = 0;
+        for (Entry entry : entries)
+            count += entry.count;
+        return count;
+    }
+
+}
@@ -108,7 +108,9 @@ public class ContactsListAdapter extends SearchablePinnedHeaderCursorListViewAda
 
     @Override
     protected Cursor getFilterCursor(CharSequence charSequence) {
-        return null;
+        // called by the filter on a background thread
+        return Contact.queryContacts(mFactory.getContext(),
+            charSequence != null ? charSequence.toString() : null);
     }
 
     @Override
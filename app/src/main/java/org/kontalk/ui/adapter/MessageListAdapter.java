@@ -21,7 +21,10 @@ package org.kontalk.ui.adapter;
 import java.util.regex.Pattern;
 
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
 import android.support.v4.widget.CursorAdapter;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -33,9 +36,12 @@ import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.message.GroupCommandComponent;
+import org.kontalk.message.TextComponent;
 import org.kontalk.ui.ComposeMessage;
 import org.kontalk.ui.view.AudioPlayerControl;
 import org.kontalk.ui.view.MessageListItem;
+import org.kontalk.ui.view.TextContentFormatter;
+import org.kontalk.ui.view.TextContentView;
 import org.kontalk.util.MessageUtils;
 
 
@@ -43,16 +49,38 @@ public class MessageListAdapter extends CursorAdapter {
 
     private static final String TAG = ComposeMessage.TAG;
 
+    /** Number of messages to format ahead of scrolling. */
+    private static final int PREFETCH_DISTANCE = 10;
+
     private final LayoutInflater mFactory;
     private final Pattern mHighlight;
+    private final int mHighlightColor;
+    /** Last bound position, used for guessing the scroll direction. */
+    private int mLastPosition = -1;
     private OnContentChangedListener mOnContentChangedListener;
 
+    /** The URI observed for changes, if any. */
+    private Uri mNotificationUri;
+    private final ContentObserver mChangeObserver = new ContentObserver(new Handler()) {
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onContentChanged();
+        }
+    };
+
     private AudioPlayerControl mAudioPlayerControl;
 
     public MessageListAdapter(Context context, Cursor cursor, Pattern highlight, ListView list, AudioPlayerControl audioPlayerControl) {
-        super(context, cursor, false);
+        // changes are observed through the notification URI
+        super(context, cursor, 0);
         mFactory = LayoutInflater.from(context);
         mHighlight = highlight;
+        mHighlightColor = TextContentView.getHighlightColor(context);
         mAudioPlayerControl = audioPlayerControl;
 
         list.setRecyclerListener(new RecyclerListener() {
@@ -86,6 +114,33 @@ public class MessageListAdapter extends CursorAdapter {
 
         headerView.bind(context, msg, mHighlight, getItemViewType(cursor),
             previousItemType, previousTimestamp, previousPeer, mAudioPlayerControl);
+
+        prefetch(cursor);
+    }
+
+    /** Formats text of the messages that are about to be shown. */
+    private void prefetch(Cursor cursor) {
+        int position = cursor.getPosition();
+        int direction = position >= mLastPosition ? 1 : -1;
+        mLastPosition = position;
+
+        for (int i = 1; i <= PREFETCH_DISTANCE; i++) {
+            // back off while the background queue is busy
+            if (!TextContentFormatter.canPrefetch() || !cursor.moveToPosition(position + i * direction))
+                break;
+
+            long id = cursor.getLong(CompositeMessage.COLUMN_ID);
+            if (cursor.getShort(CompositeMessage.COLUMN_ENCRYPTED) == 0 &&
+                    TextComponent.supportsMimeType(cursor.getString(CompositeMessage.COLUMN_BODY_MIME)) &&
+                    !TextContentFormatter.isPrefetched(id)) {
+                byte[] body = cursor.getBlob(CompositeMessage.COLUMN_BODY_CONTENT);
+                if (body != null && !TextContentFormatter.prefetch(id,
+                        MessageUtils.toString(body), mHighlight, mHighlightColor))
+                    break;
+            }
+        }
+
+        cursor.moveToPosition(position);
     }
 
     @Override
@@ -142,6 +197,22 @@ public class MessageListAdapter extends CursorAdapter {
         mOnContentChangedListener = l;
     }
 
+    /**
+     * Sets the URI to observe for changes, null to stop observing.
+     * The cursor is not observed since it might be a merge of many pages,
+     * which would notify the same change once for every page.
+     */
+    public void setNotificationUri(Uri uri) {
+        if (uri != null ? uri.equals(mNotificationUri) : mNotificationUri == null)
+            return;
+
+        if (mNotificationUri != null)
+            mContext.getContentResolver().unregisterContentObserver(mChangeObserver);
+        mNotificationUri = uri;
+        if (uri != null)
+            mContext.getContentResolver().registerContentObserver(uri, false, mChangeObserver);
+    }
+
     @Override
     protected void onContentChanged() {
         Cursor c = getCursor();
@@ -20,10 +20,10 @@ package org.kontalk.ui.adapter;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.support.v4.widget.CursorAdapter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
 
 import org.kontalk.Log;
 import org.kontalk.R;
@@ -18,9 +18,15 @@
 
 package org.kontalk.ui.prefs;
 
+import android.app.Activity;
+import android.content.Context;
 import android.os.Bundle;
+import android.preference.Preference;
+import android.text.format.Formatter;
 
 import org.kontalk.R;
+import org.kontalk.util.BackgroundExecutor;
+import org.kontalk.util.ThumbnailStore;
 
 /**
  * Messaging settings fragment.
@@ -33,6 +39,27 @@ public class MediaFragment extends RootPreferenceFragment {
 
         // Load the preferences from an XML resource
         addPreferencesFromResource(R.xml.preferences_media);
+
+        final Preference thumbnailQuota = findPreference("pref_thumbnail_quota");
+        thumbnailQuota.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                long quota;
+                try {
+                    quota = Long.parseLong(newValue.toString()) * 1024 * 1024;
+                }
+                catch (NumberFormatException e) {
+                    return false;
+                }
+                if (quota <= 0)
+                    return false;
+
+                // apply the quota now, trimming can wait
+                ThumbnailStore.getInstance(getActivity()).setQuota(quota);
+                updateThumbnailUsage(true);
+                return true;
+            }
+        });
     }
 
     @Override
@@ -41,6 +68,41 @@ public class MediaFragment extends RootPreferenceFragment {
 
         ((PreferencesActivity) getActivity()).getSupportActionBar()
                 .setTitle(R.string.pref_media_settings);
+
+        updateThumbnailUsage(false);
+    }
+
+    /**
+     * Shows the thumbnail storage usage, trimming the storage first if
+     * the quota was changed.
+     * @param trim true if the quota was changed
+     */
+    private void updateThumbnailUsage(final boolean trim) {
+        final Context context = getActivity().getApplicationContext();
+        BackgroundExecutor.getInstance().tryExecute(new Runnable() {
+            @Override
+            public void run() {
+                ThumbnailStore store = ThumbnailStore.getInstance(context);
+                if (trim)
+                    store.trim();
+
+                final String summary = context.getString(R.string.pref_title_thumbnail_quota,
+                    Formatter.formatShortFileSize(context, store.getUsage()),
+                    Formatter.formatShortFileSize(context, store.getQuota()));
+
+                Activity activity = getActivity();
+                if (activity != null) {
+                    activity.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Preference pref = findPreference("pref_thumbnail_quota");
+                            if (pref != null)
+                                pref.setSummary(summary);
+                        }
+                    });
+                }
+            }
+        }, BackgroundExecutor.PRIORITY_HIGH);
     }
 
 }
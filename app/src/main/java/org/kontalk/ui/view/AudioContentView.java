@@ -19,11 +19,12 @@
 package org.kontalk.ui.view;
 
 import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.os.Build;
 import android.text.format.DateUtils;
@@ -39,6 +40,8 @@ import android.widget.TextView;
 
 import org.kontalk.R;
 import org.kontalk.message.AudioComponent;
+import org.kontalk.provider.MessagesProviderUtils;
+import org.kontalk.util.BackgroundExecutor;
 
 
 /**
@@ -61,6 +64,9 @@ public class AudioContentView extends RelativeLayout
     public static final int STATUS_PAUSED = 2;
     public static final int STATUS_ENDED = 3;
 
+    /** Messages whose duration is being loaded. */
+    private static final Set<Long> sPendingDurations = new HashSet<>();
+
     private long mMessageId;
 
     private AudioPlayerControl mAudioPlayerControl;
@@ -103,6 +109,10 @@ public class AudioContentView extends RelativeLayout
         mDownloadButton.setVisibility(fetched ? GONE : VISIBLE);
         mTime.setVisibility(fetched ? VISIBLE : GONE);
 
+        mDuration = component.getDuration();
+        if (mDuration == 0 && fetched)
+            loadDuration(getContext(), messageId, component);
+
         updatePosition(-1);
         mSeekBar.setMax(getAudioDuration());
         mPlayButton.setOnClickListener(this);
@@ -208,32 +218,45 @@ public class AudioContentView extends RelativeLayout
         return mSeekBar.getProgress();
     }
 
-    private int getAudioDuration(Uri uri) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1) {
-            try {
-                MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-                retriever.setDataSource(getContext(), uri);
-                String time = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
-                return Integer.parseInt(time);
+    /**
+     * Stores the duration of media received before we kept it in the
+     * database. The message will be reloaded with the duration.
+     * Rebinding the same message while loading does not queue it again;
+     * if the background queue is full it will be tried on the next bind.
+     */
+    private static void loadDuration(Context context, final long messageId, AudioComponent component) {
+        synchronized (sPendingDurations) {
+            if (!sPendingDurations.add(messageId))
+                return;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        final String mime = component.getMime();
+        final Uri localUri = component.getLocalUri();
+        boolean queued = BackgroundExecutor.getInstance().tryExecute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MessagesProviderUtils.updateMediaMetadata(appContext, messageId, mime, localUri);
+                }
+                finally {
+                    synchronized (sPendingDurations) {
+                        sPendingDurations.remove(messageId);
+                    }
+                }
             }
-            catch (Exception a) {
-                // ignored
+        }, BackgroundExecutor.PRIORITY_NORMAL);
+
+        if (!queued) {
+            synchronized (sPendingDurations) {
+                sPendingDurations.remove(messageId);
             }
         }
-        return -1;
     }
 
+    /** Duration in milliseconds, -1 if not known. */
     private int getAudioDuration() {
-        if (mDuration < 0) {
-            Uri uri = mComponent.getLocalUri();
-            if (uri != null) {
-                mDuration = getAudioDuration(uri);
-            }
-            else {
-                mDuration = -1;
-            }
-        }
-        return mDuration;
+        return mDuration > 0 ? mDuration : -1;
     }
 
     private void setTimeText(long duration) {
@@ -43,6 +43,7 @@ import org.kontalk.message.CompositeMessage;
 import org.kontalk.message.ImageComponent;
 import org.kontalk.ui.ComposeMessage;
 import org.kontalk.util.MediaStorage;
+import org.kontalk.util.ThumbnailStore;
 
 
 /**
@@ -133,14 +134,17 @@ public class ImageContentView extends FrameLayout
             // preview path
             if (previewFile != null) {
                 // load from file - we know it's a file uri
-                return loadPreview(previewFile);
+                Bitmap bitmap = loadPreview(previewFile);
+                ThumbnailStore.getInstance(getContext()).onAccess(previewFile);
+                return bitmap;
             }
         }
         catch (Exception e) {
             Log.w(TAG, "unable to load thumbnail, generating one");
 
             /*
-             * unable to load preview - generate thumbnail
+             * unable to load preview (or it was evicted from the thumbnail
+             * store) - generate thumbnail
              * Of course a thumbnail can be generated only if the image has
              * already been downloaded.
              */
@@ -65,7 +65,7 @@ public class SearchListItem extends RelativeLayout {
             name = found.getUserId();
 
         mText1.setText(name);
-        mText2.setText(found.getText());
+        mText2.setText(found.getHighlightedText());
     }
 
     public final void unbind() {
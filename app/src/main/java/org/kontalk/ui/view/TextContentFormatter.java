@@ -0,0 +1,218 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui.view;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.os.Build;
+import android.support.v4.util.LruCache;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.SpannedString;
+import android.text.style.BackgroundColorSpan;
+import android.text.util.Linkify;
+
+import org.kontalk.util.BackgroundExecutor;
+
+
+/**
+ * Formats message text (links and search highlights) in the background.
+ * Results are cached by message id, so binding a message that was already
+ * formatted (or prefetched while scrolling) only needs to set the text.
+ * Emoji are still resolved by the text view itself.
+ * @author Daniele Ricci
+ */
+public final class TextContentFormatter {
+
+    /**
+     * Maximum affordable size of a text message to make complex stuff
+     * (e.g. emoji, linkify, etc.)
+     */
+    static final int MAX_AFFORDABLE_SIZE = 10240;   // 10 KB
+
+    /** Maximum number of characters kept in the cache. */
+    private static final int MAX_CACHE_SIZE = 256 * 1024;
+    /** Prefetching stops when this many background tasks are waiting. */
+    private static final int MAX_PREFETCH_QUEUE = 32;
+
+    /** Formatted text. */
+    private static final class Entry {
+        final String text;
+        final String highlight;
+        final Spanned formatted;
+
+        Entry(String text, String highlight, Spanned formatted) {
+            this.text = text;
+            this.highlight = highlight;
+            this.formatted = formatted;
+        }
+
+        boolean matches(String text, Pattern highlight) {
+            return this.text.equals(text) && (highlight != null ?
+                highlight.pattern().equals(this.highlight) : this.highlight == null);
+        }
+    }
+
+    private static final LruCache<Long, Entry> sCache = new LruCache<Long, Entry>(MAX_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(Long key, Entry value) {
+            return value.formatted.length();
+        }
+    };
+
+    /** Messages being formatted by a prefetch. */
+    private static final Set<Long> sPending = new HashSet<>();
+
+    private TextContentFormatter() {
+    }
+
+    /** Callback for formatting that happened in the background. */
+    public interface Callback {
+        /** Called in the background thread. */
+        void onFormatted(long id, Spanned formatted);
+    }
+
+    /**
+     * Returns the formatted text for a message if it's available.
+     * @return the formatted text or null if it must be formatted
+     */
+    public static Spanned get(long id, String text, Pattern highlight) {
+        Entry entry = sCache.get(id);
+        return entry != null && entry.matches(text, highlight) ? entry.formatted : null;
+    }
+
+    /**
+     * Formats the text for a message now, e.g. for a message being displayed.
+     * Formatting never happens on the calling thread: if the background
+     * queue is full the request is dropped and the plain text stays.
+     * @return false if the request was dropped
+     */
+    public static boolean format(final long id, final String text, final Pattern highlight,
+            final int highlightColor, final Callback callback) {
+        return BackgroundExecutor.getInstance().tryExecute(new Runnable() {
+            @Override
+            public void run() {
+                // it might have been prefetched in the meantime
+                Spanned formatted = get(id, text, highlight);
+                if (formatted == null)
+                    formatted = formatAndCache(id, text, highlight, highlightColor);
+                callback.onFormatted(id, formatted);
+            }
+        }, BackgroundExecutor.PRIORITY_HIGH);
+    }
+
+    /** Returns false if the background queue is too busy for prefetching. */
+    public static boolean canPrefetch() {
+        return BackgroundExecutor.getInstance().getQueueSize() < MAX_PREFETCH_QUEUE;
+    }
+
+    /**
+     * Formats the text for a message that will be displayed soon.
+     * @return false if the request was dropped because the queue is full
+     */
+    public static boolean prefetch(final long id, final String text, final Pattern highlight, final int highlightColor) {
+        synchronized (sPending) {
+            if (!sPending.add(id))
+                return true;
+        }
+
+        boolean queued = BackgroundExecutor.getInstance().tryExecute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (get(id, text, highlight) == null)
+                        formatAndCache(id, text, highlight, highlightColor);
+                }
+                finally {
+                    synchronized (sPending) {
+                        sPending.remove(id);
+                    }
+                }
+            }
+        }, BackgroundExecutor.PRIORITY_NORMAL);
+
+        if (!queued) {
+            // prefetching is best effort, the message will be formatted when shown
+            synchronized (sPending) {
+                sPending.remove(id);
+            }
+        }
+        return queued;
+    }
+
+    /** Returns true if the message was formatted or is being formatted. */
+    public static boolean isPrefetched(long id) {
+        synchronized (sPending) {
+            if (sPending.contains(id))
+                return true;
+        }
+        return sCache.get(id) != null;
+    }
+
+    private static Spanned formatAndCache(long id, String text, Pattern highlight, int highlightColor) {
+        Spanned formatted = format(text, highlight, highlightColor);
+        sCache.put(id, new Entry(text, highlight != null ? highlight.pattern() : null, formatted));
+        return formatted;
+    }
+
+    /** Formats message text. Can be called from any thread. */
+    static Spanned format(String text, Pattern highlight, int highlightColor) {
+        SpannableStringBuilder buf = new SpannableStringBuilder(text);
+
+        if (highlight != null) {
+            Matcher m = highlight.matcher(text);
+            while (m.find())
+                buf.setSpan(new BackgroundColorSpan(highlightColor), m.start(), m.end(), 0);
+        }
+
+        // linkify!
+        if (buf.length() < MAX_AFFORDABLE_SIZE)
+            Linkify.addLinks(buf, Linkify.ALL);
+
+        appendWorkaround(buf);
+        return new SpannedString(buf);
+    }
+
+    /**
+     * Message text without any formatting, to be used while the formatted
+     * text is not ready.
+     */
+    static CharSequence plain(String text) {
+        SpannableStringBuilder buf = new SpannableStringBuilder(text);
+        appendWorkaround(buf);
+        return buf;
+    }
+
+    private static void appendWorkaround(SpannableStringBuilder buf) {
+        /*
+         * workaround for bugs:
+         * http://code.google.com/p/android/issues/detail?id=17343
+         * http://code.google.com/p/android/issues/detail?id=22493
+         * applies from Honeycomb to JB 4.2.2 afaik
+         */
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB &&
+                Build.VERSION.SDK_INT <= Build.VERSION_CODES.JELLY_BEAN_MR1)
+            // from http://stackoverflow.com/a/12303155/1045199
+            buf.append("\u200b"); // was: \u2060
+    }
+
+}
@@ -22,9 +22,7 @@ import android.content.Context;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.widget.TextViewCompat;
 import android.text.Layout;
-import android.text.SpannableStringBuilder;
-import android.text.style.BackgroundColorSpan;
-import android.text.util.Linkify;
+import android.text.Spanned;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
@@ -34,7 +32,6 @@ import org.kontalk.R;
 import org.kontalk.message.TextComponent;
 import org.kontalk.util.Preferences;
 
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.rockerhieu.emojicon.EmojiconTextView;
@@ -59,16 +56,10 @@ public class TextContentView extends EmojiconTextView
     /** Used for pooling. */
     protected TextContentView next;
 
-
-    /**
-     * Maximum affordable size of a text message to make complex stuff
-     * (e.g. emoji, linkify, etc.)
-     */
-    private static final int MAX_AFFORDABLE_SIZE = 10240;   // 10 KB
-
     private TextComponent mComponent;
+    private long mDatabaseId;
     private boolean mEncryptionPlaceholder;
-    private BackgroundColorSpan mHighlightColorSpan;  // set in ctor
+    private int mHighlightColor;  // set in ctor
 
     private boolean mMeasureHack;
 
@@ -88,8 +79,7 @@ public class TextContentView extends EmojiconTextView
     }
 
     private void init(Context context) {
-        int color = ContextCompat.getColor(context, R.color.highlight_color);
-        mHighlightColorSpan = new BackgroundColorSpan(color);
+        mHighlightColor = ContextCompat.getColor(context, R.color.highlight_color);
     }
 
     /**
@@ -138,28 +128,40 @@ public class TextContentView extends EmojiconTextView
     }
 
     @Override
-    public void bind(long databaseId, TextComponent component, Pattern highlight) {
+    public void bind(final long databaseId, final TextComponent component, Pattern highlight) {
         mComponent = component;
-
-        SpannableStringBuilder formattedMessage = formatMessage(highlight);
+        mDatabaseId = databaseId;
         setTextStyle(this);
 
-        // linkify!
-        if (formattedMessage.length() < MAX_AFFORDABLE_SIZE)
-            Linkify.addLinks(formattedMessage, Linkify.ALL);
-
-        /*
-         * workaround for bugs:
-         * http://code.google.com/p/android/issues/detail?id=17343
-         * http://code.google.com/p/android/issues/detail?id=22493
-         * applies from Honeycomb to JB 4.2.2 afaik
-         */
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB &&
-                android.os.Build.VERSION.SDK_INT <= android.os.Build.VERSION_CODES.JELLY_BEAN_MR1)
-            // from http://stackoverflow.com/a/12303155/1045199
-            formattedMessage.append("\u200b"); // was: \u2060
-
-        setText(formattedMessage);
+        String text = component.getContent();
+        Spanned formatted = TextContentFormatter.get(databaseId, text, highlight);
+        if (formatted != null) {
+            setText(formatted);
+        }
+        else {
+            // show plain text for now, links will come in a moment
+            // (or never, if the background queue is full)
+            setText(TextContentFormatter.plain(text));
+            TextContentFormatter.format(databaseId, text, highlight, mHighlightColor,
+                new TextContentFormatter.Callback() {
+                    @Override
+                    public void onFormatted(long id, final Spanned formatted) {
+                        post(new Runnable() {
+                            @Override
+                            public void run() {
+                                // view might have been recycled in the meantime
+                                if (mComponent == component && mDatabaseId == databaseId)
+                                    setText(formatted);
+                            }
+                        });
+                    }
+                });
+        }
+    }
+
+    /** Color used for highlighting search results. */
+    public static int getHighlightColor(Context context) {
+        return ContextCompat.getColor(context, R.color.highlight_color);
     }
 
     @Override
@@ -182,24 +184,9 @@ public class TextContentView extends EmojiconTextView
         return mEncryptionPlaceholder;
     }
 
-    private SpannableStringBuilder formatMessage(final Pattern highlight) {
-        SpannableStringBuilder buf;
-
-        String textContent = mComponent.getContent();
-
-        buf = new SpannableStringBuilder(textContent);
-
-        if (highlight != null) {
-            Matcher m = highlight.matcher(buf.toString());
-            while (m.find())
-                buf.setSpan(mHighlightColorSpan, m.start(), m.end(), 0);
-        }
-
-        return buf;
-    }
-
     private void clear() {
         mComponent = null;
+        mDatabaseId = 0;
     }
 
     public void recycle() {
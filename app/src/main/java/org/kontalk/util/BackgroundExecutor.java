@@ -0,0 +1,239 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Looper;
+import android.os.Process;
+
+import org.kontalk.BuildConfig;
+import org.kontalk.Log;
+
+
+/**
+ * A small, bounded thread pool for background side effects (database
+ * bookkeeping, notification updates, avatar loading...).
+ * Tasks are run by priority, then in submission order. When the queue is
+ * full, tasks submitted with {@link #execute} are run directly by the
+ * submitting thread, while tasks submitted with {@link #tryExecute} are
+ * dropped. The main thread must never block, so UI code must always use
+ * {@link #tryExecute}; {@link #execute} checks this in debug builds.
+ * @author Daniele Ricci
+ */
+public class BackgroundExecutor {
+    private static final String TAG = BackgroundExecutor.class.getSimpleName();
+
+    /** Tasks the user is waiting for (e.g. avatars, notifications). */
+    public static final int PRIORITY_HIGH = 0;
+    /** Default priority. */
+    public static final int PRIORITY_NORMAL = 1;
+    /** Bookkeeping tasks that can wait. */
+    public static final int PRIORITY_LOW = 2;
+
+    private static final int DEFAULT_THREADS = 2;
+    private static final int DEFAULT_MAX_QUEUE = 256;
+    private static final long KEEP_ALIVE = 30;
+
+    private static BackgroundExecutor sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final int mMaxQueue;
+
+    /** Sequence number for keeping submission order. */
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mCallerRuns = new AtomicLong();
+    private final AtomicLong mDiscarded = new AtomicLong();
+    private final AtomicInteger mMaxQueueSize = new AtomicInteger();
+
+    public BackgroundExecutor(final String name, int threads, int maxQueue) {
+        mMaxQueue = maxQueue;
+        mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, name + "-" + mCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** The shared instance for application-wide side effects. */
+    public static synchronized BackgroundExecutor getInstance() {
+        if (sInstance == null)
+            sInstance = new BackgroundExecutor(TAG, DEFAULT_THREADS, DEFAULT_MAX_QUEUE);
+        return sInstance;
+    }
+
+    public void execute(Runnable task) {
+        execute(task, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Executes a task. If the queue is full the task is run by the calling
+     * thread, so this must not be called from the main thread.
+     * @throws IllegalStateException if called from the main thread in debug builds
+     */
+    public void execute(Runnable task, int priority) {
+        if (isMainThread()) {
+            if (BuildConfig.DEBUG)
+                throw new IllegalStateException("execute() called from the main thread, use tryExecute()");
+            Log.w(TAG, "execute() called from the main thread, use tryExecute()");
+        }
+        submit(task, priority, false);
+    }
+
+    /**
+     * Executes a task only if there is room for it in the queue.
+     * @return false if the queue was full and the task was dropped
+     */
+    public boolean tryExecute(Runnable task, int priority) {
+        return submit(task, priority, true);
+    }
+
+    private boolean submit(Runnable task, int priority, boolean discard) {
+        mSubmitted.incrementAndGet();
+
+        int size = mExecutor.getQueue().size();
+        if (size >= mMaxQueue || mExecutor.isShutdown()) {
+            if (discard) {
+                mDiscarded.incrementAndGet();
+                return false;
+            }
+
+            // queue is full: slow down the producer
+            mCallerRuns.incrementAndGet();
+            new PriorityTask(task, priority, 0).run();
+            return true;
+        }
+
+        mExecutor.execute(new PriorityTask(task, priority, mSequence.getAndIncrement()));
+
+        size++;
+        int max;
+        while (size > (max = mMaxQueueSize.get()) && !mMaxQueueSize.compareAndSet(max, size));
+        return true;
+    }
+
+    private static boolean isMainThread() {
+        // main looper is null when running unit tests
+        Looper main = Looper.getMainLooper();
+        return main != null && main.getThread() == Thread.currentThread();
+    }
+
+    /** Number of tasks waiting to be executed. */
+    public int getQueueSize() {
+        return mExecutor.getQueue().size();
+    }
+
+    /** Highest number of waiting tasks seen so far. */
+    public int getMaxQueueSize() {
+        return mMaxQueueSize.get();
+    }
+
+    public long getSubmittedCount() {
+        return mSubmitted.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    /** Number of tasks executed by the submitting thread because the queue was full. */
+    public long getCallerRunsCount() {
+        return mCallerRuns.get();
+    }
+
+    /** Number of tasks dropped by {@link #tryExecute} because the queue was full. */
+    public long getDiscardedCount() {
+        return mDiscarded.get();
+    }
+
+    /** Stops accepting tasks (used by tests). */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mExecutor.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[queued=" + getQueueSize() +
+            ", maxQueued=" + getMaxQueueSize() +
+            ", submitted=" + getSubmittedCount() +
+            ", completed=" + getCompletedCount() +
+            ", callerRuns=" + getCallerRunsCount() +
+            ", discarded=" + getDiscardedCount() + "]";
+    }
+
+    private final class PriorityTask implements Runnable, Comparable<PriorityTask> {
+        private final Runnable mTask;
+        private final int mPriority;
+        private final long mSequence;
+
+        PriorityTask(Runnable task, int priority, long sequence) {
+            mTask = task;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mTask.run();
+            }
+            catch (Exception e) {
+                // do not kill the worker thread
+                Log.w(TAG, "background task failed", e);
+            }
+            finally {
+                mCompleted.incrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(PriorityTask another) {
+            if (mPriority != another.mPriority)
+                return mPriority < another.mPriority ? -1 : 1;
+            return mSequence < another.mSequence ? -1 :
+                (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+
+}
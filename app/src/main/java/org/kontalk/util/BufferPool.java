@@ -0,0 +1,129 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A shared pool of byte buffers for copying streams around (transfers,
+ * encryption, media storage). Buffers come in a few fixed sizes, all powers
+ * of two, and only a few of them are kept for each size. Buffers are cleared
+ * when released since they might have held plain text.
+ * @author Daniele Ricci
+ */
+public final class BufferPool {
+
+    /** Buffers for PGP packet streams. */
+    public static final int SIZE_SMALL = 256;
+    /** Buffers for copying streams. */
+    public static final int SIZE_MEDIUM = 8192;
+    /** Buffers for network transfers. */
+    public static final int SIZE_LARGE = 65536;
+
+    private static final int[] SIZES = { SIZE_SMALL, SIZE_MEDIUM, SIZE_LARGE };
+    /** Maximum number of buffers kept for every size. */
+    private static final int[] MAX_POOLED = { 16, 8, 4 };
+
+    @SuppressWarnings("unchecked")
+    private static final ArrayDeque<byte[]>[] sPools = new ArrayDeque[SIZES.length];
+    static {
+        for (int i = 0; i < SIZES.length; i++)
+            sPools[i] = new ArrayDeque<>(MAX_POOLED[i]);
+    }
+
+    private static final AtomicLong sHits = new AtomicLong();
+    private static final AtomicLong sMisses = new AtomicLong();
+    private static final AtomicLong sAllocated = new AtomicLong();
+
+    private BufferPool() {
+    }
+
+    private static int sizeClass(int size) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (size <= SIZES[i])
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a buffer of at least the given size. The buffer will be
+     * exactly one of the pool sizes if size is not bigger than {@link #SIZE_LARGE}.
+     */
+    public static byte[] acquire(int size) {
+        int index = sizeClass(size);
+        if (index < 0) {
+            // too big to be pooled
+            sMisses.incrementAndGet();
+            sAllocated.addAndGet(size);
+            return new byte[size];
+        }
+
+        byte[] buffer;
+        ArrayDeque<byte[]> pool = sPools[index];
+        synchronized (pool) {
+            buffer = pool.poll();
+        }
+
+        if (buffer != null) {
+            sHits.incrementAndGet();
+            return buffer;
+        }
+
+        sMisses.incrementAndGet();
+        sAllocated.addAndGet(SIZES[index]);
+        return new byte[SIZES[index]];
+    }
+
+    /** Gives a buffer back to the pool. Null is accepted. */
+    public static void release(byte[] buffer) {
+        if (buffer == null)
+            return;
+
+        int index = sizeClass(buffer.length);
+        if (index < 0 || SIZES[index] != buffer.length)
+            return;
+
+        Arrays.fill(buffer, (byte) 0);
+        ArrayDeque<byte[]> pool = sPools[index];
+        synchronized (pool) {
+            if (pool.size() < MAX_POOLED[index])
+                pool.push(buffer);
+        }
+    }
+
+    /** Number of buffers taken from the pool. */
+    public static long getHits() {
+        return sHits.get();
+    }
+
+    /** Number of buffers that had to be allocated. */
+    public static long getMisses() {
+        return sMisses.get();
+    }
+
+    /** Total bytes allocated for buffers. */
+    public static long getAllocatedBytes() {
+        return sAllocated.get();
+    }
+
+}
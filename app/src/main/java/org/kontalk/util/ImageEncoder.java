@@ -0,0 +1,249 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.SystemClock;
+
+
+/**
+ * Encodes outgoing images within a byte budget. The budget is chosen from
+ * the measured uplink throughput so that an image takes about the same
+ * time to upload on any network; the highest JPEG quality that fits is
+ * searched for, and the image is scaled down if not even the lowest
+ * quality fits.
+ * @author Daniele Ricci
+ */
+public final class ImageEncoder {
+
+    public static final String MIME = MediaStorage.COMPRESS_MIME;
+
+    static final int MAX_QUALITY = 85;
+    static final int MIN_QUALITY = 40;
+    /** The quality search stops when the bounds are this close. */
+    static final int QUALITY_PRECISION = 5;
+
+    /** Scale factor used when the image doesn't fit even at the lowest quality. */
+    static final float DOWNSCALE = 0.75f;
+    static final int MAX_DOWNSCALES = 2;
+
+    /** Upload time we aim for. */
+    static final long TARGET_TIME = 8000;
+    /** Budget used when the uplink throughput is not known. */
+    static final long DEFAULT_BUDGET = 600 * 1024;
+    static final long MIN_BUDGET = 100 * 1024;
+    static final long MAX_BUDGET = 2 * 1024 * 1024;
+
+    private ImageEncoder() {
+    }
+
+    /** Encoding result. */
+    public static final class Result {
+        public File file;
+        public int width;
+        public int height;
+        public int quality;
+        public long length;
+        public long budget;
+        /** Encoding time in milliseconds, decoding included. */
+        public long encodeTime;
+        /** Number of times the image was compressed. */
+        public int attempts;
+
+        @Override
+        public String toString() {
+            return width + "x" + height + " q" + quality + ", " + length + " bytes (budget " +
+                budget + ") in " + encodeTime + " ms, " + attempts + " attempts";
+        }
+    }
+
+    /**
+     * Returns the byte budget for an image.
+     * @param throughput the uplink throughput in bytes per second, 0 if unknown
+     */
+    public static long getBudget(long throughput) {
+        if (throughput <= 0)
+            return DEFAULT_BUDGET;
+        return Math.max(MIN_BUDGET, Math.min(MAX_BUDGET, throughput * TARGET_TIME / 1000));
+    }
+
+    /** Compresses a bitmap to memory. */
+    private static final class BitmapEncoder implements QualitySearch.Encoder {
+        Bitmap bitmap;
+        final ByteArrayOutputStream out;
+
+        BitmapEncoder(Bitmap bitmap, long budget) {
+            this.bitmap = bitmap;
+            out = new ByteArrayOutputStream((int) budget);
+        }
+
+        @Override
+        public long encode(int quality) throws IOException {
+            out.reset();
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out))
+                throw new IOException("unable to compress image");
+            return out.size();
+        }
+    }
+
+    /**
+     * Encodes an image to a new outgoing picture file.
+     * @param maxSize maximum width and height of the image
+     * @param budget maximum size of the encoded image (best effort)
+     */
+    public static Result encode(Context context, Uri uri, int maxSize, long budget) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        Result result = new Result();
+        result.budget = budget;
+
+        BitmapEncoder encoder = new BitmapEncoder(decode(context, uri, maxSize), budget);
+        try {
+            QualitySearch search;
+            int quality;
+            int downscales = 0;
+            while (true) {
+                search = new QualitySearch(encoder, MIN_QUALITY, MAX_QUALITY, QUALITY_PRECISION);
+                quality = search.search(budget);
+                result.attempts += search.getAttempts();
+                if (quality >= 0 || downscales++ >= MAX_DOWNSCALES)
+                    break;
+
+                // not even the lowest quality fits, reduce resolution
+                Bitmap bitmap = encoder.bitmap;
+                encoder.bitmap = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, (int) (bitmap.getWidth() * DOWNSCALE)),
+                    Math.max(1, (int) (bitmap.getHeight() * DOWNSCALE)), true);
+                if (encoder.bitmap != bitmap)
+                    bitmap.recycle();
+            }
+
+            if (quality < 0) {
+                // best effort
+                quality = MIN_QUALITY;
+            }
+            if (search.getLastQuality() != quality) {
+                encoder.encode(quality);
+                result.attempts++;
+            }
+
+            File file = MediaStorage.getOutgoingPictureFile();
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                encoder.out.writeTo(out);
+            }
+            finally {
+                out.close();
+            }
+
+            result.file = file;
+            result.width = encoder.bitmap.getWidth();
+            result.height = encoder.bitmap.getHeight();
+            result.quality = quality;
+            result.length = encoder.out.size();
+        }
+        finally {
+            encoder.bitmap.recycle();
+        }
+
+        result.encodeTime = SystemClock.elapsedRealtime() - start;
+        return result;
+    }
+
+    /**
+     * Decodes an image scaled down to fit the given size and rotated as
+     * requested by its metadata. A power of two sample size is used for
+     * decoding, then the image is scaled to the exact size. The output is
+     * JPEG, so the image is decoded without alpha to halve its memory.
+     */
+    private static Bitmap decode(Context context, Uri uri, int maxSize) throws IOException {
+        ContentResolver cr = context.getContentResolver();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream in = cr.openInputStream(uri);
+        try {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        finally {
+            SystemUtils.closeStream(in);
+        }
+
+        int size = Math.max(options.outWidth, options.outHeight);
+        if (size <= 0)
+            throw new IOException("unable to decode image");
+
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, maxSize);
+
+        Bitmap bitmap;
+        in = cr.openInputStream(uri);
+        try {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        }
+        finally {
+            SystemUtils.closeStream(in);
+        }
+        if (bitmap == null)
+            throw new IOException("unable to decode image");
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (Math.max(width, height) > maxSize) {
+            float scale = (float) maxSize / Math.max(width, height);
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)), true);
+            if (scaled != bitmap)
+                bitmap.recycle();
+            bitmap = scaled;
+        }
+
+        Bitmap rotated = MediaStorage.bitmapOrientation(context, uri, bitmap);
+        if (rotated != bitmap)
+            bitmap.recycle();
+        return rotated;
+    }
+
+    /**
+     * Returns the largest power of two sample size that still decodes the
+     * image at least as large as the given size. Sampling any further would
+     * lose resolution, so the decoded image can have up to four times the
+     * pixels we need (halved by decoding without alpha).
+     */
+    static int getSampleSize(int width, int height, int maxSize) {
+        int size = Math.max(width, height);
+
+        int sampleSize = 1;
+        while (size / (sampleSize * 2) >= maxSize)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+
+import org.kontalk.Log;
+
+
+/**
+ * A bounded thread pool with priority lanes. Every lane has its own bounded
+ * queue and a policy for when the queue is full; idle threads always take
+ * the oldest task from the first non-empty lane, so a lane can delay the
+ * lanes after it but never the ones before.
+ * @author Daniele Ricci
+ */
+public class LaneExecutor {
+    private static final String TAG = LaneExecutor.class.getSimpleName();
+
+    /** Full queue: the submitting thread runs the task (slows down the producer). */
+    public static final int POLICY_CALLER_RUNS = 0;
+    /** Full queue: the oldest queued task is dropped. */
+    public static final int POLICY_DISCARD_OLDEST = 1;
+    /** Full queue: the new task is dropped. */
+    public static final int POLICY_DISCARD = 2;
+
+    /** A lane and its statistics. */
+    public static final class Lane {
+        private final String mName;
+        private final int mMaxQueue;
+        private final int mPolicy;
+
+        /** Queued tasks, guarded by the executor lock. */
+        private final ArrayDeque<QueuedTask> mQueue = new ArrayDeque<>();
+        private int mMaxQueueSize;
+
+        private final AtomicLong mSubmitted = new AtomicLong();
+        private final AtomicLong mCompleted = new AtomicLong();
+        private final AtomicLong mDiscarded = new AtomicLong();
+        private final AtomicLong mCallerRuns = new AtomicLong();
+        private final AtomicLong mWaitTime = new AtomicLong();
+        private final AtomicLong mDequeued = new AtomicLong();
+
+        public Lane(String name, int maxQueue, int policy) {
+            mName = name;
+            mMaxQueue = maxQueue;
+            mPolicy = policy;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getSubmittedCount() {
+            return mSubmitted.get();
+        }
+
+        public long getCompletedCount() {
+            return mCompleted.get();
+        }
+
+        /** Number of tasks dropped because the queue was full. */
+        public long getDiscardedCount() {
+            return mDiscarded.get();
+        }
+
+        /** Number of tasks executed by the submitting thread because the queue was full. */
+        public long getCallerRunsCount() {
+            return mCallerRuns.get();
+        }
+
+        /** Average time spent in the queue, in milliseconds. */
+        public long getAverageWaitTime() {
+            long dequeued = mDequeued.get();
+            return dequeued > 0 ? TimeUnit.NANOSECONDS.toMillis(mWaitTime.get() / dequeued) : 0;
+        }
+
+        @Override
+        public String toString() {
+            return mName + "[submitted=" + getSubmittedCount() +
+                ", completed=" + getCompletedCount() +
+                ", discarded=" + getDiscardedCount() +
+                ", callerRuns=" + getCallerRunsCount() +
+                ", maxQueued=" + mMaxQueueSize +
+                ", avgWait=" + getAverageWaitTime() + "ms]";
+        }
+    }
+
+    private static final class QueuedTask {
+        final Runnable task;
+        final long time;
+
+        QueuedTask(Runnable task, long time) {
+            this.task = task;
+            this.time = time;
+        }
+    }
+
+    private final Lane[] mLanes;
+    private final Thread[] mThreads;
+
+    private final Object mLock = new Object();
+    private int mActive;
+    private boolean mShutdown;
+
+    /**
+     * Creates the executor and starts its threads.
+     * @param lanes the lanes, in order of priority
+     */
+    public LaneExecutor(final String name, int threads, Lane... lanes) {
+        mLanes = lanes;
+        mThreads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            mThreads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    work();
+                }
+            }, name + "-" + (i + 1));
+            mThreads[i].setDaemon(true);
+            mThreads[i].start();
+        }
+    }
+
+    /**
+     * Queues a task in the given lane.
+     * @return false if the task was dropped
+     */
+    public boolean execute(Runnable task, int lane) {
+        Lane l = mLanes[lane];
+        l.mSubmitted.incrementAndGet();
+
+        synchronized (mLock) {
+            if (mShutdown) {
+                l.mDiscarded.incrementAndGet();
+                return false;
+            }
+
+            if (l.mQueue.size() < l.mMaxQueue || l.mPolicy != POLICY_CALLER_RUNS) {
+                if (l.mQueue.size() >= l.mMaxQueue) {
+                    l.mDiscarded.incrementAndGet();
+                    if (l.mPolicy == POLICY_DISCARD)
+                        return false;
+                    l.mQueue.poll();
+                }
+
+                l.mQueue.add(new QueuedTask(task, System.nanoTime()));
+                if (l.mQueue.size() > l.mMaxQueueSize)
+                    l.mMaxQueueSize = l.mQueue.size();
+                mLock.notify();
+                return true;
+            }
+        }
+
+        // queue is full: slow down the producer
+        l.mCallerRuns.incrementAndGet();
+        run(l, task);
+        return true;
+    }
+
+    private void work() {
+        while (true) {
+            Lane lane = null;
+            QueuedTask queued = null;
+
+            synchronized (mLock) {
+                while (queued == null) {
+                    for (Lane l : mLanes) {
+                        queued = l.mQueue.poll();
+                        if (queued != null) {
+                            lane = l;
+                            break;
+                        }
+                    }
+
+                    if (queued == null) {
+                        // nothing left to do
+                        if (mShutdown)
+                            return;
+
+                        try {
+                            mLock.wait();
+                        }
+                        catch (InterruptedException e) {
+                            // shutdownNow() clears the queues
+                        }
+                    }
+                }
+                mActive++;
+            }
+
+            lane.mWaitTime.addAndGet(System.nanoTime() - queued.time);
+            lane.mDequeued.incrementAndGet();
+            try {
+                run(lane, queued.task);
+            }
+            finally {
+                synchronized (mLock) {
+                    mActive--;
+                }
+            }
+        }
+    }
+
+    private void run(Lane lane, Runnable task) {
+        try {
+            task.run();
+        }
+        catch (Exception e) {
+            // do not kill the worker thread
+            Log.w(TAG, "task failed in lane " + lane.mName, e);
+        }
+        finally {
+            lane.mCompleted.incrementAndGet();
+        }
+    }
+
+    public Lane getLane(int lane) {
+        return mLanes[lane];
+    }
+
+    /** Number of tasks being executed. */
+    public int getActiveCount() {
+        synchronized (mLock) {
+            return mActive;
+        }
+    }
+
+    /** Number of tasks waiting in the given lane. */
+    public int getQueueSize(int lane) {
+        synchronized (mLock) {
+            return mLanes[lane].mQueue.size();
+        }
+    }
+
+    /** Highest number of waiting tasks seen in the given lane. */
+    public int getMaxQueueSize(int lane) {
+        synchronized (mLock) {
+            return mLanes[lane].mMaxQueueSize;
+        }
+    }
+
+    /** Stops accepting tasks. Queued tasks will still be executed. */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /** Stops accepting tasks, drops queued tasks and interrupts running ones. */
+    public void shutdownNow() {
+        synchronized (mLock) {
+            mShutdown = true;
+            for (Lane l : mLanes)
+                l.mQueue.clear();
+            mLock.notifyAll();
+        }
+        for (Thread t : mThreads)
+            t.interrupt();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        for (Thread t : mThreads) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                return false;
+            t.join(left);
+            if (t.isAlive())
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(getClass().getSimpleName())
+            .append("[active=").append(getActiveCount());
+        for (int i = 0; i < mLanes.length; i++) {
+            out.append(", ").append(mLanes[i])
+                .append(" queued=").append(getQueueSize(i));
+        }
+        return out.append(']').toString();
+    }
+
+}
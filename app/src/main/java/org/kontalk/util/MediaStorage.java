@@ -38,6 +38,7 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
+import android.media.MediaMetadataRetriever;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Build;
@@ -80,18 +81,36 @@ public abstract class MediaStorage {
 
     private static final int THUMBNAIL_WIDTH = 256;
     private static final int THUMBNAIL_HEIGHT = 256;
-    public static final String THUMBNAIL_MIME = "image/png";
     public static final String THUMBNAIL_MIME_NETWORK = "image/jpeg";
     public static final int THUMBNAIL_MIME_COMPRESSION = 60;
+    /** Quality of thumbnails generated for local use. */
+    private static final int THUMBNAIL_COMPRESSION = 75;
 
     public static final String COMPRESS_MIME = "image/jpeg";
-    private static final int COMPRESSION_QUALITY = 85;
 
     public static boolean isExternalStorageAvailable() {
         return Environment.getExternalStorageState()
             .equals(Environment.MEDIA_MOUNTED);
     }
 
+    /**
+     * Returns the external directories we create media files in (received
+     * media, copies of sent pictures and recordings). Camera pictures are
+     * not included since they belong to the user.
+     */
+    public static File[] getMediaDirectories() {
+        return new File[] { MEDIA_ROOT, PICTURES_ROOT, AUDIO_ROOT };
+    }
+
+    /**
+     * Returns the external directories whose files can be deleted together
+     * with their messages. Received pictures are not included: they are
+     * shown in the gallery, so they belong to the user.
+     */
+    public static File[] getCollectableDirectories() {
+        return new File[] { MEDIA_ROOT, PICTURES_SENT_ROOT, AUDIO_ROOT };
+    }
+
     public static File getInternalMediaFile(Context context, String filename) {
         return new File(context.getCacheDir(), filename);
     }
@@ -131,9 +150,25 @@ public abstract class MediaStorage {
         return processOptions(options, scaleWidth, scaleHeight);
     }
 
-    /** Writes a thumbnail of a media to the internal cache. */
+    /** Returns the file for a thumbnail in the {@link ThumbnailStore}. */
+    public static File getThumbnailFile(Context context, String filename) {
+        return ThumbnailStore.getInstance(context).getFile(filename);
+    }
+
+    /** Writes a thumbnail to the {@link ThumbnailStore}. */
+    public static File writeThumbnail(Context context, String filename, byte[] contents) throws IOException {
+        ThumbnailStore store = ThumbnailStore.getInstance(context);
+        File file = store.getFile(filename);
+        FileOutputStream fout = new FileOutputStream(file);
+        fout.write(contents);
+        fout.close();
+        store.onWrite(file);
+        return file;
+    }
+
+    /** Writes a thumbnail of a media to the {@link ThumbnailStore}. */
     public static File cacheThumbnail(Context context, Uri media, String filename, boolean forNetwork) throws IOException {
-        File file = new File(context.getCacheDir(), filename);
+        File file = getThumbnailFile(context, filename);
         cacheThumbnail(context, media, file, forNetwork);
         return file;
     }
@@ -143,6 +178,7 @@ public abstract class MediaStorage {
         FileOutputStream fout = new FileOutputStream(destination);
         cacheThumbnail(context, media, fout, forNetwork);
         fout.close();
+        ThumbnailStore.getInstance(context).onWrite(destination);
     }
 
     private static void cacheThumbnail(Context context, Uri media, FileOutputStream fout, boolean forNetwork) throws IOException {
@@ -166,12 +202,20 @@ public abstract class MediaStorage {
             thumbnail.recycle();
 
         // write down to file
-        rotatedThumbnail.compress(forNetwork ? Bitmap.CompressFormat.JPEG :
-            Bitmap.CompressFormat.PNG,
-            forNetwork ? THUMBNAIL_MIME_COMPRESSION : 0, fout);
+        if (forNetwork)
+            rotatedThumbnail.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_MIME_COMPRESSION, fout);
+        else
+            rotatedThumbnail.compress(getThumbnailFormat(), THUMBNAIL_COMPRESSION, fout);
         rotatedThumbnail.recycle();
     }
 
+    /** Thumbnails for local use are encoded in WebP where it's available. */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static Bitmap.CompressFormat getThumbnailFormat() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH ?
+            Bitmap.CompressFormat.WEBP : Bitmap.CompressFormat.JPEG;
+    }
+
     /**
      * Tries various methods for obtaining the rotation of the image.
      * @return a matrix to rotate the image (if any)
@@ -253,11 +297,16 @@ public abstract class MediaStorage {
         MEDIA_ROOT.mkdirs();
         File f = new File(MEDIA_ROOT, filename);
         FileOutputStream fout = new FileOutputStream(f);
-        byte[] buffer = new byte[1024];
-        int len;
-        while ((len = source.read(buffer)) != -1)
-            fout.write(buffer, 0, len);
-        fout.close();
+        byte[] buffer = BufferPool.acquire(BufferPool.SIZE_MEDIUM);
+        try {
+            int len;
+            while ((len = source.read(buffer)) != -1)
+                fout.write(buffer, 0, len);
+        }
+        finally {
+            BufferPool.release(buffer);
+            fout.close();
+        }
         return f;
     }
 
@@ -270,6 +319,25 @@ public abstract class MediaStorage {
         return f;
     }
 
+    /** Returns the duration of an audio/video file in milliseconds, -1 if not available. */
+    public static int getDuration(Context context, Uri media) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1) {
+            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+            try {
+                retriever.setDataSource(context, media);
+                String time = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+                return Integer.parseInt(time);
+            }
+            catch (Exception e) {
+                // ignored
+            }
+            finally {
+                retriever.release();
+            }
+        }
+        return -1;
+    }
+
     public static long getLength(Context context, Uri media) throws IOException {
         AssetFileDescriptor stat = null;
         long length = 0;
@@ -450,119 +518,6 @@ public abstract class MediaStorage {
         return mime;
     }
 
-    public static File resizeImage(Context context, Uri uri, int maxSize) throws IOException {
-        return resizeImage(context, uri, maxSize, maxSize, COMPRESSION_QUALITY);
-    }
-
-    public static File resizeImage(Context context, Uri uri, int maxWidth, int maxHeight, int quality)
-        throws IOException {
-
-        final int MAX_IMAGE_SIZE = 1200000; // 1.2MP
-
-        ContentResolver cr = context.getContentResolver();
-
-        // compute optimal image scale size
-        int scale = 1;
-        InputStream in = cr.openInputStream(uri);
-
-        try {
-            // decode image size
-            BitmapFactory.Options o = new BitmapFactory.Options();
-            o.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(in, null, o);
-            in.close();
-
-            // calculate optimal image scale size
-            while ((o.outWidth * o.outHeight) * (1 / Math.pow(scale, 2)) > MAX_IMAGE_SIZE)
-                scale++;
-
-            Log.d(TAG, "scale = " + scale + ", orig-width: " + o.outWidth + ", orig-height: " + o.outHeight);
-        }
-        catch (IOException e) {
-            Log.d(TAG, "unable to calculate optimal scale size, using original image");
-        }
-        finally {
-            try {
-                in.close();
-            }
-            catch (Exception e) {
-                // ignored
-            }
-        }
-
-        // open image again for the actual scaling
-        Bitmap bitmap = null;
-
-        try {
-            in = cr.openInputStream(uri);
-            BitmapFactory.Options o = new BitmapFactory.Options();
-
-            if (scale > 1) {
-                o.inSampleSize = scale - 1;
-            }
-
-            bitmap = BitmapFactory.decodeStream(in, null, o);
-        }
-        finally {
-            try {
-                in.close();
-            }
-            catch (Exception e) {
-                // ignored
-            }
-        }
-
-        if (bitmap == null) {
-            return null;
-        }
-        float photoW = bitmap.getWidth();
-        float photoH = bitmap.getHeight();
-        if (photoW == 0 || photoH == 0) {
-            return null;
-        }
-        float scaleFactor = Math.max(photoW / maxWidth, photoH / maxHeight);
-        int w = (int) (photoW / scaleFactor);
-        int h = (int) (photoH / scaleFactor);
-        if (h == 0 || w == 0) {
-            return null;
-        }
-
-        Bitmap scaledBitmap = null;
-        try {
-            scaledBitmap = Bitmap.createScaledBitmap(bitmap, w, h, true);
-        }
-        finally {
-            if (scaledBitmap != bitmap)
-                bitmap.recycle();
-        }
-
-        // check for rotation data
-        Bitmap rotatedScaledBitmap = bitmapOrientation(context, uri, scaledBitmap);
-        if (rotatedScaledBitmap != scaledBitmap)
-            scaledBitmap.recycle();
-
-        final File compressedFile = getOutgoingPictureFile();
-
-        FileOutputStream stream = null;
-
-        try {
-            stream = new FileOutputStream(compressedFile);
-            rotatedScaledBitmap.compress(Bitmap.CompressFormat.JPEG, quality, stream);
-
-            return compressedFile;
-        }
-        finally {
-            try {
-                stream.close();
-            }
-            catch (Exception e) {
-                // ignored
-            }
-
-            rotatedScaledBitmap.recycle();
-        }
-    }
-
     public static File copyOutgoingMedia(Context context, Uri media) throws IOException {
         final File outFile = getOutgoingPictureFile();
         InputStream in = context.getContentResolver().openInputStream(media);
@@ -242,12 +242,17 @@ public final class MessageUtils {
     }
 
     public static ByteArrayInOutStream readFully(InputStream in, long maxSize) throws IOException {
-        byte[] buf = new byte[1024];
-        ByteArrayInOutStream out = new ByteArrayInOutStream();
-        int l;
-        while ((l = in.read(buf, 0, 1024)) > 0 && out.size() < maxSize)
-            out.write(buf, 0, l);
-        return out;
+        byte[] buf = BufferPool.acquire(BufferPool.SIZE_MEDIUM);
+        try {
+            ByteArrayInOutStream out = new ByteArrayInOutStream();
+            int l;
+            while ((l = in.read(buf, 0, buf.length)) > 0 && out.size() < maxSize)
+                out.write(buf, 0, l);
+            return out;
+        }
+        finally {
+            BufferPool.release(buf);
+        }
     }
 
     public static CharSequence getFileInfoMessage(Context context, CompositeMessage msg, String decodedPeer) {
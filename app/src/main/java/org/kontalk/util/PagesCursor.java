@@ -0,0 +1,139 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.util.List;
+
+import android.annotation.TargetApi;
+import android.database.AbstractCursor;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Build;
+
+
+/**
+ * A flat view over pages of results loaded separately, like
+ * {@link android.database.MergeCursor}, but it doesn't own the pages:
+ * closing it leaves them open and it doesn't register anything on them
+ * besides the content observers registered on it. This way a new view can
+ * replace the old one every time a page is loaded, without closing the
+ * pages or leaving observers behind. Pages must be closed by the caller.
+ * @author Daniele Ricci
+ */
+public class PagesCursor extends AbstractCursor {
+
+    private final Cursor[] mPages;
+    /** Position of the first row of each page. */
+    private final int[] mOffsets;
+    private final int mCount;
+    /** Page the current row belongs to. */
+    private Cursor mCursor;
+
+    public PagesCursor(List<Cursor> pages) {
+        mPages = pages.toArray(new Cursor[pages.size()]);
+        mOffsets = new int[mPages.length];
+        int count = 0;
+        for (int i = 0; i < mPages.length; i++) {
+            mOffsets[i] = count;
+            count += mPages[i].getCount();
+        }
+        mCount = count;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        for (int i = mPages.length - 1; i >= 0; i--) {
+            if (newPosition >= mOffsets[i]) {
+                mCursor = mPages[i];
+                return mCursor.moveToPosition(newPosition - mOffsets[i]);
+            }
+        }
+        mCursor = null;
+        return false;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mPages.length > 0 ? mPages[0].getColumnNames() : new String[0];
+    }
+
+    @Override
+    public String getString(int column) {
+        return mCursor.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mCursor.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mCursor.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mCursor.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mCursor.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mCursor.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return mCursor.getBlob(column);
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public int getType(int column) {
+        return mCursor.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCursor.isNull(column);
+    }
+
+    @Override
+    public void registerContentObserver(ContentObserver observer) {
+        for (Cursor page : mPages)
+            page.registerContentObserver(observer);
+    }
+
+    @Override
+    public void unregisterContentObserver(ContentObserver observer) {
+        for (Cursor page : mPages)
+            page.unregisterContentObserver(observer);
+    }
+
+}
@@ -30,8 +30,10 @@ import java.util.Map;
 import java.util.Properties;
 
 import org.kontalk.R;
+import org.kontalk.authenticator.AccountSnapshot;
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.client.EndpointServer;
+import org.kontalk.client.EndpointStats;
 import org.kontalk.client.ServerList;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.provider.Keyring;
@@ -42,6 +44,7 @@ import android.annotation.SuppressLint;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -71,9 +74,24 @@ public final class Preferences {
     private static String sBalloonTheme;
     private static String sBalloonGroupsTheme;
 
+    /** Typed copy of the settings we read all the time. */
+    private static volatile Settings sSettings;
+    /** Strong reference since SharedPreferences only keeps a weak one. */
+    private static SharedPreferences.OnSharedPreferenceChangeListener sSettingsListener;
+
     @SuppressLint("CommitPrefEdits")
     public static void init(Context context) {
-        sPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final Context appContext = context.getApplicationContext();
+        sPreferences = PreferenceManager.getDefaultSharedPreferences(appContext);
+        sSettings = new Settings(appContext, sPreferences);
+        sSettingsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                if (Settings.isSettingsKey(key))
+                    sSettings = new Settings(appContext, prefs);
+            }
+        };
+        sPreferences.registerOnSharedPreferenceChangeListener(sSettingsListener);
 
         // set the new default theme if this is the first upgrade
         String newTheme = context.getString(R.string.pref_default_balloons);
@@ -82,6 +100,11 @@ public final class Preferences {
                 .commit();
     }
 
+    /** Returns the current settings snapshot. Fields can be read from any thread. */
+    public static Settings getSettings() {
+        return sSettings;
+    }
+
     public static void setCachedCustomBackground(Drawable customBackground) {
         sCustomBackground = customBackground;
     }
@@ -104,20 +127,13 @@ public final class Preferences {
         return sPreferences.getString(key, defaultValue);
     }
 
-    private static int getInt(String key, int defaultValue) {
-        return sPreferences.getInt(key, defaultValue);
-    }
-
-    private static int getIntMinValue(String key, int minValue, int defaultValue) {
-        String val = getString(key, null);
-        int nval;
+    private static int parseInt(String value, int defaultValue) {
         try {
-            nval = Integer.valueOf(val);
+            return Integer.parseInt(value);
         }
         catch (Exception e) {
-            nval = defaultValue;
+            return defaultValue;
         }
-        return (nval < minValue) ? minValue : nval;
     }
 
     private static long getLong(String key, long defaultValue) {
@@ -125,11 +141,10 @@ public final class Preferences {
     }
 
     /** Retrieves a long and if >= 0 it sets it to -1. */
-    @SuppressLint("CommitPrefEdits")
     private static long getLongOnce(String key) {
         long value = sPreferences.getLong(key, -1);
         if (value >= 0)
-            sPreferences.edit().putLong(key, -1).commit();
+            sPreferences.edit().putLong(key, -1).apply();
         return value;
     }
 
@@ -138,11 +153,10 @@ public final class Preferences {
     }
 
     /** Retrieve a boolean and if false set it to true. */
-    @SuppressLint("CommitPrefEdits")
     private static boolean getBooleanOnce(String key) {
         boolean value = sPreferences.getBoolean(key, false);
         if (!value)
-            sPreferences.edit().putBoolean(key, true).commit();
+            sPreferences.edit().putBoolean(key, true).apply();
         return value;
     }
 
@@ -157,13 +171,28 @@ public final class Preferences {
     }
 
     public static boolean setServerURI(String serverURI) {
-        return sPreferences.edit()
+        boolean result = sPreferences.edit()
             .putString("pref_network_uri", serverURI)
             .commit();
+        // our JID depends on the server
+        AccountSnapshot.invalidate();
+        return result;
     }
 
     /** Returns a random server from the cached list or the user-defined server. */
     public static EndpointServer getEndpointServer(Context context) {
+        EndpointServer custom = getCustomEndpointServer();
+        // return server stored in the default account
+        return custom != null ? custom : Authenticator.getDefaultServer(context);
+    }
+
+    /** Returns the user-defined server or the given account server. */
+    public static EndpointServer getEndpointServer(EndpointServer accountServer) {
+        EndpointServer custom = getCustomEndpointServer();
+        return custom != null ? custom : accountServer;
+    }
+
+    private static EndpointServer getCustomEndpointServer() {
         String customUri = getServerURI();
         if (!TextUtils.isEmpty(customUri)) {
             try {
@@ -173,9 +202,7 @@ public final class Preferences {
                 // custom is not valid - take one from list
             }
         }
-
-        // return server stored in the default account
-        return Authenticator.getDefaultServer(context);
+        return null;
     }
 
     /** Returns a server provider reflecting the current settings. */
@@ -186,13 +213,52 @@ public final class Preferences {
         }
         else {
             ServerList list = ServerListUpdater.getCurrentList(context);
-            return new ServerList.ServerListProvider(list);
+            return new ServerList.ServerListProvider(list, sEndpointRanking);
         }
     }
 
+    /**
+     * Returns a provider for the servers of the same network of the given
+     * server, e.g. for racing connections to them.
+     */
+    public static EndpointServer.EndpointServerProvider getEndpointServerProvider(Context context, EndpointServer server) {
+        if (server == null || !TextUtils.isEmpty(getServerURI()))
+            return null;
+
+        ServerList list = ServerListUpdater.getCurrentList(context);
+        if (list == null)
+            return null;
+
+        ServerList network = new ServerList(list.getDate());
+        for (EndpointServer s : list) {
+            if (s.getNetwork().equalsIgnoreCase(server.getNetwork()) && !s.equals(server))
+                network.add(s);
+        }
+        return network.size() > 0 ?
+            new ServerList.ServerListProvider(network, sEndpointRanking) : null;
+    }
+
+    /** Ranks servers by their connection history. */
+    private static final ServerList.Ranking sEndpointRanking = new ServerList.Ranking() {
+        @Override
+        public long getScore(EndpointServer server) {
+            return getEndpointStats(server).getScore(System.currentTimeMillis());
+        }
+    };
+
+    /** Connection history of the given server. */
+    public static EndpointStats getEndpointStats(EndpointServer server) {
+        return EndpointStats.parse(getString("endpoint_stats_" + server, null));
+    }
+
+    public static void setEndpointStats(EndpointServer server, EndpointStats stats) {
+        sPreferences.edit()
+            .putString("endpoint_stats_" + server, stats.toString())
+            .apply();
+    }
+
     public static boolean getEncryptionEnabled(Context context) {
-        return getBoolean("pref_encrypt", context
-            .getResources().getBoolean(R.bool.pref_default_encrypt));
+        return sSettings.encryptionEnabled;
     }
 
     public static boolean getSyncSIMContacts(Context context) {
@@ -216,28 +282,23 @@ public final class Preferences {
     }
 
     public static boolean getNotificationsEnabled(Context context) {
-        return getBoolean("pref_enable_notifications", context
-            .getResources().getBoolean(R.bool.pref_default_enable_notifications));
+        return sSettings.notificationsEnabled;
     }
 
     public static String getNotificationVibrate(Context context) {
-        return getString("pref_vibrate", context
-            .getString(R.string.pref_default_vibrate));
+        return sSettings.notificationVibrate;
     }
 
     public static String getNotificationRingtone(Context context) {
-        return getString("pref_ringtone", context
-            .getString(R.string.pref_default_ringtone));
+        return sSettings.notificationRingtone;
     }
 
     public static boolean getNotificationLED(Context context) {
-        return getBoolean("pref_enable_notification_led",
-            context.getResources().getBoolean(R.bool.pref_default_enable_notification_led));
+        return sSettings.notificationLED;
     }
 
     public static int getNotificationLEDColor(Context context) {
-        return getInt("pref_notification_led_color",
-            context.getResources().getInteger(R.integer.pref_default_notification_led_color));
+        return sSettings.notificationLEDColor;
     }
 
     public static boolean setNotificationLEDColor(int color) {
@@ -247,20 +308,22 @@ public final class Preferences {
     }
 
     public static int getImageCompression(Context context) {
-        return Integer.parseInt(getString("pref_image_resize", String
-            .valueOf(context.getResources().getInteger(R.integer.pref_default_image_resize))));
+        return sSettings.imageCompression;
     }
 
     /** Returns true if, as per settings, we can autodownload a file of the given size. */
     public static boolean canAutodownloadMedia(Context context, long size) {
-        int threshold = Integer.parseInt(getString("pref_media_autodownload_threshold", String
-            .valueOf(context.getResources().getInteger(R.integer.pref_default_media_autodownload_threshold))));
-        String autodownload = getString("pref_media_autodownload",
-            context.getResources().getString(R.string.pref_default_media_autodownload));
-        return (size / 1024) < threshold || "always".equals(autodownload) ||
+        Settings settings = sSettings;
+        String autodownload = settings.mediaAutodownload;
+        return (size / 1024) < settings.mediaAutodownloadThreshold || "always".equals(autodownload) ||
             ("wifi".equals(autodownload) && SystemUtils.isOnWifi(context));
     }
 
+    /** Returns the disk quota for thumbnails in bytes. */
+    public static long getThumbnailQuota(Context context) {
+        return Math.max(sSettings.thumbnailQuota, 1) * 1024L * 1024L;
+    }
+
     public static boolean getContactsListVisited() {
         return getBooleanOnce("pref_contacts_visited");
     }
@@ -295,10 +358,8 @@ public final class Preferences {
         return getLongOnce("pref_last_push_notification");
     }
 
-    /** TODO cache value */
     public static String getFontSize(Context context) {
-        return getString("pref_font_size", context
-            .getString(R.string.pref_default_font_size));
+        return sSettings.fontSize;
     }
 
     public static String getBalloonTheme(Context context) {
@@ -472,8 +533,7 @@ public final class Preferences {
     }
 
     public static boolean getSendTyping(Context context) {
-        return getBoolean("pref_send_typing", context.getResources()
-            .getBoolean(R.bool.pref_default_send_typing));
+        return sSettings.sendTyping;
     }
 
     public static String getDialPrefix() {
@@ -497,13 +557,11 @@ public final class Preferences {
     }
 
     public static int getIdleTimeMillis(Context context, int minValue) {
-        return getIntMinValue("pref_idle_time", minValue, context
-            .getResources().getInteger(R.integer.pref_default_idle_time));
+        return Math.max(sSettings.idleTime, minValue);
     }
 
     public static int getWakeupTimeMillis(Context context, int minValue) {
-        return getIntMinValue("pref_wakeup_time", minValue, context
-            .getResources().getInteger(R.integer.pref_default_wakeup_time));
+        return Math.max(sSettings.wakeupTime, minValue);
     }
 
     public static long getLastConnection() {
@@ -518,30 +576,46 @@ public final class Preferences {
     }
 
     public static String getEnterKeyMode(Context context) {
-        try {
-            return getString("pref_text_enter", context
-                .getString(R.string.pref_default_text_enter));
-        }
-        catch (ClassCastException e) {
-            // legacy mode
-            return getBoolean("pref_text_enter", false) ?
-                "newline" : "default";
-        }
+        return sSettings.enterKeyMode;
     }
 
     public static boolean getShowBlockedUsers(Context context) {
-        return getBoolean("pref_show_blocked_users", context
-            .getResources().getBoolean(R.bool.pref_default_show_blocked_users));
+        return sSettings.showBlockedUsers;
     }
 
+    /** Roster version used before it was stored with the roster itself. */
     public static String getRosterVersion() {
         return getString("roster_version", "");
     }
 
-    public static boolean setRosterVersion(String version) {
-        return sPreferences.edit()
-            .putString("roster_version", version)
-            .commit();
+    public static long getLastDatabaseAnalyze(String database) {
+        return getLong("db_last_analyze_" + database, 0);
+    }
+
+    public static void setLastDatabaseAnalyze(String database, long timestamp) {
+        sPreferences.edit()
+            .putLong("db_last_analyze_" + database, timestamp)
+            .apply();
+    }
+
+    public static boolean isDatabaseAutoVacuumSet(String database) {
+        return getBoolean("db_auto_vacuum_" + database, false);
+    }
+
+    public static void setDatabaseAutoVacuumSet(String database) {
+        sPreferences.edit()
+            .putBoolean("db_auto_vacuum_" + database, true)
+            .apply();
+    }
+
+    public static long getLastMediaCollect() {
+        return getLong("media_last_collect", 0);
+    }
+
+    public static void setLastMediaCollect(long timestamp) {
+        sPreferences.edit()
+            .putLong("media_last_collect", timestamp)
+            .apply();
     }
 
     public static boolean isSkipHuaweiProtectedApps() {
@@ -564,32 +638,32 @@ public final class Preferences {
             .getResources().getBoolean(R.bool.pref_default_debug_log));
     }
 
-    public static long getPingAlarmInterval(Context context, long defaultValue) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return (networkType != null) ?
-            getLong("ping_alarm_interval_" + networkType, defaultValue) :
-            defaultValue;
+    /** Longest ping interval known to work on the given network. */
+    public static long getPingAlarmInterval(String network, long defaultValue) {
+        return getLong("ping_alarm_interval_" + network, defaultValue);
     }
 
-    public static boolean setPingAlarmInterval(Context context, long intervalMillis) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return networkType != null && sPreferences.edit()
-            .putLong("ping_alarm_interval_" + networkType, intervalMillis)
-            .commit();
+    /** Shortest ping interval known to fail on the given network. */
+    public static long getPingAlarmUpperBound(String network, long defaultValue) {
+        return getLong("ping_alarm_upper_" + network, defaultValue);
     }
 
-    public static long getPingAlarmBackoff(Context context, long defaultValue) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return (networkType != null) ?
-            getLong("ping_alarm_backoff_" + networkType, defaultValue) :
-            defaultValue;
+    public static void setPingAlarmBounds(String network, long lower, long upper) {
+        sPreferences.edit()
+            .putLong("ping_alarm_interval_" + network, lower)
+            .putLong("ping_alarm_upper_" + network, upper)
+            .apply();
     }
 
-    public static boolean setPingAlarmBackoff(Context context, long intervalMillis) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return networkType != null && sPreferences.edit()
-            .putLong("ping_alarm_backoff_" + networkType, intervalMillis)
-            .commit();
+    /** Estimated uplink throughput of the given network, in bytes per second. */
+    public static long getUplinkThroughput(String network) {
+        return getLong("uplink_throughput_" + network, 0);
+    }
+
+    public static void setUplinkThroughput(String network, long throughput) {
+        sPreferences.edit()
+            .putLong("uplink_throughput_" + network, throughput)
+            .apply();
     }
 
     /**
@@ -706,6 +780,111 @@ public final class Preferences {
             .apply();
     }
 
+    /**
+     * An immutable, typed copy of the user settings read on hot paths.
+     * A new instance is created every time one of these settings changes.
+     */
+    public static final class Settings {
+        private static final String[] KEYS = {
+            "pref_send_typing",
+            "pref_encrypt",
+            "pref_image_resize",
+            "pref_media_autodownload",
+            "pref_media_autodownload_threshold",
+            "pref_thumbnail_quota",
+            "pref_enable_notifications",
+            "pref_vibrate",
+            "pref_ringtone",
+            "pref_enable_notification_led",
+            "pref_notification_led_color",
+            "pref_font_size",
+            "pref_text_enter",
+            "pref_show_blocked_users",
+            "pref_idle_time",
+            "pref_wakeup_time",
+        };
+
+        public final boolean sendTyping;
+        public final boolean encryptionEnabled;
+        public final int imageCompression;
+        public final String mediaAutodownload;
+        /** Autodownload threshold in kilobytes. */
+        public final int mediaAutodownloadThreshold;
+        /** Disk quota for thumbnails in megabytes. */
+        public final int thumbnailQuota;
+        public final boolean notificationsEnabled;
+        public final String notificationVibrate;
+        public final String notificationRingtone;
+        public final boolean notificationLED;
+        public final int notificationLEDColor;
+        public final String fontSize;
+        public final String enterKeyMode;
+        public final boolean showBlockedUsers;
+        public final int idleTime;
+        public final int wakeupTime;
+
+        Settings(Context context, SharedPreferences prefs) {
+            Resources res = context.getResources();
+            sendTyping = prefs.getBoolean("pref_send_typing",
+                res.getBoolean(R.bool.pref_default_send_typing));
+            encryptionEnabled = prefs.getBoolean("pref_encrypt",
+                res.getBoolean(R.bool.pref_default_encrypt));
+
+            int defaultImageResize = res.getInteger(R.integer.pref_default_image_resize);
+            imageCompression = parseInt(prefs.getString("pref_image_resize",
+                null), defaultImageResize);
+
+            mediaAutodownload = prefs.getString("pref_media_autodownload",
+                res.getString(R.string.pref_default_media_autodownload));
+            int defaultThreshold = res.getInteger(R.integer.pref_default_media_autodownload_threshold);
+            mediaAutodownloadThreshold = parseInt(prefs.getString("pref_media_autodownload_threshold",
+                null), defaultThreshold);
+            thumbnailQuota = parseInt(prefs.getString("pref_thumbnail_quota", null),
+                res.getInteger(R.integer.pref_default_thumbnail_quota));
+
+            notificationsEnabled = prefs.getBoolean("pref_enable_notifications",
+                res.getBoolean(R.bool.pref_default_enable_notifications));
+            notificationVibrate = prefs.getString("pref_vibrate",
+                res.getString(R.string.pref_default_vibrate));
+            notificationRingtone = prefs.getString("pref_ringtone",
+                res.getString(R.string.pref_default_ringtone));
+            notificationLED = prefs.getBoolean("pref_enable_notification_led",
+                res.getBoolean(R.bool.pref_default_enable_notification_led));
+            notificationLEDColor = prefs.getInt("pref_notification_led_color",
+                res.getInteger(R.integer.pref_default_notification_led_color));
+
+            fontSize = prefs.getString("pref_font_size",
+                res.getString(R.string.pref_default_font_size));
+
+            String enterKey;
+            try {
+                enterKey = prefs.getString("pref_text_enter",
+                    res.getString(R.string.pref_default_text_enter));
+            }
+            catch (ClassCastException e) {
+                // legacy mode
+                enterKey = prefs.getBoolean("pref_text_enter", false) ?
+                    "newline" : "default";
+            }
+            enterKeyMode = enterKey;
+
+            showBlockedUsers = prefs.getBoolean("pref_show_blocked_users",
+                res.getBoolean(R.bool.pref_default_show_blocked_users));
+            idleTime = parseInt(prefs.getString("pref_idle_time", null),
+                res.getInteger(R.integer.pref_default_idle_time));
+            wakeupTime = parseInt(prefs.getString("pref_wakeup_time", null),
+                res.getInteger(R.integer.pref_default_wakeup_time));
+        }
+
+        static boolean isSettingsKey(String key) {
+            for (String k : KEYS) {
+                if (k.equals(key))
+                    return true;
+            }
+            return false;
+        }
+    }
+
     public static final class RegistrationProgress {
         public String name;
         public String phone;
@@ -30,8 +30,6 @@ import org.kontalk.upload.UploadConnection;
 
 
 public class ProgressInputStreamEntity {
-    private static final int BUFFER_SIZE = 1024 * 8;
-
     private final InputStream mStream;
     private final UploadConnection mConn;
     private final ProgressListener mListener;
@@ -48,14 +46,15 @@ public class ProgressInputStreamEntity {
 
     private void _writeTo(OutputStream outstream) throws IOException {
         InputStream instream = mStream;
+        final byte[] buffer = BufferPool.acquire(BufferPool.SIZE_LARGE);
         try {
-            final byte[] buffer = new byte[BUFFER_SIZE];
             int l;
             while ((l = instream.read(buffer)) != -1) {
                 outstream.write(buffer, 0, l);
             }
         }
         finally {
+            BufferPool.release(buffer);
             if (instream != null) {
                 try {
                     instream.close();
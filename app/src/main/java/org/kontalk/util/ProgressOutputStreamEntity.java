@@ -31,8 +31,6 @@ import org.kontalk.service.DownloadListener;
 
 
 public class ProgressOutputStreamEntity {
-    private static final int BUFFER_SIZE = 10240 * 10;
-
     private final HttpURLConnection mParent;
     private final String mUrl;
     private final File mFile;
@@ -51,14 +49,15 @@ public class ProgressOutputStreamEntity {
 
     private void _writeTo(OutputStream outstream) throws IOException {
         InputStream instream = mParent.getInputStream();
+        final byte[] buffer = BufferPool.acquire(BufferPool.SIZE_LARGE);
         try {
-            final byte[] buffer = new byte[BUFFER_SIZE];
             int l;
             while ((l = instream.read(buffer)) != -1) {
                 outstream.write(buffer, 0, l);
             }
         }
         finally {
+            BufferPool.release(buffer);
             if (instream != null) {
                 try {
                     instream.close();
@@ -0,0 +1,98 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.IOException;
+
+
+/**
+ * Searches the highest encoding quality whose output fits a size budget.
+ * Output size grows with quality, so it's a bisection between the minimum
+ * and the maximum quality, stopping when the bounds are close enough. The
+ * maximum quality is tried first since most images fit at once.
+ * @author Daniele Ricci
+ */
+class QualitySearch {
+
+    /** Encodes something at the given quality. */
+    interface Encoder {
+        /** @return the size of the encoded output */
+        long encode(int quality) throws IOException;
+    }
+
+    private final Encoder mEncoder;
+    private final int mMin;
+    private final int mMax;
+    private final int mPrecision;
+
+    private int mAttempts;
+    private int mLastQuality = -1;
+
+    QualitySearch(Encoder encoder, int min, int max, int precision) {
+        mEncoder = encoder;
+        mMin = min;
+        mMax = max;
+        mPrecision = Math.max(1, precision);
+    }
+
+    /**
+     * Searches the quality for the given budget.
+     * @return the quality, or -1 if not even the minimum quality fits
+     */
+    int search(long budget) throws IOException {
+        if (fits(mMax, budget))
+            return mMax;
+
+        // low bound is assumed to fit until proven otherwise
+        int low = mMin;
+        int high = mMax;
+        boolean lowFits = false;
+        while (high - low > mPrecision) {
+            int quality = (low + high) / 2;
+            if (fits(quality, budget)) {
+                low = quality;
+                lowFits = true;
+            }
+            else {
+                high = quality;
+            }
+        }
+
+        if (!lowFits && !fits(low, budget))
+            return -1;
+        return low;
+    }
+
+    private boolean fits(int quality, long budget) throws IOException {
+        mAttempts++;
+        mLastQuality = quality;
+        return mEncoder.encode(quality) <= budget;
+    }
+
+    /** Number of times the encoder was called. */
+    int getAttempts() {
+        return mAttempts;
+    }
+
+    /** The last quality the encoder was called with, -1 if never called. */
+    int getLastQuality() {
+        return mLastQuality;
+    }
+
+}
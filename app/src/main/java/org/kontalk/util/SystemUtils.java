@@ -33,6 +33,7 @@ import android.content.ActivityNotFoundException;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
@@ -45,11 +46,15 @@ import android.graphics.Point;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.Build;
+import android.os.PowerManager;
 import android.provider.ContactsContract;
 import android.support.annotation.AttrRes;
 import android.support.annotation.ColorRes;
 import android.support.v4.content.ContextCompat;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
 import android.text.style.CharacterStyle;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
@@ -204,6 +209,34 @@ public final class SystemUtils {
         return info != null ? info.getTypeName() : null;
     }
 
+    /**
+     * Returns an identifier for the current network, or null.
+     * Networks of the same type are told apart by the mobile operator and by
+     * the extra info (SSID for Wi-Fi, APN for mobile), which is hashed so we
+     * don't store it around.
+     */
+    public static String getCurrentNetworkIdentity(Context context) {
+        ConnectivityManager connMgr = (ConnectivityManager) context
+            .getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        NetworkInfo info = connMgr.getActiveNetworkInfo();
+        if (info == null)
+            return null;
+
+        StringBuilder id = new StringBuilder(info.getTypeName());
+        if (info.getType() == ConnectivityManager.TYPE_MOBILE) {
+            TelephonyManager tm = (TelephonyManager) context
+                .getSystemService(Context.TELEPHONY_SERVICE);
+            String operator = tm != null ? tm.getNetworkOperator() : null;
+            if (!TextUtils.isEmpty(operator))
+                id.append('_').append(operator);
+        }
+        String extra = info.getExtraInfo();
+        if (!TextUtils.isEmpty(extra))
+            id.append('_').append(Integer.toHexString(extra.hashCode()));
+        return id.toString();
+    }
+
     public static int getCurrentNetworkType(Context context) {
         ConnectivityManager connMgr = (ConnectivityManager) context
             .getSystemService(Context.CONNECTIVITY_SERVICE);
@@ -229,6 +262,23 @@ public final class SystemUtils {
         return false;
     }
 
+    /**
+     * Returns true if the device is charging or not being used (screen off),
+     * i.e. a good moment for heavy maintenance work.
+     */
+    @SuppressWarnings("deprecation")
+    public static boolean isIdleOrCharging(Context context) {
+        // sticky broadcast, no receiver needed
+        Intent battery = context.getApplicationContext().registerReceiver(null,
+            new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0)
+            return true;
+
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        return !(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH ?
+            pm.isInteractive() : pm.isScreenOn());
+    }
+
     public static Bitmap getProfilePhoto(Context context) {
         // profile photo is available only since API level 14
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
@@ -342,14 +392,19 @@ public final class SystemUtils {
 
     /** Instead of importing the whole commons-io :) */
     public static long copy(final InputStream input, final OutputStream output) throws IOException {
-        byte[] buffer = new byte[4096];
-        long count = 0;
-        int n;
-        while (-1 != (n = input.read(buffer))) {
-            output.write(buffer, 0, n);
-            count += n;
+        byte[] buffer = BufferPool.acquire(BufferPool.SIZE_MEDIUM);
+        try {
+            long count = 0;
+            int n;
+            while (-1 != (n = input.read(buffer))) {
+                output.write(buffer, 0, n);
+                count += n;
+            }
+            return count;
+        }
+        finally {
+            BufferPool.release(buffer);
         }
-        return count;
     }
 
     /** Closes the given stream, ignoring any errors. */
@@ -0,0 +1,69 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+
+/**
+ * Estimates the throughput of a link from the transfers made over it, as an
+ * exponentially weighted moving average of the measured transfer rates.
+ * Short transfers are not taken into account since their time is mostly
+ * latency. The estimate is meant to be stored per network.
+ * All values are in bytes per second.
+ * @author Daniele Ricci
+ */
+public class ThroughputEstimator {
+
+    /** Transfers shorter than this are not measured. */
+    static final long MIN_SAMPLE_LENGTH = 64 * 1024;
+    /** Transfers faster than this are not measured (timer resolution). */
+    static final long MIN_SAMPLE_TIME = 100;
+    /** Weight of a new sample in the average. */
+    static final double WEIGHT = 0.3;
+
+    private long mThroughput;
+
+    /**
+     * @param throughput the last estimate, 0 if unknown
+     */
+    public ThroughputEstimator(long throughput) {
+        mThroughput = Math.max(0, throughput);
+    }
+
+    /** Returns the estimated throughput, 0 if unknown. */
+    public long getThroughput() {
+        return mThroughput;
+    }
+
+    /**
+     * Adds a transfer to the estimate.
+     * @param length bytes transferred
+     * @param millis transfer time in milliseconds
+     * @return true if the transfer was used for the estimate
+     */
+    public boolean addSample(long length, long millis) {
+        if (length < MIN_SAMPLE_LENGTH || millis < MIN_SAMPLE_TIME)
+            return false;
+
+        long sample = length * 1000 / millis;
+        mThroughput = mThroughput > 0 ?
+            Math.round(mThroughput * (1 - WEIGHT) + sample * WEIGHT) : sample;
+        return true;
+    }
+
+}
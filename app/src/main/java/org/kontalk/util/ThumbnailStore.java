@@ -0,0 +1,311 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+
+import org.kontalk.Log;
+import org.kontalk.provider.MyMessages.Media;
+
+
+/**
+ * Storage for media thumbnails, kept in the internal cache within a disk
+ * quota. The last modified time of a thumbnail is used as its access time
+ * (it's updated when the thumbnail is loaded), and when the quota is
+ * exceeded the thumbnails not used for the longest time are deleted.
+ * Deleted thumbnails are generated again from the media, if we have it:
+ * previews of media that was never downloaded can't be, so they are deleted
+ * only after all the others.
+ * @author Daniele Ricci
+ */
+public class ThumbnailStore {
+    private static final String TAG = ThumbnailStore.class.getSimpleName();
+
+    static final String DIRECTORY = "thumbnails";
+
+    /** Access times are not updated more often than this, to spare a write every load. */
+    static final long ACCESS_GRANULARITY = 60 * 60 * 1000;
+    /** Trimming goes down to this fraction of the quota, so it doesn't happen at every write. */
+    static final float LOW_WATERMARK = 0.8f;
+
+    private static final Comparator<File> ACCESS_ORDER = new Comparator<File>() {
+        @Override
+        public int compare(File lhs, File rhs) {
+            long l = lhs.lastModified();
+            long r = rhs.lastModified();
+            return l < r ? -1 : (l == r ? 0 : 1);
+        }
+    };
+
+    /** Tells which thumbnails can't be generated again. */
+    public interface PreviewIndex {
+        /** Returns the paths of the thumbnails that can't be generated again. */
+        Set<String> getUniquePreviews();
+    }
+
+    private static ThumbnailStore sInstance;
+
+    private final File mDirectory;
+    private long mQuota;
+    private PreviewIndex mPreviewIndex;
+
+    /** Bytes used, -1 if the directory was not scanned yet. */
+    private long mUsage = -1;
+    private int mCount;
+    private long mEvicted;
+    private boolean mTrimPending;
+
+    ThumbnailStore(File directory, long quota) {
+        mDirectory = directory;
+        mQuota = quota;
+    }
+
+    public static ThumbnailStore getInstance(Context context) {
+        ThumbnailStore store;
+        synchronized (ThumbnailStore.class) {
+            if (sInstance == null) {
+                sInstance = new ThumbnailStore(new File(context.getApplicationContext()
+                    .getCacheDir(), DIRECTORY), Preferences.getThumbnailQuota(context));
+                sInstance.setPreviewIndex(new MediaPreviewIndex(context));
+            }
+            store = sInstance;
+        }
+        // quota changes are applied by the settings screen
+        return store;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /** Returns the file for a thumbnail with the given name. */
+    public File getFile(String filename) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+            Log.w(TAG, "unable to create thumbnail directory");
+        return new File(mDirectory, filename);
+    }
+
+    /** Returns true if the given file is managed by this store. */
+    public boolean contains(File file) {
+        return mDirectory.equals(file.getParentFile());
+    }
+
+    /** A thumbnail was loaded: mark it as recently used. */
+    public void onAccess(File file) {
+        if (!contains(file))
+            return;
+
+        long now = System.currentTimeMillis();
+        if (now - file.lastModified() > ACCESS_GRANULARITY)
+            file.setLastModified(now);
+    }
+
+    /**
+     * A thumbnail was written. If the quota is exceeded, old thumbnails
+     * will be deleted in the background.
+     */
+    public void onWrite(File file) {
+        if (!contains(file))
+            return;
+
+        synchronized (this) {
+            if (mUsage >= 0) {
+                mUsage += file.length();
+                mCount++;
+            }
+            if (mTrimPending || (mUsage >= 0 && mUsage <= mQuota))
+                return;
+            mTrimPending = true;
+        }
+
+        // thumbnails might be written from the main thread
+        boolean queued = BackgroundExecutor.getInstance().tryExecute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    trim();
+                }
+                finally {
+                    synchronized (ThumbnailStore.this) {
+                        mTrimPending = false;
+                    }
+                }
+            }
+        }, BackgroundExecutor.PRIORITY_LOW);
+
+        if (!queued) {
+            // the next write will try again
+            synchronized (this) {
+                mTrimPending = false;
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used thumbnails until usage is within the
+     * quota. Usage is computed again from the directory contents. Thumbnails
+     * that can't be generated again are deleted last.
+     * @return the number of deleted thumbnails
+     */
+    public synchronized int trim() {
+        File[] files = mDirectory.listFiles();
+        if (files == null)
+            files = new File[0];
+
+        long usage = 0;
+        for (File file : files)
+            usage += file.length();
+
+        int count = files.length;
+        int evicted = 0;
+        if (usage > mQuota) {
+            long target = (long) (mQuota * LOW_WATERMARK);
+            List<File> candidates = getEvictionOrder(files);
+            for (int i = 0; i < candidates.size() && usage > target; i++) {
+                File file = candidates.get(i);
+                long length = file.length();
+                if (file.delete()) {
+                    usage -= length;
+                    count--;
+                    evicted++;
+                }
+            }
+            mEvicted += evicted;
+        }
+
+        mUsage = usage;
+        mCount = count;
+        if (evicted > 0)
+            Log.d(TAG, "evicted " + evicted + " thumbnails, " + this);
+        return evicted;
+    }
+
+    private List<File> getEvictionOrder(File[] files) {
+        Set<String> unique = null;
+        if (mPreviewIndex != null) {
+            try {
+                unique = mPreviewIndex.getUniquePreviews();
+            }
+            catch (RuntimeException e) {
+                Log.w(TAG, "unable to read preview index", e);
+            }
+        }
+
+        List<File> regenerable = new ArrayList<>(files.length);
+        List<File> last = new ArrayList<>();
+        for (File file : files) {
+            if (unique != null && unique.contains(file.getPath()))
+                last.add(file);
+            else
+                regenerable.add(file);
+        }
+
+        Collections.sort(regenerable, ACCESS_ORDER);
+        Collections.sort(last, ACCESS_ORDER);
+        regenerable.addAll(last);
+        return regenerable;
+    }
+
+    public synchronized void setPreviewIndex(PreviewIndex index) {
+        mPreviewIndex = index;
+    }
+
+    public synchronized void setQuota(long quota) {
+        mQuota = quota;
+    }
+
+    public synchronized long getQuota() {
+        return mQuota;
+    }
+
+    /** Bytes used by thumbnails. The directory is scanned the first time. */
+    public synchronized long getUsage() {
+        if (mUsage < 0)
+            scan();
+        return mUsage;
+    }
+
+    /** Number of stored thumbnails. The directory is scanned the first time. */
+    public synchronized int getCount() {
+        if (mUsage < 0)
+            scan();
+        return mCount;
+    }
+
+    /** Number of thumbnails deleted to stay within the quota. */
+    public synchronized long getEvictedCount() {
+        return mEvicted;
+    }
+
+    private void scan() {
+        File[] files = mDirectory.listFiles();
+        long usage = 0;
+        int count = 0;
+        if (files != null) {
+            for (File file : files) {
+                usage += file.length();
+                count++;
+            }
+        }
+        mUsage = usage;
+        mCount = count;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ThumbnailStore[usage=" + mUsage + ", count=" + mCount +
+            ", quota=" + mQuota + ", evicted=" + mEvicted + "]";
+    }
+
+    /** Reads unique previews from the media index. */
+    private static final class MediaPreviewIndex implements PreviewIndex {
+        private final ContentResolver mResolver;
+
+        MediaPreviewIndex(Context context) {
+            mResolver = context.getApplicationContext().getContentResolver();
+        }
+
+        @Override
+        public Set<String> getUniquePreviews() {
+            Set<String> paths = new HashSet<>();
+            Cursor c = mResolver.query(Media.UNIQUE_PREVIEWS_URI, null, null, null, null);
+            if (c != null) {
+                try {
+                    while (c.moveToNext())
+                        paths.add(c.getString(0));
+                }
+                finally {
+                    c.close();
+                }
+            }
+            return paths;
+        }
+    }
+
+}
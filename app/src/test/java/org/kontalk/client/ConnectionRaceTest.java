@@ -0,0 +1,266 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Races connections to stand-in servers listening on localhost.
+ */
+public class ConnectionRaceTest {
+
+    private static final String NETWORK = "race.kontalk.test";
+
+    private final List<ServerSocket> mServers = new ArrayList<>();
+    private final List<SocketAttempt> mAttempts = new ArrayList<>();
+
+    /** Connects and waits for the server greeting (a single byte). */
+    private static class SocketAttempt implements ConnectionRace.Attempt<Socket> {
+        final EndpointServer server;
+        private Socket mSocket;
+        volatile boolean canceled;
+
+        SocketAttempt(EndpointServer server) {
+            this.server = server;
+        }
+
+        @Override
+        public Socket connect() throws Exception {
+            Socket socket;
+            synchronized (this) {
+                if (canceled)
+                    throw new IOException("canceled");
+                socket = mSocket = new Socket();
+            }
+            socket.connect(new InetSocketAddress(server.getHost(), server.getPort()), 5000);
+            socket.setSoTimeout(10000);
+            if (socket.getInputStream().read() < 0)
+                throw new IOException("connection closed by server");
+            return socket;
+        }
+
+        @Override
+        public synchronized void cancel() {
+            canceled = true;
+            try {
+                if (mSocket != null)
+                    mSocket.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    private final ConnectionRace.AttemptFactory<Socket> mFactory = new ConnectionRace.AttemptFactory<Socket>() {
+        @Override
+        public ConnectionRace.Attempt<Socket> create(EndpointServer server) {
+            SocketAttempt attempt = new SocketAttempt(server);
+            synchronized (mAttempts) {
+                mAttempts.add(attempt);
+            }
+            return attempt;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mServers.clear();
+        mAttempts.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (ServerSocket server : mServers)
+            server.close();
+    }
+
+    /** A server greeting clients after the given delay (never if negative). */
+    private EndpointServer server(final long delay) throws IOException {
+        final ServerSocket socket = new ServerSocket(0, 10, null);
+        mServers.add(socket);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket client = socket.accept();
+                        if (delay >= 0) {
+                            Thread.sleep(delay);
+                            client.getOutputStream().write(1);
+                        }
+                    }
+                }
+                catch (Exception e) {
+                    // server closed
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return new EndpointServer(NETWORK, "127.0.0.1", socket.getLocalPort());
+    }
+
+    /** A server that refuses connections. */
+    private EndpointServer refused() throws IOException {
+        ServerSocket socket = new ServerSocket(0, 10, null);
+        int port = socket.getLocalPort();
+        socket.close();
+        return new EndpointServer(NETWORK, "127.0.0.1", port);
+    }
+
+    private SocketAttempt getAttempt(EndpointServer server) {
+        synchronized (mAttempts) {
+            for (SocketAttempt attempt : mAttempts) {
+                if (attempt.server.equals(server))
+                    return attempt;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testSingle() throws Exception {
+        EndpointServer server = server(0);
+        ConnectionRace<Socket> race = new ConnectionRace<>(Arrays.asList(server), mFactory, 1000);
+        Socket socket = race.run();
+        assertNotNull(socket);
+        socket.close();
+
+        List<ConnectionRace.Report> reports = race.getReports();
+        assertEquals(1, reports.size());
+        assertEquals(ConnectionRace.Outcome.WON, reports.get(0).outcome);
+        assertEquals(server, reports.get(0).server);
+    }
+
+    @Test
+    public void testStagger() throws Exception {
+        EndpointServer blackhole = server(-1);
+        EndpointServer good = server(0);
+        ConnectionRace<Socket> race = new ConnectionRace<>(Arrays.asList(blackhole, good), mFactory, 200);
+
+        long start = System.currentTimeMillis();
+        Socket socket = race.run();
+        long elapsed = System.currentTimeMillis() - start;
+        socket.close();
+
+        // second server was started after the stagger delay, not after a timeout
+        assertTrue(elapsed >= 200);
+        assertTrue(elapsed < 3000);
+
+        List<ConnectionRace.Report> reports = race.getReports();
+        assertEquals(2, reports.size());
+        assertEquals(ConnectionRace.Outcome.CANCELED, reports.get(0).outcome);
+        assertEquals(ConnectionRace.Outcome.WON, reports.get(1).outcome);
+        assertTrue(reports.get(1).start >= 200);
+        // losing socket was closed
+        assertTrue(getAttempt(blackhole).canceled);
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        EndpointServer down = refused();
+        EndpointServer good = server(0);
+        // the stagger is long, a failure must start the next attempt at once
+        ConnectionRace<Socket> race = new ConnectionRace<>(Arrays.asList(down, good), mFactory, 10000);
+
+        long start = System.currentTimeMillis();
+        Socket socket = race.run();
+        long elapsed = System.currentTimeMillis() - start;
+        socket.close();
+        assertTrue(elapsed < 3000);
+
+        List<ConnectionRace.Report> reports = race.getReports();
+        assertEquals(ConnectionRace.Outcome.FAILED, reports.get(0).outcome);
+        assertNotNull(reports.get(0).error);
+        assertEquals(ConnectionRace.Outcome.WON, reports.get(1).outcome);
+    }
+
+    @Test
+    public void testFasterWins() throws Exception {
+        EndpointServer slow = server(1500);
+        EndpointServer fast = server(0);
+        ConnectionRace<Socket> race = new ConnectionRace<>(Arrays.asList(slow, fast), mFactory, 100);
+
+        Socket socket = race.run();
+        assertEquals(fast.getPort(), socket.getPort());
+        socket.close();
+
+        List<ConnectionRace.Report> reports = race.getReports();
+        assertEquals(ConnectionRace.Outcome.CANCELED, reports.get(0).outcome);
+        assertEquals(ConnectionRace.Outcome.WON, reports.get(1).outcome);
+        assertTrue(getAttempt(slow).canceled);
+    }
+
+    @Test
+    public void testAllFailed() throws Exception {
+        ConnectionRace<Socket> race = new ConnectionRace<>(Arrays.asList(refused(), refused()), mFactory, 1000);
+        try {
+            race.run();
+            fail("race should have failed");
+        }
+        catch (IOException expected) {
+        }
+
+        List<ConnectionRace.Report> reports = race.getReports();
+        assertEquals(2, reports.size());
+        for (ConnectionRace.Report report : reports)
+            assertEquals(ConnectionRace.Outcome.FAILED, report.outcome);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        EndpointServer blackhole = server(-1);
+        final ConnectionRace<Socket> race = new ConnectionRace<>(Arrays.asList(blackhole), mFactory, 1000);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException ignored) {
+                }
+                race.cancel();
+            }
+        }).start();
+
+        try {
+            race.run();
+            fail("race should have been canceled");
+        }
+        catch (InterruptedIOException expected) {
+        }
+        assertEquals(ConnectionRace.Outcome.CANCELED, race.getReports().get(0).outcome);
+        assertTrue(getAttempt(blackhole).canceled);
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class EndpointStatsTest {
+
+    @Test
+    public void testScore() throws Exception {
+        EndpointStats stats = new EndpointStats();
+        assertEquals(EndpointStats.UNKNOWN_TIME, stats.getScore(0));
+
+        stats.onSuccess(500);
+        assertEquals(500, stats.getScore(0));
+        stats.onSuccess(1500);
+        assertEquals(800, stats.getScore(0));
+        assertEquals(2, stats.getSuccesses());
+    }
+
+    @Test
+    public void testFailures() throws Exception {
+        long now = 1000000;
+        EndpointStats stats = new EndpointStats();
+        stats.onSuccess(500);
+        stats.onFailure(now);
+        stats.onFailure(now);
+        assertEquals(2000, stats.getScore(now));
+
+        // failures are forgotten after a while
+        assertEquals(500, stats.getScore(now + EndpointStats.FAILURE_EXPIRY));
+
+        // a success resets the failures
+        stats.onSuccess(500);
+        assertEquals(500, stats.getScore(now));
+
+        for (int i = 0; i < 100; i++)
+            stats.onFailure(now);
+        assertEquals(500 << EndpointStats.MAX_FAILURES, stats.getScore(now));
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        EndpointStats stats = new EndpointStats();
+        stats.onSuccess(700);
+        stats.onFailure(1234);
+
+        EndpointStats parsed = EndpointStats.parse(stats.toString());
+        assertEquals(700, parsed.getTime());
+        assertEquals(1, parsed.getSuccesses());
+        assertEquals(1, parsed.getFailures());
+        assertEquals(1234, parsed.getLastFailure());
+
+        assertEquals(0, EndpointStats.parse(null).getTime());
+        assertEquals(0, EndpointStats.parse("garbage").getTime());
+        assertEquals(0, EndpointStats.parse("1,2,x,4").getTime());
+    }
+
+    @Test
+    public void testRanking() throws Exception {
+        EndpointServer fast = new EndpointServer("fast.kontalk.test");
+        EndpointServer slow = new EndpointServer("slow.kontalk.test");
+        EndpointServer unknown = new EndpointServer("unknown.kontalk.test");
+        EndpointServer failing = new EndpointServer("failing.kontalk.test");
+
+        final Map<EndpointServer, EndpointStats> stats = new HashMap<>();
+        stats.put(fast, new EndpointStats(200, 10, 0, 0));
+        stats.put(slow, new EndpointStats(5000, 10, 0, 0));
+        stats.put(failing, new EndpointStats(100, 10, 3, System.currentTimeMillis()));
+
+        ServerList list = new ServerList(new Date());
+        list.add(slow);
+        list.add(failing);
+        list.add(unknown);
+        list.add(fast);
+
+        ServerList.ServerListProvider provider = new ServerList.ServerListProvider(list,
+            new ServerList.Ranking() {
+                @Override
+                public long getScore(EndpointServer server) {
+                    EndpointStats s = stats.get(server);
+                    return (s != null ? s : new EndpointStats()).getScore(System.currentTimeMillis());
+                }
+            });
+
+        assertEquals(fast, provider.next());
+        assertEquals(failing, provider.next());
+        assertEquals(unknown, provider.next());
+        assertEquals(slow, provider.next());
+        assertNull(provider.next());
+
+        // ranked again on reset
+        stats.put(unknown, new EndpointStats(50, 1, 0, 0));
+        provider.reset();
+        assertEquals(unknown, provider.next());
+        assertEquals(fast, provider.next());
+    }
+
+    @Test
+    public void testProviderCopy() throws Exception {
+        ServerList list = new ServerList(new Date());
+        list.add(new EndpointServer("a.kontalk.test"));
+        list.add(new EndpointServer("b.kontalk.test"));
+        list.add(new EndpointServer("c.kontalk.test"));
+
+        ServerList.ServerListProvider provider = new ServerList.ServerListProvider(list);
+        EndpointServer first = provider.next();
+
+        // servers taken from the copy are still available from the original
+        EndpointServer.EndpointServerProvider copy = provider.copy();
+        EndpointServer second = copy.next();
+        EndpointServer third = copy.next();
+        assertNotEquals(first, second);
+        assertNotEquals(first, third);
+        assertNull(copy.next());
+
+        EndpointServer next = provider.next();
+        assertTrue(next.equals(second) || next.equals(third));
+        assertNotNull(provider.next());
+        assertNull(provider.next());
+
+        // resetting the copy does not affect the original
+        copy.reset();
+        assertNull(provider.next());
+        assertNotNull(copy.next());
+    }
+
+}
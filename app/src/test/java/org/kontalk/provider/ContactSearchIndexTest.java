@@ -0,0 +1,84 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ContactSearchIndexTest {
+
+    @Test
+    public void testNameKeys() throws Exception {
+        Set<String> keys = ContactSearchIndex.getNameKeys("José  María-López");
+        assertEquals(Arrays.asList("jose", "maria", "lopez", "jml", "josemarialopez"),
+            new ArrayList<>(keys));
+
+        keys = ContactSearchIndex.getNameKeys("Alice");
+        assertEquals(Arrays.asList("alice"), new ArrayList<>(keys));
+
+        // CJK names match from every character
+        keys = ContactSearchIndex.getNameKeys("王小明");
+        assertTrue(keys.contains("王小明"));
+        assertTrue(keys.contains("小明"));
+        assertTrue(keys.contains("明"));
+
+        assertTrue(ContactSearchIndex.getNameKeys(null).isEmpty());
+    }
+
+    @Test
+    public void testNumberKey() throws Exception {
+        assertEquals("4321555193", ContactSearchIndex.getNumberKey("+39 155-51234"));
+        assertNull(ContactSearchIndex.getNumberKey("+"));
+        assertNull(ContactSearchIndex.getNumberKey(null));
+    }
+
+    @Test
+    public void testSelection() throws Exception {
+        List<String> args = new ArrayList<>();
+        assertNull(ContactSearchIndex.getSelection("  - ", args));
+        assertTrue(args.isEmpty());
+
+        String selection = ContactSearchIndex.getSelection("Jo", args);
+        assertEquals(Arrays.asList("jo", "jp"), args);
+        assertEquals(2, count(selection, '?'));
+
+        // numbers can also match phone numbers by suffix
+        args.clear();
+        selection = ContactSearchIndex.getSelection("jo 1234", args);
+        assertEquals(Arrays.asList("jo", "jp", "1234", "1235", "4321", "4322"), args);
+        assertEquals(6, count(selection, '?'));
+    }
+
+    private static int count(String s, char c) {
+        int count = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == c)
+                count++;
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class FulltextScorerTest {
+
+    // one phrase, one column, 1000 rows, average length 10
+    private static int[] matchinfo(int length, int hits, int docsWithHits) {
+        return new int[] { 1, 1, 1000, 10, length, hits, hits * 2, docsWithHits };
+    }
+
+    @Test
+    public void testScore() throws Exception {
+        double noHits = FulltextScorer.score(matchinfo(10, 0, 5));
+        assertEquals(0, noHits, 0);
+
+        double one = FulltextScorer.score(matchinfo(10, 1, 5));
+        double two = FulltextScorer.score(matchinfo(10, 2, 5));
+        assertTrue(one > 0);
+        assertTrue(two > one);
+
+        // shorter text with the same hits is more relevant
+        double shorter = FulltextScorer.score(matchinfo(5, 1, 5));
+        assertTrue(shorter > one);
+
+        // rare terms are more relevant
+        double common = FulltextScorer.score(matchinfo(10, 1, 500));
+        assertTrue(one > common);
+    }
+
+    @Test
+    public void testPage() throws Exception {
+        long[] ids = { 50, 40, 30, 20, 10 };
+        double[] scores = { 1, 3, 2, 3, 0.5 };
+
+        assertArrayEquals(new long[] { 40, 20, 30, 50, 10 },
+            FulltextScorer.page(ids, scores, 0, 0));
+        assertArrayEquals(new long[] { 40, 20 },
+            FulltextScorer.page(ids, scores, 0, 2));
+        assertArrayEquals(new long[] { 30, 50 },
+            FulltextScorer.page(ids, scores, 2, 2));
+        assertArrayEquals(new long[] { 10 },
+            FulltextScorer.page(ids, scores, 4, 2));
+        assertArrayEquals(new long[0],
+            FulltextScorer.page(ids, scores, 10, 2));
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.kontalk.service.msgcenter.PingSimulator.HOUR;
+import static org.kontalk.service.msgcenter.PingSimulator.MAX_INTERVAL;
+import static org.kontalk.service.msgcenter.PingSimulator.MINUTE;
+
+
+public class AdaptivePingIntervalTest {
+
+    @Test
+    public void testSearch() throws Exception {
+        AdaptivePingInterval search = new AdaptivePingInterval(90000, 1800000, 0, 0);
+        assertEquals(90000, search.getInterval());
+        // no failures yet: double
+        assertEquals(180000, search.onSuccess());
+        assertEquals(360000, search.onSuccess());
+        // failure: back to the safe value, then try halfway
+        assertEquals(180000, search.onFailure());
+        assertEquals(360000, search.getUpper());
+        assertEquals(270000, search.onSuccess());
+        assertEquals(180000, search.getLower());
+        assertFalse(search.isConverged());
+
+        // known bounds are restored
+        search = new AdaptivePingInterval(90000, 1800000, 270000, 290000);
+        assertTrue(search.isConverged());
+        assertEquals(270000, search.onSuccess());
+
+        // a known good interval failed: search again below it
+        assertEquals(135000, search.onFailure());
+        assertEquals(270000, search.getUpper());
+    }
+
+    @Test
+    public void testNat() throws Exception {
+        long[] timeouts = { 2 * MINUTE, 5 * MINUTE, 10 * MINUTE, 28 * MINUTE };
+        for (long timeout : timeouts) {
+            PingSimulator.Result result = new PingSimulator(timeout).run(24 * HOUR, 0, 0);
+            String message = "NAT timeout " + (timeout / MINUTE) + " min: " + result;
+
+            assertTrue(message, result.convergedAt >= 0 && result.convergedAt < 4 * HOUR);
+            assertTrue(message, result.lower <= timeout);
+            assertTrue(message, result.lower > timeout - AdaptivePingInterval.PRECISION);
+            // a handful of failed probes, plus one probe every few hours
+            assertTrue(message, result.disconnects <= 10);
+            // close to one wakeup per NAT timeout, search included
+            assertTrue(message, result.getWakeupsPerHour() < 1.25 * HOUR / timeout);
+        }
+    }
+
+    @Test
+    public void testNoNat() throws Exception {
+        PingSimulator.Result result = new PingSimulator(0).run(24 * HOUR, 0, 0);
+        assertEquals(0, result.disconnects);
+        assertTrue(result.convergedAt >= 0 && result.convergedAt < 2 * HOUR);
+        assertEquals(MAX_INTERVAL, result.lower);
+        assertTrue(result.getWakeupsPerHour() < 2.5);
+    }
+
+    /** Stored bounds for a known network skip the search. */
+    @Test
+    public void testKnownNetwork() throws Exception {
+        PingSimulator nat = new PingSimulator(5 * MINUTE);
+        PingSimulator.Result first = nat.run(24 * HOUR, 0, 0);
+        PingSimulator.Result known = nat.run(6 * HOUR, first.lower, first.upper);
+        assertEquals(0, known.disconnects);
+        assertEquals(first.lower, known.lower);
+        // converged from the start
+        assertTrue(known.convergedAt >= 0 && known.convergedAt < first.convergedAt);
+    }
+
+    /** The NAT timeout gets shorter (e.g. the router was replaced). */
+    @Test
+    public void testNatChange() throws Exception {
+        PingSimulator.Result result = new PingSimulator(20 * MINUTE)
+            .changeAt(6 * HOUR, 4 * MINUTE)
+            .run(10 * HOUR, 0, 0);
+        assertTrue(result.lower <= 4 * MINUTE);
+        assertTrue(result.lower > 4 * MINUTE - AdaptivePingInterval.PRECISION);
+        // the search starts over at the first failure
+        assertTrue(result.lastDisconnect < 8 * HOUR);
+        assertTrue(result.disconnects <= 10);
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.TreeMap;
+
+
+/**
+ * Deterministic simulation of the ping interval search against a NAT that
+ * drops connections idle for longer than its timeout. Time is simulated, so
+ * days of pings run in a few milliseconds.
+ * @author Daniele Ricci
+ */
+class PingSimulator {
+
+    static final long MINUTE = 60 * 1000;
+    static final long HOUR = 60 * MINUTE;
+
+    static final long MIN_INTERVAL = 90 * 1000;
+    static final long MAX_INTERVAL = 30 * MINUTE;
+
+    /** NAT timeouts by simulated time. */
+    private final TreeMap<Long, Long> mNatTimeouts = new TreeMap<>();
+
+    /** A NAT with a fixed timeout, 0 for no NAT. */
+    PingSimulator(long natTimeout) {
+        mNatTimeouts.put(0L, natTimeout);
+    }
+
+    /** Changes the NAT timeout at the given time (e.g. a router was replaced). */
+    PingSimulator changeAt(long time, long natTimeout) {
+        mNatTimeouts.put(time, natTimeout);
+        return this;
+    }
+
+    long getNatTimeout(long time) {
+        return mNatTimeouts.floorEntry(time).getValue();
+    }
+
+    /** Runs the search for the given simulated time, starting with the given bounds. */
+    Result run(long duration, long lower, long upper) {
+        AdaptivePingInterval search = new AdaptivePingInterval(MIN_INTERVAL, MAX_INTERVAL, lower, upper);
+        Result result = new Result();
+
+        long now = 0;
+        long interval = search.getInterval();
+        while (now + interval <= duration) {
+            long natTimeout = getNatTimeout(now);
+            now += interval;
+            result.wakeups++;
+
+            if (natTimeout > 0 && interval > natTimeout) {
+                // the NAT dropped the connection: ping times out and we reconnect
+                result.disconnects++;
+                result.lastDisconnect = now;
+                interval = search.onFailure();
+            }
+            else {
+                interval = search.onSuccess();
+            }
+
+            if (result.convergedAt < 0 && search.isConverged())
+                result.convergedAt = now;
+        }
+
+        result.duration = duration;
+        result.lower = search.getLower();
+        result.upper = search.getUpper();
+        return result;
+    }
+
+    static class Result {
+        long duration;
+        int wakeups;
+        int disconnects;
+        long lastDisconnect = -1;
+        /** Time the search first converged, -1 if it never did. */
+        long convergedAt = -1;
+        long lower;
+        long upper;
+
+        double getWakeupsPerHour() {
+            return wakeups * (double) HOUR / duration;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.2f wakeups/hour, %d disconnects, converged at %d min " +
+                    "to %d s (upper bound %d s)", getWakeupsPerHour(), disconnects,
+                convergedAt / MINUTE, lower / 1000, upper / 1000);
+        }
+    }
+
+}
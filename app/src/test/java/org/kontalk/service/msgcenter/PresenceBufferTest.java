@@ -0,0 +1,118 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.List;
+
+import org.jivesoftware.smack.packet.Presence;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PresenceBufferTest {
+
+    /** Builds a presence like Smack does, with a new stanza ID unless one is given. */
+    private static Presence presence(String from, Presence.Type type, String id) {
+        Presence p = new Presence(type);
+        p.setFrom(from);
+        if (id != null)
+            p.setStanzaId(id);
+        assertNotNull(p.getStanzaId());
+        return p;
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        PresenceBuffer buffer = new PresenceBuffer();
+        buffer.expect("probe1");
+
+        assertTrue(buffer.add(presence("alice@example.com/phone", Presence.Type.available, null)));
+        assertFalse(buffer.add(presence("alice@example.com/phone", Presence.Type.unavailable, null)));
+        // different resource
+        assertFalse(buffer.add(presence("alice@example.com/tablet", Presence.Type.available, null)));
+        // replies to our requests are kept apart
+        assertFalse(buffer.add(presence("bob@example.com/phone", Presence.Type.available, "probe1")));
+        assertFalse(buffer.add(presence("bob@example.com/phone", Presence.Type.available, null)));
+
+        List<Presence> batch = buffer.drain();
+        assertEquals(4, batch.size());
+        // latest presence wins
+        assertEquals(Presence.Type.unavailable, batch.get(0).getType());
+        assertEquals("alice@example.com/tablet", batch.get(1).getFrom());
+        assertEquals("probe1", batch.get(2).getStanzaId());
+
+        assertEquals(0, buffer.size());
+        assertTrue(buffer.add(presence("alice@example.com/phone", Presence.Type.available, null)));
+        assertEquals(6, buffer.getReceivedCount());
+        assertEquals(4, buffer.getProcessedCount());
+    }
+
+    @Test
+    public void testUnexpectedId() throws Exception {
+        PresenceBuffer buffer = new PresenceBuffer();
+
+        // IDs of presences nobody is waiting for don't matter
+        buffer.add(presence("alice@example.com/phone", Presence.Type.available, "id1"));
+        buffer.add(presence("alice@example.com/phone", Presence.Type.unavailable, "id2"));
+        assertFalse(buffer.isExpected("id1"));
+        assertEquals(1, buffer.size());
+    }
+
+    @Test
+    public void testExpectedLimit() throws Exception {
+        PresenceBuffer buffer = new PresenceBuffer();
+        for (int i = 0; i <= PresenceBuffer.MAX_EXPECTED; i++)
+            buffer.expect("id" + i);
+
+        // the oldest request is forgotten
+        assertFalse(buffer.isExpected("id0"));
+        assertTrue(buffer.isExpected("id1"));
+        assertTrue(buffer.isExpected("id" + PresenceBuffer.MAX_EXPECTED));
+        assertFalse(buffer.isExpected(null));
+    }
+
+    /** Replays a presence storm like the one after login with a big roster. */
+    @Test
+    public void testStorm() throws Exception {
+        final int users = 1000;
+        final int rounds = 5;
+        PresenceBuffer buffer = new PresenceBuffer();
+
+        // every user flaps a few times within the same window
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < users; i++) {
+                buffer.add(presence("user" + i + "@example.com/res",
+                    (r % 2) == 0 ? Presence.Type.available : Presence.Type.unavailable, null));
+            }
+        }
+        List<Presence> batch = buffer.drain();
+
+        // only the last presence of every user is left
+        assertEquals(users, batch.size());
+        for (Presence p : batch)
+            assertEquals(Presence.Type.available, p.getType());
+
+        assertEquals(users * rounds, buffer.getReceivedCount());
+        assertEquals(users, buffer.getProcessedCount());
+        // one presence processed for every round of flapping
+        assertEquals(rounds, (double) buffer.getReceivedCount() / buffer.getProcessedCount(), 0);
+    }
+
+}
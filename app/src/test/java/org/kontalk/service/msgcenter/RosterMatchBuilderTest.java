@@ -0,0 +1,76 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import org.kontalk.client.RosterMatch;
+
+import static org.junit.Assert.*;
+
+
+public class RosterMatchBuilderTest {
+
+    private static String jid(int index) {
+        // same length as a hashed JID
+        return String.format("%040x@beta.kontalk.net", index);
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        RosterMatchBuilder builder = new RosterMatchBuilder("probe@beta.kontalk.net", "req", 1024);
+        List<RosterMatch> requests = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++) {
+            RosterMatch iq = builder.add(jid(i));
+            if (iq != null)
+                requests.add(iq);
+        }
+        RosterMatch last = builder.finish();
+        assertNotNull(last);
+        requests.add(last);
+        assertNull(builder.finish());
+
+        // 10 items of 73 bytes fit in 1024 bytes with the request overhead
+        assertEquals(10, requests.size());
+        assertEquals(10, builder.getParts());
+
+        int count = 0;
+        for (int i = 0; i < requests.size(); i++) {
+            RosterMatch iq = requests.get(i);
+            assertEquals("req-" + i, iq.getStanzaId());
+            assertEquals("probe@beta.kontalk.net", iq.getTo());
+            assertEquals(10, iq.getItems().size());
+            // items are kept in order
+            assertEquals(jid(count), iq.getItems().get(0));
+            count += iq.getItems().size();
+        }
+        assertEquals(100, count);
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        RosterMatchBuilder builder = new RosterMatchBuilder("probe@beta.kontalk.net", "req", 1024);
+        assertNull(builder.finish());
+        assertEquals(0, builder.getParts());
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class UnreadConversationsTest {
+
+    @Test
+    public void testConversations() throws Exception {
+        UnreadConversations unread = new UnreadConversations();
+        assertFalse(unread.isLoaded());
+
+        unread.add(1, 10, "alice@example.com", null, null, "hello");
+        unread.add(2, 20, "bob@example.com", "group@example.com", "Group", "hi all");
+        unread.add(3, 10, "alice@example.com", null, null, "are you there?");
+        unread.add(4, 20, "carol@example.com", "group@example.com", "Group", "hey");
+        assertEquals(4, unread.getMaxId());
+
+        List<UnreadConversations.Entry> entries = unread.getEntries(null);
+        assertEquals(3, entries.size());
+        assertEquals(4, UnreadConversations.getUnreadCount(entries));
+        // order of first unread message
+        assertEquals("alice@example.com", entries.get(0).peer);
+        assertEquals("bob@example.com", entries.get(1).peer);
+        assertEquals("hello\nare you there?", entries.get(0).getAllContent());
+        assertEquals("are you there?", entries.get(0).getLastContent());
+
+        // paused conversations are left out
+        assertEquals(1, unread.getEntries("group@example.com").size());
+        assertEquals(2, unread.getEntries("ALICE@example.com").size());
+
+        // group thread was read
+        assertTrue(unread.removeThread(20));
+        assertFalse(unread.removeThread(20));
+        assertEquals(1, unread.getEntries(null).size());
+
+        // all old: the model is empty but still knows the last message
+        unread.clear();
+        assertTrue(unread.getEntries(null).isEmpty());
+        assertEquals(4, unread.getMaxId());
+
+        unread.reset();
+        assertEquals(0, unread.getMaxId());
+    }
+
+    @Test
+    public void testMaxLines() throws Exception {
+        UnreadConversations unread = new UnreadConversations();
+        int count = UnreadConversations.MAX_LINES + 5;
+        for (int i = 1; i <= count; i++)
+            unread.add(i, 1, "alice@example.com", null, null, "message " + i);
+
+        UnreadConversations.Entry entry = unread.getEntries(null).get(0);
+        assertEquals(count, entry.count);
+        assertEquals(UnreadConversations.MAX_LINES, entry.lines.size());
+        assertEquals("message " + count, entry.getLastContent());
+        assertEquals(1, entry.firstId);
+    }
+
+    /** Adding one message only touches its conversation, which keeps a bounded number of lines. */
+    @Test
+    public void testIncremental() throws Exception {
+        final int threads = 100;
+        final int messages = 2000;
+        UnreadConversations unread = new UnreadConversations();
+
+        for (int i = 1; i <= messages; i++)
+            unread.add(i, i % threads, "user" + (i % threads) + "@example.com", null, null, "message " + i);
+
+        unread.add(messages + 1, 1, "user1@example.com", null, null, "one more");
+        List<UnreadConversations.Entry> entries = unread.getEntries(null);
+
+        assertEquals(threads, entries.size());
+        assertEquals(messages + 1, UnreadConversations.getUnreadCount(entries));
+        for (UnreadConversations.Entry entry : entries) {
+            assertTrue(entry.lines.size() <= UnreadConversations.MAX_LINES);
+            if (entry.threadId == 1) {
+                assertEquals(messages / threads + 1, entry.count);
+                assertEquals("one more", entry.getLastContent());
+            }
+            else {
+                assertEquals(messages / threads, entry.count);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class BackgroundExecutorTest {
+
+    private static Runnable record(final List<String> log, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        BackgroundExecutor executor = new BackgroundExecutor("test", 1, 10);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+        // keep the only thread busy while queueing
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocker.await();
+                }
+                catch (InterruptedException ignored) {
+                }
+            }
+        });
+        // wait for the blocking task to be taken from the queue
+        while (executor.getQueueSize() > 0)
+            Thread.sleep(10);
+
+        executor.execute(record(log, "low1"), BackgroundExecutor.PRIORITY_LOW);
+        executor.execute(record(log, "normal"), BackgroundExecutor.PRIORITY_NORMAL);
+        executor.execute(record(log, "low2"), BackgroundExecutor.PRIORITY_LOW);
+        executor.execute(record(log, "high"), BackgroundExecutor.PRIORITY_HIGH);
+        assertEquals(4, executor.getQueueSize());
+
+        blocker.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("high", "normal", "low1", "low2"), log);
+        assertEquals(5, executor.getCompletedCount());
+        assertEquals(4, executor.getMaxQueueSize());
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        BackgroundExecutor executor = new BackgroundExecutor("test", 1, 2);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocker.await();
+                }
+                catch (InterruptedException ignored) {
+                }
+            }
+        });
+        while (executor.getQueueSize() > 0)
+            Thread.sleep(10);
+
+        executor.execute(record(log, "queued1"));
+        executor.execute(record(log, "queued2"));
+        // queue is full: this runs right away on this thread
+        executor.execute(record(log, "caller"));
+        assertEquals(Collections.singletonList("caller"), log);
+        assertEquals(1, executor.getCallerRunsCount());
+
+        blocker.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("caller", "queued1", "queued2"), log);
+        assertEquals(4, executor.getSubmittedCount());
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        BackgroundExecutor executor = new BackgroundExecutor("test", 1, 1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocker.await();
+                }
+                catch (InterruptedException ignored) {
+                }
+            }
+        });
+        while (executor.getQueueSize() > 0)
+            Thread.sleep(10);
+
+        assertTrue(executor.tryExecute(record(log, "queued"), BackgroundExecutor.PRIORITY_HIGH));
+        // queue is full: dropped, never run by this thread
+        assertFalse(executor.tryExecute(record(log, "dropped"), BackgroundExecutor.PRIORITY_HIGH));
+        assertTrue(log.isEmpty());
+        assertEquals(1, executor.getDiscardedCount());
+        assertEquals(0, executor.getCallerRunsCount());
+
+        blocker.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(Collections.singletonList("queued"), log);
+        assertEquals(2, executor.getCompletedCount());
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class BufferPoolTest {
+
+    @Test
+    public void testSizes() throws Exception {
+        assertEquals(BufferPool.SIZE_SMALL, BufferPool.acquire(1).length);
+        assertEquals(BufferPool.SIZE_SMALL, BufferPool.acquire(BufferPool.SIZE_SMALL).length);
+        assertEquals(BufferPool.SIZE_MEDIUM, BufferPool.acquire(1000).length);
+        assertEquals(BufferPool.SIZE_LARGE, BufferPool.acquire(BufferPool.SIZE_MEDIUM + 1).length);
+        // too big, not pooled
+        assertEquals(100000, BufferPool.acquire(100000).length);
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        byte[] buf = BufferPool.acquire(BufferPool.SIZE_MEDIUM);
+        buf[0] = 42;
+        BufferPool.release(buf);
+
+        long hits = BufferPool.getHits();
+        byte[] again = BufferPool.acquire(BufferPool.SIZE_MEDIUM);
+        assertSame(buf, again);
+        assertEquals(hits + 1, BufferPool.getHits());
+        // released buffers are cleared
+        assertEquals(0, again[0]);
+        BufferPool.release(again);
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+        BufferPool.release(null);
+
+        // buffers not from the pool are not kept
+        byte[] foreign = new byte[1000];
+        BufferPool.release(foreign);
+        assertNotSame(foreign, BufferPool.acquire(1000));
+
+        long misses = BufferPool.getMisses();
+        long allocated = BufferPool.getAllocatedBytes();
+        BufferPool.acquire(100000);
+        assertEquals(misses + 1, BufferPool.getMisses());
+        assertEquals(allocated + 100000, BufferPool.getAllocatedBytes());
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ImageEncoderTest {
+
+    @Test
+    public void testSampleSize() throws Exception {
+        // long side never goes below the target size
+        assertEquals(2, ImageEncoder.getSampleSize(4000, 3000, 1024));
+        assertEquals(2, ImageEncoder.getSampleSize(3000, 4000, 1024));
+        assertEquals(4, ImageEncoder.getSampleSize(4096, 3072, 1024));
+        assertEquals(1, ImageEncoder.getSampleSize(2047, 2047, 1024));
+        assertEquals(2, ImageEncoder.getSampleSize(2048, 2048, 1024));
+    }
+
+    @Test
+    public void testSampleSizeSmall() throws Exception {
+        assertEquals(1, ImageEncoder.getSampleSize(800, 600, 1024));
+        assertEquals(1, ImageEncoder.getSampleSize(1024, 768, 1024));
+    }
+
+    @Test
+    public void testSampleSizePanorama() throws Exception {
+        assertEquals(8, ImageEncoder.getSampleSize(12000, 1000, 1024));
+    }
+
+}
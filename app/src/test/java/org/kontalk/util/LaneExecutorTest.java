@@ -0,0 +1,129 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class LaneExecutorTest {
+
+    private static final int LANE_HIGH = 0;
+    private static final int LANE_OLDEST = 1;
+    private static final int LANE_DISCARD = 2;
+
+    private static LaneExecutor create(int maxQueue) {
+        return new LaneExecutor("test", 1,
+            new LaneExecutor.Lane("high", maxQueue, LaneExecutor.POLICY_CALLER_RUNS),
+            new LaneExecutor.Lane("oldest", maxQueue, LaneExecutor.POLICY_DISCARD_OLDEST),
+            new LaneExecutor.Lane("discard", maxQueue, LaneExecutor.POLICY_DISCARD));
+    }
+
+    private static Runnable record(final List<String> log, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(name);
+            }
+        };
+    }
+
+    /** Keeps the only thread busy until the returned latch is released. */
+    private static CountDownLatch block(LaneExecutor executor) throws InterruptedException {
+        final CountDownLatch blocker = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocker.await();
+                }
+                catch (InterruptedException ignored) {
+                }
+            }
+        }, LANE_HIGH);
+        // wait for the blocking task to be taken from the queue
+        while (executor.getActiveCount() == 0)
+            Thread.sleep(10);
+        return blocker;
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        LaneExecutor executor = create(10);
+        CountDownLatch blocker = block(executor);
+        final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+        executor.execute(record(log, "discard1"), LANE_DISCARD);
+        executor.execute(record(log, "oldest"), LANE_OLDEST);
+        executor.execute(record(log, "discard2"), LANE_DISCARD);
+        executor.execute(record(log, "high"), LANE_HIGH);
+        assertEquals(1, executor.getQueueSize(LANE_HIGH));
+        assertEquals(2, executor.getQueueSize(LANE_DISCARD));
+
+        blocker.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("high", "oldest", "discard1", "discard2"), log);
+        assertEquals(2, executor.getLane(LANE_HIGH).getCompletedCount());
+        assertEquals(0, executor.getActiveCount());
+    }
+
+    @Test
+    public void testPolicies() throws Exception {
+        LaneExecutor executor = create(2);
+        CountDownLatch blocker = block(executor);
+        final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+        executor.execute(record(log, "high1"), LANE_HIGH);
+        executor.execute(record(log, "high2"), LANE_HIGH);
+        // queue is full: this runs right away on this thread
+        assertTrue(executor.execute(record(log, "caller"), LANE_HIGH));
+        assertEquals(Collections.singletonList("caller"), log);
+
+        executor.execute(record(log, "oldest1"), LANE_OLDEST);
+        executor.execute(record(log, "oldest2"), LANE_OLDEST);
+        assertTrue(executor.execute(record(log, "oldest3"), LANE_OLDEST));
+
+        executor.execute(record(log, "discard1"), LANE_DISCARD);
+        executor.execute(record(log, "discard2"), LANE_DISCARD);
+        assertFalse(executor.execute(record(log, "discard3"), LANE_DISCARD));
+
+        blocker.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("caller", "high1", "high2",
+            "oldest2", "oldest3", "discard1", "discard2"), log);
+        assertEquals(1, executor.getLane(LANE_HIGH).getCallerRunsCount());
+        assertEquals(1, executor.getLane(LANE_OLDEST).getDiscardedCount());
+        assertEquals(1, executor.getLane(LANE_DISCARD).getDiscardedCount());
+        assertEquals(2, executor.getMaxQueueSize(LANE_OLDEST));
+        // rejected after shutdown
+        assertFalse(executor.execute(record(log, "late"), LANE_HIGH));
+    }
+
+}
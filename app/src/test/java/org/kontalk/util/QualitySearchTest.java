@@ -0,0 +1,76 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class QualitySearchTest {
+
+    /** Output grows linearly with quality. */
+    private static class LinearEncoder implements QualitySearch.Encoder {
+        final long bytesPerQuality;
+
+        LinearEncoder(long bytesPerQuality) {
+            this.bytesPerQuality = bytesPerQuality;
+        }
+
+        @Override
+        public long encode(int quality) throws IOException {
+            return quality * bytesPerQuality;
+        }
+    }
+
+    @Test
+    public void testMaxFits() throws Exception {
+        QualitySearch search = new QualitySearch(new LinearEncoder(1000), 40, 85, 5);
+        assertEquals(85, search.search(85000));
+        // just one attempt
+        assertEquals(1, search.getAttempts());
+        assertEquals(85, search.getLastQuality());
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        QualitySearch search = new QualitySearch(new LinearEncoder(1000), 40, 85, 5);
+        int quality = search.search(70000);
+        assertTrue(quality <= 70);
+        assertTrue(quality > 70 - 5);
+        // bisection, not a linear scan
+        assertTrue(search.getAttempts() <= 5);
+    }
+
+    @Test
+    public void testNothingFits() throws Exception {
+        QualitySearch search = new QualitySearch(new LinearEncoder(1000), 40, 85, 5);
+        assertEquals(-1, search.search(39000));
+        assertEquals(40, search.getLastQuality());
+    }
+
+    @Test
+    public void testMinFits() throws Exception {
+        QualitySearch search = new QualitySearch(new LinearEncoder(1000), 40, 85, 5);
+        assertEquals(40, search.search(41000));
+    }
+
+}
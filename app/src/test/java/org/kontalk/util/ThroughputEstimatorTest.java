@@ -0,0 +1,60 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ThroughputEstimatorTest {
+
+    @Test
+    public void testFirstSample() throws Exception {
+        ThroughputEstimator estimator = new ThroughputEstimator(0);
+        assertEquals(0, estimator.getThroughput());
+        assertTrue(estimator.addSample(1024 * 1024, 2000));
+        assertEquals(512 * 1024, estimator.getThroughput());
+    }
+
+    @Test
+    public void testAverage() throws Exception {
+        ThroughputEstimator estimator = new ThroughputEstimator(100000);
+        assertTrue(estimator.addSample(200000, 1000));
+        // moves towards the sample, but not all the way
+        long throughput = estimator.getThroughput();
+        assertTrue(throughput > 100000);
+        assertTrue(throughput < 200000);
+
+        for (int i = 0; i < 20; i++)
+            estimator.addSample(200000, 1000);
+        assertEquals(200000, estimator.getThroughput(), 1000);
+    }
+
+    @Test
+    public void testShortSamples() throws Exception {
+        ThroughputEstimator estimator = new ThroughputEstimator(100000);
+        // too small
+        assertFalse(estimator.addSample(1000, 1000));
+        // too fast
+        assertFalse(estimator.addSample(1024 * 1024, 10));
+        assertEquals(100000, estimator.getThroughput());
+    }
+
+}
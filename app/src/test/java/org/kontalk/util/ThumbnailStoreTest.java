@@ -0,0 +1,180 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ThumbnailStoreTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("thumbnails", null);
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    private static File write(ThumbnailStore store, String name, int length, long accessTime) throws IOException {
+        File file = store.getFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[length]);
+        out.close();
+        assertTrue(file.setLastModified(accessTime));
+        return file;
+    }
+
+    @Test
+    public void testUsage() throws Exception {
+        ThumbnailStore store = new ThumbnailStore(mDirectory, 10000);
+        long now = System.currentTimeMillis();
+        write(store, "a.jpg", 1000, now);
+        write(store, "b.jpg", 2000, now);
+
+        assertEquals(3000, store.getUsage());
+        assertEquals(2, store.getCount());
+        assertEquals(0, store.trim());
+        assertEquals(3000, store.getUsage());
+    }
+
+    @Test
+    public void testTrimLeastRecentlyUsed() throws Exception {
+        ThumbnailStore store = new ThumbnailStore(mDirectory, 5000);
+        long now = System.currentTimeMillis();
+        File oldest = write(store, "a.jpg", 2000, now - 40000);
+        File old = write(store, "b.jpg", 2000, now - 30000);
+        File recent = write(store, "c.jpg", 2000, now - 20000);
+        File newest = write(store, "d.jpg", 2000, now - 10000);
+
+        // down to the low watermark (4000 bytes)
+        assertEquals(2, store.trim());
+        assertFalse(oldest.exists());
+        assertFalse(old.exists());
+        assertTrue(recent.exists());
+        assertTrue(newest.exists());
+        assertEquals(4000, store.getUsage());
+        assertEquals(2, store.getCount());
+        assertEquals(2, store.getEvictedCount());
+    }
+
+    @Test
+    public void testTrimUniquePreviewsLast() throws Exception {
+        ThumbnailStore store = new ThumbnailStore(mDirectory, 5000);
+        long now = System.currentTimeMillis();
+        final File unique = write(store, "a.jpg", 2000, now - 40000);
+        File old = write(store, "b.jpg", 2000, now - 30000);
+        File recent = write(store, "c.jpg", 2000, now - 20000);
+        File newest = write(store, "d.jpg", 2000, now - 10000);
+
+        store.setPreviewIndex(new ThumbnailStore.PreviewIndex() {
+            @Override
+            public Set<String> getUniquePreviews() {
+                return Collections.singleton(unique.getPath());
+            }
+        });
+
+        // the oldest can't be generated again, the next ones go first
+        assertEquals(2, store.trim());
+        assertTrue(unique.exists());
+        assertFalse(old.exists());
+        assertFalse(recent.exists());
+        assertTrue(newest.exists());
+        assertEquals(4000, store.getUsage());
+    }
+
+    @Test
+    public void testTrimUniquePreviewsOverQuota() throws Exception {
+        ThumbnailStore store = new ThumbnailStore(mDirectory, 3000);
+        long now = System.currentTimeMillis();
+        final File oldest = write(store, "a.jpg", 2000, now - 20000);
+        final File newest = write(store, "b.jpg", 2000, now - 10000);
+
+        store.setPreviewIndex(new ThumbnailStore.PreviewIndex() {
+            @Override
+            public Set<String> getUniquePreviews() {
+                Set<String> paths = new HashSet<>();
+                paths.add(oldest.getPath());
+                paths.add(newest.getPath());
+                return paths;
+            }
+        });
+
+        // the quota still holds
+        assertEquals(1, store.trim());
+        assertFalse(oldest.exists());
+        assertTrue(newest.exists());
+    }
+
+    @Test
+    public void testAccessKeepsThumbnail() throws Exception {
+        ThumbnailStore store = new ThumbnailStore(mDirectory, 3000);
+        long old = System.currentTimeMillis() - ThumbnailStore.ACCESS_GRANULARITY * 2;
+        File accessed = write(store, "a.jpg", 2000, old);
+        File other = write(store, "b.jpg", 2000, old + 1000);
+
+        store.onAccess(accessed);
+        assertTrue(accessed.lastModified() > other.lastModified());
+
+        assertEquals(1, store.trim());
+        assertTrue(accessed.exists());
+        assertFalse(other.exists());
+    }
+
+    @Test
+    public void testAccessGranularity() throws Exception {
+        ThumbnailStore store = new ThumbnailStore(mDirectory, 3000);
+        // accessed a little while ago, not worth a write
+        long recent = System.currentTimeMillis() - 60000;
+        File file = write(store, "a.jpg", 100, recent);
+
+        store.onAccess(file);
+        assertEquals(recent / 1000, file.lastModified() / 1000);
+    }
+
+    @Test
+    public void testForeignFile() throws Exception {
+        ThumbnailStore store = new ThumbnailStore(mDirectory, 3000);
+        File foreign = new File(mDirectory.getParentFile(), "foreign.jpg");
+        assertFalse(store.contains(foreign));
+        assertTrue(store.contains(store.getFile("a.jpg")));
+    }
+
+}